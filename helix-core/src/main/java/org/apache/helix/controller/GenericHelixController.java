@@ -127,6 +127,11 @@ public class GenericHelixController implements IdealStateChangeListener,
    */
   private ClusterDataCache _cache;
 
+  /**
+   * Pipeline runs that rebalancers requested for a later time
+   */
+  private final RebalanceScheduler _rebalanceScheduler;
+
   /**
    * Default constructor that creates a default pipeline registry. This is sufficient in most cases,
    * but if there is a some thing specific needed use another constructor where in you can pass a
@@ -228,6 +233,7 @@ public class GenericHelixController implements IdealStateChangeListener,
       registry.register("resume", dataRefresh, rebalancePipeline, externalViewPipeline);
       registry
           .register("periodicalRebalance", dataRefresh, rebalancePipeline, externalViewPipeline);
+      registry.register("scheduledRebalance", dataRefresh, rebalancePipeline);
       return registry;
     }
   }
@@ -239,6 +245,19 @@ public class GenericHelixController implements IdealStateChangeListener,
     _lastSeenSessions = new AtomicReference<Map<String, LiveInstance>>();
     _cache = new ClusterDataCache();
     _eventQueue = new ClusterEventBlockingQueue();
+    _rebalanceScheduler = new RebalanceScheduler(new RebalanceScheduler.Handler() {
+      @Override
+      public void onScheduledRebalance(HelixManager manager, List<String> resources) {
+        NotificationContext changeContext = new NotificationContext(manager);
+        changeContext.setType(NotificationContext.Type.CALLBACK);
+        ClusterEvent event = new ClusterEvent("scheduledRebalance");
+        event.addAttribute("helixmanager", manager);
+        event.addAttribute("changeContext", changeContext);
+        event.addAttribute("eventData", resources);
+        _eventQueue.put(event);
+      }
+    });
+    _cache.setRebalanceScheduler(_rebalanceScheduler);
     _eventThread = new ClusterEventProcessor();
     _eventThread.setDaemon(true);
     _eventThread.start();
@@ -259,6 +278,7 @@ public class GenericHelixController implements IdealStateChangeListener,
     if (!manager.isLeader()) {
       logger.error("Cluster manager: " + manager.getInstanceName()
           + " is not leader. Pipeline will not be invoked");
+      _rebalanceScheduler.clear();
       return;
     }
 
@@ -276,6 +296,7 @@ public class GenericHelixController implements IdealStateChangeListener,
     if (context != null) {
       if (context.getType() == Type.FINALIZE) {
         stopRebalancingTimer();
+        _rebalanceScheduler.clear();
         logger.info("Get FINALIZE notification, skip the pipeline. Event: " + event.getName());
         return;
       } else {
@@ -491,6 +512,7 @@ public class GenericHelixController implements IdealStateChangeListener,
   public void onControllerChange(NotificationContext changeContext) {
     logger.info("START: GenericClusterController.onControllerChange()");
     _cache.requireFullRefresh();
+    _cache.requireContextReload();
     if (changeContext != null && changeContext.getType() == Type.FINALIZE) {
       logger.info("GenericClusterController.onControllerChange() FINALIZE");
       return;
@@ -510,6 +532,7 @@ public class GenericHelixController implements IdealStateChangeListener,
       String instanceName = changeContext.getManager().getInstanceName();
       if (leaderName == null || !leaderName.equals(instanceName)) {
         logger.warn("leader name does NOT match, my name: " + instanceName + ", leader: " + leader);
+        _rebalanceScheduler.clear();
         return;
       }
     }
@@ -623,6 +646,7 @@ public class GenericHelixController implements IdealStateChangeListener,
 
   public void shutdown() throws InterruptedException {
     stopRebalancingTimer();
+    _rebalanceScheduler.shutdown();
     while (_eventThread.isAlive()) {
       _eventThread.interrupt();
       _eventThread.join(EVENT_THREAD_JOIN_TIMEOUT);
@@ -0,0 +1,236 @@
+package org.apache.helix.controller;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.helix.HelixManager;
+import org.apache.helix.util.HashedTimerWheel;
+import org.apache.log4j.Logger;
+
+/**
+ * Schedules controller pipeline runs at points in time, e.g. when a scheduled workflow is due or
+ * a failed task may be retried.
+ * <p>
+ * Each schedule has a key, such as a workflow or job name, and at most one pending time per key;
+ * scheduling a key again only moves it earlier. Due keys are handed to a {@link Handler} in one
+ * batch per tick, which typically puts a single event on the controller's event queue. Schedules
+ * only live in memory: they are dropped when leadership is lost, and the rebalancers add them back
+ * from the workflow and job state on the first pipeline run of the new leader.
+ * </p>
+ */
+public class RebalanceScheduler {
+  private static final Logger LOG = Logger.getLogger(RebalanceScheduler.class);
+
+  /** Default resolution of the schedule, in milliseconds */
+  public static final long DEFAULT_TICK_MS = 100;
+  /** Default number of wheel buckets; schedules further out wait for more revolutions */
+  public static final int DEFAULT_NUM_BUCKETS = 1024;
+
+  /**
+   * Callback for keys that are due
+   */
+  public interface Handler {
+    /**
+     * Run a rebalance for the due keys
+     * @param manager the connection that scheduled the keys
+     * @param resources the resources to rebalance, one per due key
+     */
+    void onScheduledRebalance(HelixManager manager, List<String> resources);
+  }
+
+  private final Handler _handler;
+  private final HashedTimerWheel<ScheduledRebalance> _wheel;
+  private final Map<String, ScheduledRebalance> _scheduled;
+  private ScheduledExecutorService _executor;
+
+  /**
+   * Create a scheduler with the default resolution
+   * @param handler the callback for due keys
+   */
+  public RebalanceScheduler(Handler handler) {
+    this(handler, DEFAULT_TICK_MS, DEFAULT_NUM_BUCKETS);
+  }
+
+  /**
+   * Create a scheduler
+   * @param handler the callback for due keys
+   * @param tickMillis the resolution of the schedule in milliseconds
+   * @param numBuckets the number of wheel buckets
+   */
+  public RebalanceScheduler(Handler handler, long tickMillis, int numBuckets) {
+    _handler = handler;
+    _wheel =
+        new HashedTimerWheel<ScheduledRebalance>(tickMillis, numBuckets,
+            System.currentTimeMillis());
+    _scheduled = new HashMap<String, ScheduledRebalance>();
+    _executor = null;
+  }
+
+  /**
+   * Schedule a rebalance, unless one is already scheduled for the key at the same time or earlier
+   * @param manager the connection to pass to the handler
+   * @param key identifies the schedule, e.g. a workflow or job name
+   * @param resource the resource to rebalance
+   * @param timeMillis when to rebalance
+   * @return true if the schedule was added or moved earlier, false otherwise
+   */
+  public synchronized boolean schedule(HelixManager manager, String key, String resource,
+      long timeMillis) {
+    ScheduledRebalance entry = _scheduled.get(key);
+    if (entry != null && entry._timeMillis <= timeMillis) {
+      return false;
+    }
+    if (entry == null) {
+      entry = new ScheduledRebalance(key);
+      _scheduled.put(key, entry);
+    }
+    entry._manager = manager;
+    entry._resource = resource;
+    entry._timeMillis = timeMillis;
+    _wheel.schedule(entry, timeMillis);
+    ensureExecutor();
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Scheduled a rebalance of " + resource + " for " + key + " at " + timeMillis);
+    }
+    return true;
+  }
+
+  /**
+   * Get the pending rebalance time of a key
+   * @param key the schedule key
+   * @return the time in milliseconds, or -1 if nothing is scheduled
+   */
+  public synchronized long getScheduledTime(String key) {
+    ScheduledRebalance entry = _scheduled.get(key);
+    return (entry != null) ? entry._timeMillis : -1L;
+  }
+
+  /**
+   * Remove the pending rebalance of a key
+   * @param key the schedule key
+   * @return true if something was scheduled, false otherwise
+   */
+  public synchronized boolean cancel(String key) {
+    ScheduledRebalance entry = _scheduled.remove(key);
+    return entry != null && _wheel.cancel(entry);
+  }
+
+  /**
+   * Remove all pending rebalances, e.g. when leadership is lost
+   */
+  public synchronized void clear() {
+    for (ScheduledRebalance entry : _scheduled.values()) {
+      _wheel.cancel(entry);
+    }
+    _scheduled.clear();
+  }
+
+  /**
+   * Get the number of pending rebalances
+   * @return schedule count
+   */
+  public synchronized int size() {
+    return _scheduled.size();
+  }
+
+  /**
+   * Stop the timer thread and drop all pending rebalances
+   */
+  public synchronized void shutdown() {
+    clear();
+    if (_executor != null) {
+      _executor.shutdownNow();
+      _executor = null;
+    }
+  }
+
+  /**
+   * Hand every key that is due at the given time to the handler
+   * @param nowMillis the current time in milliseconds
+   * @return the number of keys that were due
+   */
+  int fire(long nowMillis) {
+    Map<HelixManager, List<String>> due = new HashMap<HelixManager, List<String>>();
+    int count = 0;
+    synchronized (this) {
+      for (ScheduledRebalance entry : _wheel.expire(nowMillis)) {
+        _scheduled.remove(entry._key);
+        List<String> resources = due.get(entry._manager);
+        if (resources == null) {
+          resources = new ArrayList<String>();
+          due.put(entry._manager, resources);
+        }
+        resources.add(entry._resource);
+        count++;
+      }
+    }
+    for (Map.Entry<HelixManager, List<String>> e : due.entrySet()) {
+      try {
+        _handler.onScheduledRebalance(e.getKey(), e.getValue());
+      } catch (Exception ex) {
+        LOG.error("Failed to run scheduled rebalance of " + e.getValue(), ex);
+      }
+    }
+    return count;
+  }
+
+  private void ensureExecutor() {
+    if (_executor != null) {
+      return;
+    }
+    _executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "RebalanceScheduler");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    long tickMillis = _wheel.getTickMillis();
+    _executor.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        fire(System.currentTimeMillis());
+      }
+    }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * A pending rebalance for one key
+   */
+  private static class ScheduledRebalance extends HashedTimerWheel.Entry {
+    final String _key;
+    HelixManager _manager;
+    String _resource;
+    long _timeMillis;
+
+    ScheduledRebalance(String key) {
+      _key = key;
+    }
+  }
+}
@@ -0,0 +1,396 @@
+package org.apache.helix.controller.context;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.I0Itec.zkclient.IZkDataListener;
+import org.apache.helix.AccessOption;
+import org.apache.helix.HelixManager;
+import org.apache.helix.ZNRecord;
+import org.apache.helix.store.HelixPropertyStore;
+import org.apache.log4j.Logger;
+
+/**
+ * A controller-side write-back cache for records that rebalancers keep in the property store, such
+ * as task framework contexts.
+ * <p>
+ * Records are read from the property store the first time they are requested and served from
+ * memory afterwards. Records that are put are only marked dirty; {@link #flush()} writes the ones
+ * whose content actually changed in a single batched call, without holding the cache's lock while
+ * it waits for the property store. Each cached path is watched, and a change that was not made
+ * through this cache evicts the record so that it is read again on next use, optionally notifying
+ * a {@link ChangeListener}. The cache must be cleared when leadership changes, since another
+ * controller may have written in the meantime. Clear it on the pipeline thread between runs, as
+ * clearing drops records that are not flushed yet.
+ * </p>
+ */
+public class ContextWriteBackCache {
+  private static final Logger LOG = Logger.getLogger(ContextWriteBackCache.class);
+
+  /**
+   * Notified when a cached record is changed outside of the cache, e.g. by a participant
+   */
+  public interface ChangeListener {
+    /**
+     * Called after the record has been evicted
+     * @param path property store path of the record
+     */
+    void onExternalChange(String path);
+  }
+
+  private final Map<String, Entry> _entries;
+  private final Set<String> _dirtyPaths;
+  private final Set<String> _accessedParents;
+  private HelixPropertyStore<ZNRecord> _propertyStore;
+  private int _numReads;
+  private int _numWrites;
+
+  /**
+   * Create an empty cache
+   */
+  public ContextWriteBackCache() {
+    _entries = new HashMap<String, Entry>();
+    _dirtyPaths = new LinkedHashSet<String>();
+    _accessedParents = new HashSet<String>();
+    _propertyStore = null;
+    _numReads = 0;
+    _numWrites = 0;
+  }
+
+  /**
+   * Get a record, reading it from the property store if it is not cached
+   * @param manager connection to the property store
+   * @param path property store path of the record
+   * @return a copy of the record that the caller may modify, or null if it does not exist
+   */
+  public synchronized ZNRecord get(HelixManager manager, String path) {
+    return get(manager, path, null);
+  }
+
+  /**
+   * Get a record, reading it from the property store if it is not cached, and be notified the next
+   * time someone else changes it. The listener is dropped once the record is evicted, so it is
+   * passed again when the record is read again.
+   * @param manager connection to the property store
+   * @param path property store path of the record
+   * @param listener notified of the next external change, or null
+   * @return a copy of the record that the caller may modify, or null if it does not exist
+   */
+  public synchronized ZNRecord get(HelixManager manager, String path, ChangeListener listener) {
+    Entry entry = getOrLoad(manager, path);
+    if (listener != null) {
+      entry._listener = listener;
+    }
+    return entry._current != null ? new ZNRecord(entry._current) : null;
+  }
+
+  /**
+   * Replace a record. The record is written on the next {@link #flush()} if it differs from the
+   * persisted one.
+   * @param manager connection to the property store
+   * @param path property store path of the record
+   * @param record the new record
+   */
+  public synchronized void put(HelixManager manager, String path, ZNRecord record) {
+    bind(manager);
+    Entry entry = _entries.get(path);
+    if (entry == null) {
+      // the persisted content is unknown, so the record will always be written
+      entry = new Entry(path, null, false);
+      _entries.put(path, entry);
+      entry._watched = subscribe(entry);
+    }
+    entry._current = record;
+    _dirtyPaths.add(path);
+    _accessedParents.add(getParent(path));
+  }
+
+  /**
+   * Forget a path and everything below it, e.g. after it is removed from the property store
+   * @param path the path to evict
+   */
+  public synchronized void invalidate(String path) {
+    String prefix = path + "/";
+    Iterator<Map.Entry<String, Entry>> it = _entries.entrySet().iterator();
+    while (it.hasNext()) {
+      Entry entry = it.next().getValue();
+      if (entry._path.equals(path) || entry._path.startsWith(prefix)) {
+        it.remove();
+        _dirtyPaths.remove(entry._path);
+        unsubscribe(entry);
+      }
+    }
+  }
+
+  /**
+   * Drop all cached records, including dirty ones that were not flushed. Records are read again the
+   * next time they are requested.
+   */
+  public synchronized void clear() {
+    for (Entry entry : _entries.values()) {
+      unsubscribe(entry);
+    }
+    _entries.clear();
+    _dirtyPaths.clear();
+    _propertyStore = null;
+  }
+
+  /**
+   * Write every dirty record whose content changed in one batch, and reset the per-run counters.
+   * The records are collected under the lock and written after releasing it, so that watch
+   * callbacks are not held up by the write.
+   * @return the property store operations performed since the last flush
+   */
+  public FlushStats flush() {
+    List<Entry> entries = new ArrayList<Entry>();
+    List<String> paths = new ArrayList<String>();
+    List<ZNRecord> records = new ArrayList<ZNRecord>();
+    HelixPropertyStore<ZNRecord> propertyStore;
+    synchronized (this) {
+      for (String path : _dirtyPaths) {
+        Entry entry = _entries.get(path);
+        if (entry == null || entry._current == null) {
+          continue;
+        }
+        if (!entry._persistedKnown || !entry._current.equals(entry._persisted)) {
+          ZNRecord record = new ZNRecord(entry._current);
+          entry._writing = record;
+          entries.add(entry);
+          paths.add(path);
+          records.add(record);
+        }
+      }
+      _dirtyPaths.clear();
+      propertyStore = _propertyStore;
+    }
+
+    boolean[] success = null;
+    if (!paths.isEmpty() && propertyStore != null) {
+      try {
+        success = propertyStore.setChildren(paths, records, AccessOption.PERSISTENT);
+      } catch (RuntimeException e) {
+        LOG.error("Failed to write " + paths.size() + " records", e);
+        success = new boolean[paths.size()];
+      }
+    }
+
+    synchronized (this) {
+      for (int i = 0; i < entries.size(); i++) {
+        Entry entry = entries.get(i);
+        entry._writing = null;
+        if (success == null) {
+          // nothing was written; the records stay dirty
+          if (_entries.get(paths.get(i)) == entry) {
+            _dirtyPaths.add(paths.get(i));
+          }
+        } else if (success[i]) {
+          entry._persisted = records.get(i);
+          entry._persistedKnown = true;
+        } else {
+          LOG.error("Failed to write " + paths.get(i) + ", it will be read again on next use");
+          if (_entries.get(paths.get(i)) == entry) {
+            invalidate(paths.get(i));
+          }
+        }
+      }
+      if (success != null) {
+        _numWrites += paths.size();
+      }
+
+      // records that cannot be watched are only held until they are written
+      Iterator<Entry> it = _entries.values().iterator();
+      while (it.hasNext()) {
+        Entry entry = it.next();
+        if (!entry._watched && !_dirtyPaths.contains(entry._path)) {
+          it.remove();
+        }
+      }
+
+      FlushStats stats = new FlushStats(_accessedParents.size(), _numReads, _numWrites);
+      _accessedParents.clear();
+      _numReads = 0;
+      _numWrites = 0;
+      return stats;
+    }
+  }
+
+  /**
+   * Get the number of cached records
+   * @return record count
+   */
+  public synchronized int size() {
+    return _entries.size();
+  }
+
+  private Entry getOrLoad(HelixManager manager, String path) {
+    bind(manager);
+    _accessedParents.add(getParent(path));
+    Entry entry = _entries.get(path);
+    if (entry == null) {
+      ZNRecord record = _propertyStore.get(path, null, AccessOption.PERSISTENT);
+      _numReads++;
+      entry = new Entry(path, record, true);
+      entry._watched = subscribe(entry);
+      if (entry._watched) {
+        _entries.put(path, entry);
+      }
+    }
+    return entry;
+  }
+
+  private void bind(HelixManager manager) {
+    if (_propertyStore == null) {
+      _propertyStore = manager.getHelixPropertyStore();
+    }
+  }
+
+  private boolean subscribe(Entry entry) {
+    try {
+      _propertyStore.subscribeDataChanges(entry._path, entry);
+      return true;
+    } catch (Exception e) {
+      LOG.warn("Could not watch " + entry._path + ", it will not be cached", e);
+      return false;
+    }
+  }
+
+  private void unsubscribe(Entry entry) {
+    if (entry._watched && _propertyStore != null) {
+      try {
+        _propertyStore.unsubscribeDataChanges(entry._path, entry);
+      } catch (Exception e) {
+        LOG.warn("Could not stop watching " + entry._path, e);
+      }
+    }
+  }
+
+  private void onExternalChange(Entry entry, Object data) {
+    ChangeListener listener;
+    synchronized (this) {
+      if (_entries.get(entry._path) != entry) {
+        return;
+      }
+      // our own writes are echoed back by the watch, possibly while the write is still in
+      // flight; only evict on someone else's
+      if (entry._persistedKnown
+          && (data == null ? entry._persisted == null : data.equals(entry._persisted))) {
+        return;
+      }
+      if (data != null && data.equals(entry._writing)) {
+        return;
+      }
+      LOG.info(entry._path + " changed outside of the controller, evicting it");
+      _entries.remove(entry._path);
+      _dirtyPaths.remove(entry._path);
+      unsubscribe(entry);
+      listener = entry._listener;
+    }
+    if (listener != null) {
+      try {
+        listener.onExternalChange(entry._path);
+      } catch (Exception e) {
+        LOG.error("Change listener failed for " + entry._path, e);
+      }
+    }
+  }
+
+  private static String getParent(String path) {
+    int index = path.lastIndexOf('/');
+    return index > 0 ? path.substring(0, index) : path;
+  }
+
+  /**
+   * A cached record, which also watches its own path
+   */
+  private class Entry implements IZkDataListener {
+    final String _path;
+    ZNRecord _persisted;
+    boolean _persistedKnown;
+    ZNRecord _current;
+    ZNRecord _writing;
+    boolean _watched;
+    ChangeListener _listener;
+
+    Entry(String path, ZNRecord persisted, boolean persistedKnown) {
+      _path = path;
+      _persisted = persisted != null ? new ZNRecord(persisted) : null;
+      _persistedKnown = persistedKnown;
+      _current = persisted;
+      _watched = false;
+    }
+
+    @Override
+    public void handleDataChange(String dataPath, Object data) throws Exception {
+      onExternalChange(this, data);
+    }
+
+    @Override
+    public void handleDataDeleted(String dataPath) throws Exception {
+      onExternalChange(this, null);
+    }
+  }
+
+  /**
+   * Property store operations performed by the cache during one controller pipeline run
+   */
+  public static class FlushStats {
+    private final int _numParents;
+    private final int _numReads;
+    private final int _numWrites;
+
+    private FlushStats(int numParents, int numReads, int numWrites) {
+      _numParents = numParents;
+      _numReads = numReads;
+      _numWrites = numWrites;
+    }
+
+    /**
+     * Get the number of distinct parent paths (e.g. jobs) that were accessed
+     * @return parent path count
+     */
+    public int getNumParents() {
+      return _numParents;
+    }
+
+    /**
+     * Get the number of records read from the property store
+     * @return read count
+     */
+    public int getNumReads() {
+      return _numReads;
+    }
+
+    /**
+     * Get the number of records written to the property store
+     * @return write count
+     */
+    public int getNumWrites() {
+      return _numWrites;
+    }
+  }
+}
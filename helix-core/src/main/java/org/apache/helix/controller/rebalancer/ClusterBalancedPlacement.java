@@ -0,0 +1,628 @@
+package org.apache.helix.controller.rebalancer;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.helix.ZNRecord;
+import org.apache.helix.api.Cluster;
+import org.apache.helix.api.Participant;
+import org.apache.helix.api.Resource;
+import org.apache.helix.api.State;
+import org.apache.helix.api.config.UserConfig;
+import org.apache.helix.api.id.ParticipantId;
+import org.apache.helix.api.id.PartitionId;
+import org.apache.helix.api.id.ResourceId;
+import org.apache.helix.controller.rebalancer.util.ConstraintBasedAssignment;
+import org.apache.helix.controller.stages.ClusterDataCache;
+import org.apache.helix.controller.stages.ResourceCurrentState;
+import org.apache.helix.controller.strategy.WeightedPlacementStrategy;
+import org.apache.helix.model.IdealState;
+import org.apache.helix.model.StateModelDefinition;
+import org.apache.log4j.Logger;
+
+/**
+ * Places the replicas of all FULL_AUTO resources that share an instance group together, so that
+ * every instance ends up with about the same number of replicas, and of top-state replicas, across
+ * resources rather than only within each of them. Replicas stay where they are unless an instance
+ * has to give some up to even out the totals. The placement is computed once per pipeline run and
+ * shared by the {@link FullAutoRebalancer} of every resource it covers. The placement of an
+ * instance group is reused in later runs for as long as nothing it was computed from changes.
+ */
+public class ClusterBalancedPlacement {
+  private static final Logger LOG = Logger.getLogger(ClusterBalancedPlacement.class);
+
+  /**
+   * Cluster config field that turns on the cluster-wide placement of FULL_AUTO resources
+   */
+  public static final String CLUSTER_BALANCED_PLACEMENT = "CLUSTER_BALANCED_PLACEMENT";
+
+  // Run attribute with the placement of the current pipeline run
+  private static final String PLACEMENT = "BALANCED_PLACEMENT";
+
+  // Controller attribute with the last placement of each instance group
+  private static final String GROUP_PLACEMENTS = "BALANCED_GROUP_PLACEMENTS";
+
+  private final Map<ResourceId, ZNRecord> _mappings;
+  private int _numMovedReplicas;
+  private int _numReusedGroups;
+
+  /**
+   * Check if a cluster places its FULL_AUTO resources together
+   * @param cluster current snapshot of the cluster
+   * @return true if {@link #CLUSTER_BALANCED_PLACEMENT} is set, false otherwise
+   */
+  public static boolean isEnabled(Cluster cluster) {
+    UserConfig userConfig = cluster.getUserConfig();
+    return userConfig != null && userConfig.getBooleanField(CLUSTER_BALANCED_PLACEMENT, false);
+  }
+
+  /**
+   * Get the placement for a pipeline run, computing it on first use
+   * @param cluster current snapshot of the cluster
+   * @param currentState current state of the cluster in this run
+   * @return the placement of all the resources it covers
+   */
+  public static synchronized ClusterBalancedPlacement get(Cluster cluster,
+      ResourceCurrentState currentState) {
+    ClusterDataCache cache = cluster.getCache();
+    if (cache == null) {
+      return new ClusterBalancedPlacement(cluster, currentState,
+          new HashMap<String, GroupResult>());
+    }
+    ClusterBalancedPlacement placement = cache.getRunAttribute(PLACEMENT);
+    if (placement == null) {
+      Map<String, GroupResult> lastPlacements =
+          cache.getControllerAttribute(GROUP_PLACEMENTS, new HashMap<String, GroupResult>());
+      placement = new ClusterBalancedPlacement(cluster, currentState, lastPlacements);
+      cache.getRunAttribute(PLACEMENT, placement);
+    }
+    return placement;
+  }
+
+  /**
+   * Compute the placement of every FULL_AUTO resource that is placed by replica count
+   * @param cluster current snapshot of the cluster
+   * @param currentState current state of the cluster
+   * @param lastPlacements the last placement of each instance group, which is reused if its
+   *          inputs have not changed and updated otherwise
+   */
+  ClusterBalancedPlacement(Cluster cluster, ResourceCurrentState currentState,
+      Map<String, GroupResult> lastPlacements) {
+    _mappings = new HashMap<ResourceId, ZNRecord>();
+    _numMovedReplicas = 0;
+    _numReusedGroups = 0;
+
+    // resources are grouped by the instances they can go on
+    Map<String, List<ResourceId>> groups = new TreeMap<String, List<ResourceId>>();
+    List<ResourceId> resourceIds = new ArrayList<ResourceId>(cluster.getResourceMap().keySet());
+    Collections.sort(resourceIds);
+    for (ResourceId resourceId : resourceIds) {
+      Resource resource = cluster.getResource(resourceId);
+      IdealState idealState = resource.getIdealState();
+      if (idealState == null || idealState.getRebalanceMode() != IdealState.RebalanceMode.FULL_AUTO
+          || idealState.getRebalancerRef() == null
+          || !FullAutoRebalancer.class.getName().equals(idealState.getRebalancerRef().toString())
+          || !cluster.getStateModelMap().containsKey(idealState.getStateModelDefId())
+          || WeightedPlacementStrategy.getPartitionWeights(cluster, resourceId,
+              idealState.getPartitionIdSet()) != null) {
+        continue;
+      }
+      String tag = idealState.getInstanceGroupTag();
+      String group = (tag != null) ? tag : "";
+      if (!groups.containsKey(group)) {
+        groups.put(group, new ArrayList<ResourceId>());
+      }
+      groups.get(group).add(resourceId);
+    }
+
+    for (String group : groups.keySet()) {
+      List<ParticipantId> nodes = new ArrayList<ParticipantId>();
+      for (Participant participant : cluster.getLiveParticipantMap().values()) {
+        if (group.isEmpty() || participant.hasTag(group)) {
+          nodes.add(participant.getId());
+        }
+      }
+      if (nodes.isEmpty()) {
+        // leave these resources to their own rebalancers, which will not place them either
+        continue;
+      }
+      Collections.sort(nodes);
+      GroupPlacement groupPlacement =
+          new GroupPlacement(cluster, currentState, groups.get(group), nodes);
+      GroupResult result = lastPlacements.get(group);
+      if (result == null || !result._inputs.equals(groupPlacement._inputs)) {
+        result = groupPlacement.place();
+        lastPlacements.put(group, result);
+      } else {
+        _numReusedGroups++;
+      }
+      for (Map.Entry<ResourceId, ZNRecord> e : result._mappings.entrySet()) {
+        _mappings.put(e.getKey(), new ZNRecord(e.getValue()));
+      }
+      _numMovedReplicas += result._numMovedReplicas;
+    }
+    lastPlacements.keySet().retainAll(groups.keySet());
+    if (LOG.isInfoEnabled()) {
+      LOG.info("Placed " + _mappings.size() + " resources across the cluster, moving "
+          + _numMovedReplicas + " replicas, reusing the placement of " + _numReusedGroups
+          + " instance groups");
+    }
+  }
+
+  /**
+   * Get the placement of a resource
+   * @param resourceId the resource
+   * @return the preference list and replica mapping, or null if the resource is not covered
+   */
+  public ZNRecord getMapping(ResourceId resourceId) {
+    return _mappings.get(resourceId);
+  }
+
+  /**
+   * Get the number of replicas placed on an instance that does not hold them yet
+   * @return number of replicas
+   */
+  public int getNumMovedReplicas() {
+    return _numMovedReplicas;
+  }
+
+  /**
+   * Get the number of instance groups whose placement was reused from an earlier run
+   * @return number of groups
+   */
+  public int getNumReusedGroups() {
+    return _numReusedGroups;
+  }
+
+  /**
+   * Everything the placement of an instance group is computed from. Two groups with equal inputs
+   * get the same placement.
+   */
+  private static class GroupInputs {
+    private final List<ResourceId> _resources;
+    private final List<ParticipantId> _nodes;
+    private final List<PartitionId> _partitions;
+    private final List<Map<ParticipantId, State>> _current;
+    private final List<List<State>> _stateLists;
+    private final List<Integer> _maxPerNode;
+    private final int _hashCode;
+
+    GroupInputs(List<ResourceId> resources, List<ParticipantId> nodes,
+        List<PartitionId> partitions, List<Map<ParticipantId, State>> current,
+        List<List<State>> stateLists, int[] maxPerNode) {
+      _resources = resources;
+      _nodes = nodes;
+      _partitions = partitions;
+      _current = current;
+      _stateLists = stateLists;
+      _maxPerNode = new ArrayList<Integer>();
+      for (int max : maxPerNode) {
+        _maxPerNode.add(max);
+      }
+      _hashCode = Arrays.hashCode(new Object[] {
+          _resources, _nodes, _partitions, _current, _stateLists, _maxPerNode
+      });
+    }
+
+    @Override
+    public int hashCode() {
+      return _hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof GroupInputs)) {
+        return false;
+      }
+      GroupInputs other = (GroupInputs) obj;
+      return _hashCode == other._hashCode && _resources.equals(other._resources)
+          && _nodes.equals(other._nodes) && _partitions.equals(other._partitions)
+          && _maxPerNode.equals(other._maxPerNode) && _stateLists.equals(other._stateLists)
+          && _current.equals(other._current);
+    }
+  }
+
+  /**
+   * The placement of an instance group, together with the inputs it was computed from
+   */
+  static class GroupResult {
+    private final GroupInputs _inputs;
+    private final Map<ResourceId, ZNRecord> _mappings;
+    private final int _numMovedReplicas;
+
+    GroupResult(GroupInputs inputs, Map<ResourceId, ZNRecord> mappings, int numMovedReplicas) {
+      _inputs = inputs;
+      _mappings = mappings;
+      _numMovedReplicas = numMovedReplicas;
+    }
+  }
+
+  /**
+   * The placement of the resources of one instance group. Partitions of all the resources are
+   * numbered together, and the hosts of each one are kept in an array with the top-state holders
+   * at the front.
+   */
+  private class GroupPlacement {
+    private final List<ParticipantId> _nodes;
+    private final Map<ParticipantId, Integer> _nodeIndex;
+    private final List<ResourceId> _resources;
+    private final List<PartitionId> _partitions;
+    private final List<Map<ParticipantId, State>> _current;
+    private final int[] _resourceOf;
+    private final int[][] _hosts;
+    private final int[] _numHosts;
+    private final int[] _numTop;
+    private final List<List<State>> _stateLists;
+    private final int[] _maxPerNode;
+    private final int[] _replicaCount;
+    private final int[] _topCount;
+    private final int[][] _resourceCount;
+    private final List<Set<Integer>> _hosted;
+    private final GroupInputs _inputs;
+
+    GroupPlacement(Cluster cluster, ResourceCurrentState currentState,
+        List<ResourceId> resources, List<ParticipantId> nodes) {
+      _nodes = nodes;
+      _nodeIndex = new HashMap<ParticipantId, Integer>();
+      for (int n = 0; n < nodes.size(); n++) {
+        _nodeIndex.put(nodes.get(n), n);
+      }
+      _resources = resources;
+      _partitions = new ArrayList<PartitionId>();
+      _current = new ArrayList<Map<ParticipantId, State>>();
+      _stateLists = new ArrayList<List<State>>();
+      _maxPerNode = new int[resources.size()];
+      List<Integer> resourceOf = new ArrayList<Integer>();
+      List<Integer> numTop = new ArrayList<Integer>();
+      List<Integer> numReplicas = new ArrayList<Integer>();
+      for (int r = 0; r < resources.size(); r++) {
+        IdealState idealState = cluster.getResource(resources.get(r)).getIdealState();
+        StateModelDefinition stateModelDef =
+            cluster.getStateModelMap().get(idealState.getStateModelDefId());
+        Map<State, String> upperBounds =
+            ConstraintBasedAssignment.stateConstraints(stateModelDef, idealState.getResourceId(),
+                cluster.getConfig());
+        LinkedHashMap<State, Integer> stateCountMap =
+            FullAutoRebalancer.stateCount(idealState, stateModelDef, upperBounds, cluster
+                .getLiveParticipantMap().size());
+        List<State> stateList = new ArrayList<State>();
+        for (Map.Entry<State, Integer> e : stateCountMap.entrySet()) {
+          for (int i = 0; i < e.getValue() && stateList.size() < nodes.size(); i++) {
+            stateList.add(e.getKey());
+          }
+        }
+        int top =
+            stateCountMap.isEmpty() ? 0 : Math.min(stateCountMap.values().iterator().next(),
+                stateList.size());
+        int maxPerNode = idealState.getMaxPartitionsPerInstance();
+        _maxPerNode[r] = (maxPerNode > 0) ? maxPerNode : Integer.MAX_VALUE;
+        Map<PartitionId, Map<ParticipantId, State>> currentMapping =
+            FullAutoRebalancer.currentMapping(idealState, currentState, stateCountMap);
+        List<PartitionId> partitions = new ArrayList<PartitionId>(idealState.getPartitionIdSet());
+        Collections.sort(partitions);
+        for (PartitionId partition : partitions) {
+          _partitions.add(partition);
+          _current.add(currentMapping.get(partition));
+          _stateLists.add(stateList);
+          resourceOf.add(r);
+          numTop.add(top);
+          numReplicas.add(stateList.size());
+        }
+      }
+      int numPartitions = _partitions.size();
+      _resourceOf = new int[numPartitions];
+      _numTop = new int[numPartitions];
+      _hosts = new int[numPartitions][];
+      _numHosts = new int[numPartitions];
+      for (int g = 0; g < numPartitions; g++) {
+        _resourceOf[g] = resourceOf.get(g);
+        _numTop[g] = numTop.get(g);
+        _hosts[g] = new int[numReplicas.get(g)];
+      }
+      _replicaCount = new int[nodes.size()];
+      _topCount = new int[nodes.size()];
+      _resourceCount = new int[resources.size()][nodes.size()];
+      _hosted = new ArrayList<Set<Integer>>();
+      for (int n = 0; n < nodes.size(); n++) {
+        _hosted.add(new LinkedHashSet<Integer>());
+      }
+      _inputs = new GroupInputs(resources, nodes, _partitions, _current, _stateLists, _maxPerNode);
+    }
+
+    GroupResult place() {
+      keepCurrent();
+      placeOrphans();
+      balanceReplicas();
+      balanceTopStates();
+      Map<ResourceId, ZNRecord> mappings = new HashMap<ResourceId, ZNRecord>();
+      int numMovedReplicas = 0;
+      for (int r = 0; r < _resources.size(); r++) {
+        mappings.put(_resources.get(r), new ZNRecord(_resources.get(r).stringify()));
+      }
+      for (int g = 0; g < _partitions.size(); g++) {
+        ZNRecord mapping = mappings.get(_resources.get(_resourceOf[g]));
+        List<State> stateList = _stateLists.get(g);
+        List<String> preferenceList = new ArrayList<String>();
+        Map<String, String> stateMap = new TreeMap<String, String>();
+        for (int h = 0; h < _numHosts[g]; h++) {
+          ParticipantId participantId = _nodes.get(_hosts[g][h]);
+          preferenceList.add(participantId.stringify());
+          stateMap.put(participantId.stringify(), stateList.get(h).toString());
+          if (_current.get(g) == null || !_current.get(g).containsKey(participantId)) {
+            numMovedReplicas++;
+          }
+        }
+        mapping.setListField(_partitions.get(g).stringify(), preferenceList);
+        mapping.setMapField(_partitions.get(g).stringify(), stateMap);
+      }
+      return new GroupResult(_inputs, mappings, numMovedReplicas);
+    }
+
+    /**
+     * Keep every replica on the live instance that has it, top-state holders first
+     */
+    private void keepCurrent() {
+      for (int g = 0; g < _partitions.size(); g++) {
+        Map<ParticipantId, State> current = _current.get(g);
+        if (current == null) {
+          continue;
+        }
+        State topState = _stateLists.get(g).isEmpty() ? null : _stateLists.get(g).get(0);
+        for (int pass = 0; pass < 2; pass++) {
+          for (ParticipantId participantId : new TreeSet<ParticipantId>(current.keySet())) {
+            Integer n = _nodeIndex.get(participantId);
+            boolean isTop = current.get(participantId).equals(topState);
+            if (n != null && (pass == 0) == isTop && canAdd(g, n)) {
+              add(g, n);
+            }
+          }
+        }
+      }
+    }
+
+    /**
+     * Place the replicas that have no live instance on the instances with the fewest replicas
+     */
+    private void placeOrphans() {
+      int numNodes = _nodes.size();
+      for (int g = 0; g < _partitions.size(); g++) {
+        int r = _resourceOf[g];
+        while (_numHosts[g] < _hosts[g].length) {
+          int best = -1;
+          for (int k = 0; k < numNodes; k++) {
+            // start at a different instance for every partition to break ties evenly
+            int n = (g + k) % numNodes;
+            if (!canAdd(g, n)) {
+              continue;
+            }
+            if (best < 0 || _replicaCount[n] < _replicaCount[best]
+                || (_replicaCount[n] == _replicaCount[best]
+                && _resourceCount[r][n] < _resourceCount[r][best])) {
+              best = n;
+            }
+          }
+          if (best < 0) {
+            LOG.warn("No instance can take another replica of " + _partitions.get(g));
+            break;
+          }
+          add(g, best);
+        }
+      }
+    }
+
+    /**
+     * Move replicas from the fullest instances to the emptiest until they differ by at most one
+     */
+    private void balanceReplicas() {
+      int numReplicas = 0;
+      for (int count : _replicaCount) {
+        numReplicas += count;
+      }
+      CountHeap heap = new CountHeap(_replicaCount);
+      for (int moves = 0; moves < numReplicas; moves++) {
+        if (!moveOne(heap, false)) {
+          break;
+        }
+      }
+    }
+
+    /**
+     * Hand the top state to other hosts of a partition until the top-state replicas on the
+     * instances differ by at most one
+     */
+    private void balanceTopStates() {
+      int numTop = 0;
+      for (int count : _topCount) {
+        numTop += count;
+      }
+      CountHeap heap = new CountHeap(_topCount);
+      for (int moves = 0; moves < numTop; moves++) {
+        if (!moveOne(heap, true)) {
+          break;
+        }
+      }
+    }
+
+    /**
+     * Even out a count by one step, from an instance with the most to one with at least two fewer
+     * @param heap the instances ordered by the count
+     * @param topOnly true to swap the top state within a partition, false to move a replica
+     * @return true if something moved, false if the counts are as even as they can get
+     */
+    private boolean moveOne(CountHeap heap, boolean topOnly) {
+      int max = heap.getMax();
+      for (int to : heap.getAtMost(max - 2)) {
+        for (int from : heap.getEqualTo(max)) {
+          if (topOnly ? swapTop(from, to) : moveReplica(from, to)) {
+            heap.moved(from, to);
+            return true;
+          }
+        }
+      }
+      return false;
+    }
+
+    /**
+     * Move a replica, preferring one that is not in the top state and whose resource the
+     * receiving instance has fewer of
+     */
+    private boolean moveReplica(int from, int to) {
+      for (int pass = 0; pass < 3; pass++) {
+        for (int g : _hosted.get(from)) {
+          int r = _resourceOf[g];
+          if (!canAdd(g, to) || (pass < 2 && _resourceCount[r][from] <= _resourceCount[r][to])
+              || (pass < 1 && position(g, from) < _numTop[g])) {
+            continue;
+          }
+          int h = position(g, from);
+          boolean isTop = h < _numTop[g];
+          _hosts[g][h] = to;
+          _hosted.get(from).remove(g);
+          _hosted.get(to).add(g);
+          _replicaCount[from]--;
+          _replicaCount[to]++;
+          _resourceCount[r][from]--;
+          _resourceCount[r][to]++;
+          if (isTop) {
+            _topCount[from]--;
+            _topCount[to]++;
+          }
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /**
+     * Swap the top state of a partition from one of its hosts to another
+     */
+    private boolean swapTop(int from, int to) {
+      for (int g : _hosted.get(from)) {
+        int h = position(g, from);
+        int t = position(g, to);
+        if (h < _numTop[g] && t >= _numTop[g]) {
+          _hosts[g][h] = to;
+          _hosts[g][t] = from;
+          _topCount[from]--;
+          _topCount[to]++;
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private boolean canAdd(int g, int n) {
+      return _numHosts[g] < _hosts[g].length && position(g, n) < 0
+          && _resourceCount[_resourceOf[g]][n] < _maxPerNode[_resourceOf[g]];
+    }
+
+    private void add(int g, int n) {
+      if (_numHosts[g] < _numTop[g]) {
+        _topCount[n]++;
+      }
+      _hosts[g][_numHosts[g]++] = n;
+      _hosted.get(n).add(g);
+      _replicaCount[n]++;
+      _resourceCount[_resourceOf[g]][n]++;
+    }
+
+    private int position(int g, int n) {
+      for (int h = 0; h < _numHosts[g]; h++) {
+        if (_hosts[g][h] == n) {
+          return h;
+        }
+      }
+      return -1;
+    }
+  }
+
+  /**
+   * Instances ordered by a count per instance, lowest count first and then by instance number,
+   * kept in order as the counts change by one move at a time
+   */
+  private static class CountHeap {
+    private final int[] _counts;
+    private final TreeSet<Long> _heap;
+
+    CountHeap(int[] counts) {
+      _counts = counts;
+      _heap = new TreeSet<Long>();
+      for (int n = 0; n < counts.length; n++) {
+        _heap.add(key(counts[n], n));
+      }
+    }
+
+    int getMax() {
+      return _heap.isEmpty() ? 0 : (int) (_heap.last() >>> 32);
+    }
+
+    /**
+     * Get the instances with at most a count, lowest count first
+     */
+    List<Integer> getAtMost(int count) {
+      return toNodes(_heap.headSet(key(count, Integer.MAX_VALUE), true));
+    }
+
+    /**
+     * Get the instances with exactly a count
+     */
+    List<Integer> getEqualTo(int count) {
+      return toNodes(_heap.subSet(key(count, 0), true, key(count, Integer.MAX_VALUE), true));
+    }
+
+    /**
+     * Reorder two instances after one unit moved between them
+     * @param from the instance whose count dropped by one
+     * @param to the instance whose count grew by one
+     */
+    void moved(int from, int to) {
+      _heap.remove(key(_counts[from] + 1, from));
+      _heap.add(key(_counts[from], from));
+      _heap.remove(key(_counts[to] - 1, to));
+      _heap.add(key(_counts[to], to));
+    }
+
+    private static long key(int count, int n) {
+      return ((long) count << 32) | n;
+    }
+
+    private static List<Integer> toNodes(Set<Long> keys) {
+      List<Integer> nodes = new ArrayList<Integer>(keys.size());
+      for (long key : keys) {
+        nodes.add((int) key);
+      }
+      return nodes;
+    }
+  }
+}
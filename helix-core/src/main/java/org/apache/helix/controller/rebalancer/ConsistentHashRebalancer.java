@@ -0,0 +1,174 @@
+package org.apache.helix.controller.rebalancer;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.helix.HelixManager;
+import org.apache.helix.api.Cluster;
+import org.apache.helix.api.Participant;
+import org.apache.helix.api.State;
+import org.apache.helix.api.config.UserConfig;
+import org.apache.helix.api.id.ParticipantId;
+import org.apache.helix.api.id.PartitionId;
+import org.apache.helix.controller.context.ControllerContextProvider;
+import org.apache.helix.controller.rebalancer.config.RebalancerConfig;
+import org.apache.helix.controller.rebalancer.util.ConstraintBasedAssignment;
+import org.apache.helix.controller.stages.ResourceCurrentState;
+import org.apache.helix.controller.strategy.StrawPlacementStrategy;
+import org.apache.helix.model.IdealState;
+import org.apache.helix.model.InstanceConfig;
+import org.apache.helix.model.ResourceAssignment;
+import org.apache.helix.model.StateModelDefinition;
+import org.apache.log4j.Logger;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Lists;
+
+/**
+ * Rebalancer that places replicas with {@link StrawPlacementStrategy}, a hash of the partition and
+ * the instances, instead of by balancing counts. The preference list of a partition depends only
+ * on the live, enabled instances and their weights and fault zones, so there is no placement to
+ * remember between runs, and a change in membership moves only the replicas of the instances that
+ * came or went. Use it as a user-defined rebalancer for resources with very many partitions.<br/>
+ * <br/>
+ * An instance declares its weight in the {@link #INSTANCE_WEIGHT} field of its config. Its fault
+ * zone comes from the domain in its config, as for FULL_AUTO resources, or else from a tag that
+ * starts with {@link #DEFAULT_FAULT_ZONE_TAG_PREFIX}, or with the prefix in the
+ * {@link #FAULT_ZONE_TAG_PREFIX} field of the cluster config.
+ */
+public class ConsistentHashRebalancer implements HelixRebalancer {
+  private static final Logger LOG = Logger.getLogger(ConsistentHashRebalancer.class);
+
+  /**
+   * Instance config field with the relative share of replicas the instance should hold
+   */
+  public static final String INSTANCE_WEIGHT = "INSTANCE_WEIGHT";
+
+  /**
+   * Cluster config field with the prefix of the instance tags that name fault zones
+   */
+  public static final String FAULT_ZONE_TAG_PREFIX = "FAULT_ZONE_TAG_PREFIX";
+
+  /**
+   * Prefix of fault zone tags if the cluster does not say otherwise
+   */
+  public static final String DEFAULT_FAULT_ZONE_TAG_PREFIX = "zone=";
+
+  @Override
+  public void init(HelixManager helixManager, ControllerContextProvider contextProvider) {
+    // do nothing
+  }
+
+  @Override
+  public ResourceAssignment computeResourceMapping(IdealState idealState,
+      RebalancerConfig rebalancerConfig, ResourceAssignment prevAssignment, Cluster cluster,
+      ResourceCurrentState currentState) {
+    boolean isEnabled = (idealState != null) ? idealState.isEnabled() : true;
+    StateModelDefinition stateModelDef =
+        cluster.getStateModelMap().get(idealState.getStateModelDefId());
+    Map<ParticipantId, Participant> liveParticipants = cluster.getLiveParticipantMap();
+    Map<State, String> upperBounds =
+        ConstraintBasedAssignment.stateConstraints(stateModelDef, idealState.getResourceId(),
+            cluster.getConfig());
+    LinkedHashMap<State, Integer> stateCountMap =
+        FullAutoRebalancer.stateCount(idealState, stateModelDef, upperBounds,
+            liveParticipants.size());
+    int numReplicas = 0;
+    for (int count : stateCountMap.values()) {
+      numReplicas += count;
+    }
+
+    // replicas go to the live, enabled instances that carry the resource tag, if it has one
+    String tag = idealState.getInstanceGroupTag();
+    Map<String, Long> weights = new HashMap<String, Long>();
+    Map<String, String> zones = new HashMap<String, String>();
+    String zonePrefix = getFaultZoneTagPrefix(cluster);
+    Map<ParticipantId, String> faultZones =
+        FullAutoRebalancer.getFaultZones(cluster, liveParticipants.keySet());
+    for (Participant participant : liveParticipants.values()) {
+      if (!participant.isEnabled() || (tag != null && !participant.hasTag(tag))) {
+        continue;
+      }
+      String participantName = participant.getId().stringify();
+      InstanceConfig instanceConfig = participant.getInstanceConfig();
+      weights.put(participantName, (instanceConfig != null) ? instanceConfig.getRecord()
+          .getLongField(INSTANCE_WEIGHT, 1L) : 1L);
+      String zone = (faultZones != null) ? faultZones.get(participant.getId()) : null;
+      if (zone != null) {
+        zones.put(participantName, zone);
+        continue;
+      }
+      for (String participantTag : participant.getTags()) {
+        if (participantTag.startsWith(zonePrefix)) {
+          zones.put(participantName, participantTag.substring(zonePrefix.length()));
+          break;
+        }
+      }
+    }
+    if (weights.isEmpty() && tag != null) {
+      LOG.warn("Resource " + idealState.getResourceId() + " has tag " + tag
+          + " but no live participants have this tag");
+    }
+    StrawPlacementStrategy strategy = new StrawPlacementStrategy(weights, zones);
+
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Processing resource:" + idealState.getResourceId());
+    }
+    ResourceAssignment partitionMapping = new ResourceAssignment(idealState.getResourceId());
+    for (PartitionId partition : idealState.getPartitionIdSet()) {
+      Set<ParticipantId> disabledParticipantsForPartition =
+          ConstraintBasedAssignment.getDisabledParticipants(cluster.getParticipantMap(),
+              partition);
+      List<ParticipantId> preferenceList =
+          Lists.transform(strategy.computePreferenceList(partition.stringify(), numReplicas),
+              new Function<String, ParticipantId>() {
+                @Override
+                public ParticipantId apply(String participantName) {
+                  return ParticipantId.from(participantName);
+                }
+              });
+      preferenceList =
+          ConstraintBasedAssignment.getPreferenceList(cluster, partition, preferenceList);
+      Map<ParticipantId, State> bestStateForPartition =
+          ConstraintBasedAssignment.computeAutoBestStateForPartition(upperBounds,
+              liveParticipants.keySet(), stateModelDef, preferenceList,
+              currentState.getCurrentStateMap(idealState.getResourceId(), partition),
+              disabledParticipantsForPartition, isEnabled);
+      partitionMapping.addReplicaMap(partition, bestStateForPartition);
+    }
+    return partitionMapping;
+  }
+
+  /**
+   * Get the prefix of the instance tags that name fault zones
+   * @param cluster current snapshot of the cluster
+   * @return the tag prefix
+   */
+  public static String getFaultZoneTagPrefix(Cluster cluster) {
+    UserConfig userConfig = cluster.getUserConfig();
+    String prefix = (userConfig != null) ? userConfig.getSimpleField(FAULT_ZONE_TAG_PREFIX) : null;
+    return (prefix != null) ? prefix : DEFAULT_FAULT_ZONE_TAG_PREFIX;
+  }
+}
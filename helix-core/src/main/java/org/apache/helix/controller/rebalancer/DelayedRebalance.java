@@ -0,0 +1,185 @@
+package org.apache.helix.controller.rebalancer;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.helix.api.Cluster;
+import org.apache.helix.api.Resource;
+import org.apache.helix.api.State;
+import org.apache.helix.api.config.UserConfig;
+import org.apache.helix.api.id.ParticipantId;
+import org.apache.helix.api.id.PartitionId;
+import org.apache.helix.api.id.ResourceId;
+
+/**
+ * Keeps the replicas of a FULL_AUTO resource in place for a while after the instance that has them
+ * goes away, e.g. because its session expired during a long GC pause. Until the delay has passed,
+ * the instance keeps its slots in the preference lists, so only the top state fails over to
+ * another replica, and nothing has to move back when the instance returns. Partitions that would
+ * be left with fewer live replicas than the minimum are placed elsewhere right away. Resources
+ * placed by {@link ClusterBalancedPlacement} are not delayed.
+ * <p>
+ * Only the controller that saw an instance go away knows when it happened, so a new leader places
+ * the replicas of instances that are already gone right away.
+ * </p>
+ */
+public class DelayedRebalance {
+  /**
+   * Cluster or resource config field with the milliseconds to keep the replicas of an instance
+   * that went away in place; the resource config takes precedence, and 0 or less disables the
+   * delay
+   */
+  public static final String DELAY_REBALANCE_TIME = "DELAY_REBALANCE_TIME";
+
+  /**
+   * Cluster or resource config field with the fewest live replicas a partition may have before
+   * its delayed replicas are placed elsewhere; the resource config takes precedence, and the
+   * default is 1
+   */
+  public static final String MIN_ACTIVE_REPLICAS = "MIN_ACTIVE_REPLICAS";
+
+  private static final int DEFAULT_MIN_ACTIVE_REPLICAS = 1;
+
+  // The replicas each instance had when it was last seen live
+  private final Map<ParticipantId, Map<PartitionId, State>> _lastKnownReplicas;
+  // When each instance that had replicas was first seen gone
+  private final Map<ParticipantId, Long> _offlineSince;
+
+  public DelayedRebalance() {
+    _lastKnownReplicas = new HashMap<ParticipantId, Map<PartitionId, State>>();
+    _offlineSince = new HashMap<ParticipantId, Long>();
+  }
+
+  /**
+   * Get the delay of a resource
+   * @param cluster current snapshot of the cluster
+   * @param resourceId the resource
+   * @return the delay in milliseconds, 0 or less if replicas are placed elsewhere right away
+   */
+  public static long getDelay(Cluster cluster, ResourceId resourceId) {
+    Resource resource = cluster.getResource(resourceId);
+    long delay = getLong((resource != null) ? resource.getUserConfig() : null,
+        DELAY_REBALANCE_TIME);
+    return (delay > 0) ? delay : getLong(cluster.getUserConfig(), DELAY_REBALANCE_TIME);
+  }
+
+  /**
+   * Get the fewest live replicas the partitions of a resource may have while replicas are delayed
+   * @param cluster current snapshot of the cluster
+   * @param resourceId the resource
+   * @return the minimum number of live replicas
+   */
+  public static int getMinActiveReplicas(Cluster cluster, ResourceId resourceId) {
+    Resource resource = cluster.getResource(resourceId);
+    long minActive = getLong((resource != null) ? resource.getUserConfig() : null,
+        MIN_ACTIVE_REPLICAS);
+    if (minActive <= 0) {
+      minActive = getLong(cluster.getUserConfig(), MIN_ACTIVE_REPLICAS);
+    }
+    return (minActive > 0) ? (int) minActive : DEFAULT_MIN_ACTIVE_REPLICAS;
+  }
+
+  /**
+   * Record what the live instances have, and when instances that had replicas went away. Instances
+   * that have been gone for longer than the delay are forgotten.
+   * @param liveParticipants the instances that are live
+   * @param currentMapping the replicas each partition has or is getting, by instance
+   * @param delay the delay in milliseconds
+   * @param nowMillis the current time in milliseconds
+   */
+  public void update(Collection<ParticipantId> liveParticipants,
+      Map<PartitionId, Map<ParticipantId, State>> currentMapping, long delay, long nowMillis) {
+    for (ParticipantId participantId : _lastKnownReplicas.keySet()) {
+      if (!liveParticipants.contains(participantId)
+          && !_offlineSince.containsKey(participantId)) {
+        _offlineSince.put(participantId, nowMillis);
+      }
+    }
+    Iterator<Map.Entry<ParticipantId, Long>> it = _offlineSince.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<ParticipantId, Long> entry = it.next();
+      if (liveParticipants.contains(entry.getKey()) || entry.getValue() + delay <= nowMillis) {
+        _lastKnownReplicas.remove(entry.getKey());
+        it.remove();
+      }
+    }
+
+    for (ParticipantId participantId : liveParticipants) {
+      _lastKnownReplicas.remove(participantId);
+    }
+    for (Map.Entry<PartitionId, Map<ParticipantId, State>> entry : currentMapping.entrySet()) {
+      for (Map.Entry<ParticipantId, State> replica : entry.getValue().entrySet()) {
+        if (!liveParticipants.contains(replica.getKey())) {
+          continue;
+        }
+        Map<PartitionId, State> replicas = _lastKnownReplicas.get(replica.getKey());
+        if (replicas == null) {
+          replicas = new HashMap<PartitionId, State>();
+          _lastKnownReplicas.put(replica.getKey(), replicas);
+        }
+        replicas.put(entry.getKey(), replica.getValue());
+      }
+    }
+  }
+
+  /**
+   * Get the replicas that are kept in place
+   * @return map of instance that went away to the replicas it had, by partition
+   */
+  public Map<ParticipantId, Map<PartitionId, State>> getDelayedReplicas() {
+    Map<ParticipantId, Map<PartitionId, State>> delayedReplicas =
+        new HashMap<ParticipantId, Map<PartitionId, State>>();
+    for (ParticipantId participantId : _offlineSince.keySet()) {
+      delayedReplicas.put(participantId, _lastKnownReplicas.get(participantId));
+    }
+    return delayedReplicas;
+  }
+
+  /**
+   * Get the time at which the next delay runs out
+   * @param delay the delay in milliseconds
+   * @return the time in milliseconds, or -1 if no replicas are delayed
+   */
+  public long getNextDeadline(long delay) {
+    long deadline = -1L;
+    for (long offlineSince : _offlineSince.values()) {
+      if (deadline < 0 || offlineSince + delay < deadline) {
+        deadline = offlineSince + delay;
+      }
+    }
+    return deadline;
+  }
+
+  /**
+   * Forget everything, e.g. when the delay is turned off
+   */
+  public void clear() {
+    _lastKnownReplicas.clear();
+    _offlineSince.clear();
+  }
+
+  private static long getLong(UserConfig userConfig, String key) {
+    return (userConfig != null) ? userConfig.getLongField(key, -1L) : -1L;
+  }
+}
@@ -1,6 +1,8 @@
 package org.apache.helix.controller.rebalancer;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -15,8 +17,11 @@ import org.apache.helix.ZNRecord;
 import org.apache.helix.api.Cluster;
 import org.apache.helix.api.Participant;
 import org.apache.helix.api.State;
+import org.apache.helix.api.config.UserConfig;
 import org.apache.helix.api.id.ParticipantId;
 import org.apache.helix.api.id.PartitionId;
+import org.apache.helix.api.id.ResourceId;
+import org.apache.helix.controller.RebalanceScheduler;
 import org.apache.helix.controller.context.ControllerContextProvider;
 import org.apache.helix.controller.rebalancer.config.RebalancerConfig;
 import org.apache.helix.controller.rebalancer.util.ConstraintBasedAssignment;
@@ -24,12 +29,15 @@ import org.apache.helix.controller.stages.ResourceCurrentState;
 import org.apache.helix.controller.strategy.AutoRebalanceStrategy;
 import org.apache.helix.controller.strategy.AutoRebalanceStrategy.DefaultPlacementScheme;
 import org.apache.helix.controller.strategy.AutoRebalanceStrategy.ReplicaPlacementScheme;
+import org.apache.helix.controller.strategy.WeightedPlacementStrategy;
 import org.apache.helix.model.IdealState;
+import org.apache.helix.model.InstanceConfig;
 import org.apache.helix.model.ResourceAssignment;
 import org.apache.helix.model.StateModelDefinition;
 import org.apache.log4j.Logger;
 
 import com.google.common.base.Function;
+import com.google.common.base.Objects;
 import com.google.common.collect.Lists;
 
 /*
@@ -52,14 +60,32 @@ import com.google.common.collect.Lists;
  */
 
 public class FullAutoRebalancer implements HelixRebalancer {
+  /**
+   * Cluster config field with the level of the instance domains that replicas are spread across,
+   * like "rack"; the outermost level if not set
+   */
+  public static final String FAULT_ZONE_TYPE = "FAULT_ZONE_TYPE";
+
   // These should be final, but are initialized in init rather than a constructor
+  private HelixManager _manager;
   private AutoRebalanceStrategy _algorithm;
 
+  // The replicas of instances that went away only recently, which are kept in place for a while
+  private final DelayedRebalance _delayedRebalance = new DelayedRebalance();
+
+  // The top states and replicas moved away from overloaded instances
+  private final LoadFeedback _loadFeedback = new LoadFeedback();
+
+  // The inputs and result of the last placement, reused while the inputs stay the same
+  private PlacementInputs _lastInputs;
+  private ZNRecord _lastMapping;
+  private boolean _lastPlacementReused;
+
   private static Logger LOG = Logger.getLogger(FullAutoRebalancer.class);
 
   @Override
   public void init(HelixManager helixManager, ControllerContextProvider contextProvider) {
-    // do nothing
+    _manager = helixManager;
   }
 
   @Override
@@ -73,21 +99,13 @@ public class FullAutoRebalancer implements HelixRebalancer {
     List<PartitionId> partitions = new ArrayList<PartitionId>(idealState.getPartitionIdSet());
     Map<ParticipantId, Participant> liveParticipants = cluster.getLiveParticipantMap();
     Map<ParticipantId, Participant> allParticipants = cluster.getParticipantMap();
-    int replicas = -1;
-    String replicaStr = idealState.getReplicas();
-    if (replicaStr.equals(StateModelToken.ANY_LIVEINSTANCE.toString())) {
-      replicas = liveParticipants.size();
-    } else {
-      replicas = Integer.valueOf(replicaStr);
-    }
 
     // count how many replicas should be in each state
     Map<State, String> upperBounds =
         ConstraintBasedAssignment.stateConstraints(stateModelDef, idealState.getResourceId(),
             cluster.getConfig());
     LinkedHashMap<State, Integer> stateCountMap =
-        ConstraintBasedAssignment.stateCount(upperBounds, stateModelDef, liveParticipants.size(),
-            replicas);
+        stateCount(idealState, stateModelDef, upperBounds, liveParticipants.size());
 
     // get the participant lists
     List<ParticipantId> liveParticipantList =
@@ -140,16 +158,136 @@ public class FullAutoRebalancer implements HelixRebalancer {
       LOG.debug("allNodes: " + allParticipantList);
       LOG.debug("maxPartition: " + maxPartition);
     }
-    ReplicaPlacementScheme placementScheme = new DefaultPlacementScheme();
-    _algorithm =
-        new AutoRebalanceStrategy(idealState.getResourceId(), partitions, stateCountMap,
-            maxPartition, placementScheme);
-    ZNRecord newMapping =
-        _algorithm.typedComputePartitionAssignment(liveParticipantList, currentMapping,
-            allParticipantList);
+    Set<ParticipantId> disabledParticipants = new HashSet<ParticipantId>();
+    for (Participant participant : allParticipants.values()) {
+      if (!participant.isEnabled()) {
+        disabledParticipants.add(participant.getId());
+      }
+    }
 
-    if (LOG.isInfoEnabled()) {
-      LOG.info("newMapping: " + newMapping);
+    // instances that went away only recently keep their replicas for now, so they are placed as if
+    // they were still live; the best possible state below only fails over their top states
+    List<ParticipantId> placementParticipantList = liveParticipantList;
+    Map<PartitionId, Map<ParticipantId, State>> placementMapping = currentMapping;
+    boolean isDelayed = false;
+    long delay = DelayedRebalance.getDelay(cluster, idealState.getResourceId());
+    if (delay > 0) {
+      _delayedRebalance.update(liveParticipants.keySet(), currentMapping, delay,
+          System.currentTimeMillis());
+      placementParticipantList = new ArrayList<ParticipantId>(liveParticipantList);
+      placementMapping = new HashMap<PartitionId, Map<ParticipantId, State>>();
+      for (Map.Entry<PartitionId, Map<ParticipantId, State>> entry : currentMapping.entrySet()) {
+        placementMapping.put(entry.getKey(), new HashMap<ParticipantId, State>(entry.getValue()));
+      }
+      for (Map.Entry<ParticipantId, Map<PartitionId, State>> entry : _delayedRebalance
+          .getDelayedReplicas().entrySet()) {
+        if (!allParticipantList.contains(entry.getKey())
+            || disabledParticipants.contains(entry.getKey())) {
+          continue;
+        }
+        placementParticipantList.add(entry.getKey());
+        for (Map.Entry<PartitionId, State> replica : entry.getValue().entrySet()) {
+          Map<ParticipantId, State> replicaMap = placementMapping.get(replica.getKey());
+          if (replicaMap != null) {
+            replicaMap.put(entry.getKey(), replica.getValue());
+          }
+        }
+        isDelayed = true;
+      }
+      scheduleDelayedRebalance(cluster, idealState.getResourceId(),
+          _delayedRebalance.getNextDeadline(delay));
+    } else {
+      _delayedRebalance.clear();
+    }
+
+    // resources that declare partition weights are placed by weight and instance capacity
+    Map<PartitionId, Long> weights =
+        WeightedPlacementStrategy.getPartitionWeights(cluster, idealState.getResourceId(),
+            partitions);
+    Map<ParticipantId, String> faultZones = getFaultZones(cluster, allParticipantList);
+    PlacementInputs inputs =
+        new PlacementInputs(partitions, stateCountMap, maxPartition, placementParticipantList,
+            allParticipantList, disabledParticipants, placementMapping, weights,
+            getCapacities(cluster, weights, placementParticipantList), faultZones);
+    ZNRecord newMapping = null;
+    if (weights == null && ClusterBalancedPlacement.isEnabled(cluster)) {
+      // placed together with the other FULL_AUTO resources of the cluster
+      newMapping =
+          ClusterBalancedPlacement.get(cluster, currentState).getMapping(
+              idealState.getResourceId());
+    }
+    if (newMapping != null) {
+      // the cluster-wide placement depends on other resources, so it cannot be reused
+      _lastInputs = null;
+      _lastMapping = null;
+      _lastPlacementReused = false;
+    } else if (!isDelayed && inputs.equals(_lastInputs)) {
+      // nothing the strategy looks at has changed, so it would come up with the same placement
+      newMapping = _lastMapping;
+      _lastPlacementReused = true;
+    } else {
+      newMapping =
+          computePlacement(cluster, idealState, partitions, stateCountMap, placementParticipantList,
+              allParticipantList, placementMapping, weights, faultZones);
+      if (isDelayed) {
+        // partitions left with too few live replicas are placed without the delayed instances
+        int minActive =
+            Math.min(DelayedRebalance.getMinActiveReplicas(cluster, idealState.getResourceId()),
+                countReplicas(stateCountMap));
+        ZNRecord immediateMapping = null;
+        for (PartitionId partition : partitions) {
+          List<String> preferenceList = newMapping.getListField(partition.stringify());
+          int numActive = 0;
+          if (preferenceList != null) {
+            for (String participantName : preferenceList) {
+              if (liveParticipants.containsKey(ParticipantId.from(participantName))) {
+                numActive++;
+              }
+            }
+          }
+          if (numActive >= Math.min(minActive, liveParticipantList.size())) {
+            continue;
+          }
+          if (immediateMapping == null) {
+            immediateMapping =
+                computePlacement(cluster, idealState, partitions, stateCountMap,
+                    liveParticipantList, allParticipantList, currentMapping, weights, faultZones);
+          }
+          newMapping.setListField(partition.stringify(),
+              immediateMapping.getListField(partition.stringify()));
+          newMapping.setMapField(partition.stringify(),
+              immediateMapping.getMapField(partition.stringify()));
+        }
+        // the placement depends on how long instances have been gone, so it cannot be reused
+        _lastInputs = null;
+        _lastMapping = null;
+      } else {
+        _lastInputs = inputs;
+        _lastMapping = newMapping;
+      }
+      _lastPlacementReused = false;
+
+      if (LOG.isInfoEnabled()) {
+        LOG.info("newMapping: " + newMapping);
+      }
+    }
+
+    // take load off instances that report much more of it than the others
+    if (LoadFeedback.isEnabled(cluster)) {
+      LoadFeedback.Loads loads = LoadFeedback.getLoads(_manager, cluster);
+      if (loads != null) {
+        newMapping =
+            _loadFeedback.apply(idealState.getResourceId(), newMapping, loads,
+                liveParticipantList, currentState, System.currentTimeMillis());
+      }
+    }
+
+    // move toward the placement only as fast as the movement budget allows
+    if (MovementBudget.isEnabled(cluster, idealState.getResourceId())) {
+      newMapping =
+          MovementBudget.get(cluster).apply(idealState.getResourceId(), newMapping,
+              currentMapping, liveParticipants.keySet(), currentState, stateCountMap.keySet(),
+              State.from(stateModelDef.getInitialState()));
     }
 
     // compute a full partition mapping for the resource
@@ -183,7 +321,142 @@ public class FullAutoRebalancer implements HelixRebalancer {
     return partitionMapping;
   }
 
-  private Map<PartitionId, Map<ParticipantId, State>> currentMapping(IdealState idealState,
+  /**
+   * Place the replicas of a resource evenly, or by weight if its partitions have weights
+   * @param cluster current snapshot of the cluster
+   * @param idealState the ideal state of the resource
+   * @param partitions the partitions of the resource
+   * @param stateCountMap the number of replicas in each state
+   * @param liveParticipantList the participants to place replicas on
+   * @param allParticipantList all participants the resource may use
+   * @param currentMapping the replicas each partition has, by participant
+   * @param weights the partition weights, or null to place replicas evenly
+   * @param faultZones the fault zone of each participant, or null
+   * @return the preference lists and replica maps
+   */
+  private ZNRecord computePlacement(Cluster cluster, IdealState idealState,
+      List<PartitionId> partitions, LinkedHashMap<State, Integer> stateCountMap,
+      List<ParticipantId> liveParticipantList, List<ParticipantId> allParticipantList,
+      Map<PartitionId, Map<ParticipantId, State>> currentMapping, Map<PartitionId, Long> weights,
+      Map<ParticipantId, String> faultZones) {
+    int maxPartition = idealState.getMaxPartitionsPerInstance();
+    ZNRecord newMapping = null;
+    if (weights != null) {
+      WeightedPlacementStrategy weightedAlgorithm =
+          new WeightedPlacementStrategy(idealState.getResourceId(), partitions, stateCountMap,
+              maxPartition, weights, WeightedPlacementStrategy.getTimeBudget(cluster,
+                  idealState.getResourceId()));
+      newMapping =
+          weightedAlgorithm.typedComputePartitionAssignment(liveParticipantList,
+              getCapacities(cluster, weights, liveParticipantList), currentMapping);
+      if (newMapping == null) {
+        LOG.warn("Weighted placement of " + idealState.getResourceId()
+            + " failed, placing replicas evenly instead");
+      }
+    }
+    if (newMapping == null) {
+      ReplicaPlacementScheme placementScheme = new DefaultPlacementScheme();
+      _algorithm =
+          new AutoRebalanceStrategy(idealState.getResourceId(), partitions, stateCountMap,
+              maxPartition, placementScheme);
+      _algorithm.setFaultZones(faultZones);
+      newMapping =
+          _algorithm.typedComputePartitionAssignment(liveParticipantList, currentMapping,
+              allParticipantList);
+    }
+    return newMapping;
+  }
+
+  private static Map<ParticipantId, Long> getCapacities(Cluster cluster,
+      Map<PartitionId, Long> weights, List<ParticipantId> participants) {
+    return (weights != null) ? WeightedPlacementStrategy.getCapacities(cluster, participants)
+        : null;
+  }
+
+  private static int countReplicas(Map<State, Integer> stateCountMap) {
+    int count = 0;
+    for (int stateCount : stateCountMap.values()) {
+      count += stateCount;
+    }
+    return count;
+  }
+
+  /**
+   * Ask for a pipeline run when the delay of the next instance that went away runs out
+   * @param cluster current snapshot of the cluster
+   * @param resourceId the resource
+   * @param deadline the time in milliseconds, or -1 for none
+   */
+  private void scheduleDelayedRebalance(Cluster cluster, ResourceId resourceId, long deadline) {
+    if (deadline < 0 || _manager == null || cluster.getCache() == null
+        || cluster.getCache().getRebalanceScheduler() == null) {
+      return;
+    }
+    RebalanceScheduler scheduler = cluster.getCache().getRebalanceScheduler();
+    scheduler.schedule(_manager, "DELAYED_REBALANCE_" + resourceId.stringify(),
+        resourceId.stringify(), deadline);
+  }
+
+  /**
+   * Check if the last call reused the placement of the call before it
+   * @return true if the placement strategy was skipped, false if it ran
+   */
+  public boolean isLastPlacementReused() {
+    return _lastPlacementReused;
+  }
+
+  /**
+   * Get the fault zones that participants declare in their instance config domain
+   * @param cluster current snapshot of the cluster
+   * @param participants the participants to look up
+   * @return map of participant to fault zone, or null if none of them declares one
+   */
+  public static Map<ParticipantId, String> getFaultZones(Cluster cluster,
+      Collection<ParticipantId> participants) {
+    UserConfig userConfig = cluster.getUserConfig();
+    String zoneType = (userConfig != null) ? userConfig.getSimpleField(FAULT_ZONE_TYPE) : null;
+    Map<ParticipantId, String> faultZones = new HashMap<ParticipantId, String>();
+    for (ParticipantId participantId : participants) {
+      Participant participant = cluster.getParticipantMap().get(participantId);
+      InstanceConfig instanceConfig =
+          (participant != null) ? participant.getInstanceConfig() : null;
+      String zone = (instanceConfig != null) ? instanceConfig.getFaultZone(zoneType) : null;
+      if (zone != null) {
+        faultZones.put(participantId, zone);
+      }
+    }
+    return faultZones.isEmpty() ? null : faultZones;
+  }
+
+  /**
+   * Count how many replicas of each partition of a resource should be in each state
+   * @param idealState the ideal state of the resource
+   * @param stateModelDef the state model of the resource
+   * @param upperBounds the upper bound of each state
+   * @param numLiveParticipants the number of live participants in the cluster
+   * @return map of state to replica count, in order of state priority
+   */
+  static LinkedHashMap<State, Integer> stateCount(IdealState idealState,
+      StateModelDefinition stateModelDef, Map<State, String> upperBounds, int numLiveParticipants) {
+    int replicas = -1;
+    String replicaStr = idealState.getReplicas();
+    if (replicaStr.equals(StateModelToken.ANY_LIVEINSTANCE.toString())) {
+      replicas = numLiveParticipants;
+    } else {
+      replicas = Integer.valueOf(replicaStr);
+    }
+    return ConstraintBasedAssignment.stateCount(upperBounds, stateModelDef, numLiveParticipants,
+        replicas);
+  }
+
+  /**
+   * Get the replicas of a resource that are in, or moving to, a state the resource should have
+   * @param idealState the ideal state of the resource
+   * @param currentStateOutput the current state of the cluster
+   * @param stateCountMap the number of replicas in each state
+   * @return map of partition to participant to state
+   */
+  static Map<PartitionId, Map<ParticipantId, State>> currentMapping(IdealState idealState,
       ResourceCurrentState currentStateOutput, Map<State, Integer> stateCountMap) {
     Map<PartitionId, Map<ParticipantId, State>> map =
         new HashMap<PartitionId, Map<ParticipantId, State>>();
@@ -210,4 +483,67 @@ public class FullAutoRebalancer implements HelixRebalancer {
     }
     return map;
   }
+
+  /**
+   * Everything the placement strategy looks at. The hash is computed once, so a changed input is
+   * usually told apart without comparing the current mappings.
+   */
+  private static class PlacementInputs {
+    private final List<PartitionId> _partitions;
+    private final List<Map.Entry<State, Integer>> _stateCounts;
+    private final int _maxPartition;
+    private final Set<ParticipantId> _liveParticipants;
+    private final Set<ParticipantId> _allParticipants;
+    private final Set<ParticipantId> _disabledParticipants;
+    private final Map<PartitionId, Map<ParticipantId, State>> _currentMapping;
+    private final Map<PartitionId, Long> _weights;
+    private final Map<ParticipantId, Long> _capacities;
+    private final Map<ParticipantId, String> _faultZones;
+    private final int _hashCode;
+
+    PlacementInputs(List<PartitionId> partitions, LinkedHashMap<State, Integer> stateCountMap,
+        int maxPartition, List<ParticipantId> liveParticipants,
+        List<ParticipantId> allParticipants, Set<ParticipantId> disabledParticipants,
+        Map<PartitionId, Map<ParticipantId, State>> currentMapping,
+        Map<PartitionId, Long> weights, Map<ParticipantId, Long> capacities,
+        Map<ParticipantId, String> faultZones) {
+      _partitions = new ArrayList<PartitionId>(partitions);
+      _stateCounts = new ArrayList<Map.Entry<State, Integer>>(stateCountMap.entrySet());
+      _maxPartition = maxPartition;
+      _liveParticipants = new HashSet<ParticipantId>(liveParticipants);
+      _allParticipants = new HashSet<ParticipantId>(allParticipants);
+      _disabledParticipants = disabledParticipants;
+      _currentMapping = currentMapping;
+      _weights = weights;
+      _capacities = capacities;
+      _faultZones = faultZones;
+      _hashCode =
+          Arrays.hashCode(new Object[] {
+              _partitions, _stateCounts, _maxPartition, _liveParticipants, _allParticipants,
+              _disabledParticipants, _currentMapping, _weights, _capacities, _faultZones
+          });
+    }
+
+    @Override
+    public int hashCode() {
+      return _hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof PlacementInputs)) {
+        return false;
+      }
+      PlacementInputs that = (PlacementInputs) obj;
+      return _hashCode == that._hashCode && _maxPartition == that._maxPartition
+          && _partitions.equals(that._partitions) && _stateCounts.equals(that._stateCounts)
+          && _liveParticipants.equals(that._liveParticipants)
+          && _allParticipants.equals(that._allParticipants)
+          && _disabledParticipants.equals(that._disabledParticipants)
+          && _currentMapping.equals(that._currentMapping)
+          && Objects.equal(_weights, that._weights)
+          && Objects.equal(_capacities, that._capacities)
+          && Objects.equal(_faultZones, that._faultZones);
+    }
+  }
 }
@@ -34,7 +34,9 @@ import org.apache.helix.model.ResourceAssignment;
  */
 public interface HelixRebalancer {
   /**
-   * Initialize the rebalancer with a HelixManager and ControllerContextProvider if necessary
+   * Initialize the rebalancer with a HelixManager and ControllerContextProvider if necessary. The
+   * controller calls this before every pipeline run that uses the rebalancer, since each run has
+   * its own context provider.
    * @param manager HelixManager instance
    * @param contextProvider An object that supports getting and setting context across pipeline runs
    */
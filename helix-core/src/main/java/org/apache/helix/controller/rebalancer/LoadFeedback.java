@@ -0,0 +1,611 @@
+package org.apache.helix.controller.rebalancer;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.helix.AccessOption;
+import org.apache.helix.HelixManager;
+import org.apache.helix.ZNRecord;
+import org.apache.helix.api.Cluster;
+import org.apache.helix.api.State;
+import org.apache.helix.api.config.UserConfig;
+import org.apache.helix.api.id.ParticipantId;
+import org.apache.helix.api.id.PartitionId;
+import org.apache.helix.api.id.ResourceId;
+import org.apache.helix.controller.stages.ClusterDataCache;
+import org.apache.helix.controller.stages.ResourceCurrentState;
+import org.apache.helix.participant.PartitionLoadReporter;
+import org.apache.helix.participant.PartitionLoadReporter.LoadMetric;
+import org.apache.log4j.Logger;
+
+/**
+ * Moves the top states of FULL_AUTO partitions, and if that is not enough their replicas, away
+ * from participants whose load, as reported through {@link PartitionLoadReporter}, is well above
+ * the average. A participant is only relieved once its load is above the high watermark, and only
+ * onto participants that stay below the low watermark, so that load does not flip back and forth;
+ * a partition that was moved is then left alone for a cool-down period. Moves are remembered and
+ * applied to later placements of the resource, and count against the moves allowed per run until
+ * their receiver has reached its state. Replica moves count against the {@link MovementBudget} like
+ * any other move. The load records are read at most once per refresh interval.
+ */
+public class LoadFeedback {
+  private static final Logger LOG = Logger.getLogger(LoadFeedback.class);
+
+  /**
+   * Cluster config field with the {@link LoadMetric} to balance by; load feedback is off if it is
+   * not set
+   */
+  public static final String LOAD_FEEDBACK_METRIC = "LOAD_FEEDBACK_METRIC";
+
+  /**
+   * Cluster config field with the load, as a percentage of the average, above which a participant
+   * is relieved
+   */
+  public static final String LOAD_HIGH_WATERMARK = "LOAD_HIGH_WATERMARK";
+
+  /**
+   * Cluster config field with the load, as a percentage of the average, that a participant taking
+   * over load may reach
+   */
+  public static final String LOAD_LOW_WATERMARK = "LOAD_LOW_WATERMARK";
+
+  /**
+   * Cluster config field with the most top states and replicas moved for load at once, counting
+   * the moves of earlier runs still in flight
+   */
+  public static final String MAX_LOAD_MOVES_PER_CYCLE = "MAX_LOAD_MOVES_PER_CYCLE";
+
+  /**
+   * Cluster config field with the milliseconds a partition moved for load is left alone
+   */
+  public static final String LOAD_MOVE_COOLDOWN = "LOAD_MOVE_COOLDOWN";
+
+  /**
+   * Cluster config field with the milliseconds after which a participant's samples are ignored
+   */
+  public static final String LOAD_SAMPLE_TTL = "LOAD_SAMPLE_TTL";
+
+  /**
+   * Cluster config field with the milliseconds between reads of the load records
+   */
+  public static final String LOAD_REFRESH_INTERVAL = "LOAD_REFRESH_INTERVAL";
+
+  static final int DEFAULT_HIGH_WATERMARK = 125;
+  static final int DEFAULT_LOW_WATERMARK = 110;
+  static final int DEFAULT_MAX_MOVES = 10;
+  static final long DEFAULT_COOLDOWN_MS = 10 * 60 * 1000L;
+  static final long DEFAULT_SAMPLE_TTL_MS = 5 * 60 * 1000L;
+  static final long DEFAULT_REFRESH_INTERVAL_MS = PartitionLoadReporter.DEFAULT_FLUSH_INTERVAL_MS;
+
+  // Run attribute with the loads read in the current pipeline run
+  private static final String LOADS = "LOAD_FEEDBACK_LOADS";
+
+  // Controller attribute with the load records last read from the property store
+  private static final String RECORDS = "LOAD_FEEDBACK_RECORDS";
+
+  // The moves made for load, by partition, which later placements keep
+  private final Map<PartitionId, Move> _moves = new HashMap<PartitionId, Move>();
+
+  /**
+   * Check if placements are adjusted for load
+   * @param cluster current snapshot of the cluster
+   * @return true if a load metric is configured, false otherwise
+   */
+  public static boolean isEnabled(Cluster cluster) {
+    return getMetric(cluster) != null;
+  }
+
+  /**
+   * Get the loads of a pipeline run, built on first use from the load records, which are read
+   * from the property store if they are older than the refresh interval
+   * @param manager the controller's connection
+   * @param cluster current snapshot of the cluster
+   * @return the loads shared by all resources in the run, or null if they cannot be read
+   */
+  public static synchronized Loads getLoads(HelixManager manager, Cluster cluster) {
+    ClusterDataCache cache = cluster.getCache();
+    Loads loads = (cache != null) ? cache.<Loads> getRunAttribute(LOADS) : null;
+    if (loads == null) {
+      LoadMetric metric = getMetric(cluster);
+      if (metric == null || manager == null || manager.getHelixPropertyStore() == null) {
+        return null;
+      }
+      UserConfig userConfig = cluster.getUserConfig();
+      long now = System.currentTimeMillis();
+      LoadRecords records =
+          (cache != null) ? cache.getControllerAttribute(RECORDS, new LoadRecords())
+              : new LoadRecords();
+      if (records.isStale(now,
+          getLong(userConfig, LOAD_REFRESH_INTERVAL, DEFAULT_REFRESH_INTERVAL_MS))) {
+        records.set(
+            manager.getHelixPropertyStore().getChildren(PartitionLoadReporter.LOAD_ROOT, null,
+                AccessOption.PERSISTENT), now);
+      }
+      long sampleTtl = getLong(userConfig, LOAD_SAMPLE_TTL, DEFAULT_SAMPLE_TTL_MS);
+      loads =
+          new Loads(metric, records.get(), cluster.getLiveParticipantMap().keySet(), now
+              - sampleTtl);
+      loads.configure((int) getLong(userConfig, LOAD_HIGH_WATERMARK, DEFAULT_HIGH_WATERMARK),
+          (int) getLong(userConfig, LOAD_LOW_WATERMARK, DEFAULT_LOW_WATERMARK),
+          (int) getLong(userConfig, MAX_LOAD_MOVES_PER_CYCLE, DEFAULT_MAX_MOVES),
+          getLong(userConfig, LOAD_MOVE_COOLDOWN, DEFAULT_COOLDOWN_MS));
+      if (cache != null) {
+        cache.getRunAttribute(LOADS, loads);
+      }
+    }
+    return loads;
+  }
+
+  /**
+   * Get the loads of a pipeline run if any resource used them
+   * @param cache the cluster data of the run
+   * @return the loads, or null if no resource in the run was adjusted for load
+   */
+  public static Loads peekLoads(ClusterDataCache cache) {
+    return cache.getRunAttribute(LOADS);
+  }
+
+  /**
+   * Adjust the placement of a resource for load
+   * @param resourceId the resource
+   * @param mapping the preference lists and replica maps of the resource, which are not changed
+   * @param loads the loads of this pipeline run
+   * @param participants the live participants the resource may be placed on
+   * @param currentState the current and pending states of the resource
+   * @param nowMillis the current time in milliseconds
+   * @return the adjusted preference lists and replica maps
+   */
+  public ZNRecord apply(ResourceId resourceId, ZNRecord mapping, Loads loads,
+      Collection<ParticipantId> participants, ResourceCurrentState currentState, long nowMillis) {
+    synchronized (loads) {
+      ZNRecord result = new ZNRecord(mapping);
+      reapplyMoves(resourceId, result, participants, currentState, loads);
+
+      Set<ParticipantId> candidates = new HashSet<ParticipantId>();
+      for (ParticipantId participantId : participants) {
+        if (loads._instanceLoads.containsKey(participantId)) {
+          candidates.add(participantId);
+        }
+      }
+      double mean = loads.getMeanLoad();
+      if (candidates.isEmpty() || mean <= 0) {
+        return result;
+      }
+      double high = mean * loads._highWatermark / 100;
+      double low = mean * loads._lowWatermark / 100;
+      Set<ParticipantId> exhausted = new HashSet<ParticipantId>();
+      while (loads._numMoves + loads._numInFlightMoves < loads._maxMoves) {
+        ParticipantId hottest = null;
+        for (ParticipantId participantId : candidates) {
+          double load = loads._instanceLoads.get(participantId);
+          if (load > high && !exhausted.contains(participantId)
+              && (hottest == null || load > loads._instanceLoads.get(hottest))) {
+            hottest = participantId;
+          }
+        }
+        if (hottest == null) {
+          break;
+        }
+        if (!swapTopState(resourceId, result, loads, hottest, candidates, low, nowMillis)
+            && !moveReplica(resourceId, result, loads, hottest, candidates, low, nowMillis)) {
+          exhausted.add(hottest);
+        }
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Keep the moves made for load in earlier runs, and forget the ones that no longer apply. Moves
+   * whose receiver has not reached its state yet are charged to the run.
+   * @param resourceId the resource
+   * @param result the placement to adjust
+   * @param participants the live participants the resource may be placed on
+   * @param currentState the current and pending states of the resource
+   * @param loads the loads of this pipeline run
+   */
+  private void reapplyMoves(ResourceId resourceId, ZNRecord result,
+      Collection<ParticipantId> participants, ResourceCurrentState currentState, Loads loads) {
+    Iterator<Map.Entry<PartitionId, Move>> it = _moves.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<PartitionId, Move> entry = it.next();
+      String partitionName = entry.getKey().stringify();
+      Move move = entry.getValue();
+      List<String> preferenceList = result.getListField(partitionName);
+      boolean valid = preferenceList != null && participants.contains(move._to);
+      if (valid && move._isSwap) {
+        valid = preferenceList.contains(move._to.stringify());
+        if (valid && !preferenceList.get(0).equals(move._to.stringify())) {
+          swap(result, partitionName, preferenceList.get(0), move._to.stringify());
+        }
+      } else if (valid) {
+        boolean hasFrom = preferenceList.contains(move._from.stringify());
+        boolean hasTo = preferenceList.contains(move._to.stringify());
+        valid = hasFrom != hasTo;
+        if (valid && hasFrom) {
+          replace(result, partitionName, move._from.stringify(), move._to.stringify());
+        }
+      }
+      if (!valid) {
+        it.remove();
+      } else if (isInFlight(resourceId, result, partitionName, move._to, currentState)) {
+        loads._numInFlightMoves++;
+      }
+    }
+  }
+
+  /**
+   * Check if the receiver of a move has yet to reach the state the placement gives it
+   * @return true if it has a pending transition, or is not in its state yet, false otherwise
+   */
+  private static boolean isInFlight(ResourceId resourceId, ZNRecord result, String partitionName,
+      ParticipantId to, ResourceCurrentState currentState) {
+    PartitionId partitionId = PartitionId.from(partitionName);
+    if (currentState.getPendingState(resourceId, partitionId, to) != null) {
+      return true;
+    }
+    State state = currentState.getCurrentState(resourceId, partitionId, to);
+    Map<String, String> stateMap = result.getMapField(partitionName);
+    String target = (stateMap != null) ? stateMap.get(to.stringify()) : null;
+    return (target != null) ? !State.from(target).equals(state) : state == null;
+  }
+
+  /**
+   * Give the top state of one of a participant's partitions to another replica of the partition
+   * @return true if a top state was moved, false otherwise
+   */
+  private boolean swapTopState(ResourceId resourceId, ZNRecord result, Loads loads,
+      ParticipantId hottest, Set<ParticipantId> candidates, double low, long nowMillis) {
+    for (String partitionName : getPartitionsByLoad(resourceId, result, loads, hottest, true,
+        nowMillis)) {
+      List<String> preferenceList = result.getListField(partitionName);
+      double load = loads.getPartitionLoad(hottest, resourceId, partitionName);
+      ParticipantId receiver = null;
+      double receiverDelta = 0;
+      for (String participantName : preferenceList.subList(1, preferenceList.size())) {
+        ParticipantId participantId = ParticipantId.from(participantName);
+        if (!candidates.contains(participantId)) {
+          continue;
+        }
+        // the receiver already carries its own replica, so only the difference moves
+        double delta = load - loads.getPartitionLoad(participantId, resourceId, partitionName);
+        double receiverLoad = loads._instanceLoads.get(participantId);
+        if (delta > 0 && receiverLoad + delta <= low
+            && (receiver == null || receiverLoad < loads._instanceLoads.get(receiver))) {
+          receiver = participantId;
+          receiverDelta = delta;
+        }
+      }
+      if (receiver != null) {
+        swap(result, partitionName, hottest.stringify(), receiver.stringify());
+        loads.moveLoad(hottest, receiver, receiverDelta);
+        _moves.put(PartitionId.from(partitionName), new Move(true, hottest, receiver, nowMillis));
+        if (LOG.isInfoEnabled()) {
+          LOG.info("Moved the top state of " + partitionName + " from " + hottest + " to "
+              + receiver + " for load");
+        }
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Move a replica of one of a participant's partitions to a participant without one
+   * @return true if a replica was moved, false otherwise
+   */
+  private boolean moveReplica(ResourceId resourceId, ZNRecord result, Loads loads,
+      ParticipantId hottest, Set<ParticipantId> candidates, double low, long nowMillis) {
+    for (String partitionName : getPartitionsByLoad(resourceId, result, loads, hottest, false,
+        nowMillis)) {
+      List<String> preferenceList = result.getListField(partitionName);
+      double load = loads.getPartitionLoad(hottest, resourceId, partitionName);
+      ParticipantId receiver = null;
+      for (ParticipantId participantId : candidates) {
+        double receiverLoad = loads._instanceLoads.get(participantId);
+        if (!preferenceList.contains(participantId.stringify()) && receiverLoad + load <= low
+            && (receiver == null || receiverLoad < loads._instanceLoads.get(receiver))) {
+          receiver = participantId;
+        }
+      }
+      if (receiver != null) {
+        replace(result, partitionName, hottest.stringify(), receiver.stringify());
+        loads.moveLoad(hottest, receiver, load);
+        _moves.put(PartitionId.from(partitionName), new Move(false, hottest, receiver, nowMillis));
+        if (LOG.isInfoEnabled()) {
+          LOG.info("Moved the replica of " + partitionName + " on " + hottest + " to " + receiver
+              + " for load");
+        }
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Get the partitions of a resource on a participant that may be moved, most loaded first
+   * @param topStateOnly true for only the partitions whose top state is on the participant
+   * @return the partition names
+   */
+  private List<String> getPartitionsByLoad(final ResourceId resourceId, ZNRecord result,
+      final Loads loads, final ParticipantId participantId, boolean topStateOnly, long nowMillis) {
+    List<String> partitions = new ArrayList<String>();
+    for (Map.Entry<String, List<String>> entry : result.getListFields().entrySet()) {
+      List<String> preferenceList = entry.getValue();
+      int index = preferenceList.indexOf(participantId.stringify());
+      if (index < 0 || (topStateOnly && index > 0)
+          || loads.getPartitionLoad(participantId, resourceId, entry.getKey()) <= 0) {
+        continue;
+      }
+      Move move = _moves.get(PartitionId.from(entry.getKey()));
+      if (move != null && move._timeMillis + loads._cooldownMillis > nowMillis) {
+        continue;
+      }
+      partitions.add(entry.getKey());
+    }
+    Collections.sort(partitions, new Comparator<String>() {
+      @Override
+      public int compare(String p1, String p2) {
+        int result =
+            Double.compare(loads.getPartitionLoad(participantId, resourceId, p2),
+                loads.getPartitionLoad(participantId, resourceId, p1));
+        return (result != 0) ? result : p1.compareTo(p2);
+      }
+    });
+    return partitions;
+  }
+
+  // exchange the positions and states of two participants in a partition's placement
+  private static void swap(ZNRecord result, String partitionName, String first, String second) {
+    List<String> preferenceList = new ArrayList<String>(result.getListField(partitionName));
+    int i = preferenceList.indexOf(first);
+    int j = preferenceList.indexOf(second);
+    preferenceList.set(i, second);
+    preferenceList.set(j, first);
+    result.setListField(partitionName, preferenceList);
+    Map<String, String> stateMap = result.getMapField(partitionName);
+    if (stateMap != null && stateMap.containsKey(first) && stateMap.containsKey(second)) {
+      stateMap = new HashMap<String, String>(stateMap);
+      stateMap.put(first, stateMap.put(second, stateMap.get(first)));
+      result.setMapField(partitionName, stateMap);
+    }
+  }
+
+  // put another participant in the place of one in a partition's placement
+  private static void replace(ZNRecord result, String partitionName, String from, String to) {
+    List<String> preferenceList = new ArrayList<String>(result.getListField(partitionName));
+    preferenceList.set(preferenceList.indexOf(from), to);
+    result.setListField(partitionName, preferenceList);
+    Map<String, String> stateMap = result.getMapField(partitionName);
+    if (stateMap != null && stateMap.containsKey(from)) {
+      stateMap = new HashMap<String, String>(stateMap);
+      stateMap.put(to, stateMap.remove(from));
+      result.setMapField(partitionName, stateMap);
+    }
+  }
+
+  private static LoadMetric getMetric(Cluster cluster) {
+    UserConfig userConfig = cluster.getUserConfig();
+    String metric = (userConfig != null) ? userConfig.getSimpleField(LOAD_FEEDBACK_METRIC) : null;
+    if (metric == null) {
+      return null;
+    }
+    try {
+      return LoadMetric.valueOf(metric.trim().toUpperCase());
+    } catch (IllegalArgumentException e) {
+      LOG.error("Unknown load metric " + metric + ", load feedback is off");
+      return null;
+    }
+  }
+
+  private static long getLong(UserConfig userConfig, String key, long defaultValue) {
+    return (userConfig != null) ? userConfig.getLongField(key, defaultValue) : defaultValue;
+  }
+
+  /**
+   * The load records last read from the property store
+   */
+  private static class LoadRecords {
+    private List<ZNRecord> _records = Collections.emptyList();
+    private long _readTimeMillis = -1;
+
+    boolean isStale(long nowMillis, long refreshIntervalMillis) {
+      return _readTimeMillis < 0 || nowMillis - _readTimeMillis >= refreshIntervalMillis;
+    }
+
+    void set(List<ZNRecord> records, long nowMillis) {
+      _records = (records != null) ? records : Collections.<ZNRecord> emptyList();
+      _readTimeMillis = nowMillis;
+    }
+
+    List<ZNRecord> get() {
+      return _records;
+    }
+  }
+
+  /**
+   * A top state or replica moved for load
+   */
+  private static class Move {
+    final boolean _isSwap;
+    final ParticipantId _from;
+    final ParticipantId _to;
+    final long _timeMillis;
+
+    Move(boolean isSwap, ParticipantId from, ParticipantId to, long timeMillis) {
+      _isSwap = isSwap;
+      _from = from;
+      _to = to;
+      _timeMillis = timeMillis;
+    }
+  }
+
+  /**
+   * The load of each live participant in one pipeline run, as reported and as estimated after the
+   * moves made so far in the run
+   */
+  public static class Loads {
+    private final LoadMetric _metric;
+    private final Map<ParticipantId, Map<String, Map<String, String>>> _samples;
+    private final Map<ParticipantId, Double> _instanceLoads;
+    private final double _measuredImbalance;
+    private int _highWatermark;
+    private int _lowWatermark;
+    private int _maxMoves;
+    private long _cooldownMillis;
+    private int _numMoves;
+    private int _numInFlightMoves;
+
+    /**
+     * Aggregate the load records of the live participants
+     * @param metric the load to balance by
+     * @param records the load records, one per participant
+     * @param liveParticipants the live participants
+     * @param minTimestamp records written before this time are ignored
+     */
+    public Loads(LoadMetric metric, Collection<ZNRecord> records,
+        Set<ParticipantId> liveParticipants, long minTimestamp) {
+      _metric = metric;
+      _samples = new HashMap<ParticipantId, Map<String, Map<String, String>>>();
+      _instanceLoads = new HashMap<ParticipantId, Double>();
+      for (ZNRecord record : records) {
+        ParticipantId participantId = ParticipantId.from(record.getId());
+        if (!liveParticipants.contains(participantId)
+            || record.getLongField(PartitionLoadReporter.TIMESTAMP, 0L) < minTimestamp) {
+          continue;
+        }
+        _samples.put(participantId, record.getMapFields());
+        double total = 0;
+        for (Map<String, String> sample : record.getMapFields().values()) {
+          total += getValue(sample);
+        }
+        _instanceLoads.put(participantId, total);
+      }
+      double max = 0;
+      for (double load : _instanceLoads.values()) {
+        max = Math.max(max, load);
+      }
+      double mean = getMeanLoad();
+      _measuredImbalance = (mean > 0) ? max / mean : 0;
+      configure(DEFAULT_HIGH_WATERMARK, DEFAULT_LOW_WATERMARK, DEFAULT_MAX_MOVES,
+          DEFAULT_COOLDOWN_MS);
+      _numMoves = 0;
+      _numInFlightMoves = 0;
+    }
+
+    /**
+     * Set how loads are balanced
+     * @param highWatermark percentage of the average load above which a participant is relieved
+     * @param lowWatermark percentage of the average load a receiving participant may reach
+     * @param maxMoves the most moves at once, counting those still in flight
+     * @param cooldownMillis the time a moved partition is left alone
+     */
+    void configure(int highWatermark, int lowWatermark, int maxMoves, long cooldownMillis) {
+      _highWatermark = highWatermark;
+      _lowWatermark = Math.min(lowWatermark, highWatermark);
+      _maxMoves = maxMoves;
+      _cooldownMillis = cooldownMillis;
+    }
+
+    /**
+     * Get the reported load of a participant
+     * @param participantId the participant
+     * @return the load, or -1 if the participant has not reported recently
+     */
+    public double getInstanceLoad(ParticipantId participantId) {
+      Double load = _instanceLoads.get(participantId);
+      return (load != null) ? load : -1;
+    }
+
+    /**
+     * Get the largest load of a participant relative to the average, as reported at the start of
+     * the run
+     * @return the ratio of the highest load to the mean load, or 0 if there are no loads
+     */
+    public double getMeasuredImbalance() {
+      return _measuredImbalance;
+    }
+
+    /**
+     * Get the number of top states and replicas moved for load in the run
+     * @return the move count
+     */
+    public synchronized int getNumMoves() {
+      return _numMoves;
+    }
+
+    /**
+     * Get the number of top states and replicas moved for load in earlier runs whose receiver has
+     * not reached its state yet
+     * @return the in-flight move count
+     */
+    public synchronized int getNumInFlightMoves() {
+      return _numInFlightMoves;
+    }
+
+    double getMeanLoad() {
+      if (_instanceLoads.isEmpty()) {
+        return 0;
+      }
+      double total = 0;
+      for (double load : _instanceLoads.values()) {
+        total += load;
+      }
+      return total / _instanceLoads.size();
+    }
+
+    double getPartitionLoad(ParticipantId participantId, ResourceId resourceId,
+        String partitionName) {
+      Map<String, Map<String, String>> samples = _samples.get(participantId);
+      Map<String, String> sample =
+          (samples != null) ? samples.get(PartitionLoadReporter.getSampleKey(
+              resourceId.stringify(), partitionName)) : null;
+      return (sample != null) ? getValue(sample) : 0;
+    }
+
+    void moveLoad(ParticipantId from, ParticipantId to, double load) {
+      _instanceLoads.put(from, _instanceLoads.get(from) - load);
+      _instanceLoads.put(to, _instanceLoads.get(to) + load);
+      _numMoves++;
+    }
+
+    private double getValue(Map<String, String> sample) {
+      String value = sample.get(_metric.toString());
+      if (value == null) {
+        return 0;
+      }
+      try {
+        return Double.parseDouble(value);
+      } catch (NumberFormatException e) {
+        return 0;
+      }
+    }
+  }
+}
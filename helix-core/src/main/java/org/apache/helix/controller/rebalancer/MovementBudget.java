@@ -0,0 +1,363 @@
+package org.apache.helix.controller.rebalancer;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.helix.HelixDefinedState;
+import org.apache.helix.ZNRecord;
+import org.apache.helix.api.Cluster;
+import org.apache.helix.api.Resource;
+import org.apache.helix.api.State;
+import org.apache.helix.api.config.UserConfig;
+import org.apache.helix.api.id.ParticipantId;
+import org.apache.helix.api.id.PartitionId;
+import org.apache.helix.api.id.ResourceId;
+import org.apache.helix.controller.stages.ClusterDataCache;
+import org.apache.helix.controller.stages.ResourceCurrentState;
+import org.apache.log4j.Logger;
+
+/**
+ * Limits how many replicas FULL_AUTO resources move to new instances in one pipeline run, so that
+ * a change in the cluster, like an instance joining, converges on the new placement over several
+ * runs instead of moving everything at once. Replicas that are missing from a partition are
+ * restored first and are never held back; they use up budget that would otherwise go to moves
+ * made only for balance. A replica that is held back stays on the instance that has it. Moves
+ * that earlier runs started count against the limits until their replicas reach a steady state,
+ * so the limits bound the moves in flight rather than the moves started per run.
+ */
+public class MovementBudget {
+  private static final Logger LOG = Logger.getLogger(MovementBudget.class);
+
+  /**
+   * Cluster config field with the most replicas that may move in one pipeline run
+   */
+  public static final String MAX_MOVES_PER_CYCLE = "MAX_MOVES_PER_CYCLE";
+
+  /**
+   * Cluster config field with the most replicas that may move to or from one instance in one
+   * pipeline run
+   */
+  public static final String MAX_INSTANCE_MOVES_PER_CYCLE = "MAX_INSTANCE_MOVES_PER_CYCLE";
+
+  /**
+   * Cluster or resource config field with the most replicas of one resource that may move in one
+   * pipeline run; the resource config takes precedence
+   */
+  public static final String MAX_RESOURCE_MOVES_PER_CYCLE = "MAX_RESOURCE_MOVES_PER_CYCLE";
+
+  // Run attribute with the budget of the current pipeline run
+  private static final String BUDGET = "MOVEMENT_BUDGET";
+
+  private final Cluster _cluster;
+  private final int _maxMoves;
+  private final int _maxInstanceMoves;
+  private final Map<ParticipantId, Integer> _instanceMoves;
+  private int _numMoves;
+  private int _numRecoveries;
+  private int _numPendingMoves;
+  private int _numInFlightMoves;
+
+  /**
+   * Check if the movement of a resource is limited
+   * @param cluster current snapshot of the cluster
+   * @param resourceId the resource
+   * @return true if any of the limits applies to the resource, false otherwise
+   */
+  public static boolean isEnabled(Cluster cluster, ResourceId resourceId) {
+    return getLimit(cluster.getUserConfig(), MAX_MOVES_PER_CYCLE) > 0
+        || getLimit(cluster.getUserConfig(), MAX_INSTANCE_MOVES_PER_CYCLE) > 0
+        || getResourceLimit(cluster, resourceId) > 0;
+  }
+
+  /**
+   * Get the budget of a pipeline run, creating it on first use
+   * @param cluster current snapshot of the cluster
+   * @return the budget shared by all resources in the run
+   */
+  public static synchronized MovementBudget get(Cluster cluster) {
+    ClusterDataCache cache = cluster.getCache();
+    MovementBudget budget = (cache != null) ? cache.<MovementBudget> getRunAttribute(BUDGET) : null;
+    if (budget == null) {
+      budget = new MovementBudget(cluster);
+      if (cache != null) {
+        cache.getRunAttribute(BUDGET, budget);
+      }
+    }
+    return budget;
+  }
+
+  /**
+   * Get the budget of a pipeline run if any resource used it
+   * @param cache the cluster data of the run
+   * @return the budget, or null if no resource in the run has limited movement
+   */
+  public static MovementBudget peek(ClusterDataCache cache) {
+    return cache.getRunAttribute(BUDGET);
+  }
+
+  MovementBudget(Cluster cluster) {
+    _cluster = cluster;
+    _maxMoves = getLimit(cluster.getUserConfig(), MAX_MOVES_PER_CYCLE);
+    _maxInstanceMoves = getLimit(cluster.getUserConfig(), MAX_INSTANCE_MOVES_PER_CYCLE);
+    _instanceMoves = new HashMap<ParticipantId, Integer>();
+    _numMoves = 0;
+    _numRecoveries = 0;
+    _numPendingMoves = 0;
+    _numInFlightMoves = 0;
+  }
+
+  /**
+   * Take the step toward a target placement that fits in what is left of the budget
+   * @param resourceId the resource being placed
+   * @param target the preference lists the resource should converge on
+   * @param currentMapping the replicas each partition has or is getting, by instance
+   * @param liveParticipants the instances that are live
+   * @param currentState current state of the cluster in this run
+   * @param steadyStates the states a replica of the resource settles in
+   * @param initialState the initial state of the resource's state model
+   * @return the preference lists to use in this run
+   */
+  public synchronized ZNRecord apply(ResourceId resourceId, ZNRecord target,
+      Map<PartitionId, Map<ParticipantId, State>> currentMapping,
+      Set<ParticipantId> liveParticipants, ResourceCurrentState currentState,
+      Set<State> steadyStates, State initialState) {
+    int maxResourceMoves = getResourceLimit(_cluster, resourceId);
+    int resourceMoves = 0;
+    List<String> partitions = new ArrayList<String>(target.getListFields().keySet());
+    Collections.sort(partitions);
+
+    // the hosts each partition has now, and the ones it should get
+    Map<String, List<ParticipantId>> currentHosts = new HashMap<String, List<ParticipantId>>();
+    Map<String, List<ParticipantId>> newHosts = new HashMap<String, List<ParticipantId>>();
+    Map<String, List<ParticipantId>> accepted = new HashMap<String, List<ParticipantId>>();
+    for (String partition : partitions) {
+      List<ParticipantId> current = new ArrayList<ParticipantId>();
+      Map<ParticipantId, State> currentMap = currentMapping.get(PartitionId.from(partition));
+      if (currentMap != null) {
+        for (ParticipantId participantId : currentMap.keySet()) {
+          if (liveParticipants.contains(participantId)) {
+            current.add(participantId);
+          }
+        }
+        Collections.sort(current);
+      }
+      List<ParticipantId> added = new ArrayList<ParticipantId>();
+      for (String participantName : target.getListField(partition)) {
+        ParticipantId participantId = ParticipantId.from(participantName);
+        if (!current.contains(participantId)) {
+          added.add(participantId);
+        }
+      }
+      currentHosts.put(partition, current);
+      newHosts.put(partition, added);
+      accepted.put(partition, new ArrayList<ParticipantId>());
+    }
+
+    // moves that earlier runs started use up budget until their replicas are steady
+    for (String partition : partitions) {
+      PartitionId partitionId = PartitionId.from(partition);
+      Set<ParticipantId> participants =
+          new TreeSet<ParticipantId>(currentState.getCurrentStateMap(resourceId, partitionId)
+              .keySet());
+      participants.addAll(currentState.getPendingStateMap(resourceId, partitionId).keySet());
+      for (ParticipantId participantId : participants) {
+        if (!liveParticipants.contains(participantId)) {
+          continue;
+        }
+        State state = currentState.getCurrentState(resourceId, partitionId, participantId);
+        State pending = currentState.getPendingState(resourceId, partitionId, participantId);
+        if (state != null && steadyStates.contains(state)) {
+          // a replica that is being taken down still takes work from its instance
+          if (pending != null && !steadyStates.contains(pending)) {
+            charge(participantId);
+          }
+          continue;
+        }
+        if (!isComingUp(state, initialState) && !isComingUp(pending, initialState)) {
+          continue;
+        }
+        // the replica is on its way up, so it is a host already
+        List<ParticipantId> current = currentHosts.get(partition);
+        if (!current.contains(participantId)) {
+          current.add(participantId);
+          Collections.sort(current);
+        }
+        newHosts.get(partition).remove(participantId);
+        charge(participantId);
+        resourceMoves++;
+        _numInFlightMoves++;
+      }
+    }
+
+    // restore the replicas that partitions are missing before anything moves for balance
+    for (String partition : partitions) {
+      int missing = target.getListField(partition).size() - currentHosts.get(partition).size();
+      List<ParticipantId> added = newHosts.get(partition);
+      while (missing > 0 && !added.isEmpty()) {
+        ParticipantId participantId = added.remove(0);
+        accepted.get(partition).add(participantId);
+        charge(participantId);
+        resourceMoves++;
+        _numRecoveries++;
+        missing--;
+      }
+    }
+
+    // then move replicas while the budget lasts, each from an instance that is not in the target
+    for (String partition : partitions) {
+      List<ParticipantId> added = newHosts.get(partition);
+      List<ParticipantId> removable = new ArrayList<ParticipantId>(currentHosts.get(partition));
+      for (String participantName : target.getListField(partition)) {
+        removable.remove(ParticipantId.from(participantName));
+      }
+      int heldBack = 0;
+      for (ParticipantId participantId : added) {
+        ParticipantId source = null;
+        if ((_maxMoves <= 0 || _numMoves + _numRecoveries + _numInFlightMoves < _maxMoves)
+            && (maxResourceMoves <= 0 || resourceMoves < maxResourceMoves)
+            && hasInstanceBudget(participantId)) {
+          for (ParticipantId candidate : removable) {
+            if (hasInstanceBudget(candidate)) {
+              source = candidate;
+              break;
+            }
+          }
+        }
+        if (source == null) {
+          heldBack++;
+          continue;
+        }
+        removable.remove(source);
+        currentHosts.get(partition).remove(source);
+        accepted.get(partition).add(participantId);
+        charge(participantId);
+        charge(source);
+        resourceMoves++;
+        _numMoves++;
+      }
+      // current hosts that are neither in the target nor holding a replica back are dropped
+      for (ParticipantId participantId : removable.subList(heldBack, removable.size())) {
+        currentHosts.get(partition).remove(participantId);
+      }
+      _numPendingMoves += heldBack;
+    }
+
+    // a replica that has not moved yet takes the place of its target in the preference list
+    ZNRecord mapping = new ZNRecord(target.getId());
+    for (String partition : partitions) {
+      List<ParticipantId> retained = new ArrayList<ParticipantId>(currentHosts.get(partition));
+      for (String participantName : target.getListField(partition)) {
+        retained.remove(ParticipantId.from(participantName));
+      }
+      List<String> preferenceList = new ArrayList<String>();
+      for (String participantName : target.getListField(partition)) {
+        ParticipantId participantId = ParticipantId.from(participantName);
+        if (currentHosts.get(partition).contains(participantId)
+            || accepted.get(partition).contains(participantId)) {
+          preferenceList.add(participantName);
+        } else if (!retained.isEmpty()) {
+          preferenceList.add(retained.remove(0).stringify());
+        }
+      }
+      for (ParticipantId participantId : retained) {
+        preferenceList.add(participantId.stringify());
+      }
+      mapping.setListField(partition, preferenceList);
+    }
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Moving " + resourceMoves + " replicas of " + resourceId + ", "
+          + _numInFlightMoves + " moves in flight and " + _numPendingMoves
+          + " moves pending in the cluster");
+    }
+    return mapping;
+  }
+
+  /**
+   * Get the number of replicas moved for balance in this run
+   * @return number of replicas
+   */
+  public synchronized int getNumMoves() {
+    return _numMoves;
+  }
+
+  /**
+   * Get the number of missing replicas restored in this run
+   * @return number of replicas
+   */
+  public synchronized int getNumRecoveries() {
+    return _numRecoveries;
+  }
+
+  /**
+   * Get the number of replicas that earlier runs moved and that are not steady yet
+   * @return number of replicas
+   */
+  public synchronized int getNumInFlightMoves() {
+    return _numInFlightMoves;
+  }
+
+  /**
+   * Get the number of replicas that were held back because the budget ran out
+   * @return number of replicas still to move to reach the target placement
+   */
+  public synchronized int getNumPendingMoves() {
+    return _numPendingMoves;
+  }
+
+  /**
+   * Check if a state is one that a replica passes through on its way to a steady state
+   */
+  private static boolean isComingUp(State state, State initialState) {
+    if (state == null || state.equals(initialState)) {
+      return false;
+    }
+    String name = state.toString();
+    return !name.equals(HelixDefinedState.DROPPED.toString())
+        && !name.equals(HelixDefinedState.ERROR.toString());
+  }
+
+  private boolean hasInstanceBudget(ParticipantId participantId) {
+    Integer moves = _instanceMoves.get(participantId);
+    return _maxInstanceMoves <= 0 || moves == null || moves < _maxInstanceMoves;
+  }
+
+  private void charge(ParticipantId participantId) {
+    Integer moves = _instanceMoves.get(participantId);
+    _instanceMoves.put(participantId, (moves != null) ? moves + 1 : 1);
+  }
+
+  private static int getResourceLimit(Cluster cluster, ResourceId resourceId) {
+    Resource resource = cluster.getResource(resourceId);
+    int limit = getLimit((resource != null) ? resource.getUserConfig() : null,
+        MAX_RESOURCE_MOVES_PER_CYCLE);
+    return (limit > 0) ? limit : getLimit(cluster.getUserConfig(), MAX_RESOURCE_MOVES_PER_CYCLE);
+  }
+
+  private static int getLimit(UserConfig userConfig, String key) {
+    return (userConfig != null) ? userConfig.getIntField(key, -1) : -1;
+  }
+}
@@ -31,11 +31,15 @@ import org.apache.helix.api.id.ParticipantId;
 import org.apache.helix.api.id.PartitionId;
 import org.apache.helix.api.id.ResourceId;
 import org.apache.helix.api.id.StateModelDefId;
+import org.apache.helix.controller.context.ContextWriteBackCache;
 import org.apache.helix.controller.context.ControllerContextProvider;
 import org.apache.helix.controller.pipeline.AbstractBaseStage;
 import org.apache.helix.controller.pipeline.StageException;
 import org.apache.helix.controller.rebalancer.FallbackRebalancer;
+import org.apache.helix.controller.rebalancer.FullAutoRebalancer;
 import org.apache.helix.controller.rebalancer.HelixRebalancer;
+import org.apache.helix.controller.rebalancer.LoadFeedback;
+import org.apache.helix.controller.rebalancer.MovementBudget;
 import org.apache.helix.controller.rebalancer.RebalancerRef;
 import org.apache.helix.controller.rebalancer.config.RebalancerConfig;
 import org.apache.helix.controller.rebalancer.util.ConstraintBasedAssignment;
@@ -58,6 +62,10 @@ public class BestPossibleStateCalcStage extends AbstractBaseStage {
   // cache for rebalancer instances
   private Map<ResourceId, HelixRebalancer> _rebalancerMap = Maps.newHashMap();
 
+  // FULL_AUTO placements reused from the previous run, and computed anew, in the last run
+  private int _placementCacheHits;
+  private int _placementCacheMisses;
+
   @Override
   public void process(ClusterEvent event) throws Exception {
     long startTime = System.currentTimeMillis();
@@ -81,12 +89,40 @@ public class BestPossibleStateCalcStage extends AbstractBaseStage {
         compute(cluster, event, resourceMap, currentStateOutput);
     event.addAttribute(AttributeName.BEST_POSSIBLE_STATE.toString(), bestPossibleStateOutput);
 
+    // persist the contexts that rebalancers changed, before any message refers to them
+    ContextWriteBackCache.FlushStats contextStats = null;
+    if (cache != null) {
+      contextStats = cache.getContextWriteBackCache().flush();
+    }
+
     try {
       ClusterStatusMonitor clusterStatusMonitor =
           (ClusterStatusMonitor) event.getAttribute("clusterStatusMonitor");
       if (clusterStatusMonitor != null) {
         clusterStatusMonitor.setPerInstanceResourceStatus(bestPossibleStateOutput,
             cache.getInstanceConfigMap(), resourceMap, cache.getStateModelDefMap());
+        clusterStatusMonitor.setInstanceLoadStatus(bestPossibleStateOutput, resourceMap,
+            cache.getStateModelDefMap());
+        if (contextStats != null) {
+          clusterStatusMonitor.setContextStoreStatus(contextStats.getNumParents(),
+              contextStats.getNumReads(), contextStats.getNumWrites());
+        }
+        clusterStatusMonitor.setPlacementCacheStatus(_placementCacheHits,
+            _placementCacheMisses);
+        MovementBudget movementBudget = (cache != null) ? MovementBudget.peek(cache) : null;
+        if (movementBudget != null) {
+          clusterStatusMonitor.setRebalanceProgress(movementBudget.getNumMoves(),
+              movementBudget.getNumRecoveries(), movementBudget.getNumPendingMoves());
+        } else {
+          clusterStatusMonitor.setRebalanceProgress(0, 0, 0);
+        }
+        LoadFeedback.Loads loads = (cache != null) ? LoadFeedback.peekLoads(cache) : null;
+        if (loads != null) {
+          clusterStatusMonitor.setLoadFeedbackStatus(loads.getMeasuredImbalance(),
+              loads.getNumMoves());
+        } else {
+          clusterStatusMonitor.setLoadFeedbackStatus(0, 0);
+        }
       }
     } catch (Exception e) {
       LOG.error("Could not update cluster status metrics!", e);
@@ -181,10 +217,38 @@ public class BestPossibleStateCalcStage extends AbstractBaseStage {
     }
   }
 
+  /**
+   * Get the number of FULL_AUTO resources whose placement was reused in the last run
+   * @return number of resources
+   */
+  public int getPlacementCacheHits() {
+    return _placementCacheHits;
+  }
+
+  /**
+   * Get the number of FULL_AUTO resources whose placement was computed in the last run
+   * @return number of resources
+   */
+  public int getPlacementCacheMisses() {
+    return _placementCacheMisses;
+  }
+
   private BestPossibleStateOutput compute(Cluster cluster, ClusterEvent event,
       Map<ResourceId, ResourceConfig> resourceMap, ResourceCurrentState currentStateOutput) {
     BestPossibleStateOutput output = new BestPossibleStateOutput();
     Map<StateModelDefId, StateModelDefinition> stateModelDefs = cluster.getStateModelMap();
+    _placementCacheHits = 0;
+    _placementCacheMisses = 0;
+
+    // rebalancers of removed resources hold on to state that is no longer needed
+    _rebalancerMap.keySet().retainAll(resourceMap.keySet());
+    // after a leadership change, what rebalancers kept from an earlier term may be stale
+    if (cluster.getCache() != null && cluster.getCache().isContextReloaded()) {
+      _rebalancerMap.clear();
+    }
+    HelixManager manager = event.getAttribute("helixmanager");
+    ControllerContextProvider provider =
+        event.getAttribute(AttributeName.CONTEXT_PROVIDER.toString());
 
     for (ResourceId resourceId : resourceMap.keySet()) {
       if (LOG.isDebugEnabled()) {
@@ -200,7 +264,7 @@ public class BestPossibleStateCalcStage extends AbstractBaseStage {
       HelixRebalancer rebalancer = null;
       if (_rebalancerMap.containsKey(resourceId)) {
         HelixRebalancer candidateRebalancer = _rebalancerMap.get(resourceId);
-        if (ref != null && candidateRebalancer.getClass().equals(ref.toString())) {
+        if (ref != null && candidateRebalancer.getClass().getName().equals(ref.toString())) {
           rebalancer = candidateRebalancer;
         }
       }
@@ -210,15 +274,13 @@ public class BestPossibleStateCalcStage extends AbstractBaseStage {
         if (ref != null) {
           rebalancer = ref.getRebalancer();
         }
-        HelixManager manager = event.getAttribute("helixmanager");
-        ControllerContextProvider provider =
-            event.getAttribute(AttributeName.CONTEXT_PROVIDER.toString());
         if (rebalancer == null) {
           rebalancer = new FallbackRebalancer();
         }
-        rebalancer.init(manager, provider);
         _rebalancerMap.put(resourceId, rebalancer);
       }
+      // the context provider belongs to this run, so cached rebalancers are bound again
+      rebalancer.init(manager, provider);
       ResourceAssignment currentAssignment = null;
       try {
         resourceAssignment =
@@ -227,6 +289,13 @@ public class BestPossibleStateCalcStage extends AbstractBaseStage {
       } catch (Exception e) {
         LOG.error("Rebalancer for resource " + resourceId + " failed.", e);
       }
+      if (rebalancer instanceof FullAutoRebalancer) {
+        if (((FullAutoRebalancer) rebalancer).isLastPlacementReused()) {
+          _placementCacheHits++;
+        } else {
+          _placementCacheMisses++;
+        }
+      }
       if (resourceAssignment == null) {
         resourceAssignment =
             mapDroppedResource(cluster, resourceId, currentStateOutput, stateModelDef);
@@ -26,12 +26,16 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.helix.HelixConstants.StateModelToken;
 import org.apache.helix.HelixDataAccessor;
 import org.apache.helix.HelixProperty;
 import org.apache.helix.PropertyKey;
 import org.apache.helix.PropertyKey.Builder;
+import org.apache.helix.controller.RebalanceScheduler;
+import org.apache.helix.controller.context.ContextWriteBackCache;
 import org.apache.helix.controller.context.ControllerContextHolder;
 import org.apache.helix.model.ClusterConfiguration;
 import org.apache.helix.model.ClusterConstraints;
@@ -79,7 +83,22 @@ public class ClusterDataCache {
   // maintain a cache of participant messages across pipeline runs
   Map<String, Map<String, Message>> _messageCache = Maps.newHashMap();
 
+  // rebalancer contexts in the property store, written back once per pipeline run
+  final ContextWriteBackCache _contextWriteBackCache = new ContextWriteBackCache();
+
+  // timed pipeline runs requested by rebalancers, owned by the controller
+  RebalanceScheduler _rebalanceScheduler;
+
+  // state that rebalancers share within one pipeline run, dropped on every refresh
+  final ConcurrentMap<String, Object> _runAttributeMap = new ConcurrentHashMap<String, Object>();
+
+  // state that rebalancers keep across pipeline runs, dropped when contexts are reloaded
+  final ConcurrentMap<String, Object> _controllerAttributeMap =
+      new ConcurrentHashMap<String, Object>();
+
   boolean _init = true;
+  boolean _contextReloadRequired = false;
+  boolean _contextReloaded = false;
 
   private static final Logger LOG = Logger.getLogger(ClusterDataCache.class.getName());
 
@@ -95,6 +114,15 @@ public class ClusterDataCache {
 
     Builder keyBuilder = accessor.keyBuilder();
 
+    _runAttributeMap.clear();
+    _contextReloaded = _contextReloadRequired;
+    if (_contextReloadRequired) {
+      // runs on the pipeline thread, after the previous run has flushed its contexts
+      _contextWriteBackCache.clear();
+      _controllerAttributeMap.clear();
+      _contextReloadRequired = false;
+    }
+
     if (_init) {
       _idealStateCacheMap = accessor.getChildValuesMap(keyBuilder.idealStates());
       _liveInstanceCacheMap = accessor.getChildValuesMap(keyBuilder.liveInstances());
@@ -460,6 +488,70 @@ public class ClusterDataCache {
     return _clusterConfig;
   }
 
+  /**
+   * Get the cache of rebalancer contexts kept in the property store
+   * @return ContextWriteBackCache
+   */
+  public ContextWriteBackCache getContextWriteBackCache() {
+    return _contextWriteBackCache;
+  }
+
+  /**
+   * Set the scheduler that rebalancers use to request a pipeline run at a later time
+   * @param rebalanceScheduler the controller's scheduler
+   */
+  public void setRebalanceScheduler(RebalanceScheduler rebalanceScheduler) {
+    _rebalanceScheduler = rebalanceScheduler;
+  }
+
+  /**
+   * Get the scheduler that rebalancers use to request a pipeline run at a later time
+   * @return RebalanceScheduler, or null if this cache is not owned by a controller
+   */
+  public RebalanceScheduler getRebalanceScheduler() {
+    return _rebalanceScheduler;
+  }
+
+  /**
+   * Get state that rebalancers share within the current pipeline run, adding it if it is not
+   * there yet. Everything is dropped at the start of the next refresh.
+   * @param attrName the name of the state
+   * @param initialValue the value to add if there is none
+   * @return the value for this run
+   */
+  public <T extends Object> T getRunAttribute(String attrName, T initialValue) {
+    return getOrAdd(_runAttributeMap, attrName, initialValue);
+  }
+
+  /**
+   * Get state that rebalancers share within the current pipeline run
+   * @param attrName the name of the state
+   * @return the value for this run, or null if there is none
+   */
+  @SuppressWarnings("unchecked")
+  public <T extends Object> T getRunAttribute(String attrName) {
+    return (T) _runAttributeMap.get(attrName);
+  }
+
+  /**
+   * Get state that rebalancers keep from one pipeline run to the next, adding it if it is not
+   * there yet. Everything is dropped when the rebalancer contexts are reloaded, i.e. after a
+   * leadership change.
+   * @param attrName the name of the state
+   * @param initialValue the value to add if there is none
+   * @return the value kept by this controller
+   */
+  public <T extends Object> T getControllerAttribute(String attrName, T initialValue) {
+    return getOrAdd(_controllerAttributeMap, attrName, initialValue);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T extends Object> T getOrAdd(ConcurrentMap<String, Object> attributeMap,
+      String attrName, T initialValue) {
+    Object ret = attributeMap.putIfAbsent(attrName, initialValue);
+    return (ret != null) ? (T) ret : initialValue;
+  }
+
   public void cacheMessages(List<Message> messages) {
     for (Message message : messages) {
       String instanceName = message.getTgtName();
@@ -497,6 +589,24 @@ public class ClusterDataCache {
     _init = true;
   }
 
+  /**
+   * Indicate that rebalancer contexts should be read again from the property store at the start of
+   * the next refresh, e.g. because another controller may have written them while this one was not
+   * the leader
+   */
+  public synchronized void requireContextReload() {
+    _contextReloadRequired = true;
+  }
+
+  /**
+   * Check if the last refresh reloaded the rebalancer contexts, i.e. it started the first run after
+   * a leadership change
+   * @return true if the contexts were reloaded, false otherwise
+   */
+  public boolean isContextReloaded() {
+    return _contextReloaded;
+  }
+
   /**
    * toString method to print the entire cluster state
    */
@@ -20,6 +20,7 @@ package org.apache.helix.controller.strategy;
  */
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -32,6 +33,12 @@ import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Maps;
@@ -53,21 +60,36 @@ public class AutoRebalanceStrategy {
 
   private static Logger logger = Logger.getLogger(AutoRebalanceStrategy.class);
 
+  // Fewest partitions for which the array-based steps are split across threads
+  private static final int PARALLEL_THRESHOLD = 4096;
+
   private final ResourceId _resourceId;
   private final List<PartitionId> _partitions;
   private final LinkedHashMap<State, Integer> _states;
   private final int _maximumPerNode;
   private final ReplicaPlacementScheme _placementScheme;
+  private Map<ParticipantId, String> _faultZones;
+  private int _parallelism = Runtime.getRuntime().availableProcessors();
 
   private Map<ParticipantId, Node> _nodeMap;
+  private Node[] _nodes;
   private List<Node> _liveNodesList;
   private Map<Integer, State> _stateMap;
 
-  private Map<Replica, Node> _preferredAssignment;
-  private Map<Replica, Node> _existingPreferredAssignment;
+  // Replica r of the partition at index p of _partitions is at index p * numReplicas + r of
+  // these arrays, which hold the index of a node in _nodes, or -1 for none
+  private Map<PartitionId, Integer> _partitionIndex;
+  private boolean[] _duplicatePartitions;
+  private int[] _preferredNodes;
+  private int[] _existingPreferredNodes;
+  private int[] _existingNonPreferredNodes;
   private Map<Replica, Node> _existingNonPreferredAssignment;
   private Set<Replica> _orphaned;
 
+  // Most replicas of a partition in one fault zone, or 0 if the nodes are not in zones
+  private int _maxPerZone;
+  private Map<String, Map<String, Integer>> _zoneReplicaCounts;
+
   /**
    * Initialize this strategy for a resource
    * @param resourceName the resource for which an assignment will be computed
@@ -132,6 +154,27 @@ public class AutoRebalanceStrategy {
     }
   }
 
+  /**
+   * Spread the replicas of each partition across fault zones. Replicas are kept out of a zone that
+   * already has its share of the partition, and ties between equally loaded nodes spread each state
+   * across zones, but a replica goes into a crowded zone rather than nowhere.
+   * @param faultZones map of participant id to the fault zone it is in; participants that are not
+   *          in the map share one zone
+   */
+  public void setFaultZones(Map<ParticipantId, String> faultZones) {
+    _faultZones = faultZones;
+  }
+
+  /**
+   * Set the number of ranges the preferred and existing placements of resources with many
+   * partitions are split into. The ranges run on threads shared by all placements, one per
+   * processor. The result does not depend on it.
+   * @param parallelism the number of ranges, or 1 to compute on the calling thread only
+   */
+  public void setParallelism(int parallelism) {
+    _parallelism = Math.max(1, parallelism);
+  }
+
   /**
    * Wrap {@link #computePartitionAssignment(List, Map, List)} with a function that takes concrete
    * types
@@ -162,13 +205,16 @@ public class AutoRebalanceStrategy {
     int distRemainder = (numReplicas * _partitions.size()) % sortedLiveNodes.size();
     int distFloor = (numReplicas * _partitions.size()) / sortedLiveNodes.size();
     _nodeMap = new HashMap<ParticipantId, Node>();
+    _nodes = new Node[sortedAllNodes.size()];
     _liveNodesList = new ArrayList<Node>();
 
     for (ParticipantId id : sortedAllNodes) {
       Node node = new Node(id);
       node.capacity = 0;
       node.hasCeilingCapacity = false;
+      node.index = _nodeMap.size();
       _nodeMap.put(id, node);
+      _nodes[node.index] = node;
     }
     for (int i = 0; i < sortedLiveNodes.size(); i++) {
       boolean usingCeiling = false;
@@ -185,19 +231,22 @@ public class AutoRebalanceStrategy {
       _liveNodesList.add(node);
     }
 
+    if (_faultZones != null && !_faultZones.isEmpty()) {
+      sortedNodeNames = assignFaultZones(sortedAllNodes, numReplicas);
+    } else {
+      _maxPerZone = 0;
+      _zoneReplicaCounts = null;
+    }
+
     // compute states for all replica ids
     _stateMap = generateStateMap();
 
     // compute the preferred mapping if all nodes were up
-    _preferredAssignment = computePreferredPlacement(sortedNodeNames);
-
-    // logger.info("preferred mapping:"+ preferredAssignment);
-    // from current mapping derive the ones in preferred location
-    // this will update the nodes with their current fill status
-    _existingPreferredAssignment = computeExistingPreferredPlacement(currentMapping);
+    computePreferredPlacement(sortedNodeNames);
 
-    // from current mapping derive the ones not in preferred location
-    _existingNonPreferredAssignment = computeExistingNonPreferredPlacement(currentMapping);
+    // from current mapping derive the ones in preferred location and the ones not in preferred
+    // location; this will update the nodes with their current fill status
+    _existingNonPreferredAssignment = computeExistingPlacement(currentMapping);
 
     // compute orphaned replicas that are not assigned to any node
     _orphaned = computeOrphaned();
@@ -240,6 +289,56 @@ public class AutoRebalanceStrategy {
     return typedComputePartitionAssignment(typedLiveNodes, typedCurrentMapping, typedAllNodes);
   }
 
+  /**
+   * Put the nodes in their fault zones, and order them so that consecutive nodes are in different
+   * zones wherever possible, which makes the preferred placement spread partitions across zones
+   * @param sortedAllNodes all nodes, sorted by name
+   * @param numReplicas the number of replicas of each partition
+   * @return the node names to compute the preferred placement over
+   */
+  private List<String> assignFaultZones(List<ParticipantId> sortedAllNodes, int numReplicas) {
+    Map<String, List<ParticipantId>> zoneNodes = new TreeMap<String, List<ParticipantId>>();
+    Map<String, List<Node>> liveZoneNodes = new HashMap<String, List<Node>>();
+    for (ParticipantId id : sortedAllNodes) {
+      String zone = _faultZones.get(id);
+      if (zone == null) {
+        zone = "";
+      }
+      if (!zoneNodes.containsKey(zone)) {
+        zoneNodes.put(zone, new ArrayList<ParticipantId>());
+        liveZoneNodes.put(zone, new ArrayList<Node>());
+      }
+      zoneNodes.get(zone).add(id);
+      Node node = _nodeMap.get(id);
+      node.zone = zone;
+      if (node.isAlive) {
+        liveZoneNodes.get(zone).add(node);
+      }
+    }
+    int numLiveZones = 0;
+    for (List<Node> members : liveZoneNodes.values()) {
+      for (Node node : members) {
+        node.zoneMembers = members;
+      }
+      if (!members.isEmpty()) {
+        numLiveZones++;
+      }
+    }
+    _maxPerZone = Math.max(1, (numReplicas + numLiveZones - 1) / Math.max(1, numLiveZones));
+    _zoneReplicaCounts = new HashMap<String, Map<String, Integer>>();
+
+    // deal the nodes out of the zones in turn
+    List<String> nodeNames = new ArrayList<String>();
+    for (int i = 0; nodeNames.size() < sortedAllNodes.size(); i++) {
+      for (List<ParticipantId> members : zoneNodes.values()) {
+        if (i < members.size()) {
+          nodeNames.add(members.get(i).toString());
+        }
+      }
+    }
+    return nodeNames;
+  }
+
   /**
    * Move replicas assigned to non-preferred nodes if their current node is at capacity
    * and its preferred node is under capacity.
@@ -253,13 +352,14 @@ public class AutoRebalanceStrategy {
       Entry<Replica, Node> entry = iterator.next();
       Replica replica = entry.getKey();
       Node donor = entry.getValue();
-      Node receiver = _preferredAssignment.get(replica);
+      Node receiver = getPreferredNode(replica);
       if (donor.capacity < donor.currentlyAssigned
-          && receiver.capacity > receiver.currentlyAssigned && receiver.canAdd(replica)) {
+          && receiver.capacity > receiver.currentlyAssigned && receiver.canAdd(replica)
+          && receiver.canAddToZone(replica, donor)) {
         donor.currentlyAssigned = donor.currentlyAssigned - 1;
         receiver.currentlyAssigned = receiver.currentlyAssigned + 1;
-        donor.nonPreferred.remove(replica);
-        receiver.preferred.add(replica);
+        donor.removeNonPreferred(replica);
+        receiver.addPreferred(replica);
         donor.newReplicas.remove(replica);
         receiver.newReplicas.add(replica);
         iterator.remove();
@@ -279,14 +379,18 @@ public class AutoRebalanceStrategy {
       Replica replica = it.next();
       boolean added = false;
       int startIndex = computeRandomStartIndex(replica);
-      for (int index = startIndex; index < startIndex + _liveNodesList.size(); index++) {
-        Node receiver = _liveNodesList.get(index % _liveNodesList.size());
-        if (receiver.capacity > receiver.currentlyAssigned && receiver.canAdd(replica)) {
-          receiver.currentlyAssigned = receiver.currentlyAssigned + 1;
-          receiver.nonPreferred.add(replica);
-          receiver.newReplicas.add(replica);
-          added = true;
-          break;
+      // with fault zones, try the zones that do not have their share of the partition yet first
+      for (int pass = (_maxPerZone > 0) ? 0 : 1; pass < 2 && !added; pass++) {
+        for (int index = startIndex; index < startIndex + _liveNodesList.size(); index++) {
+          Node receiver = _liveNodesList.get(index % _liveNodesList.size());
+          if (receiver.capacity > receiver.currentlyAssigned && receiver.canAdd(replica)
+              && (pass > 0 || receiver.canAddToZone(replica, null))) {
+            receiver.currentlyAssigned = receiver.currentlyAssigned + 1;
+            receiver.addNonPreferred(replica);
+            receiver.newReplicas.add(replica);
+            added = true;
+            break;
+          }
         }
       }
       if (!added) {
@@ -347,14 +451,20 @@ public class AutoRebalanceStrategy {
         while (it.hasNext()) {
           Replica replica = it.next();
           int startIndex = computeRandomStartIndex(replica);
-          for (int index = startIndex; index < startIndex + _liveNodesList.size(); index++) {
-            Node receiver = _liveNodesList.get(index % _liveNodesList.size());
-            if (receiver.canAdd(replica)) {
-              receiver.currentlyAssigned = receiver.currentlyAssigned + 1;
-              receiver.nonPreferred.add(replica);
-              donor.currentlyAssigned = donor.currentlyAssigned - 1;
-              it.remove();
-              break;
+          boolean moved = false;
+          for (int pass = (_maxPerZone > 0) ? 0 : 1; pass < 2 && !moved; pass++) {
+            for (int index = startIndex; index < startIndex + _liveNodesList.size(); index++) {
+              Node receiver = _liveNodesList.get(index % _liveNodesList.size());
+              if (receiver.canAdd(replica)
+                  && (pass > 0 || receiver.canAddToZone(replica, donor))) {
+                receiver.currentlyAssigned = receiver.currentlyAssigned + 1;
+                receiver.addNonPreferred(replica);
+                donor.currentlyAssigned = donor.currentlyAssigned - 1;
+                it.remove();
+                donor.removePartition(replica.partition);
+                moved = true;
+                break;
+              }
             }
           }
           if (donor.capacity >= donor.currentlyAssigned) {
@@ -461,6 +571,11 @@ public class AutoRebalanceStrategy {
       notAssigned.remove(node);
       Map<String, Integer> counts = nodeReplicaCounts.get(node);
       counts.put(state.toString(), counts.get(state.toString()) + 1);
+      if (_zoneReplicaCounts != null) {
+        String zone = _nodeMap.get(ParticipantId.from(node)).zone;
+        _zoneReplicaCounts.get(zone).put(state.toString(),
+            getZoneReplicaCount(state, zone) + 1);
+      }
     }
     preferenceList.clear();
     preferenceList.addAll(newPreferenceList);
@@ -477,11 +592,23 @@ public class AutoRebalanceStrategy {
       Map<String, Map<String, Integer>> nodeReplicaCounts) {
     String minimalNode = null;
     int minimalCount = Integer.MAX_VALUE;
+    int minimalZoneCount = Integer.MAX_VALUE;
     for (String node : nodes) {
       int count = getReplicaCountForNode(state, node, nodeReplicaCounts);
       if (count < minimalCount) {
         minimalCount = count;
         minimalNode = node;
+        if (_zoneReplicaCounts != null) {
+          minimalZoneCount =
+              getZoneReplicaCount(state, _nodeMap.get(ParticipantId.from(node)).zone);
+        }
+      } else if (count == minimalCount && _zoneReplicaCounts != null) {
+        // between equally loaded nodes, balance the state across zones
+        int zoneCount = getZoneReplicaCount(state, _nodeMap.get(ParticipantId.from(node)).zone);
+        if (zoneCount < minimalZoneCount) {
+          minimalZoneCount = zoneCount;
+          minimalNode = node;
+        }
       }
     }
     return minimalNode;
@@ -511,44 +638,155 @@ public class AutoRebalanceStrategy {
   }
 
   /**
-   * Compute the subset of the current mapping where replicas are not mapped according to their
-   * preferred assignment.
+   * Safe check for the number of replicas in a given state assigned to a fault zone
+   * @param state the state to check
+   * @param zone the zone to check
+   * @return the number of replicas in the state in the zone
+   */
+  private int getZoneReplicaCount(State state, String zone) {
+    Map<String, Integer> replicaCounts = _zoneReplicaCounts.get(zone);
+    if (replicaCounts == null) {
+      replicaCounts = new HashMap<String, Integer>();
+      _zoneReplicaCounts.put(zone, replicaCounts);
+    }
+    Integer count = replicaCounts.get(state.toString());
+    return (count != null) ? count : 0;
+  }
+
+  /**
+   * Split the current mapping into replicas that are on their preferred nodes and replicas that are
+   * not, and count the replicas currently on each node. Each partition is independent of the
+   * others, so ranges of partitions are processed in parallel and merged in partition order.
    * @param currentMapping Current mapping of replicas to nodes
    * @return The current assignments that do not conform to the preferred assignment
    */
-  private Map<Replica, Node> computeExistingNonPreferredPlacement(
-      Map<PartitionId, Map<ParticipantId, State>> currentMapping) {
+  private Map<Replica, Node> computeExistingPlacement(
+      final Map<PartitionId, Map<ParticipantId, State>> currentMapping) {
+    final int count = countStateReplicas();
+    _existingPreferredNodes = new int[_preferredNodes.length];
+    _existingNonPreferredNodes = new int[_preferredNodes.length];
+    Arrays.fill(_existingPreferredNodes, -1);
+    Arrays.fill(_existingNonPreferredNodes, -1);
+    final List<Entry<PartitionId, Map<ParticipantId, State>>> entries =
+        new ArrayList<Entry<PartitionId, Map<ParticipantId, State>>>(currentMapping.entrySet());
+    int numRanges = getNumRanges(entries.size());
+    final int[][] assignedCounts = new int[numRanges][_nodes.length];
+    runRanges(entries.size(), numRanges, new RangeTask() {
+      @Override
+      public void run(int start, int end, int range) {
+        int[] holders = new int[count];
+        for (int i = start; i < end; i++) {
+          computeExistingPlacement(entries.get(i).getKey(), entries.get(i).getValue(), count,
+              holders, assignedCounts[range]);
+        }
+      }
+    });
+    for (int[] rangeCounts : assignedCounts) {
+      for (int n = 0; n < _nodes.length; n++) {
+        _nodes[n].currentlyAssigned += rangeCounts[n];
+      }
+    }
+
     Map<Replica, Node> existingNonPreferredAssignment = new TreeMap<Replica, Node>();
-    int count = countStateReplicas();
-    for (PartitionId partition : currentMapping.keySet()) {
-      Map<ParticipantId, State> nodeStateMap = currentMapping.get(partition);
-      nodeStateMap.keySet().retainAll(_nodeMap.keySet());
-      for (ParticipantId nodeId : nodeStateMap.keySet()) {
-        Node node = _nodeMap.get(nodeId);
-        boolean skip = false;
-        for (Replica replica : node.preferred) {
-          if (replica.partition.equals(partition)) {
-            skip = true;
-            break;
-          }
+    for (int p = 0; p < _partitions.size(); p++) {
+      for (int replicaId = 0; replicaId < count; replicaId++) {
+        int index = p * count + replicaId;
+        if (_existingPreferredNodes[index] >= 0) {
+          Replica replica = new Replica(_partitions.get(p), replicaId, index);
+          _nodes[_existingPreferredNodes[index]].addPreferred(replica);
+        } else if (_existingNonPreferredNodes[index] >= 0) {
+          Replica replica = new Replica(_partitions.get(p), replicaId, index);
+          Node node = _nodes[_existingNonPreferredNodes[index]];
+          node.addNonPreferred(replica);
+          existingNonPreferredAssignment.put(replica, node);
         }
-        if (skip) {
-          continue;
+      }
+    }
+    return existingNonPreferredAssignment;
+  }
+
+  /**
+   * Place the current replicas of one partition. Replicas on a preferred node take that slot; the
+   * others take the first free slot whose preferred node is elsewhere, unless their fault zone
+   * already has its share of the partition.
+   * @param partition the partition
+   * @param nodeStateMap the nodes currently serving the partition
+   * @param count the number of replicas per partition
+   * @param holders scratch space for the nodes given a replica of the partition
+   * @param assignedCounts replicas currently on each node, by node index, to add to
+   */
+  private void computeExistingPlacement(PartitionId partition,
+      Map<ParticipantId, State> nodeStateMap, int count, int[] holders, int[] assignedCounts) {
+    nodeStateMap.keySet().retainAll(_nodeMap.keySet());
+    Integer partitionIndex = _partitionIndex.get(partition);
+    int base = (partitionIndex != null) ? partitionIndex * count : 0;
+    int numHolders = 0;
+    for (ParticipantId nodeId : nodeStateMap.keySet()) {
+      Node node = _nodeMap.get(nodeId);
+      assignedCounts[node.index]++;
+      if (partitionIndex == null) {
+        continue;
+      }
+      // check if its in one of the preferred position
+      for (int i = base; i < base + count; i++) {
+        if (_preferredNodes[i] == node.index && _existingPreferredNodes[i] < 0) {
+          _existingPreferredNodes[i] = node.index;
+          holders[numHolders++] = node.index;
+          break;
         }
-        // check if its in one of the preferred position
-        for (int replicaId = 0; replicaId < count; replicaId++) {
-          Replica replica = new Replica(partition, replicaId);
-          if (_preferredAssignment.get(replica).id != node.id
-              && !_existingPreferredAssignment.containsKey(replica)
-              && !existingNonPreferredAssignment.containsKey(replica)) {
-            existingNonPreferredAssignment.put(replica, node);
-            node.nonPreferred.add(replica);
-            break;
-          }
+      }
+    }
+    if (partitionIndex == null) {
+      return;
+    }
+    for (ParticipantId nodeId : nodeStateMap.keySet()) {
+      Node node = _nodeMap.get(nodeId);
+      boolean skip = false;
+      for (int i = base; i < base + count; i++) {
+        if (_existingPreferredNodes[i] == node.index) {
+          skip = true;
+          break;
+        }
+      }
+      if (skip) {
+        continue;
+      }
+      if (!canAddToZone(node, holders, numHolders)) {
+        // the zone already has its share of this partition, so place the replica elsewhere
+        assignedCounts[node.index]--;
+        continue;
+      }
+      for (int i = base; i < base + count; i++) {
+        if (_preferredNodes[i] != node.index && _existingPreferredNodes[i] < 0
+            && _existingNonPreferredNodes[i] < 0) {
+          _existingNonPreferredNodes[i] = node.index;
+          holders[numHolders++] = node.index;
+          break;
         }
       }
     }
-    return existingNonPreferredAssignment;
+  }
+
+  /**
+   * Check if the fault zone of a node can take another replica of a partition
+   * @param node the node to test
+   * @param holders indices of the nodes holding a replica of the partition
+   * @param numHolders the number of holders
+   * @return true if the zone has fewer replicas of the partition than its share, or there are no
+   *         zones, false otherwise
+   */
+  private boolean canAddToZone(Node node, int[] holders, int numHolders) {
+    if (node.zoneMembers == null) {
+      return true;
+    }
+    int zoneCount = 0;
+    for (int h = 0; h < numHolders; h++) {
+      Node holder = _nodes[holders[h]];
+      if (holder != node && holder.zoneMembers == node.zoneMembers) {
+        zoneCount++;
+      }
+    }
+    return zoneCount < _maxPerZone;
   }
 
   /**
@@ -566,76 +804,175 @@ public class AutoRebalanceStrategy {
    * @return Unassigned replicas
    */
   private Set<Replica> computeOrphaned() {
-    Set<Replica> orphanedPartitions = new TreeSet<Replica>(_preferredAssignment.keySet());
-    for (Replica r : _existingPreferredAssignment.keySet()) {
-      if (orphanedPartitions.contains(r)) {
-        orphanedPartitions.remove(r);
+    int count = countStateReplicas();
+    List<Replica> orphanedPartitions = new ArrayList<Replica>();
+    for (int p = 0; p < _partitions.size(); p++) {
+      if (_duplicatePartitions[p]) {
+        continue;
+      }
+      for (int replicaId = 0; replicaId < count; replicaId++) {
+        int index = p * count + replicaId;
+        if (_existingPreferredNodes[index] < 0 && _existingNonPreferredNodes[index] < 0) {
+          orphanedPartitions.add(new Replica(_partitions.get(p), replicaId, index));
+        }
       }
     }
-    for (Replica r : _existingNonPreferredAssignment.keySet()) {
-      if (orphanedPartitions.contains(r)) {
-        orphanedPartitions.remove(r);
+    return new TreeSet<Replica>(orphanedPartitions);
+  }
+
+  /**
+   * Given a predefined set of all possible nodes, compute an assignment of replicas to
+   * nodes that evenly assigns all replicas to nodes.
+   * @param nodeNames Identifiers to all nodes, live and non-live
+   */
+  private void computePreferredPlacement(final List<String> nodeNames) {
+    final int count = countStateReplicas();
+    final int numPartitions = _partitions.size();
+    _partitionIndex = new HashMap<PartitionId, Integer>();
+    _duplicatePartitions = new boolean[numPartitions];
+    for (int p = 0; p < numPartitions; p++) {
+      Integer previous = _partitionIndex.put(_partitions.get(p), p);
+      if (previous != null) {
+        // the last occurrence of a partition wins
+        _duplicatePartitions[previous] = true;
       }
     }
+    final Map<String, Integer> nodeIndex = new HashMap<String, Integer>();
+    for (Node node : _nodes) {
+      nodeIndex.put(node.id.toString(), node.index);
+    }
 
-    return orphanedPartitions;
+    _preferredNodes = new int[numPartitions * count];
+    // only the default scheme is known to be safe to call from several threads
+    int numRanges =
+        (_placementScheme.getClass() == DefaultPlacementScheme.class) ? getNumRanges(numPartitions)
+            : 1;
+    runRanges(numPartitions, numRanges, new RangeTask() {
+      @Override
+      public void run(int start, int end, int range) {
+        for (int p = start; p < end; p++) {
+          for (int replicaId = 0; replicaId < count; replicaId++) {
+            Integer index =
+                nodeIndex.get(_placementScheme.getLocation(p, replicaId, numPartitions, count,
+                    nodeNames));
+            _preferredNodes[p * count + replicaId] = (index != null) ? index : -1;
+          }
+        }
+      }
+    });
   }
 
   /**
-   * Determine the replicas already assigned to their preferred nodes
-   * @param currentMapping Current assignment of replicas to nodes
-   * @return Assignments that conform to the preferred placement
+   * Get the node a replica would be on if all nodes were up
+   * @param replica the replica
+   * @return the preferred node, or null if the placement scheme chose an unknown node
    */
-  private Map<Replica, Node> computeExistingPreferredPlacement(
-      final Map<PartitionId, Map<ParticipantId, State>> currentMapping) {
-    Map<Replica, Node> existingPreferredAssignment = new TreeMap<Replica, Node>();
-    int count = countStateReplicas();
-    for (PartitionId partition : currentMapping.keySet()) {
-      Map<ParticipantId, State> nodeStateMap = currentMapping.get(partition);
-      nodeStateMap.keySet().retainAll(_nodeMap.keySet());
-      for (ParticipantId nodeId : nodeStateMap.keySet()) {
-        Node node = _nodeMap.get(nodeId);
-        node.currentlyAssigned = node.currentlyAssigned + 1;
-        // check if its in one of the preferred position
-        for (int replicaId = 0; replicaId < count; replicaId++) {
-          Replica replica = new Replica(partition, replicaId);
-          if (_preferredAssignment.containsKey(replica)
-              && !existingPreferredAssignment.containsKey(replica)
-              && _preferredAssignment.get(replica).id == node.id) {
-            existingPreferredAssignment.put(replica, node);
-            node.preferred.add(replica);
-            break;
+  private Node getPreferredNode(Replica replica) {
+    int index = _preferredNodes[replica.index];
+    return (index >= 0) ? _nodes[index] : null;
+  }
+
+  /**
+   * Get the number of ranges to split a number of items into
+   * @param size the number of items
+   * @return the number of ranges, 1 if the items are too few to be worth splitting
+   */
+  private int getNumRanges(int size) {
+    if (_parallelism <= 1 || size < PARALLEL_THRESHOLD) {
+      return 1;
+    }
+    return Math.min(_parallelism, size / (PARALLEL_THRESHOLD / 4));
+  }
+
+  /**
+   * Run a task over consecutive, equally sized ranges of items and wait for all of them to finish.
+   * If there is more than one range, all but the last run on the shared placement threads and the
+   * last runs on the calling thread.
+   * @param size the number of items
+   * @param numRanges the number of ranges
+   * @param task the task to run on each range
+   */
+  private static void runRanges(int size, int numRanges, final RangeTask task) {
+    if (numRanges <= 1) {
+      task.run(0, size, 0);
+      return;
+    }
+    ExecutorService pool = PlacementThreads.POOL;
+    List<Future<?>> futures = new ArrayList<Future<?>>();
+    for (int range = 0; range < numRanges - 1; range++) {
+      final int start = (int) ((long) size * range / numRanges);
+      final int end = (int) ((long) size * (range + 1) / numRanges);
+      final int current = range;
+      futures.add(pool.submit(new Runnable() {
+        @Override
+        public void run() {
+          task.run(start, end, current);
+        }
+      }));
+    }
+    RuntimeException failure = null;
+    try {
+      task.run((int) ((long) size * (numRanges - 1) / numRanges), size, numRanges - 1);
+    } catch (RuntimeException e) {
+      failure = e;
+    }
+    // wait for every range, even after a failure, so that none outlives this call
+    boolean interrupted = false;
+    for (Future<?> future : futures) {
+      while (true) {
+        try {
+          future.get();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        } catch (ExecutionException e) {
+          if (failure == null) {
+            failure =
+                (e.getCause() instanceof RuntimeException) ? (RuntimeException) e.getCause()
+                    : new IllegalStateException("Failed to compute the placement", e.getCause());
           }
+          break;
         }
       }
     }
-
-    return existingPreferredAssignment;
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    if (failure != null) {
+      throw failure;
+    }
   }
 
   /**
-   * Given a predefined set of all possible nodes, compute an assignment of replicas to
-   * nodes that evenly assigns all replicas to nodes.
-   * @param nodeNames Identifiers to all nodes, live and non-live
-   * @return Preferred assignment of replicas
+   * The threads shared by every placement, created on first use. There is one per processor and
+   * they are daemons, so they never keep the controller from exiting.
    */
-  private Map<Replica, Node> computePreferredPlacement(final List<String> nodeNames) {
-    Map<Replica, Node> preferredMapping;
-    preferredMapping = new HashMap<Replica, Node>();
-    int partitionId = 0;
-    int numReplicas = countStateReplicas();
-    int count = countStateReplicas();
-    for (PartitionId partition : _partitions) {
-      for (int replicaId = 0; replicaId < count; replicaId++) {
-        Replica replica = new Replica(partition, replicaId);
-        ParticipantId nodeName =
-            ParticipantId.from(_placementScheme.getLocation(partitionId, replicaId,
-                _partitions.size(), numReplicas, nodeNames));
-        preferredMapping.put(replica, _nodeMap.get(nodeName));
+  private static class PlacementThreads {
+    static final ExecutorService POOL = Executors.newFixedThreadPool(Runtime.getRuntime()
+        .availableProcessors(), new ThreadFactory() {
+      private final AtomicInteger _count = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread =
+            new Thread(r, "AutoRebalanceStrategy-placement-" + _count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
       }
-      partitionId = partitionId + 1;
-    }
-    return preferredMapping;
+    });
+  }
+
+  /**
+   * A unit of work over a range of items
+   */
+  private interface RangeTask {
+    /**
+     * Process items [start, end)
+     * @param start the first item
+     * @param end one past the last item
+     * @param range the index of the range
+     */
+    void run(int start, int end, int range);
   }
 
   /**
@@ -676,14 +1013,19 @@ public class AutoRebalanceStrategy {
     public int capacity;
     public boolean hasCeilingCapacity;
     private ParticipantId id;
+    private int index;
     boolean isAlive;
     private List<Replica> preferred;
     private List<Replica> nonPreferred;
     private Set<Replica> newReplicas;
+    private Map<PartitionId, Integer> partitionCounts;
+    private String zone;
+    private List<Node> zoneMembers;
 
     public Node(ParticipantId id) {
       preferred = new ArrayList<Replica>();
       nonPreferred = new ArrayList<Replica>();
+      partitionCounts = new HashMap<PartitionId, Integer>();
       newReplicas = new TreeSet<Replica>();
       currentlyAssigned = 0;
       isAlive = false;
@@ -712,17 +1054,61 @@ public class AutoRebalanceStrategy {
       if (!isAlive) {
         return false;
       }
-      for (Replica r : preferred) {
-        if (r.partition.equals(replica.partition)) {
-          return false;
-        }
+      return !hasPartition(replica.partition);
+    }
+
+    /**
+     * Check if the fault zone of this node can take another replica of a partition
+     * @param replica the replica to test
+     * @param ignore a node whose replicas do not count, such as the node the replica moves from
+     * @return true if the zone has fewer replicas of the partition than its share, or there are no
+     *         zones, false otherwise
+     */
+    public boolean canAddToZone(Replica replica, Node ignore) {
+      if (zoneMembers == null) {
+        return true;
       }
-      for (Replica r : nonPreferred) {
-        if (r.partition.equals(replica.partition)) {
-          return false;
+      int count = 0;
+      for (Node member : zoneMembers) {
+        if (member != this && member != ignore && member.hasPartition(replica.partition)) {
+          count++;
         }
       }
-      return true;
+      return count < _maxPerZone;
+    }
+
+    private boolean hasPartition(PartitionId partition) {
+      return partitionCounts.containsKey(partition);
+    }
+
+    private void addPreferred(Replica replica) {
+      preferred.add(replica);
+      addPartition(replica.partition);
+    }
+
+    private void addNonPreferred(Replica replica) {
+      nonPreferred.add(replica);
+      addPartition(replica.partition);
+    }
+
+    private void removeNonPreferred(Replica replica) {
+      if (nonPreferred.remove(replica)) {
+        removePartition(replica.partition);
+      }
+    }
+
+    private void addPartition(PartitionId partition) {
+      Integer count = partitionCounts.get(partition);
+      partitionCounts.put(partition, (count != null) ? count + 1 : 1);
+    }
+
+    private void removePartition(PartitionId partition) {
+      Integer count = partitionCounts.get(partition);
+      if (count == null || count <= 1) {
+        partitionCounts.remove(partition);
+      } else {
+        partitionCounts.put(partition, count - 1);
+      }
     }
 
     /**
@@ -736,7 +1122,7 @@ public class AutoRebalanceStrategy {
       hasCeilingCapacity = true;
       capacity++;
       currentlyAssigned++;
-      nonPreferred.add(replica);
+      addNonPreferred(replica);
       newReplicas.add(replica);
     }
 
@@ -756,36 +1142,45 @@ public class AutoRebalanceStrategy {
   class Replica implements Comparable<Replica> {
     private PartitionId partition;
     private int replicaId; // this is a partition-relative id
+    private int index; // position in the replica arrays
     private String format;
 
-    public Replica(PartitionId partition, int replicaId) {
+    public Replica(PartitionId partition, int replicaId, int index) {
       this.partition = partition;
       this.replicaId = replicaId;
-      this.format = this.partition.toString() + "|" + this.replicaId;
+      this.index = index;
+    }
+
+    // built on first use since most replicas are never compared or hashed
+    private String format() {
+      if (format == null) {
+        format = this.partition.toString() + "|" + this.replicaId;
+      }
+      return format;
     }
 
     @Override
     public String toString() {
-      return format;
+      return format();
     }
 
     @Override
     public boolean equals(Object that) {
       if (that instanceof Replica) {
-        return this.format.equals(((Replica) that).format);
+        return this.format().equals(((Replica) that).format());
       }
       return false;
     }
 
     @Override
     public int hashCode() {
-      return this.format.hashCode();
+      return this.format().hashCode();
     }
 
     @Override
     public int compareTo(Replica that) {
       if (that instanceof Replica) {
-        return this.format.compareTo(that.format);
+        return this.format().compareTo(that.format());
       }
       return -1;
     }
@@ -20,11 +20,14 @@ package org.apache.helix.controller.strategy;
  */
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
 
 import org.apache.helix.HelixException;
 import org.apache.helix.ZNRecord;
@@ -97,9 +100,230 @@ public class DefaultTwoStateStrategy {
       return idealState;
     }
 
-    Map<String, Object> result = calculateInitialIdealState(instanceNames, partitions, replicas);
+    if (!hasDistinctNames(instanceNames)) {
+      // the assignment maps are keyed by name, so instances whose names only differ in case are
+      // handled by the map based calculation
+      Map<String, Object> result =
+          calculateInitialIdealState(instanceNames, partitions, replicas);
+      return convertToZNRecord(result, resourceName, primaryStateValue, secondaryStateValue);
+    }
+    return calculateInitialIdealStateRecord(instanceNames, partitions, replicas, resourceName,
+        primaryStateValue, secondaryStateValue);
+  }
 
-    return convertToZNRecord(result, resourceName, primaryStateValue, secondaryStateValue);
+  /**
+   * Produce the same ideal state as calculateInitialIdealState followed by convertToZNRecord,
+   * working on arrays of instance indexes instead of nested maps of partition lists. Besides the
+   * returned record this takes O(partitions * (replicas + 3)) memory and
+   * O(partitions * replicas^2 + instances^2) time, plus the moves that even out the secondaries of
+   * each instance.
+   * @param instanceNames sorted list of storage node instances with distinct names
+   * @param partitions number of partitions, at least the number of instances
+   * @param replicas the number of secondaries per primary partition
+   * @param resourceName the resource
+   * @param primaryStateValue primary state value: e.g. "MASTER" or "LEADER"
+   * @param secondaryStateValue secondary state value: e.g. "SLAVE" or "STANDBY"
+   * @return a ZNRecord that contain the idealstate info
+   */
+  private static ZNRecord calculateInitialIdealStateRecord(List<String> instanceNames,
+      int partitions, int replicas, String resourceName, String primaryStateValue,
+      String secondaryStateValue) {
+    int numInstances = instanceNames.size();
+    Random r = new Random(54321);
+
+    // 1. the primary of primaryPartitionAssignment[i] is on instance i % numInstances
+    int[] primaryPartitionAssignment = new int[partitions];
+    for (int i = 0; i < partitions; i++) {
+      primaryPartitionAssignment[i] = i;
+    }
+    ShufflingTwoStateStrategy.shuffle(primaryPartitionAssignment, new Random(r.nextInt()));
+
+    // the instances holding the secondaries of each partition
+    int[] secondaryInstances = new int[partitions * replicas];
+    int[] numSecondaries = new int[partitions];
+    if (replicas > 0) {
+      // 2. the instance holding the first secondary of each entry of primaryPartitionAssignment
+      int[] firstSecondaryInstances = new int[partitions];
+      for (int i = 0; i < numInstances; i++) {
+        int[] otherInstances = new int[numInstances - 1];
+        for (int j = 0, k = 0; j < numInstances; j++) {
+          if (j != i) {
+            otherInstances[k++] = j;
+          }
+        }
+        int numPrimaries = (partitions - i + numInstances - 1) / numInstances;
+        int[] secondaryAssignment = new int[numPrimaries];
+        for (int j = 0; j < numPrimaries; j++) {
+          secondaryAssignment[j] = j;
+        }
+        ShufflingTwoStateStrategy.shuffle(secondaryAssignment, new Random(r.nextInt()));
+        ShufflingTwoStateStrategy.shuffle(otherInstances, new Random(instanceNames.get(i)
+            .hashCode()));
+        for (int j = 0; j < numPrimaries; j++) {
+          firstSecondaryInstances[i + j * numInstances] =
+              otherInstances[secondaryAssignment[j] % otherInstances.length];
+        }
+      }
+
+      // 3. and 4. for one primary instance at a time, add the other secondaries and even them out
+      SecondaryList[] secondaryLists = new SecondaryList[numInstances];
+      for (int i = 0; i < numInstances; i++) {
+        secondaryLists[i] = new SecondaryList();
+      }
+      int[] numFirstSecondaries = new int[numInstances];
+      for (int i = 0; i < numInstances; i++) {
+        for (SecondaryList secondaryList : secondaryLists) {
+          secondaryList._size = 0;
+        }
+        for (int j = i; j < partitions; j += numInstances) {
+          int partitionId = primaryPartitionAssignment[j];
+          secondaryLists[firstSecondaryInstances[j]].add(partitionId);
+          secondaryInstances[partitionId * replicas + numSecondaries[partitionId]++] =
+              firstSecondaryInstances[j];
+        }
+        for (int j = 0; j < numInstances; j++) {
+          numFirstSecondaries[j] = secondaryLists[j]._size;
+        }
+        for (int replicaOrder = 1; replicaOrder < replicas; replicaOrder++) {
+          int offset = replicaOrder - 1;
+          int numTargets = numInstances - 2;
+          for (int source = 0; source < numInstances; source++) {
+            if (source == i) {
+              continue;
+            }
+            // the position of the source among the other instances of i, with the target
+            // instances being the other instances of i besides the source
+            int sourceIndex = (source < i) ? source : source - 1;
+            int instanceIndex = (sourceIndex == numInstances - 2) ? sourceIndex - 1 : sourceIndex;
+            SecondaryList sourceList = secondaryLists[source];
+            for (int j = 0; j < numFirstSecondaries[source]; j++) {
+              int targetIndex = (j + offset + instanceIndex) % numTargets;
+              int target = (targetIndex < sourceIndex) ? targetIndex : targetIndex + 1;
+              target = (target < i) ? target : target + 1;
+              int partitionId = sourceList._partitions[j];
+              secondaryLists[target].add(partitionId);
+              secondaryInstances[partitionId * replicas + numSecondaries[partitionId]++] = target;
+            }
+          }
+        }
+        evenOutSecondaries(secondaryLists, i, secondaryInstances, replicas);
+      }
+    }
+
+    // 5. write the ideal state, with the primary at the front of each preference list
+    ZNRecord idealState = new ZNRecord(resourceName);
+    idealState.setSimpleField(IdealStateProperty.NUM_PARTITIONS.toString(),
+        String.valueOf(partitions));
+    for (int i = 0; i < partitions; i++) {
+      int partitionId = primaryPartitionAssignment[i];
+      Map<String, String> partitionAssignmentMap = new TreeMap<String, String>();
+      partitionAssignmentMap.put(instanceNames.get(i % numInstances), primaryStateValue);
+      for (int j = partitionId * replicas; j < (partitionId + 1) * replicas; j++) {
+        partitionAssignmentMap.put(instanceNames.get(secondaryInstances[j]),
+            secondaryStateValue);
+      }
+      List<String> partitionAssignmentPriorityList = new ArrayList<String>(replicas + 1);
+      String primaryInstance = "";
+      for (Map.Entry<String, String> entry : partitionAssignmentMap.entrySet()) {
+        if (entry.getValue().equalsIgnoreCase(primaryStateValue) && primaryInstance.equals("")) {
+          primaryInstance = entry.getKey();
+        } else {
+          partitionAssignmentPriorityList.add(entry.getKey());
+        }
+      }
+      Collections.shuffle(partitionAssignmentPriorityList);
+      partitionAssignmentPriorityList.add(0, primaryInstance);
+      String partitionName = resourceName + "_" + partitionId;
+      idealState.setMapField(partitionName, partitionAssignmentMap);
+      idealState.setListField(partitionName, partitionAssignmentPriorityList);
+    }
+    idealState.setSimpleField(IdealStateProperty.REPLICAS.toString(), String.valueOf(replicas));
+    return idealState;
+  }
+
+  /**
+   * Array form of migrateSecondaryAssignMapToNewInstances without new instances: move secondaries
+   * from the instance with the most of them to the instance with the least until the counts
+   * differ by at most one
+   * @param secondaryLists the secondaries of one primary instance's partitions, by instance
+   * @param primaryInstance the primary instance, whose list is not used
+   * @param secondaryInstances the instances holding the secondaries of each partition, updated
+   *          with the moves
+   * @param replicas the number of secondaries per partition
+   */
+  private static void evenOutSecondaries(SecondaryList[] secondaryLists, int primaryInstance,
+      int[] secondaryInstances, int replicas) {
+    while (true) {
+      int minInstance = -1, maxInstance = -1;
+      for (int i = 0; i < secondaryLists.length; i++) {
+        if (i == primaryInstance) {
+          continue;
+        }
+        if (minInstance < 0 || secondaryLists[minInstance]._size > secondaryLists[i]._size) {
+          minInstance = i;
+        }
+        if (maxInstance < 0 || secondaryLists[maxInstance]._size < secondaryLists[i]._size) {
+          maxInstance = i;
+        }
+      }
+      SecondaryList minAssignment = secondaryLists[minInstance];
+      SecondaryList maxAssignment = secondaryLists[maxInstance];
+      if (maxAssignment._size - minAssignment._size <= 1) {
+        return;
+      }
+      // find a partition that does not have a secondary on the min instance yet
+      int indexToMove = 0;
+      while (holds(secondaryInstances, maxAssignment._partitions[indexToMove], replicas,
+          minInstance)) {
+        indexToMove++;
+      }
+      int partitionId = maxAssignment.remove(indexToMove);
+      minAssignment.add(partitionId);
+      for (int j = partitionId * replicas;; j++) {
+        if (secondaryInstances[j] == maxInstance) {
+          secondaryInstances[j] = minInstance;
+          break;
+        }
+      }
+    }
+  }
+
+  private static boolean holds(int[] secondaryInstances, int partitionId, int replicas,
+      int instance) {
+    for (int j = partitionId * replicas; j < (partitionId + 1) * replicas; j++) {
+      if (secondaryInstances[j] == instance) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean hasDistinctNames(List<String> instanceNames) {
+    Set<String> names = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+    names.addAll(instanceNames);
+    return names.size() == instanceNames.size();
+  }
+
+  /**
+   * The partitions with a secondary on one instance, in the order they were added
+   */
+  private static class SecondaryList {
+    private int[] _partitions = new int[16];
+    private int _size;
+
+    void add(int partitionId) {
+      if (_size == _partitions.length) {
+        _partitions = Arrays.copyOf(_partitions, _size * 2);
+      }
+      _partitions[_size++] = partitionId;
+    }
+
+    int remove(int index) {
+      int partitionId = _partitions[index];
+      System.arraycopy(_partitions, index + 1, _partitions, index, _size - index - 1);
+      _size--;
+      return partitionId;
+    }
   }
 
   public static ZNRecord calculateIdealStateBatch(List<List<String>> instanceBatches,
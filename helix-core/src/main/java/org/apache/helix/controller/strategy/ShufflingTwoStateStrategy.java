@@ -19,7 +19,6 @@ package org.apache.helix.controller.strategy;
  * under the License.
  */
 
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -63,6 +62,11 @@ public class ShufflingTwoStateStrategy {
         "MASTER", "SLAVE");
   }
 
+  /**
+   * Calculate an ideal state for a two-state configuration. Partitions are placed from a shuffled
+   * array of partition ids, so besides the returned record this takes O(partitions) memory and
+   * O(partitions * replicas^2) time.
+   */
   public static ZNRecord calculateIdealState(List<String> instanceNames, int partitions,
       int replicas, String resourceName, long randomSeed, String primaryValue, String secondaryValue) {
     if (instanceNames.size() <= replicas) {
@@ -70,32 +74,36 @@ public class ShufflingTwoStateStrategy {
     }
 
     Collections.sort(instanceNames);
+    String[] instances = instanceNames.toArray(new String[instanceNames.size()]);
 
     ZNRecord result = new ZNRecord(resourceName);
 
-    List<Integer> partitionList = new ArrayList<Integer>(partitions);
+    int[] partitionList = new int[partitions];
     for (int i = 0; i < partitions; i++) {
-      partitionList.add(new Integer(i));
+      partitionList[i] = i;
     }
     Random rand = new Random(randomSeed);
     // Shuffle the partition list
-    Collections.shuffle(partitionList, rand);
+    shuffle(partitionList, rand);
 
-    for (int i = 0; i < partitionList.size(); i++) {
-      int partitionId = partitionList.get(i);
+    String[] assignedInstances = new String[replicas + 1];
+    for (int i = 0; i < partitionList.length; i++) {
+      int partitionId = partitionList[i];
       Map<String, String> partitionAssignment = new TreeMap<String, String>();
-      int primaryNode = i % instanceNames.size();
+      int primaryNode = i % instances.length;
       // the first in the list is the node that contains the primary
-      partitionAssignment.put(instanceNames.get(primaryNode), primaryValue);
+      assignedInstances[0] = instances[primaryNode];
+      partitionAssignment.put(assignedInstances[0], primaryValue);
 
       // for the jth replica, we put it on (primaryNode + j) % nodes-th
       // node
       for (int j = 1; j <= replicas; j++) {
-        int index = (primaryNode + j * partitionList.size()) % instanceNames.size();
-        while (partitionAssignment.keySet().contains(instanceNames.get(index))) {
-          index = (index + 1) % instanceNames.size();
+        int index = (primaryNode + j * partitionList.length) % instances.length;
+        while (contains(assignedInstances, j, instances[index])) {
+          index = (index + 1) % instances.length;
         }
-        partitionAssignment.put(instanceNames.get(index), secondaryValue);
+        assignedInstances[j] = instances[index];
+        partitionAssignment.put(assignedInstances[j], secondaryValue);
       }
       String partitionName = resourceName + "_" + partitionId;
       result.setMapField(partitionName, partitionAssignment);
@@ -110,4 +118,28 @@ public class ShufflingTwoStateStrategy {
     // seed is a constant, so that the shuffle always give same result
     return calculateIdealState(instanceNames, partitions, replicas, resourceName, randomSeed);
   }
+
+  /**
+   * Shuffle an array the way {@link Collections#shuffle(List, Random)} shuffles a list, so that
+   * the same random source gives the same order
+   * @param array the values to shuffle in place
+   * @param random the source of randomness
+   */
+  static void shuffle(int[] array, Random random) {
+    for (int i = array.length; i > 1; i--) {
+      int j = random.nextInt(i);
+      int value = array[i - 1];
+      array[i - 1] = array[j];
+      array[j] = value;
+    }
+  }
+
+  private static boolean contains(String[] instances, int length, String instance) {
+    for (int i = 0; i < length; i++) {
+      if (instances[i].equals(instance)) {
+        return true;
+      }
+    }
+    return false;
+  }
 }
@@ -0,0 +1,203 @@
+package org.apache.helix.controller.strategy;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Stateless placement of partition replicas by weighted rendezvous hashing, in the manner of the
+ * straw2 buckets of CRUSH. Every instance draws a pseudo-random straw for every partition, scaled
+ * by its weight, and the longest straws win. The draw of an instance depends only on its own name
+ * and weight and on the partition name, so anyone who knows the instances, such as a spectator,
+ * computes the same preference lists without talking to the controller. Without fault zones,
+ * adding or removing an instance only moves the replicas it gains or loses.<br/>
+ * <br/>
+ * Instances may belong to a fault zone. Replicas of a partition then go to different zones, as
+ * long as there are zones left, by first drawing a zone, weighted by the total weight of its
+ * instances, and then an instance within it; placing a replica costs one draw per zone and one per
+ * instance of the chosen zone rather than one per instance. Adding or removing an instance then
+ * also changes the weight of its zone, and with it the zone's draw for every partition. In the
+ * partitions where the zone moves up or down among the zones, or fills up in a different round
+ * when there are more replicas than zones, replicas can move between instances that did not
+ * change, in any zone. The more the zone's weight changes relative to the other zones, the more
+ * partitions are affected. Other partitions only move the replicas the instance gains or loses.
+ */
+public class StrawPlacementStrategy {
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final long FNV_BASIS_64 = 0xCBF29CE484222325L;
+  private static final long FNV_PRIME_64 = 1099511628211L;
+
+  private final String[] _zones;
+  private final long[] _zoneHashes;
+  private final double[] _zoneWeights;
+  private final String[][] _instances;
+  private final long[][] _instanceHashes;
+  private final double[][] _instanceWeights;
+
+  /**
+   * Initialize the strategy
+   * @param weights the weight of each instance that can hold replicas; instances with no positive
+   *          weight get none
+   * @param zones the fault zone of each instance, or null if there are none; instances that are
+   *          not in the map share one zone
+   */
+  public StrawPlacementStrategy(Map<String, Long> weights, Map<String, String> zones) {
+    Map<String, List<String>> zoneMembers = new TreeMap<String, List<String>>();
+    for (String instance : weights.keySet()) {
+      if (weights.get(instance) == null || weights.get(instance) <= 0) {
+        continue;
+      }
+      String zone = (zones != null) ? zones.get(instance) : null;
+      if (zone == null) {
+        zone = "";
+      }
+      if (!zoneMembers.containsKey(zone)) {
+        zoneMembers.put(zone, new ArrayList<String>());
+      }
+      zoneMembers.get(zone).add(instance);
+    }
+    int numZones = zoneMembers.size();
+    _zones = new String[numZones];
+    _zoneHashes = new long[numZones];
+    _zoneWeights = new double[numZones];
+    _instances = new String[numZones][];
+    _instanceHashes = new long[numZones][];
+    _instanceWeights = new double[numZones][];
+    int z = 0;
+    for (Map.Entry<String, List<String>> e : zoneMembers.entrySet()) {
+      List<String> members = e.getValue();
+      Collections.sort(members);
+      _zones[z] = e.getKey();
+      _zoneHashes[z] = hash(e.getKey());
+      _instances[z] = members.toArray(new String[members.size()]);
+      _instanceHashes[z] = new long[members.size()];
+      _instanceWeights[z] = new double[members.size()];
+      for (int i = 0; i < members.size(); i++) {
+        _instanceHashes[z][i] = hash(members.get(i));
+        _instanceWeights[z][i] = weights.get(members.get(i));
+        _zoneWeights[z] += _instanceWeights[z][i];
+      }
+      z++;
+    }
+  }
+
+  /**
+   * Compute where the replicas of a partition go
+   * @param partition the partition name
+   * @param numReplicas the number of replicas
+   * @return the instances that hold the replicas, in order of preference; fewer than numReplicas
+   *         if there are not enough instances
+   */
+  public List<String> computePreferenceList(String partition, int numReplicas) {
+    long partitionHash = hash(partition);
+    int numZones = _zones.length;
+    double[] zoneStraws = new double[numZones];
+    boolean[] zoneUsed = new boolean[numZones];
+    boolean[] zoneFull = new boolean[numZones];
+    int[] zoneTaken = new int[numZones];
+    double[][] instanceStraws = new double[numZones][];
+    boolean[][] instanceTaken = new boolean[numZones][];
+    for (int z = 0; z < numZones; z++) {
+      zoneStraws[z] = straw(partitionHash, _zoneHashes[z], _zoneWeights[z]);
+    }
+
+    List<String> preferenceList = new ArrayList<String>(numReplicas);
+    int numUsed = 0;
+    int numFull = 0;
+    while (preferenceList.size() < numReplicas && numFull < numZones) {
+      if (numUsed + numFull >= numZones) {
+        // every zone has a replica, so start another round over the zones with room left
+        for (int z = 0; z < numZones; z++) {
+          zoneUsed[z] = false;
+        }
+        numUsed = 0;
+      }
+      int zone = -1;
+      for (int z = 0; z < numZones; z++) {
+        if (!zoneUsed[z] && !zoneFull[z] && (zone < 0 || zoneStraws[z] > zoneStraws[zone])) {
+          zone = z;
+        }
+      }
+      if (instanceStraws[zone] == null) {
+        // straws are drawn only in the zones that are visited
+        int size = _instances[zone].length;
+        instanceStraws[zone] = new double[size];
+        instanceTaken[zone] = new boolean[size];
+        for (int i = 0; i < size; i++) {
+          instanceStraws[zone][i] =
+              straw(partitionHash, _instanceHashes[zone][i], _instanceWeights[zone][i]);
+        }
+      }
+      int best = -1;
+      for (int i = 0; i < _instances[zone].length; i++) {
+        if (!instanceTaken[zone][i]
+            && (best < 0 || instanceStraws[zone][i] > instanceStraws[zone][best])) {
+          best = i;
+        }
+      }
+      instanceTaken[zone][best] = true;
+      preferenceList.add(_instances[zone][best]);
+      zoneTaken[zone]++;
+      if (zoneTaken[zone] == _instances[zone].length) {
+        zoneFull[zone] = true;
+        numFull++;
+      } else {
+        zoneUsed[zone] = true;
+        numUsed++;
+      }
+    }
+    return preferenceList;
+  }
+
+  /**
+   * Get the number of fault zones the instances are in
+   * @return number of zones
+   */
+  public int getNumZones() {
+    return _zones.length;
+  }
+
+  /**
+   * Draw the straw of an item for a partition. The logarithm of a uniform draw in (0, 1], divided
+   * by the weight, makes the chance of an item having the longest straw proportional to its weight.
+   */
+  private static double straw(long partitionHash, long itemHash, double weight) {
+    long z = partitionHash ^ (itemHash * 0x9E3779B97F4A7C15L);
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    z = z ^ (z >>> 31);
+    double u = ((z >>> 11) + 1) / (double) (1L << 53);
+    return Math.log(u) / weight;
+  }
+
+  private static long hash(String key) {
+    long hash = FNV_BASIS_64;
+    for (byte b : key.getBytes(UTF8)) {
+      hash ^= 0xFF & b;
+      hash *= FNV_PRIME_64;
+    }
+    return hash;
+  }
+}
@@ -0,0 +1,598 @@
+package org.apache.helix.controller.strategy;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.helix.ZNRecord;
+import org.apache.helix.api.Cluster;
+import org.apache.helix.api.Participant;
+import org.apache.helix.api.Resource;
+import org.apache.helix.api.State;
+import org.apache.helix.api.config.UserConfig;
+import org.apache.helix.api.id.ParticipantId;
+import org.apache.helix.api.id.PartitionId;
+import org.apache.helix.api.id.ResourceId;
+import org.apache.helix.controller.strategy.knapsack.KnapsackSolver;
+import org.apache.helix.controller.strategy.knapsack.KnapsackSolverImpl;
+import org.apache.helix.model.InstanceConfig;
+import org.apache.log4j.Logger;
+
+/**
+ * Places the replicas of a resource according to their weight rather than their number. Each
+ * partition carries a weight from the resource config, such as its size in bytes or the QPS it
+ * serves, and each instance declares how much weight it can hold in its instance config. Every
+ * live instance is filled up to its share of the total weight, in proportion to its capacity, by
+ * solving a knapsack problem over the replicas that still need a home; replicas that the solver
+ * leaves over, or that it had no time for, go to the least utilised instance with room for them.
+ * If the replicas do not fit at all, no placement is returned so that the caller can fall back to
+ * {@link AutoRebalanceStrategy}.
+ */
+public class WeightedPlacementStrategy {
+  private static final Logger LOG = Logger.getLogger(WeightedPlacementStrategy.class);
+
+  /**
+   * Resource config map field of partition name to partition weight
+   */
+  public static final String PARTITION_WEIGHT = "PARTITION_WEIGHT";
+
+  /**
+   * Resource config field with the weight of partitions that are not in {@link #PARTITION_WEIGHT}
+   */
+  public static final String DEFAULT_PARTITION_WEIGHT = "DEFAULT_PARTITION_WEIGHT";
+
+  /**
+   * Resource config field limiting the time spent in the knapsack solver, in milliseconds
+   */
+  public static final String PLACEMENT_TIME_BUDGET = "PLACEMENT_TIME_BUDGET";
+
+  /**
+   * Instance config field with the total partition weight the instance can hold
+   */
+  public static final String WEIGHT_CAPACITY = "WEIGHT_CAPACITY";
+
+  /**
+   * Time spent in the knapsack solver if the resource does not say otherwise
+   */
+  public static final long DEFAULT_TIME_BUDGET = 200L;
+
+  // Most replicas the solver chooses from for one instance, so that each search stays short
+  private static final int MAX_SOLVER_ITEMS = 128;
+
+  private final ResourceId _resourceId;
+  private final List<PartitionId> _partitions;
+  private final LinkedHashMap<State, Integer> _states;
+  private final int _maximumPerNode;
+  private final Map<PartitionId, Long> _weights;
+  private final long _timeBudget;
+  private boolean _timeBudgetExceeded;
+
+  /**
+   * Initialize the strategy
+   * @param resourceId the resource to place
+   * @param partitions the partitions of the resource
+   * @param states the number of replicas of each state, in order of priority
+   * @param maximumPerNode the maximum number of replicas an instance can hold
+   * @param weights the weight of each partition
+   * @param timeBudget the time the knapsack solver may take, in milliseconds
+   */
+  public WeightedPlacementStrategy(ResourceId resourceId, List<PartitionId> partitions,
+      LinkedHashMap<State, Integer> states, int maximumPerNode, Map<PartitionId, Long> weights,
+      long timeBudget) {
+    _resourceId = resourceId;
+    _partitions = partitions;
+    _states = states;
+    _maximumPerNode = (maximumPerNode > 0) ? maximumPerNode : Integer.MAX_VALUE;
+    _weights = weights;
+    _timeBudget = timeBudget;
+    _timeBudgetExceeded = false;
+  }
+
+  /**
+   * Get the partition weights that a resource declares in its config
+   * @param cluster current snapshot of the cluster
+   * @param resourceId the resource
+   * @param partitions the partitions of the resource
+   * @return map of partition to weight, or null if the resource does not use weighted placement
+   */
+  public static Map<PartitionId, Long> getPartitionWeights(Cluster cluster, ResourceId resourceId,
+      Collection<PartitionId> partitions) {
+    Resource resource = cluster.getResource(resourceId);
+    UserConfig userConfig = (resource != null) ? resource.getUserConfig() : null;
+    if (userConfig == null) {
+      return null;
+    }
+    Map<String, String> weightMap = userConfig.getMapField(PARTITION_WEIGHT);
+    String defaultWeight = userConfig.getSimpleField(DEFAULT_PARTITION_WEIGHT);
+    if (weightMap == null && defaultWeight == null) {
+      return null;
+    }
+    long fallback = userConfig.getLongField(DEFAULT_PARTITION_WEIGHT, 1L);
+    Map<PartitionId, Long> weights = new HashMap<PartitionId, Long>();
+    for (PartitionId partition : partitions) {
+      long weight = fallback;
+      String weightStr = (weightMap != null) ? weightMap.get(partition.stringify()) : null;
+      if (weightStr != null) {
+        try {
+          weight = Long.parseLong(weightStr);
+        } catch (NumberFormatException e) {
+          LOG.warn("Invalid weight " + weightStr + " for partition " + partition);
+        }
+      }
+      weights.put(partition, Math.max(weight, 0L));
+    }
+    return weights;
+  }
+
+  /**
+   * Get the time that the placement of a resource may spend in the knapsack solver
+   * @param cluster current snapshot of the cluster
+   * @param resourceId the resource
+   * @return the time budget in milliseconds
+   */
+  public static long getTimeBudget(Cluster cluster, ResourceId resourceId) {
+    Resource resource = cluster.getResource(resourceId);
+    UserConfig userConfig = (resource != null) ? resource.getUserConfig() : null;
+    if (userConfig == null) {
+      return DEFAULT_TIME_BUDGET;
+    }
+    return userConfig.getLongField(PLACEMENT_TIME_BUDGET, DEFAULT_TIME_BUDGET);
+  }
+
+  /**
+   * Get the weight capacities that instances declare in their configs
+   * @param cluster current snapshot of the cluster
+   * @param participants the instances to look at
+   * @return map of instance to capacity, only for the instances that declare one
+   */
+  public static Map<ParticipantId, Long> getCapacities(Cluster cluster,
+      Collection<ParticipantId> participants) {
+    Map<ParticipantId, Long> capacities = new HashMap<ParticipantId, Long>();
+    for (ParticipantId participantId : participants) {
+      Participant participant = cluster.getParticipantMap().get(participantId);
+      InstanceConfig instanceConfig =
+          (participant != null) ? participant.getInstanceConfig() : null;
+      if (instanceConfig != null) {
+        long capacity = instanceConfig.getRecord().getLongField(WEIGHT_CAPACITY, -1L);
+        if (capacity >= 0) {
+          capacities.put(participantId, capacity);
+        }
+      }
+    }
+    return capacities;
+  }
+
+  /**
+   * Check if the last placement ran out of time in the knapsack solver, and placed the rest of the
+   * replicas greedily
+   * @return true if the time budget was exceeded, false otherwise
+   */
+  public boolean isTimeBudgetExceeded() {
+    return _timeBudgetExceeded;
+  }
+
+  /**
+   * Determine a preference list and mapping of partitions to nodes for all replicas
+   * @param liveNodes the current list of live participants
+   * @param capacities the declared weight capacity of each participant; participants that do not
+   *          declare one get the average of those that do
+   * @param currentMapping the current assignment of replicas to nodes
+   * @return the preference list and replica mapping, or null if the replicas do not fit
+   */
+  public ZNRecord typedComputePartitionAssignment(final List<ParticipantId> liveNodes,
+      final Map<ParticipantId, Long> capacities,
+      final Map<PartitionId, Map<ParticipantId, State>> currentMapping) {
+    ZNRecord znRecord = new ZNRecord(_resourceId.stringify());
+    _timeBudgetExceeded = false;
+    if (liveNodes.isEmpty()) {
+      return znRecord;
+    }
+    List<ParticipantId> nodes = new ArrayList<ParticipantId>(liveNodes);
+    Collections.sort(nodes);
+    Map<ParticipantId, Integer> nodeIndex = new HashMap<ParticipantId, Integer>();
+    for (int i = 0; i < nodes.size(); i++) {
+      nodeIndex.put(nodes.get(i), i);
+    }
+    List<State> stateList = new ArrayList<State>();
+    for (Map.Entry<State, Integer> e : _states.entrySet()) {
+      for (int i = 0; i < e.getValue(); i++) {
+        stateList.add(e.getKey());
+      }
+    }
+    int numReplicas = Math.min(stateList.size(), nodes.size());
+    int numPartitions = _partitions.size();
+    final long[] weight = new long[numPartitions];
+    long totalWeight = 0L;
+    long maxWeight = 0L;
+    for (int p = 0; p < numPartitions; p++) {
+      weight[p] = weight(_partitions.get(p));
+      totalWeight += weight[p] * numReplicas;
+      maxWeight = Math.max(maxWeight, weight[p]);
+    }
+    Placement placement = new Placement(nodes, capacities, totalWeight, maxWeight);
+    if (totalWeight > placement._totalCapacity
+        || (long) numPartitions * numReplicas > (long) nodes.size() * _maximumPerNode) {
+      LOG.warn("Replicas of " + _resourceId + " with total weight " + totalWeight
+          + " do not fit on instances with total capacity " + placement._totalCapacity);
+      return null;
+    }
+
+    // partitions are tracked by index, heaviest first where the order matters
+    List<Integer> byWeight = new ArrayList<Integer>();
+    for (int p = 0; p < numPartitions; p++) {
+      byWeight.add(p);
+    }
+    Collections.sort(byWeight, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer p1, Integer p2) {
+        long w1 = weight[p1];
+        long w2 = weight[p2];
+        return (w1 != w2) ? (w1 > w2 ? -1 : 1) : p1 - p2;
+      }
+    });
+    int[][] hosts = new int[numPartitions][numReplicas];
+    int[] numHosts = new int[numPartitions];
+
+    // an existing placement that is complete and within one replica of every share is kept as it
+    // is; otherwise instances over their share give up replicas, of different partitions where
+    // possible so that each one can move to a single new instance
+    boolean complete = keepCurrent(currentMapping, nodeIndex, weight, placement, hosts, numHosts);
+    if (!complete || !placement.isBalanced()) {
+      boolean[] shed = new boolean[numPartitions];
+      for (int i = 0; i < nodes.size(); i++) {
+        for (int pass = 0; pass < 2; pass++) {
+          for (int p : byWeight) {
+            long excess = placement._load[i] - placement._target[i];
+            if (excess > 0 && weight[p] <= excess && (pass > 0 || !shed[p])
+                && remove(hosts[p], numHosts[p], i)) {
+              numHosts[p]--;
+              placement.remove(i, weight[p]);
+              shed[p] = true;
+            }
+          }
+        }
+      }
+    }
+
+    // fill every instance up to its share with the heaviest replicas that still need a home;
+    // light replicas are easy to fit in afterwards
+    long deadline = System.currentTimeMillis() + _timeBudget;
+    List<Integer> order = placement.byRemainingShare();
+    for (int n = 0; n < order.size(); n++) {
+      int i = order.get(n);
+      long remaining = placement._target[i] - placement._load[i];
+      int remainingCount = _maximumPerNode - placement._count[i];
+      if (remaining <= 0 || remainingCount <= 0) {
+        continue;
+      }
+      List<Integer> candidates = new ArrayList<Integer>();
+      for (int p : byWeight) {
+        if (numHosts[p] < numReplicas && !contains(hosts[p], numHosts[p], i) && weight[p] > 0
+            && weight[p] <= remaining) {
+          candidates.add(p);
+          if (candidates.size() == MAX_SOLVER_ITEMS) {
+            break;
+          }
+        }
+      }
+      if (candidates.isEmpty()) {
+        continue;
+      }
+      long timeLeft = deadline - System.currentTimeMillis();
+      if (timeLeft <= 0) {
+        _timeBudgetExceeded = true;
+        break;
+      }
+      // leave time for the instances that come after this one
+      long timeLimit = Math.max(1L, timeLeft / (order.size() - n));
+      for (int p : solve(candidates, weight, remaining, remainingCount, timeLimit)) {
+        placement.add(i, weight[p]);
+        hosts[p][numHosts[p]++] = i;
+      }
+    }
+
+    // place what is left, heaviest first, on the least utilised instance with room for it
+    for (int p : byWeight) {
+      while (numHosts[p] < numReplicas) {
+        int best = -1;
+        double bestUtilisation = Double.MAX_VALUE;
+        for (int i = 0; i < nodes.size(); i++) {
+          if (!contains(hosts[p], numHosts[p], i)
+              && placement.fits(i, weight[p], placement._capacity[i])) {
+            double utilisation = placement.utilisation(i, weight[p]);
+            if (best < 0 || utilisation < bestUtilisation) {
+              bestUtilisation = utilisation;
+              best = i;
+            }
+          }
+        }
+        if (best < 0) {
+          LOG.warn("No instance has room for a replica of " + _partitions.get(p)
+              + " with weight " + weight[p]);
+          return null;
+        }
+        placement.add(best, weight[p]);
+        hosts[p][numHosts[p]++] = best;
+      }
+    }
+
+    // order each preference list so that the weight in each state is spread by capacity too
+    Map<State, long[]> stateLoad = new HashMap<State, long[]>();
+    for (State state : _states.keySet()) {
+      stateLoad.put(state, new long[nodes.size()]);
+    }
+    for (int p : byWeight) {
+      PartitionId partition = _partitions.get(p);
+      Map<ParticipantId, State> current = currentMapping.get(partition);
+      List<String> preferenceList = new ArrayList<String>();
+      Map<String, String> stateMap = new TreeMap<String, String>();
+      for (int r = 0; r < numReplicas; r++) {
+        State state = stateList.get(r);
+        long[] load = stateLoad.get(state);
+        int best = r;
+        double bestUtilisation = Double.MAX_VALUE;
+        for (int h = r; h < numReplicas; h++) {
+          int i = hosts[p][h];
+          double utilisation =
+              (placement._capacity[i] > 0) ? (double) (load[i] + weight[p])
+                  / placement._capacity[i] : Double.MAX_VALUE;
+          if (utilisation < bestUtilisation
+              || (utilisation == bestUtilisation && current != null && state.equals(current
+                  .get(nodes.get(i))))) {
+            bestUtilisation = utilisation;
+            best = h;
+          }
+        }
+        // move the chosen host to position r
+        int i = hosts[p][best];
+        hosts[p][best] = hosts[p][r];
+        hosts[p][r] = i;
+        load[i] += weight[p];
+        String participantName = nodes.get(i).stringify();
+        preferenceList.add(participantName);
+        stateMap.put(participantName, state.toString());
+      }
+      znRecord.setListField(partition.stringify(), preferenceList);
+      znRecord.setMapField(partition.stringify(), stateMap);
+    }
+    if (_timeBudgetExceeded) {
+      LOG.info("Ran out of time placing " + _resourceId + ", placed the rest greedily");
+    }
+    return znRecord;
+  }
+
+  /**
+   * Choose the replicas that best fill an instance
+   * @param candidates indexes of the partitions that can go on the instance
+   * @param weight the weight of each partition
+   * @param capacity the weight the instance can still take
+   * @param count the number of replicas the instance can still take
+   * @param timeLimit time the solver may take, in milliseconds
+   * @return indexes of the chosen partitions
+   */
+  private List<Integer> solve(List<Integer> candidates, long[] weight, long capacity, int count,
+      long timeLimit) {
+    ArrayList<Long> profits = new ArrayList<Long>();
+    ArrayList<Long> weightDimension = new ArrayList<Long>();
+    ArrayList<Long> countDimension = new ArrayList<Long>();
+    for (int p : candidates) {
+      profits.add(weight[p]);
+      weightDimension.add(weight[p]);
+      countDimension.add(1L);
+    }
+    ArrayList<ArrayList<Long>> weights = new ArrayList<ArrayList<Long>>();
+    ArrayList<Long> capacities = new ArrayList<Long>();
+    weights.add(weightDimension);
+    capacities.add(capacity);
+    if (count < candidates.size()) {
+      weights.add(countDimension);
+      capacities.add((long) count);
+    }
+    KnapsackSolver solver =
+        new KnapsackSolverImpl(
+            KnapsackSolver.SolverType.KNAPSACK_MULTIDIMENSION_BRANCH_AND_BOUND_SOLVER,
+            _resourceId.stringify());
+    solver.setTimeLimit(timeLimit);
+    solver.init(profits, weights, capacities);
+    solver.solve();
+    if (solver.isTimeLimitReached()) {
+      _timeBudgetExceeded = true;
+    }
+    List<Integer> chosen = new ArrayList<Integer>();
+    for (int item = 0; item < candidates.size(); item++) {
+      if (solver.bestSolutionContains(item)) {
+        chosen.add(candidates.get(item));
+      }
+    }
+    return chosen;
+  }
+
+  /**
+   * Assign replicas to the live instances that already hold them, as far as their capacity allows
+   * @return true if every replica was kept, false otherwise
+   */
+  private boolean keepCurrent(Map<PartitionId, Map<ParticipantId, State>> currentMapping,
+      Map<ParticipantId, Integer> nodeIndex, long[] weight, Placement placement, int[][] hosts,
+      int[] numHosts) {
+    boolean complete = true;
+    for (int p = 0; p < weight.length; p++) {
+      Map<ParticipantId, State> current = currentMapping.get(_partitions.get(p));
+      if (current != null) {
+        for (ParticipantId participantId : sortByState(current)) {
+          Integer i = nodeIndex.get(participantId);
+          if (i != null && numHosts[p] < hosts[p].length
+              && placement.fits(i, weight[p], placement._capacity[i])) {
+            placement.add(i, weight[p]);
+            hosts[p][numHosts[p]++] = i;
+          }
+        }
+      }
+      complete = complete && numHosts[p] == hosts[p].length;
+    }
+    return complete;
+  }
+
+  private static boolean contains(int[] hosts, int numHosts, int i) {
+    for (int h = 0; h < numHosts; h++) {
+      if (hosts[h] == i) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Remove an instance from the hosts of a partition, moving the last host into its place
+   * @return true if the instance was a host, false otherwise
+   */
+  private static boolean remove(int[] hosts, int numHosts, int i) {
+    for (int h = 0; h < numHosts; h++) {
+      if (hosts[h] == i) {
+        hosts[h] = hosts[numHosts - 1];
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private long weight(PartitionId partition) {
+    Long weight = _weights.get(partition);
+    return (weight != null) ? weight : 1L;
+  }
+
+  /**
+   * Order the holders of a partition so that the holders of higher priority states come first
+   */
+  private List<ParticipantId> sortByState(final Map<ParticipantId, State> current) {
+    final List<State> priority = new ArrayList<State>(_states.keySet());
+    List<ParticipantId> sorted = new ArrayList<ParticipantId>(current.keySet());
+    Collections.sort(sorted, new Comparator<ParticipantId>() {
+      @Override
+      public int compare(ParticipantId p1, ParticipantId p2) {
+        int diff = priority.indexOf(current.get(p1)) - priority.indexOf(current.get(p2));
+        return (diff != 0) ? diff : p1.compareTo(p2);
+      }
+    });
+    return sorted;
+  }
+
+  /**
+   * Capacity, share and running load of every live instance
+   */
+  private class Placement {
+    private final long[] _capacity;
+    private final long[] _target;
+    private final long[] _load;
+    private final int[] _count;
+    private final long _totalCapacity;
+    private final long _maxWeight;
+
+    Placement(List<ParticipantId> nodes, Map<ParticipantId, Long> capacities, long totalWeight,
+        long maxWeight) {
+      int n = nodes.size();
+      _capacity = new long[n];
+      _target = new long[n];
+      _load = new long[n];
+      _count = new int[n];
+
+      // instances without a declared capacity count as average ones
+      long declared = 0L;
+      int numDeclared = 0;
+      for (ParticipantId participantId : nodes) {
+        Long capacity = capacities.get(participantId);
+        if (capacity != null) {
+          declared += capacity;
+          numDeclared++;
+        }
+      }
+      long average = (numDeclared > 0) ? declared / numDeclared : totalWeight;
+      long total = 0L;
+      for (int i = 0; i < n; i++) {
+        Long capacity = capacities.get(nodes.get(i));
+        _capacity[i] = (capacity != null) ? capacity : average;
+        total += _capacity[i];
+      }
+      _totalCapacity = total;
+      _maxWeight = maxWeight;
+      for (int i = 0; i < n; i++) {
+        double share = (total > 0) ? (double) totalWeight * _capacity[i] / total : 0.0;
+        _target[i] = Math.min(_capacity[i], (long) Math.ceil(share));
+      }
+    }
+
+    boolean fits(int i, long weight, long limit) {
+      return _count[i] < _maximumPerNode && _load[i] + weight <= limit;
+    }
+
+    /**
+     * Check if every instance is within one replica of its share. Leftover replicas can push an
+     * instance past its share, so this is as close as a placement is expected to get.
+     */
+    boolean isBalanced() {
+      for (int i = 0; i < _load.length; i++) {
+        if (Math.abs(_load[i] - _target[i]) > _maxWeight) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    void remove(int i, long weight) {
+      _load[i] -= weight;
+      _count[i]--;
+    }
+
+    void add(int i, long weight) {
+      _load[i] += weight;
+      _count[i]++;
+    }
+
+    double utilisation(int i, long weight) {
+      return (_capacity[i] > 0) ? (double) (_load[i] + weight) / _capacity[i] : Double.MAX_VALUE;
+    }
+
+    /**
+     * Get the instances in order of the share they have left to fill, largest first
+     */
+    List<Integer> byRemainingShare() {
+      List<Integer> order = new ArrayList<Integer>();
+      for (int i = 0; i < _load.length; i++) {
+        order.add(i);
+      }
+      Collections.sort(order, new Comparator<Integer>() {
+        @Override
+        public int compare(Integer i1, Integer i2) {
+          long r1 = _target[i1] - _load[i1];
+          long r2 = _target[i2] - _load[i2];
+          return (r1 != r2) ? (r1 > r2 ? -1 : 1) : i1 - i2;
+        }
+      });
+      return order;
+    }
+  }
+}
@@ -26,6 +26,8 @@ package org.apache.helix.controller.strategy.knapsack;
  */
 public abstract class AbstractBaseKnapsackSolver implements BaseKnapsackSolver {
   private final String _solverName;
+  private long _timeLimitMs;
+  private boolean _timeLimitReached;
 
   /**
    * Initialize the solver
@@ -33,6 +35,8 @@ public abstract class AbstractBaseKnapsackSolver implements BaseKnapsackSolver {
    */
   public AbstractBaseKnapsackSolver(final String solverName) {
     _solverName = solverName;
+    _timeLimitMs = 0L;
+    _timeLimitReached = false;
   }
 
   @Override
@@ -48,4 +52,34 @@ public abstract class AbstractBaseKnapsackSolver implements BaseKnapsackSolver {
     return _solverName;
   }
 
+  @Override
+  public void setTimeLimit(long timeLimitMs) {
+    _timeLimitMs = timeLimitMs;
+  }
+
+  @Override
+  public boolean isTimeLimitReached() {
+    return _timeLimitReached;
+  }
+
+  /**
+   * Get the point in time at which a search starting now has to stop
+   * @return the deadline in milliseconds, or Long.MAX_VALUE if there is no limit
+   */
+  protected long getDeadline() {
+    _timeLimitReached = false;
+    return (_timeLimitMs > 0) ? System.currentTimeMillis() + _timeLimitMs : Long.MAX_VALUE;
+  }
+
+  /**
+   * Check if a deadline has passed, and remember it if it has
+   * @param deadline the deadline returned by {@link #getDeadline()}
+   * @return true if the search has to stop, false otherwise
+   */
+  protected boolean isPastDeadline(long deadline) {
+    if (deadline != Long.MAX_VALUE && System.currentTimeMillis() >= deadline) {
+      _timeLimitReached = true;
+    }
+    return _timeLimitReached;
+  }
 }
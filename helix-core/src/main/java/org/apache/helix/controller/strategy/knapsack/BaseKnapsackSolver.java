@@ -65,4 +65,16 @@ public interface BaseKnapsackSolver {
    * @return solver name
    */
   String getName();
+
+  /**
+   * Limit the time spent searching; once it runs out, the best solution found so far is kept
+   * @param timeLimitMs the limit in milliseconds, or 0 for no limit
+   */
+  void setTimeLimit(long timeLimitMs);
+
+  /**
+   * Check if the last search was cut short by the time limit
+   * @return true if the search stopped early, false otherwise
+   */
+  boolean isTimeLimitReached();
 }
@@ -109,6 +109,7 @@ public class KnapsackGenericSolverImpl extends AbstractBaseKnapsackSolver {
 
   @Override
   public long solve() {
+    final long deadline = getDeadline();
     _bestSolutionProfit = 0L;
     PriorityQueue<KnapsackSearchNode> searchQueue =
         new PriorityQueue<KnapsackSearchNode>(11,
@@ -129,6 +130,10 @@ public class KnapsackGenericSolverImpl extends AbstractBaseKnapsackSolver {
 
     KnapsackSearchNode currentNode = rootNode;
     while (!searchQueue.isEmpty() && searchQueue.peek().profitUpperBound() > _bestSolutionProfit) {
+      if (isPastDeadline(deadline)) {
+        // every solution recorded so far is feasible, so stop with the best of them
+        break;
+      }
       KnapsackSearchNode node = searchQueue.poll();
 
       // TODO: check if equality is enough
@@ -76,4 +76,16 @@ public interface KnapsackSolver {
    * @param useReduction true to enable, false to disable
    */
   void setUseReduction(boolean useReduction);
+
+  /**
+   * Limit the time spent searching; once it runs out, the best solution found so far is kept
+   * @param timeLimitMs the limit in milliseconds, or 0 for no limit
+   */
+  void setTimeLimit(long timeLimitMs);
+
+  /**
+   * Check if the last call to {@link #solve()} was cut short by the time limit
+   * @return true if the solution may not be optimal, false otherwise
+   */
+  boolean isTimeLimitReached();
 }
@@ -119,6 +119,16 @@ public class KnapsackSolverImpl implements KnapsackSolver {
     _useReduction = useReduction;
   }
 
+  @Override
+  public void setTimeLimit(long timeLimitMs) {
+    _solver.setTimeLimit(timeLimitMs);
+  }
+
+  @Override
+  public boolean isTimeLimitReached() {
+    return !_isProblemSolved && _solver.isTimeLimitReached();
+  }
+
   private int reduceProblem(int numItems) {
     _knownValue.clear();
     _bestSolution.clear();
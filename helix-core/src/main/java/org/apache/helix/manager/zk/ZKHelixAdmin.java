@@ -29,6 +29,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -55,12 +56,16 @@ import org.apache.helix.ZNRecord;
 import org.apache.helix.api.State;
 import org.apache.helix.api.id.ConstraintId;
 import org.apache.helix.api.id.MessageId;
+import org.apache.helix.api.id.ParticipantId;
 import org.apache.helix.api.id.PartitionId;
 import org.apache.helix.api.id.ResourceId;
 import org.apache.helix.api.id.SessionId;
 import org.apache.helix.api.id.StateModelDefId;
 import org.apache.helix.api.id.StateModelFactoryId;
+import org.apache.helix.controller.rebalancer.FullAutoRebalancer;
+import org.apache.helix.controller.strategy.AutoRebalanceStrategy;
 import org.apache.helix.controller.strategy.DefaultTwoStateStrategy;
+import org.apache.helix.model.ClusterConfiguration;
 import org.apache.helix.model.ClusterConstraints;
 import org.apache.helix.model.ClusterConstraints.ConstraintType;
 import org.apache.helix.model.ConstraintItem;
@@ -925,9 +930,34 @@ public class ZKHelixAdmin implements HelixAdmin {
     }
     if (idealState.getRebalanceMode() == RebalanceMode.SEMI_AUTO
         || idealState.getRebalanceMode() == RebalanceMode.CUSTOMIZED) {
-      ZNRecord newIdealState =
-          DefaultTwoStateStrategy.calculateIdealState(instanceNames, partitions, replica,
-              keyPrefix, masterStateValue, slaveStateValue);
+      Map<ParticipantId, String> faultZones = getFaultZones(clusterName, instanceNames);
+      ZNRecord newIdealState;
+      if (faultZones != null) {
+        // instances declare fault zones, so spread the replicas of each partition across them
+        List<String> partitionNames = new ArrayList<String>();
+        for (int i = 0; i < partitions; i++) {
+          partitionNames.add(keyPrefix + "_" + i);
+        }
+        LinkedHashMap<String, Integer> states = new LinkedHashMap<String, Integer>();
+        if (masterStateValue.equals(slaveStateValue)) {
+          states.put(masterStateValue, replica + 1);
+        } else {
+          states.put(masterStateValue, 1);
+          if (replica > 0) {
+            states.put(slaveStateValue, replica);
+          }
+        }
+        AutoRebalanceStrategy strategy =
+            new AutoRebalanceStrategy(resourceName, partitionNames, states);
+        strategy.setFaultZones(faultZones);
+        newIdealState =
+            strategy.computePartitionAssignment(instanceNames,
+                new HashMap<String, Map<String, String>>(), instanceNames);
+      } else {
+        newIdealState =
+            DefaultTwoStateStrategy.calculateIdealState(instanceNames, partitions, replica,
+                keyPrefix, masterStateValue, slaveStateValue);
+      }
 
       // for now keep mapField in SEMI_AUTO mode and remove listField in CUSTOMIZED mode
       if (idealState.getRebalanceMode() == RebalanceMode.SEMI_AUTO) {
@@ -947,6 +977,31 @@ public class ZKHelixAdmin implements HelixAdmin {
     setResourceIdealState(clusterName, resourceName, idealState);
   }
 
+  /**
+   * Get the fault zones that instances declare in their config domain
+   * @param clusterName the cluster the instances are in
+   * @param instanceNames the instances to look up
+   * @return map of instance to fault zone, or null if none of them declares one
+   */
+  private Map<ParticipantId, String> getFaultZones(String clusterName, List<String> instanceNames) {
+    HelixDataAccessor accessor =
+        new ZKHelixDataAccessor(clusterName, new ZkBaseDataAccessor<ZNRecord>(_zkClient));
+    Builder keyBuilder = accessor.keyBuilder();
+    ClusterConfiguration clusterConfig = accessor.getProperty(keyBuilder.clusterConfig());
+    String zoneType =
+        (clusterConfig != null) ? clusterConfig.getRecord().getSimpleField(
+            FullAutoRebalancer.FAULT_ZONE_TYPE) : null;
+    Map<ParticipantId, String> faultZones = new HashMap<ParticipantId, String>();
+    for (String instanceName : instanceNames) {
+      InstanceConfig instanceConfig = accessor.getProperty(keyBuilder.instanceConfig(instanceName));
+      String zone = (instanceConfig != null) ? instanceConfig.getFaultZone(zoneType) : null;
+      if (zone != null) {
+        faultZones.put(ParticipantId.from(instanceName), zone);
+      }
+    }
+    return faultZones.isEmpty() ? null : faultZones;
+  }
+
   @Override
   public void addIdealState(String clusterName, String resourceName, String idealStateFile)
       throws IOException {
@@ -22,22 +22,39 @@ package org.apache.helix.messaging;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.helix.model.Message;
+import org.apache.helix.util.HashedTimerWheel;
 import org.apache.log4j.Logger;
 
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
 public abstract class AsyncCallback {
 
   private static Logger _logger = Logger.getLogger(AsyncCallback.class);
+
+  // every callback shares one timer thread and wheel rather than owning a java.util.Timer
+  private static final long TIMEOUT_TICK_MS = 10;
+  private static final int TIMEOUT_BUCKETS = 1024;
+  private static final HashedTimerWheel<TimeoutEntry> TIMEOUT_WHEEL =
+      new HashedTimerWheel<TimeoutEntry>(TIMEOUT_TICK_MS, TIMEOUT_BUCKETS,
+          System.currentTimeMillis());
+  private static ScheduledExecutorService _timeoutExecutor = null;
+
   long _startTimeStamp = 0;
   protected long _timeout = -1;
-  Timer _timer = null;
   List<Message> _messagesSent;
   protected final List<Message> _messageReplied = new ArrayList<Message>();
   boolean _timedOut = false;
   boolean _isInterrupted = false;
+  private final TimeoutEntry _timeoutEntry = new TimeoutEntry(this);
+  private final SettableFuture<List<Message>> _replyFuture = SettableFuture.create();
 
   /**
    * Enforcing timeout to be set
@@ -70,21 +87,37 @@ public abstract class AsyncCallback {
     _isInterrupted = true;
   }
 
-  public synchronized final void onReply(Message message) {
-    _logger.info("OnReply msg " + message.getMessageId());
-    if (!isDone()) {
-      _messageReplied.add(message);
-      try {
-        onReplyMessage(message);
-      } catch (Exception e) {
-        _logger.error(e);
+  /**
+   * Get a future that completes with the replies once {@link #isDone()} holds, or fails with a
+   * {@link TimeoutException} if the timeout expires first. Replies that arrive before then are
+   * delivered one at a time to {@link #onReplyMessage(Message)}.
+   * @return future of the replies
+   */
+  public ListenableFuture<List<Message>> getReplyFuture() {
+    return _replyFuture;
+  }
+
+  public final void onReply(Message message) {
+    List<Message> replies = null;
+    synchronized (this) {
+      _logger.info("OnReply msg " + message.getMessageId());
+      if (!isDone()) {
+        _messageReplied.add(message);
+        try {
+          onReplyMessage(message);
+        } catch (Exception e) {
+          _logger.error(e);
+        }
       }
-    }
-    if (isDone()) {
-      if (_timer != null) {
-        _timer.cancel();
+      if (isDone()) {
+        TIMEOUT_WHEEL.cancel(_timeoutEntry);
+        replies = new ArrayList<Message>(_messageReplied);
+        notifyAll();
       }
-      notifyAll();
+    }
+    // complete outside the lock so that listeners cannot deadlock with repliers
+    if (replies != null) {
+      _replyFuture.set(replies);
     }
   }
 
@@ -105,12 +138,17 @@ public abstract class AsyncCallback {
   }
 
   final void startTimer() {
-    if (_timer == null && _timeout > 0) {
-      if (_startTimeStamp == 0) {
-        _startTimeStamp = new Date().getTime();
+    if (_timeout > 0) {
+      synchronized (this) {
+        if (_timedOut || isDone()) {
+          return;
+        }
+        if (_startTimeStamp == 0) {
+          _startTimeStamp = new Date().getTime();
+        }
+        TIMEOUT_WHEEL.schedule(_timeoutEntry, _startTimeStamp + _timeout);
       }
-      _timer = new Timer(true);
-      _timer.schedule(new TimeoutTask(this), _timeout);
+      ensureTimeoutExecutor();
     }
   }
 
@@ -118,29 +156,56 @@ public abstract class AsyncCallback {
 
   public abstract void onReplyMessage(Message message);
 
-  class TimeoutTask extends TimerTask {
-    AsyncCallback _callback;
-
-    public TimeoutTask(AsyncCallback asyncCallback) {
-      _callback = asyncCallback;
-    }
-
-    @Override
-    public void run() {
+  private void expire() {
+    int numReplies;
+    synchronized (this) {
+      if (isDone() || _timedOut) {
+        return;
+      }
+      _timedOut = true;
+      numReplies = _messageReplied.size();
+      notifyAll();
       try {
-        synchronized (_callback) {
-          _callback._timedOut = true;
-          _callback.notifyAll();
-          _callback.onTimeOut();
-        }
+        onTimeOut();
       } catch (Exception e) {
         _logger.error(e);
-      } finally {
-        if (_timer != null) {
-          _timer.cancel();
-        }
       }
     }
+    _replyFuture.setException(new TimeoutException("Received " + numReplies
+        + " replies before timing out after " + _timeout + " ms"));
+  }
+
+  private static synchronized void ensureTimeoutExecutor() {
+    if (_timeoutExecutor != null) {
+      return;
+    }
+    _timeoutExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "AsyncCallback timeout");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    _timeoutExecutor.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        for (TimeoutEntry entry : TIMEOUT_WHEEL.expire(System.currentTimeMillis())) {
+          try {
+            entry._callback.expire();
+          } catch (Exception e) {
+            _logger.error("Failed to time out callback", e);
+          }
+        }
+      }
+    }, TIMEOUT_TICK_MS, TIMEOUT_TICK_MS, TimeUnit.MILLISECONDS);
   }
 
+  private static class TimeoutEntry extends HashedTimerWheel.Entry {
+    final AsyncCallback _callback;
+
+    TimeoutEntry(AsyncCallback callback) {
+      _callback = callback;
+    }
+  }
 }
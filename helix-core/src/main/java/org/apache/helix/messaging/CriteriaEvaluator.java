@@ -19,7 +19,10 @@ package org.apache.helix.messaging;
  * under the License.
  */
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -31,6 +34,9 @@ import org.apache.helix.HelixDataAccessor;
 import org.apache.helix.HelixManager;
 import org.apache.helix.HelixProperty;
 import org.apache.helix.PropertyKey;
+import org.apache.helix.ZNRecord;
+import org.apache.helix.messaging.CriteriaIndex.IndexedRecord;
+import org.apache.helix.messaging.CriteriaIndex.Snapshot;
 import org.apache.log4j.Logger;
 
 import com.google.common.base.Strings;
@@ -40,6 +46,23 @@ import com.google.common.collect.Sets;
 public class CriteriaEvaluator {
   private static Logger logger = Logger.getLogger(CriteriaEvaluator.class);
 
+  private final CriteriaIndex _index;
+
+  /**
+   * Create an evaluator that reads the persisted data for every evaluation
+   */
+  public CriteriaEvaluator() {
+    this(null);
+  }
+
+  /**
+   * Create an evaluator that serves data sources from an index where possible
+   * @param index index of the persisted data, or null to always read it
+   */
+  public CriteriaEvaluator(CriteriaIndex index) {
+    _index = index;
+  }
+
   /**
    * Examine persisted data to match wildcards in {@link Criteria}
    * @param recipientCriteria Criteria specifying the message destinations
@@ -47,107 +70,236 @@ public class CriteriaEvaluator {
    * @return map of evaluated criteria
    */
   public List<Map<String, String>> evaluateCriteria(Criteria recipientCriteria, HelixManager manager) {
-    // get the data
-    HelixDataAccessor accessor = manager.getHelixDataAccessor();
-    PropertyKey.Builder keyBuilder = accessor.keyBuilder();
-
-    List<HelixProperty> properties;
     DataSource dataSource = recipientCriteria.getDataSource();
-    if (dataSource == DataSource.EXTERNALVIEW) {
-      properties = accessor.getChildValues(keyBuilder.externalViews());
-    } else if (dataSource == DataSource.IDEALSTATES) {
-      properties = accessor.getChildValues(keyBuilder.idealStates());
-    } else if (dataSource == DataSource.LIVEINSTANCES) {
-      properties = accessor.getChildValues(keyBuilder.liveInstances());
-    } else if (dataSource == DataSource.INSTANCES) {
-      properties = accessor.getChildValues(keyBuilder.instances());
+    Snapshot snapshot = null;
+    Set<String> liveParticipants = null;
+    if (_index != null) {
+      snapshot = _index.getSnapshot(manager, dataSource);
+      if (dataSource == DataSource.LIVEINSTANCES) {
+        // the live instances were just read or fed; do not read them twice
+        liveParticipants = (snapshot != null) ? snapshot.getIds() : null;
+      } else {
+        liveParticipants = _index.getLiveInstances(manager);
+      }
     } else {
+      // get the data
+      HelixDataAccessor accessor = manager.getHelixDataAccessor();
+      List<HelixProperty> properties = readProperties(accessor, dataSource);
+      if (properties != null) {
+        snapshot =
+            Snapshot.build(HelixProperty.convertToList(properties), null,
+                System.currentTimeMillis());
+      }
+      liveParticipants =
+          accessor.getChildValuesMap(accessor.keyBuilder().liveInstances()).keySet();
+    }
+    if (snapshot == null || liveParticipants == null) {
       return Lists.newArrayList();
     }
 
-    // flatten the data
-    List<ZNRecordRow> allRows = ZNRecordRow.flatten(HelixProperty.convertToList(properties));
-
-    // save the matches
-    Set<String> liveParticipants = accessor.getChildValuesMap(keyBuilder.liveInstances()).keySet();
-    List<ZNRecordRow> result = Lists.newArrayList();
-    for (ZNRecordRow row : allRows) {
-      // The participant instance name is stored in the return value of either getRecordId() or getMapSubKey()
-      if (rowMatches(recipientCriteria, row) &&
-          (liveParticipants.contains(row.getRecordId()) || liveParticipants.contains(row.getMapSubKey()))) {
-        result.add(row);
-      }
-    }
+    // compile the criteria once for the whole evaluation
+    Matcher instanceMatcher = Matcher.compile(recipientCriteria.getInstanceName());
+    Matcher resourceMatcher = Matcher.compile(recipientCriteria.getResource());
+    Matcher partitionMatcher = Matcher.compile(recipientCriteria.getPartition());
+    Matcher stateMatcher = Matcher.compile(recipientCriteria.getPartitionState());
+    boolean selectInstance = !Strings.isNullOrEmpty(recipientCriteria.getInstanceName());
+    boolean selectResource = !Strings.isNullOrEmpty(recipientCriteria.getResource());
+    boolean selectPartition = !Strings.isNullOrEmpty(recipientCriteria.getPartition());
+    boolean selectState = !Strings.isNullOrEmpty(recipientCriteria.getPartitionState());
+
+    // an exact resource name is a direct lookup
+    List<IndexedRecord> records =
+        resourceMatcher.isExact() ? snapshot.getRecords(resourceMatcher.getValue()) : snapshot
+            .getRecords();
 
     Set<Map<String, String>> selected = Sets.newHashSet();
+    for (IndexedRecord indexedRecord : records) {
+      ZNRecord record = indexedRecord._record;
+      String recordId = record.getId();
+      if (!resourceMatcher.matches(recordId)) {
+        continue;
+      }
+      // The participant instance name is stored in either the record id or a map subkey
+      boolean recordIdLive = liveParticipants.contains(recordId);
+      boolean instanceMatchesRecordId = instanceMatcher.matches(recordId);
+      String resourceName = selectResource ? recordId : "";
+
+      // rows flattened from map fields
+      Collection<String> mapKeys =
+          partitionMatcher.isExact() ? indexedRecord.getMapKeys(partitionMatcher.getValue())
+              : record.getMapFields().keySet();
+      for (String mapKey : mapKeys) {
+        if (!partitionMatcher.matches(mapKey)) {
+          continue;
+        }
+        Map<String, String> mapField = record.getMapField(mapKey);
+        if (mapField == null) {
+          continue;
+        }
+        for (Map.Entry<String, String> entry : mapField.entrySet()) {
+          String mapSubKey = entry.getKey();
+          String mapValue = Strings.nullToEmpty(entry.getValue());
+          if ((instanceMatchesRecordId || instanceMatcher.matches(mapSubKey))
+              && stateMatcher.matches(mapValue)
+              && (recordIdLive || liveParticipants.contains(mapSubKey))) {
+            selected.add(toResultRow(
+                selectInstance ? (!Strings.isNullOrEmpty(mapSubKey) ? mapSubKey : recordId) : "",
+                resourceName, selectPartition ? mapKey : "", selectState ? mapValue : ""));
+          }
+        }
+      }
 
-    // deduplicate and convert the matches into the required format
-    for (ZNRecordRow row : result) {
-      Map<String, String> resultRow = new HashMap<String, String>();
-      resultRow.put("instanceName", !recipientCriteria.getInstanceName().equals("") ?
-          (!Strings.isNullOrEmpty(row.getMapSubKey()) ? row.getMapSubKey() : row.getRecordId()) :
-          "");
-      resultRow.put("resourceName", !recipientCriteria.getResource().equals("") ? row.getRecordId()
-          : "");
-      resultRow.put("partitionName", !recipientCriteria.getPartition().equals("") ? row.getMapKey()
-          : "");
-      resultRow.put("partitionState",
-          !recipientCriteria.getPartitionState().equals("") ? row.getMapValue() : "");
-      selected.add(resultRow);
+      // rows flattened from simple and list fields have no map key, subkey, or value
+      if (indexedRecord._hasFieldRows && recordIdLive && partitionMatcher.matches("")
+          && stateMatcher.matches("") && instanceMatchesRecordId) {
+        selected.add(toResultRow(selectInstance ? recordId : "", resourceName, "", ""));
+      }
     }
     logger.info("Query returned " + selected.size() + " rows");
     return Lists.newArrayList(selected);
   }
 
   /**
-   * Check if a given row matches the specified criteria
-   * @param criteria the criteria
-   * @param row row of currently persisted data
-   * @return true if it matches, false otherwise
+   * Read the current records of a data source
+   * @param accessor accessor for the persisted data
+   * @param dataSource the data source
+   * @return list of properties, or null if the data source is not supported
    */
-  private boolean rowMatches(Criteria criteria, ZNRecordRow row) {
-    String instanceName = normalizePattern(criteria.getInstanceName());
-    String resourceName = normalizePattern(criteria.getResource());
-    String partitionName = normalizePattern(criteria.getPartition());
-    String partitionState = normalizePattern(criteria.getPartitionState());
-    return (stringMatches(instanceName, Strings.nullToEmpty(row.getMapSubKey())) ||
-            stringMatches(instanceName, Strings.nullToEmpty(row.getRecordId())))
-        && stringMatches(resourceName, Strings.nullToEmpty(row.getRecordId()))
-        && stringMatches(partitionName, Strings.nullToEmpty(row.getMapKey()))
-        && stringMatches(partitionState, Strings.nullToEmpty(row.getMapValue()));
+  static List<HelixProperty> readProperties(HelixDataAccessor accessor, DataSource dataSource) {
+    PropertyKey.Builder keyBuilder = accessor.keyBuilder();
+    if (dataSource == DataSource.EXTERNALVIEW) {
+      return accessor.getChildValues(keyBuilder.externalViews());
+    } else if (dataSource == DataSource.IDEALSTATES) {
+      return accessor.getChildValues(keyBuilder.idealStates());
+    } else if (dataSource == DataSource.LIVEINSTANCES) {
+      return accessor.getChildValues(keyBuilder.liveInstances());
+    } else if (dataSource == DataSource.INSTANCES) {
+      return accessor.getChildValues(keyBuilder.instances());
+    }
+    return null;
+  }
+
+  private static Map<String, String> toResultRow(String instanceName, String resourceName,
+      String partitionName, String partitionState) {
+    Map<String, String> resultRow = new HashMap<String, String>();
+    resultRow.put("instanceName", instanceName);
+    resultRow.put("resourceName", resourceName);
+    resultRow.put("partitionName", partitionName);
+    resultRow.put("partitionState", partitionState);
+    return resultRow;
   }
 
   /**
-   * Convert an SQL like expression into a Java matches expression
-   * @param pattern SQL like match pattern (i.e. contains '%'s and '_'s)
-   * @return Java matches expression (i.e. contains ".*?"s and '.'s)
+   * A precompiled criteria field. Fields without wildcards are compared directly, and fields that
+   * match everything skip comparison altogether.
    */
-  private String normalizePattern(String pattern) {
-    if (pattern == null || pattern.equals("") || pattern.equals("*")) {
-      pattern = "%";
+  static class Matcher {
+    private static final Matcher ALL = new Matcher(null, null);
+    private static final int PATTERN_CACHE_SIZE = 1024;
+    private static final Map<String, Pattern> PATTERN_CACHE = Collections
+        .synchronizedMap(new LinkedHashMap<String, Pattern>(16, 0.75f, true) {
+          private static final long serialVersionUID = 1L;
+
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, Pattern> eldest) {
+            return size() > PATTERN_CACHE_SIZE;
+          }
+        });
+
+    private final String _value;
+    private final Pattern _pattern;
+
+    private Matcher(String value, Pattern pattern) {
+      _value = value;
+      _pattern = pattern;
     }
-    StringBuilder builder = new StringBuilder();
-    for (int i = 0; i < pattern.length(); i++) {
-      char ch = pattern.charAt(i);
-      if ("[](){}.*+?$^|#\\".indexOf(ch) != -1) {
-        // escape any reserved characters
-        builder.append("\\");
+
+    /**
+     * Compile an SQL like expression (i.e. contains '%'s and '_'s)
+     * @param expression the criteria field
+     * @return Matcher
+     */
+    static Matcher compile(String expression) {
+      if (expression == null || expression.equals("") || expression.equals("*")) {
+        return ALL;
+      }
+      boolean matchesAll = true;
+      boolean hasWildcard = false;
+      for (int i = 0; i < expression.length(); i++) {
+        char ch = expression.charAt(i);
+        if (ch == '_') {
+          hasWildcard = true;
+          matchesAll = false;
+        } else if (ch == '%') {
+          hasWildcard = true;
+        } else {
+          matchesAll = false;
+        }
+      }
+      if (matchesAll) {
+        return ALL;
+      }
+      if (!hasWildcard) {
+        return new Matcher(expression, null);
+      }
+      Pattern pattern = PATTERN_CACHE.get(expression);
+      if (pattern == null) {
+        pattern =
+            Pattern.compile(normalizePattern(expression), Pattern.CASE_INSENSITIVE
+                | Pattern.DOTALL);
+        PATTERN_CACHE.put(expression, pattern);
       }
-      // append the character
-      builder.append(ch);
+      return new Matcher(null, pattern);
     }
-    pattern = builder.toString().toLowerCase().replace("_", ".").replace("%", ".*?");
-    return pattern;
-  }
 
-  /**
-   * Check if a string matches a pattern
-   * @param pattern pattern allowed by Java regex matching
-   * @param value the string to check
-   * @return true if they match, false otherwise
-   */
-  private boolean stringMatches(String pattern, String value) {
-    Pattern p = Pattern.compile(pattern, Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
-    return p.matcher(value).matches();
+    /**
+     * Check if a string matches
+     * @param value the string to check
+     * @return true if it matches, false otherwise
+     */
+    boolean matches(String value) {
+      if (_pattern != null) {
+        return _pattern.matcher(value).matches();
+      }
+      if (_value != null) {
+        return _value.equalsIgnoreCase(value);
+      }
+      return true;
+    }
+
+    /**
+     * Check if this matcher only accepts a single value, ignoring case
+     * @return true if exact, false otherwise
+     */
+    boolean isExact() {
+      return _value != null;
+    }
+
+    /**
+     * Get the value that an exact matcher accepts
+     * @return the value, or null if not exact
+     */
+    String getValue() {
+      return _value;
+    }
+
+    /**
+     * Convert an SQL like expression into a Java matches expression
+     * @param pattern SQL like match pattern (i.e. contains '%'s and '_'s)
+     * @return Java matches expression (i.e. contains ".*?"s and '.'s)
+     */
+    private static String normalizePattern(String pattern) {
+      StringBuilder builder = new StringBuilder();
+      for (int i = 0; i < pattern.length(); i++) {
+        char ch = pattern.charAt(i);
+        if ("[](){}.*+?$^|#\\".indexOf(ch) != -1) {
+          // escape any reserved characters
+          builder.append("\\");
+        }
+        // append the character
+        builder.append(ch);
+      }
+      return builder.toString().toLowerCase().replace("_", ".").replace("%", ".*?");
+    }
   }
 }
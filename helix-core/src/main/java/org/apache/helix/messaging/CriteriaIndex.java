@@ -0,0 +1,338 @@
+package org.apache.helix.messaging;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.helix.Criteria.DataSource;
+import org.apache.helix.ExternalViewChangeListener;
+import org.apache.helix.HelixManager;
+import org.apache.helix.HelixProperty;
+import org.apache.helix.IdealStateChangeListener;
+import org.apache.helix.LiveInstanceChangeListener;
+import org.apache.helix.NotificationContext;
+import org.apache.helix.ZNRecord;
+import org.apache.helix.model.ExternalView;
+import org.apache.helix.model.IdealState;
+import org.apache.helix.model.LiveInstance;
+
+/**
+ * An in-memory index of the data that {@link CriteriaEvaluator} queries. The index registers no
+ * listeners of its own. Ideal states and external views are read when they are first queried and
+ * read again once their entry is older than a time-to-live. Live instances are read on every query,
+ * so messages are never addressed using an older list of live instances than without the index.
+ * Records that did not change between reads keep their existing index entries.
+ * <p>
+ * A data source can also be fed by change notifications, e.g. by a
+ * {@link org.apache.helix.spectator.RoutingTableProvider} that already watches external views. A
+ * fed data source is kept until it is finalized instead of expiring or being read again.
+ * </p>
+ * <p>
+ * Staleness: a fed data source lags the persisted data by the delivery delay of its
+ * notifications. An ideal state or external view that is read rather than fed is at most the
+ * time-to-live old, {@link #DEFAULT_TTL_MS} unless set otherwise. Live instances that are not fed
+ * are as current as a direct read.
+ * </p>
+ */
+public class CriteriaIndex implements ExternalViewChangeListener, IdealStateChangeListener,
+    LiveInstanceChangeListener {
+  /** Default time-to-live of an ideal state or external view that is read rather than fed */
+  public static final long DEFAULT_TTL_MS = 1000;
+
+  private final long _ttlMs;
+  private final Map<DataSource, Snapshot> _snapshots;
+  private final Set<DataSource> _fed;
+
+  /**
+   * Create an empty index with the default time-to-live
+   */
+  public CriteriaIndex() {
+    this(DEFAULT_TTL_MS);
+  }
+
+  /**
+   * Create an empty index
+   * @param ttlMs how long an ideal state or external view that is read rather than fed is served
+   *          from the index
+   */
+  public CriteriaIndex(long ttlMs) {
+    _ttlMs = ttlMs;
+    _snapshots = Collections.synchronizedMap(new EnumMap<DataSource, Snapshot>(DataSource.class));
+    _fed = Collections.synchronizedSet(EnumSet.noneOf(DataSource.class));
+  }
+
+  /**
+   * Check if a data source can currently be served from the index without reading it
+   * @param dataSource the data source
+   * @return true if the data source and the live instances are indexed and not expired; live
+   *         instances are only indexed while they are fed
+   */
+  public boolean isIndexed(DataSource dataSource) {
+    long now = System.currentTimeMillis();
+    return isFresh(dataSource, _snapshots.get(dataSource), now)
+        && isFresh(DataSource.LIVEINSTANCES, _snapshots.get(DataSource.LIVEINSTANCES), now);
+  }
+
+  @Override
+  public void onExternalViewChange(List<ExternalView> externalViewList,
+      NotificationContext changeContext) {
+    update(DataSource.EXTERNALVIEW, externalViewList, changeContext);
+  }
+
+  @Override
+  public void onIdealStateChange(List<IdealState> idealState, NotificationContext changeContext) {
+    update(DataSource.IDEALSTATES, idealState, changeContext);
+  }
+
+  @Override
+  public void onLiveInstanceChange(List<LiveInstance> liveInstances,
+      NotificationContext changeContext) {
+    update(DataSource.LIVEINSTANCES, liveInstances, changeContext);
+  }
+
+  /**
+   * Get the indexed records for a data source, reading the data source if it is not indexed or
+   * has expired
+   * @param manager connection to the persisted data
+   * @param dataSource the data source
+   * @return snapshot, or null if the data source cannot be read
+   */
+  Snapshot getSnapshot(HelixManager manager, DataSource dataSource) {
+    Snapshot snapshot = _snapshots.get(dataSource);
+    if (isFresh(dataSource, snapshot, System.currentTimeMillis())) {
+      return snapshot;
+    }
+    return load(manager, dataSource);
+  }
+
+  /**
+   * Get the names of the live instances, reading them unless they are fed
+   * @param manager connection to the persisted data
+   * @return set of instance names, or null if they cannot be read
+   */
+  Set<String> getLiveInstances(HelixManager manager) {
+    Snapshot snapshot = getSnapshot(manager, DataSource.LIVEINSTANCES);
+    return snapshot != null ? snapshot.getIds() : null;
+  }
+
+  private synchronized Snapshot load(HelixManager manager, DataSource dataSource) {
+    // another caller may have loaded it while we waited
+    long now = System.currentTimeMillis();
+    Snapshot previous = _snapshots.get(dataSource);
+    if (isFresh(dataSource, previous, now)) {
+      return previous;
+    }
+    List<HelixProperty> properties =
+        CriteriaEvaluator.readProperties(manager.getHelixDataAccessor(), dataSource);
+    if (properties == null) {
+      return null;
+    }
+    Snapshot snapshot =
+        Snapshot.build(HelixProperty.convertToList(properties), previous, now);
+    _snapshots.put(dataSource, snapshot);
+    return snapshot;
+  }
+
+  private boolean isFresh(DataSource dataSource, Snapshot snapshot, long now) {
+    if (snapshot == null) {
+      return false;
+    }
+    if (_fed.contains(dataSource)) {
+      return true;
+    }
+    // live instances that are not fed are never served from an earlier read
+    return dataSource != DataSource.LIVEINSTANCES && now - snapshot._loadTime < _ttlMs;
+  }
+
+  private synchronized void update(DataSource dataSource,
+      List<? extends HelixProperty> properties, NotificationContext changeContext) {
+    if (changeContext != null && changeContext.getType() == NotificationContext.Type.FINALIZE) {
+      // back to reading the data source on demand
+      _fed.remove(dataSource);
+      _snapshots.remove(dataSource);
+      return;
+    }
+    List<ZNRecord> records = new ArrayList<ZNRecord>();
+    if (properties != null) {
+      for (HelixProperty property : properties) {
+        if (property != null && property.getRecord() != null) {
+          records.add(property.getRecord());
+        }
+      }
+    }
+    _snapshots.put(dataSource,
+        Snapshot.build(records, _snapshots.get(dataSource), System.currentTimeMillis()));
+    _fed.add(dataSource);
+  }
+
+  /**
+   * An immutable view of the records of one data source
+   */
+  static class Snapshot {
+    private final List<IndexedRecord> _records;
+    private final Map<String, List<IndexedRecord>> _recordsByLowerId;
+    private final Set<String> _ids;
+    private final long _loadTime;
+
+    private Snapshot(List<IndexedRecord> records, long loadTime) {
+      _records = Collections.unmodifiableList(records);
+      _recordsByLowerId = new HashMap<String, List<IndexedRecord>>();
+      _loadTime = loadTime;
+      Set<String> ids = new HashSet<String>();
+      for (IndexedRecord record : records) {
+        ids.add(record._record.getId());
+        List<IndexedRecord> sameId = _recordsByLowerId.get(record._lowerId);
+        if (sameId == null) {
+          sameId = new ArrayList<IndexedRecord>(1);
+          _recordsByLowerId.put(record._lowerId, sameId);
+        }
+        sameId.add(record);
+      }
+      _ids = Collections.unmodifiableSet(ids);
+    }
+
+    /**
+     * Index a list of records, reusing entries of a previous snapshot that are unchanged
+     * @param records the current records
+     * @param previous the previous snapshot, or null
+     * @param loadTime when the records were read
+     * @return snapshot
+     */
+    static Snapshot build(Collection<ZNRecord> records, Snapshot previous, long loadTime) {
+      List<IndexedRecord> indexed = new ArrayList<IndexedRecord>(records.size());
+      for (ZNRecord record : records) {
+        IndexedRecord reused = null;
+        if (previous != null) {
+          List<IndexedRecord> candidates =
+              previous._recordsByLowerId.get(record.getId().toLowerCase());
+          if (candidates != null) {
+            for (IndexedRecord candidate : candidates) {
+              if (candidate.isSameVersion(record)) {
+                reused = candidate;
+                break;
+              }
+            }
+          }
+        }
+        indexed.add(reused != null ? reused : new IndexedRecord(record));
+      }
+      return new Snapshot(indexed, loadTime);
+    }
+
+    /**
+     * Get every record in this snapshot
+     * @return list of records
+     */
+    List<IndexedRecord> getRecords() {
+      return _records;
+    }
+
+    /**
+     * Get the ids of the records in this snapshot, e.g. the names of live instances
+     * @return set of record ids
+     */
+    Set<String> getIds() {
+      return _ids;
+    }
+
+    /**
+     * Get the records whose id equals a name, ignoring case
+     * @param name the record id
+     * @return list of records, possibly empty
+     */
+    List<IndexedRecord> getRecords(String name) {
+      List<IndexedRecord> records = _recordsByLowerId.get(name.toLowerCase());
+      if (records == null) {
+        return Collections.emptyList();
+      }
+      return records;
+    }
+  }
+
+  /**
+   * A record along with lookup structures for its map fields
+   */
+  static class IndexedRecord {
+    final ZNRecord _record;
+    final String _lowerId;
+    final boolean _hasFieldRows;
+    private volatile Map<String, List<String>> _mapKeysByLowerName;
+
+    IndexedRecord(ZNRecord record) {
+      _record = record;
+      _lowerId = record.getId().toLowerCase();
+      boolean hasFieldRows = !record.getSimpleFields().isEmpty();
+      if (!hasFieldRows) {
+        for (List<String> listField : record.getListFields().values()) {
+          if (listField != null && !listField.isEmpty()) {
+            hasFieldRows = true;
+            break;
+          }
+        }
+      }
+      _hasFieldRows = hasFieldRows;
+    }
+
+    /**
+     * Get the map keys (i.e. partition names) that equal a name, ignoring case
+     * @param name the map key
+     * @return list of keys, possibly empty
+     */
+    List<String> getMapKeys(String name) {
+      Map<String, List<String>> mapKeysByLowerName = _mapKeysByLowerName;
+      if (mapKeysByLowerName == null) {
+        mapKeysByLowerName = new HashMap<String, List<String>>();
+        for (String mapKey : _record.getMapFields().keySet()) {
+          String lowerName = mapKey.toLowerCase();
+          List<String> keys = mapKeysByLowerName.get(lowerName);
+          if (keys == null) {
+            keys = new ArrayList<String>(1);
+            mapKeysByLowerName.put(lowerName, keys);
+          }
+          keys.add(mapKey);
+        }
+        _mapKeysByLowerName = mapKeysByLowerName;
+      }
+      List<String> keys = mapKeysByLowerName.get(name.toLowerCase());
+      if (keys == null) {
+        return Collections.emptyList();
+      }
+      return keys;
+    }
+
+    private boolean isSameVersion(ZNRecord record) {
+      if (record == _record) {
+        return true;
+      }
+      return record.getId().equals(_record.getId()) && record.getVersion() >= 0
+          && record.getVersion() == _record.getVersion()
+          && record.getModifiedTime() == _record.getModifiedTime();
+    }
+  }
+}
@@ -20,11 +20,13 @@ package org.apache.helix.messaging;
  */
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 
 import org.apache.helix.ClusterMessagingService;
 import org.apache.helix.ConfigAccessor;
@@ -32,6 +34,7 @@ import org.apache.helix.Criteria;
 import org.apache.helix.HelixDataAccessor;
 import org.apache.helix.HelixManager;
 import org.apache.helix.InstanceType;
+import org.apache.helix.NotificationContext;
 import org.apache.helix.PropertyKey.Builder;
 import org.apache.helix.api.id.MessageId;
 import org.apache.helix.api.id.PartitionId;
@@ -48,19 +51,25 @@ import org.apache.helix.model.Message.MessageType;
 import org.apache.helix.model.builder.HelixConfigScopeBuilder;
 import org.apache.log4j.Logger;
 
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
 public class DefaultMessagingService implements ClusterMessagingService {
   private final HelixManager _manager;
+  private final CriteriaIndex _criteriaIndex;
   private final CriteriaEvaluator _evaluator;
   private final HelixTaskExecutor _taskExecutor;
   // TODO:rename to factory, this is not a service
   private final AsyncCallbackService _asyncCallbackService;
+  private volatile HelixMessageTransport _transport;
   private static Logger _logger = Logger.getLogger(DefaultMessagingService.class);
   ConcurrentHashMap<String, MessageHandlerFactory> _messageHandlerFactoriestobeAdded =
       new ConcurrentHashMap<String, MessageHandlerFactory>();
 
   public DefaultMessagingService(HelixManager manager) {
     _manager = manager;
-    _evaluator = new CriteriaEvaluator();
+    _criteriaIndex = new CriteriaIndex();
+    _evaluator = new CriteriaEvaluator(_criteriaIndex);
     _taskExecutor = new HelixTaskExecutor();
     _asyncCallbackService = new AsyncCallbackService();
     _taskExecutor.registerMessageHandlerFactory(MessageType.TASK_REPLY.toString(),
@@ -121,7 +130,7 @@ public class DefaultMessagingService implements ClusterMessagingService {
           accessor.setProperty(keyBuilder.controllerMessage(tempMessage.getId()), tempMessage);
         }
 
-        if (receiverType == InstanceType.PARTICIPANT) {
+        if (receiverType == InstanceType.PARTICIPANT && !sendDirect(tempMessage)) {
           accessor.setProperty(keyBuilder.message(tempMessage.getTgtName(), tempMessage.getId()),
               tempMessage);
         }
@@ -299,21 +308,91 @@ public class DefaultMessagingService implements ClusterMessagingService {
     return _taskExecutor;
   }
 
+  /**
+   * Get the index used to evaluate recipient criteria. A spectator can pass it to a
+   * {@link org.apache.helix.spectator.RoutingTableProvider} so that external views are served from
+   * the provider's notifications instead of being read again.
+   * @return CriteriaIndex
+   */
+  public CriteriaIndex getCriteriaIndex() {
+    return _criteriaIndex;
+  }
+
+  /**
+   * Deliver user-defined messages and task replies over a direct transport when possible instead
+   * of writing them to ZooKeeper. Messages the transport fails to deliver are written to ZooKeeper
+   * after all. Criteria evaluation and reply callbacks are unaffected.
+   * @param transport the transport to use, or null to only use ZooKeeper
+   */
+  public void setMessageTransport(HelixMessageTransport transport) {
+    _transport = transport;
+    _taskExecutor.setMessageTransport(transport);
+    if (transport != null) {
+      transport.setMessageReceiver(new HelixMessageTransport.MessageReceiver() {
+        @Override
+        public void onMessage(Message message) {
+          message.setDirectDelivery(true);
+          _taskExecutor.onDirectMessage(message, new NotificationContext(_manager));
+        }
+
+        @Override
+        public void onUndelivered(Message message) {
+          _logger.info("Message " + message.getId() + " was not acknowledged by "
+              + message.getTgtName() + ", falling back to ZooKeeper");
+          HelixDataAccessor accessor = _manager.getHelixDataAccessor();
+          Builder keyBuilder = accessor.keyBuilder();
+          accessor.setProperty(keyBuilder.message(message.getTgtName(), message.getId()), message);
+        }
+      });
+    }
+  }
+
+  /**
+   * Check if a message is of a type that may bypass ZooKeeper. Only user-defined messages and task
+   * replies qualify; everything that drives cluster state stays on ZooKeeper.
+   * @param message the message to check
+   * @return true if the message can be delivered directly, false otherwise
+   */
+  public static boolean canDeliverDirectly(Message message) {
+    String msgType = message.getMsgType();
+    if (msgType == null) {
+      return false;
+    }
+    for (MessageType type : MessageType.values()) {
+      if (type.toString().equals(msgType)) {
+        return type == MessageType.USER_DEFINE_MSG || type == MessageType.TASK_REPLY;
+      }
+    }
+    return true;
+  }
+
+  private boolean sendDirect(Message message) {
+    HelixMessageTransport transport = _transport;
+    if (transport == null || !canDeliverDirectly(message)) {
+      return false;
+    }
+    try {
+      return transport.send(message);
+    } catch (Exception e) {
+      _logger.warn("Failed to send message " + message.getId() + " directly to "
+          + message.getTgtName() + ", falling back to ZooKeeper", e);
+      return false;
+    }
+  }
+
   @Override
   public int sendAndWait(Criteria receipientCriteria, Message message, AsyncCallback asyncCallback,
       int timeOut, int retryCount) {
     int messagesSent = send(receipientCriteria, message, asyncCallback, timeOut, retryCount);
     if (messagesSent > 0) {
-      while (!asyncCallback.isDone() && !asyncCallback.isTimedOut()) {
-        synchronized (asyncCallback) {
-          try {
-            asyncCallback.wait();
-          } catch (InterruptedException e) {
-            _logger.error(e);
-            asyncCallback.setInterrupted(true);
-            break;
-          }
-        }
+      try {
+        asyncCallback.getReplyFuture().get();
+      } catch (ExecutionException e) {
+        // timed out, which the callback already knows about
+        _logger.info("Stopped waiting for replies: " + e.getCause().getMessage());
+      } catch (InterruptedException e) {
+        _logger.error(e);
+        asyncCallback.setInterrupted(true);
       }
     } else {
       _logger.warn("No messages sent. For Criteria:" + receipientCriteria);
@@ -321,6 +400,28 @@ public class DefaultMessagingService implements ClusterMessagingService {
     return messagesSent;
   }
 
+  /**
+   * Send messages and collect the replies without blocking. The returned future completes once the
+   * callback has received every reply it expects (see {@link AsyncCallback#isDone()}), or fails
+   * with a {@link java.util.concurrent.TimeoutException} once the timeout expires. Individual
+   * replies are still delivered to {@link AsyncCallback#onReplyMessage(Message)} as they arrive.
+   * @param recipientCriteria criteria for the recipients
+   * @param message the message template
+   * @param asyncCallback callback that receives replies
+   * @param timeOut timeout per attempt in milliseconds
+   * @param retryCount number of retries
+   * @return future of the replies, completed with an empty list if no messages were sent
+   */
+  public ListenableFuture<List<Message>> sendAsync(Criteria recipientCriteria, Message message,
+      AsyncCallback asyncCallback, int timeOut, int retryCount) {
+    int messagesSent = send(recipientCriteria, message, asyncCallback, timeOut, retryCount);
+    if (messagesSent == 0) {
+      _logger.warn("No messages sent. For Criteria:" + recipientCriteria);
+      return Futures.immediateFuture(Collections.<Message> emptyList());
+    }
+    return asyncCallback.getReplyFuture();
+  }
+
   @Override
   public int sendAndWait(Criteria recipientCriteria, Message message, AsyncCallback asyncCallback,
       int timeOut) {
@@ -0,0 +1,63 @@
+package org.apache.helix.messaging;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import org.apache.helix.model.Message;
+
+/**
+ * A channel that delivers messages straight to an instance instead of through its ZooKeeper message
+ * queue. {@link DefaultMessagingService} uses it for user-defined messages and task replies, and
+ * falls back to ZooKeeper whenever {@link #send(Message)} declines a message.
+ */
+public interface HelixMessageTransport {
+  /**
+   * Receives messages that arrive over a transport
+   */
+  interface MessageReceiver {
+    /**
+     * Handle a message received over the transport
+     * @param message the received message
+     */
+    void onMessage(Message message);
+
+    /**
+     * Handle a message that {@link HelixMessageTransport#send(Message)} accepted but could not
+     * deliver, e.g. because its target never acknowledged it. It should go through ZooKeeper.
+     * @param message the undelivered message
+     */
+    void onUndelivered(Message message);
+  }
+
+  /**
+   * Set where received and undelivered messages should be handed over
+   * @param receiver the receiver, typically the instance's messaging service
+   */
+  void setMessageReceiver(MessageReceiver receiver);
+
+  /**
+   * Try to deliver a message to its target instance
+   * @param message the message, with its target name set
+   * @return true if the message was handed to the transport, false if it should go through
+   *         ZooKeeper instead (e.g. the target does not advertise an endpoint). A message that is
+   *         accepted but later found undeliverable is passed to
+   *         {@link MessageReceiver#onUndelivered(Message)}.
+   */
+  boolean send(Message message);
+}
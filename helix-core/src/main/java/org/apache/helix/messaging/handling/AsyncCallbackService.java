@@ -28,6 +28,8 @@ import org.apache.helix.model.Message;
 import org.apache.helix.model.Message.MessageType;
 import org.apache.log4j.Logger;
 
+import com.google.common.util.concurrent.MoreExecutors;
+
 public class AsyncCallbackService implements MessageHandlerFactory {
   private final ConcurrentHashMap<String, AsyncCallback> _callbackMap =
       new ConcurrentHashMap<String, AsyncCallback>();
@@ -36,12 +38,30 @@ public class AsyncCallbackService implements MessageHandlerFactory {
   public AsyncCallbackService() {
   }
 
-  public void registerAsyncCallback(String correlationId, AsyncCallback callback) {
+  public void registerAsyncCallback(final String correlationId, final AsyncCallback callback) {
     if (_callbackMap.containsKey(correlationId)) {
       _logger.warn("correlation id " + correlationId + " already registered");
     }
     _logger.info("registering correlation id " + correlationId);
     _callbackMap.put(correlationId, callback);
+
+    // drop the registration as soon as the callback finishes or times out
+    callback.getReplyFuture().addListener(new Runnable() {
+      @Override
+      public void run() {
+        if (_callbackMap.remove(correlationId, callback)) {
+          _logger.info("Removing finished callback, correlationid:" + correlationId);
+        }
+      }
+    }, MoreExecutors.sameThreadExecutor());
+  }
+
+  /**
+   * Get the number of callbacks still waiting for replies
+   * @return number of registered callbacks
+   */
+  public int getNumPendingCallbacks() {
+    return _callbackMap.size();
   }
 
   void verifyMessage(Message message) {
@@ -106,13 +126,13 @@ public class AsyncCallbackService implements MessageHandlerFactory {
           + _correlationId);
 
       AsyncCallback callback = _callbackMap.get(_correlationId);
-      synchronized (callback) {
-        callback.onReply(_message);
-        if (callback.isDone()) {
-          _logger.info("Removing finished callback, correlationid:" + _correlationId);
-          _callbackMap.remove(_correlationId);
-        }
+      if (callback == null) {
+        // finished or timed out since the handler was created
+        _logger.warn("Callback for correlation id " + _correlationId + " is no longer registered");
+        result.setSuccess(true);
+        return result;
       }
+      callback.onReply(_message);
       result.setSuccess(true);
       return result;
     }
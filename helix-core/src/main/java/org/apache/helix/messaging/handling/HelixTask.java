@@ -29,6 +29,7 @@ import org.apache.helix.NotificationContext;
 import org.apache.helix.NotificationContext.MapKey;
 import org.apache.helix.PropertyKey.Builder;
 import org.apache.helix.api.State;
+import org.apache.helix.messaging.HelixMessageTransport;
 import org.apache.helix.messaging.handling.MessageHandler.ErrorCode;
 import org.apache.helix.messaging.handling.MessageHandler.ErrorType;
 import org.apache.helix.model.Message;
@@ -179,6 +180,10 @@ public class HelixTask implements MessageTask {
   }
 
   private void removeMessageFromZk(HelixDataAccessor accessor, Message message) {
+    if (message.isDirectDelivery()) {
+      // never written to zk
+      return;
+    }
     Builder keyBuilder = accessor.keyBuilder();
     if (message.getTgtName().equalsIgnoreCase("controller")) {
       // TODO: removeProperty returns boolean
@@ -205,7 +210,11 @@ public class HelixTask implements MessageTask {
               taskResult.getTaskResultMap());
       replyMessage.setSrcInstanceType(_manager.getInstanceType());
 
-      if (message.getSrcInstanceType() == InstanceType.PARTICIPANT) {
+      HelixMessageTransport transport = _executor.getMessageTransport();
+      if (message.getSrcInstanceType() == InstanceType.PARTICIPANT && transport != null
+          && sendReplyDirect(transport, replyMessage)) {
+        logger.info("Replied to " + replyMessage.getTgtName() + " directly");
+      } else if (message.getSrcInstanceType() == InstanceType.PARTICIPANT) {
         Builder keyBuilder = accessor.keyBuilder();
         accessor.setProperty(
             keyBuilder.message(message.getMsgSrc(), replyMessage.getMessageId().stringify()),
@@ -220,6 +229,16 @@ public class HelixTask implements MessageTask {
     }
   }
 
+  private boolean sendReplyDirect(HelixMessageTransport transport, Message replyMessage) {
+    try {
+      return transport.send(replyMessage);
+    } catch (Exception e) {
+      logger.warn("Failed to reply to " + replyMessage.getTgtName()
+          + " directly, falling back to zk", e);
+      return false;
+    }
+  }
+
   private void reportMessageStat(HelixManager manager, Message message, HelixTaskResult taskResult) {
     // report stat
     if (!message.getMsgType().equals(MessageType.STATE_TRANSITION.toString())) {
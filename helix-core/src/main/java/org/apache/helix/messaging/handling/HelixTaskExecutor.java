@@ -23,6 +23,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -47,6 +48,7 @@ import org.apache.helix.PropertyKey;
 import org.apache.helix.PropertyKey.Builder;
 import org.apache.helix.api.id.ResourceId;
 import org.apache.helix.api.id.SessionId;
+import org.apache.helix.messaging.HelixMessageTransport;
 import org.apache.helix.model.CurrentState;
 import org.apache.helix.model.HelixConfigScope;
 import org.apache.helix.model.HelixConfigScope.ConfigScopeProperty;
@@ -103,8 +105,19 @@ public class HelixTaskExecutor implements MessageListener, TaskExecutor {
   private final ParticipantMonitor _monitor;
   public static final String MAX_THREADS = "maxThreads";
 
+  // number of directly delivered message ids remembered to drop re-sends and zk fallbacks
+  private static final int MAX_DIRECT_MESSAGE_IDS = 10000;
+
   private MessageQueueMonitor _messageQueueMonitor;
 
+  private volatile HelixMessageTransport _transport;
+
+  /**
+   * Ids of the most recently received direct messages. A direct message may arrive again, either
+   * re-sent or through ZooKeeper after its acknowledgement got lost.
+   */
+  private final Map<String, Boolean> _directMessageIds;
+
   /**
    * Map of MsgType->MsgHandlerFactoryRegistryItem
    */
@@ -124,6 +137,16 @@ public class HelixTaskExecutor implements MessageListener, TaskExecutor {
     _executorMap = new ConcurrentHashMap<String, ExecutorService>();
     _resourceThreadpoolSizeMap = new ConcurrentHashMap<String, Integer>();
 
+    _directMessageIds =
+        Collections.synchronizedMap(new LinkedHashMap<String, Boolean>(16, 0.75f, false) {
+          private static final long serialVersionUID = 1L;
+
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_DIRECT_MESSAGE_IDS;
+          }
+        });
+
     _lock = new Object();
     _statusUpdateUtil = new StatusUpdateUtil();
     _monitor = new ParticipantMonitor();
@@ -554,8 +577,7 @@ public class HelixTaskExecutor implements MessageListener, TaskExecutor {
       SessionId tgtSessionId = message.getTypedTgtSessionId();
 
       // sessionId mismatch normally means message comes from expired session, just remove it
-      if (tgtSessionId == null ||
-		      (!sessionId.equals(tgtSessionId.toString()) && !tgtSessionId.toString().equals("*"))) {
+      if (!isSessionMatched(tgtSessionId, sessionId)) {
         String warningMessage =
             "SessionId does NOT match. expected sessionId: " + sessionId
                 + ", tgtSessionId in message: " + tgtSessionId + ", messageId: "
@@ -579,6 +601,13 @@ public class HelixTaskExecutor implements MessageListener, TaskExecutor {
         continue;
       }
 
+      // already handled after it was delivered directly
+      if (_directMessageIds.containsKey(message.getId())) {
+        LOG.info("Dropping message " + message.getId() + ", it was already delivered directly");
+        accessor.removeProperty(message.getKey(keyBuilder, instanceName));
+        continue;
+      }
+
       // create message handlers, if handlers not found, leave its state as NEW
       try {
         MessageHandler createHandler = createMessageHandler(message, changeContext);
@@ -657,6 +686,93 @@ public class HelixTaskExecutor implements MessageListener, TaskExecutor {
     }
   }
 
+  /**
+   * Handle a message that was delivered over a {@link HelixMessageTransport} instead of
+   * ZooKeeper. It is validated like a message read from ZooKeeper, but there is no znode to mark
+   * as read or remove, so the message is scheduled right away or dropped if it cannot be handled.
+   * Messages that were delivered before, directly or through ZooKeeper, are dropped.
+   * @param message the received message
+   * @param changeContext the context to handle the message with
+   */
+  public void onDirectMessage(Message message, NotificationContext changeContext) {
+    HelixManager manager = changeContext.getManager();
+    HelixDataAccessor accessor = manager.getHelixDataAccessor();
+    String sessionId = manager.getSessionId();
+    SessionId tgtSessionId = message.getTypedTgtSessionId();
+    if (!isSessionMatched(tgtSessionId, sessionId)) {
+      String warningMessage =
+          "SessionId does NOT match. expected sessionId: " + sessionId
+              + ", tgtSessionId in message: " + tgtSessionId + ", messageId: "
+              + message.getMessageId();
+      LOG.warn(warningMessage);
+      _statusUpdateUtil.logWarning(message, HelixStateMachineEngine.class, warningMessage,
+          accessor);
+      return;
+    }
+
+    if (MessageState.NEW != message.getMsgState()) {
+      LOG.warn("Dropping direct message " + message.getMessageId() + " in state "
+          + message.getMsgState());
+      return;
+    }
+
+    if (_directMessageIds.put(message.getId(), Boolean.TRUE) != null
+        || _taskMap.containsKey(message.getId())) {
+      LOG.info("Dropping duplicate direct message " + message.getMessageId());
+      return;
+    }
+
+    if (!_hdlrFtyRegistry.containsKey(message.getMsgType())) {
+      LOG.warn("Dropping direct message " + message.getMessageId()
+          + ", no message handler factory for type: " + message.getMsgType());
+      return;
+    }
+
+    MessageHandler handler;
+    try {
+      handler = createMessageHandler(message, changeContext);
+    } catch (Exception e) {
+      LOG.error("Failed to create message handler for " + message.getMessageId(), e);
+      _statusUpdateUtil.logError(message, HelixStateMachineEngine.class, e,
+          "Failed to create message handler for " + message.getMessageId() + ", exception: " + e,
+          accessor);
+      return;
+    }
+    if (handler == null) {
+      return;
+    }
+
+    message.setMsgState(MessageState.READ);
+    message.setReadTimeStamp(new Date().getTime());
+    message.setExecuteSessionId(SessionId.from(sessionId));
+    _statusUpdateUtil.logInfo(message, HelixStateMachineEngine.class, "New Message", accessor);
+    scheduleTask(new HelixTask(message, changeContext, handler, this));
+  }
+
+  /**
+   * Check if a message is addressed to the current session of this instance or to any session
+   */
+  private static boolean isSessionMatched(SessionId tgtSessionId, String sessionId) {
+    return tgtSessionId != null
+        && (sessionId.equals(tgtSessionId.toString()) || tgtSessionId.toString().equals("*"));
+  }
+
+  /**
+   * Set the transport used to reply to messages without going through ZooKeeper
+   * @param transport the transport, or null to always reply through ZooKeeper
+   */
+  public void setMessageTransport(HelixMessageTransport transport) {
+    _transport = transport;
+  }
+
+  /**
+   * Get the transport used to reply to messages without going through ZooKeeper
+   * @return the transport, or null if there is none
+   */
+  public HelixMessageTransport getMessageTransport() {
+    return _transport;
+  }
+
   public MessageHandler createMessageHandler(Message message, NotificationContext changeContext) {
     String msgType = message.getMsgType().toString();
 
@@ -56,7 +56,8 @@ public class InstanceConfig extends HelixProperty {
     TAG_LIST,
     CONTAINER_SPEC,
     CONTAINER_STATE,
-    CONTAINER_ID
+    CONTAINER_ID,
+    DOMAIN
   }
 
   /**
@@ -169,6 +170,50 @@ public class InstanceConfig extends HelixProperty {
     return tags.contains(tag);
   }
 
+  /**
+   * Set the place of this instance in the fault domain hierarchy
+   * @param domain comma-separated type=value pairs from the outermost level inward, like
+   *          "zone=us-east-1a,rack=r12"
+   */
+  public void setDomain(String domain) {
+    _record.setSimpleField(InstanceConfigProperty.DOMAIN.toString(), domain);
+  }
+
+  /**
+   * Get the place of this instance in the fault domain hierarchy
+   * @return comma-separated type=value pairs from the outermost level inward, or null if not set
+   */
+  public String getDomain() {
+    return _record.getSimpleField(InstanceConfigProperty.DOMAIN.toString());
+  }
+
+  /**
+   * Get the fault zone of this instance at one level of its domain. Instances are in the same zone
+   * if their domains agree up to and including that level.
+   * @param zoneType the type of the level, like "rack", or null for the outermost level
+   * @return the domain up to the level, or null if the instance has no such level
+   */
+  public String getFaultZone(String zoneType) {
+    String domain = getDomain();
+    if (domain == null || domain.trim().isEmpty()) {
+      return null;
+    }
+    StringBuilder zone = new StringBuilder();
+    for (String level : domain.split(",")) {
+      String trimmed = level.trim();
+      if (zone.length() > 0) {
+        zone.append(',');
+      }
+      zone.append(trimmed);
+      int separator = trimmed.indexOf('=');
+      String type = (separator >= 0) ? trimmed.substring(0, separator) : trimmed;
+      if (zoneType == null || zoneType.equals(type)) {
+        return zone.toString();
+      }
+    }
+    return null;
+  }
+
   /**
    * Check if this instance is enabled and able to serve replicas
    * @return true if enabled, false if disabled
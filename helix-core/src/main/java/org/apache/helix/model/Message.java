@@ -93,7 +93,8 @@ public class Message extends HelixProperty {
     STATE_MODEL_FACTORY_NAME,
     BUCKET_SIZE,
     PARENT_MSG_ID, // used for group message mode
-    INNER_MESSAGE
+    INNER_MESSAGE,
+    DIRECT_DELIVERY // set on receipt of messages that did not go through ZooKeeper
   }
 
   /**
@@ -868,6 +869,22 @@ public class Message extends HelixProperty {
     return _record.getListField(Attributes.PARTITION_NAME.toString());
   }
 
+  /**
+   * Check if this message was received over a direct transport rather than from ZooKeeper
+   * @return true if delivered directly, false otherwise
+   */
+  public boolean isDirectDelivery() {
+    return _record.getBooleanField(Attributes.DIRECT_DELIVERY.toString(), false);
+  }
+
+  /**
+   * Mark this message as received over a direct transport rather than from ZooKeeper
+   * @param isDirectDelivery true if delivered directly, false otherwise
+   */
+  public void setDirectDelivery(boolean isDirectDelivery) {
+    _record.setBooleanField(Attributes.DIRECT_DELIVERY.toString(), isDirectDelivery);
+  }
+
   /**
    * Check if this message is targetted for a controller
    * @return true if this is a controller message, false otherwise
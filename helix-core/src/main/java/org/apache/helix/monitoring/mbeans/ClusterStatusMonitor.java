@@ -33,6 +33,7 @@ import javax.management.MBeanServer;
 import javax.management.MalformedObjectNameException;
 import javax.management.ObjectName;
 
+import org.apache.helix.HelixDefinedState;
 import org.apache.helix.api.State;
 import org.apache.helix.api.config.ResourceConfig;
 import org.apache.helix.api.id.ParticipantId;
@@ -72,6 +73,16 @@ public class ClusterStatusMonitor implements ClusterStatusMonitorMBean {
   private Set<String> _disabledInstances = Collections.emptySet();
   private Map<String, Set<String>> _disabledPartitions = Collections.emptyMap();
   private Map<String, Long> _instanceMsgQueueSizes = Maps.newConcurrentMap();
+  private volatile long _contextStoreReads = 0;
+  private volatile long _contextStoreWrites = 0;
+  private volatile double _contextStoreOpsPerResource = 0;
+  private volatile long _placementCacheHits = 0;
+  private volatile long _placementCacheMisses = 0;
+  private volatile long _rebalanceMoves = 0;
+  private volatile long _rebalanceRecoveries = 0;
+  private volatile long _rebalancePendingMoves = 0;
+  private volatile double _loadImbalance = 0;
+  private volatile long _loadMoves = 0;
 
   private final ConcurrentHashMap<String, ResourceMonitor> _resourceMbeanMap =
       new ConcurrentHashMap<String, ResourceMonitor>();
@@ -149,6 +160,108 @@ public class ClusterStatusMonitor implements ClusterStatusMonitorMBean {
     return sum;
   }
 
+  @Override
+  public long getContextStoreReadGauge() {
+    return _contextStoreReads;
+  }
+
+  @Override
+  public long getContextStoreWriteGauge() {
+    return _contextStoreWrites;
+  }
+
+  @Override
+  public double getContextStoreOpsPerResourceGauge() {
+    return _contextStoreOpsPerResource;
+  }
+
+  /**
+   * Update the property store operations that rebalancer contexts needed in the last pipeline run
+   * @param numResources the number of resources (e.g. jobs) whose contexts were accessed
+   * @param numReads the number of records read
+   * @param numWrites the number of records written
+   */
+  public void setContextStoreStatus(int numResources, int numReads, int numWrites) {
+    _contextStoreReads = numReads;
+    _contextStoreWrites = numWrites;
+    _contextStoreOpsPerResource =
+        numResources > 0 ? (double) (numReads + numWrites) / numResources : 0;
+  }
+
+  @Override
+  public long getPlacementCacheHitGauge() {
+    return _placementCacheHits;
+  }
+
+  @Override
+  public long getPlacementCacheMissGauge() {
+    return _placementCacheMisses;
+  }
+
+  @Override
+  public double getPlacementCacheHitRateGauge() {
+    long hits = _placementCacheHits;
+    long total = hits + _placementCacheMisses;
+    return total > 0 ? (double) hits / total : 0;
+  }
+
+  /**
+   * Update how many FULL_AUTO placements were reused in the last pipeline run
+   * @param hits the number of resources whose previous placement was reused
+   * @param misses the number of resources whose placement was computed
+   */
+  public void setPlacementCacheStatus(int hits, int misses) {
+    _placementCacheHits = hits;
+    _placementCacheMisses = misses;
+  }
+
+  @Override
+  public long getRebalanceMoveGauge() {
+    return _rebalanceMoves;
+  }
+
+  @Override
+  public long getRebalanceRecoveryGauge() {
+    return _rebalanceRecoveries;
+  }
+
+  @Override
+  public long getRebalancePendingMoveGauge() {
+    return _rebalancePendingMoves;
+  }
+
+  /**
+   * Update how far FULL_AUTO resources got toward their placement in the last pipeline run
+   * @param moves the number of replicas moved for balance
+   * @param recoveries the number of missing replicas restored
+   * @param pendingMoves the number of replicas held back by the movement budget
+   */
+  public void setRebalanceProgress(int moves, int recoveries, int pendingMoves) {
+    _rebalanceMoves = moves;
+    _rebalanceRecoveries = recoveries;
+    _rebalancePendingMoves = pendingMoves;
+  }
+
+  @Override
+  public double getLoadImbalanceGauge() {
+    return _loadImbalance;
+  }
+
+  @Override
+  public long getLoadMoveGauge() {
+    return _loadMoves;
+  }
+
+  /**
+   * Update the load reported by participants and what was done about it in the last pipeline run
+   * @param imbalance the highest participant load divided by the mean load
+   * @param moves the number of top states and replicas moved for load
+   */
+  public void setLoadFeedbackStatus(double imbalance, int moves) {
+    _loadImbalance = imbalance;
+    _loadMoves = moves;
+  }
+
   private void register(Object bean, ObjectName name) {
     try {
       if (_beanServer.isRegistered(name)) {
@@ -312,6 +425,74 @@ public class ClusterStatusMonitor implements ClusterStatusMonitorMBean {
     }
   }
 
+  /**
+   * Update the replica load gauges of the instances from the best possible states of all resources
+   * @param bestPossibleStates the computed placement of all resources
+   * @param resourceMap the resources in the cluster
+   * @param stateModelDefMap the state models, by name
+   */
+  public void setInstanceLoadStatus(BestPossibleStateOutput bestPossibleStates,
+      Map<ResourceId, ResourceConfig> resourceMap,
+      Map<String, StateModelDefinition> stateModelDefMap) {
+    Map<String, Long> replicaCounts = new HashMap<String, Long>();
+    Map<String, Long> topStateCounts = new HashMap<String, Long>();
+    for (ResourceId resource : bestPossibleStates.getAssignedResources()) {
+      ResourceConfig resourceConfig = resourceMap.get(resource);
+      if (resourceConfig == null || resourceConfig.getIdealState() == null) {
+        continue;
+      }
+      StateModelDefinition stateModelDef =
+          stateModelDefMap.get(resourceConfig.getIdealState().getStateModelDefId().toString());
+      if (stateModelDef == null) {
+        continue;
+      }
+      State initialState = stateModelDef.getTypedInitialState();
+      List<State> statesPriorityList = stateModelDef.getTypedStatesPriorityList();
+      State topState = statesPriorityList.isEmpty() ? null : statesPriorityList.get(0);
+      ResourceAssignment assignment = bestPossibleStates.getResourceAssignment(resource);
+      for (PartitionId partition : assignment.getMappedPartitionIds()) {
+        Map<ParticipantId, State> instanceStateMap = assignment.getReplicaMap(partition);
+        for (ParticipantId instance : instanceStateMap.keySet()) {
+          State state = instanceStateMap.get(instance);
+          if (state == null || state.equals(initialState)
+              || state.toString().equals(HelixDefinedState.DROPPED.toString())
+              || state.toString().equals(HelixDefinedState.ERROR.toString())) {
+            continue;
+          }
+          increment(replicaCounts, instance.toString());
+          if (state.equals(topState)) {
+            increment(topStateCounts, instance.toString());
+          }
+        }
+      }
+    }
+
+    // skew is measured against the instances that can take replicas
+    long totalReplicas = 0;
+    long totalTopStates = 0;
+    for (String instanceName : _liveInstances) {
+      totalReplicas +=
+          replicaCounts.containsKey(instanceName) ? replicaCounts.get(instanceName) : 0;
+      totalTopStates +=
+          topStateCounts.containsKey(instanceName) ? topStateCounts.get(instanceName) : 0;
+    }
+    double meanReplicas =
+        _liveInstances.isEmpty() ? 0 : (double) totalReplicas / _liveInstances.size();
+    double meanTopStates =
+        _liveInstances.isEmpty() ? 0 : (double) totalTopStates / _liveInstances.size();
+    for (Map.Entry<String, InstanceMonitor> e : _instanceMbeanMap.entrySet()) {
+      Long replicas = replicaCounts.get(e.getKey());
+      Long topStates = topStateCounts.get(e.getKey());
+      e.getValue().updateLoad(replicas != null ? replicas : 0, topStates != null ? topStates : 0,
+          meanReplicas, meanTopStates);
+    }
+  }
+
+  private static void increment(Map<String, Long> counts, String key) {
+    Long count = counts.get(key);
+    counts.put(key, (count != null) ? count + 1 : 1L);
+  }
+
   /**
    * Indicate that a resource has been dropped, thus making it OK to drop its metrics
    * @param resourceName the resource that has been dropped
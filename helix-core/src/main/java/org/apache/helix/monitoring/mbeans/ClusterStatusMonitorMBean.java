@@ -41,4 +41,74 @@ public interface ClusterStatusMonitorMBean extends SensorNameProvider {
    * @return
    */
   public long getInstanceMessageQueueBacklog();
+
+  /**
+   * The number of rebalancer context records read from the property store in the last pipeline run
+   * @return
+   */
+  public long getContextStoreReadGauge();
+
+  /**
+   * The number of rebalancer context records written to the property store in the last pipeline
+   * run
+   * @return
+   */
+  public long getContextStoreWriteGauge();
+
+  /**
+   * The property store operations per resource (e.g. task job) in the last pipeline run
+   * @return
+   */
+  public double getContextStoreOpsPerResourceGauge();
+
+  /**
+   * The number of FULL_AUTO resources whose placement was reused in the last pipeline run
+   * @return
+   */
+  public long getPlacementCacheHitGauge();
+
+  /**
+   * The number of FULL_AUTO resources whose placement was computed in the last pipeline run
+   * @return
+   */
+  public long getPlacementCacheMissGauge();
+
+  /**
+   * The fraction of FULL_AUTO placements that were reused in the last pipeline run
+   * @return
+   */
+  public double getPlacementCacheHitRateGauge();
+
+  /**
+   * The number of replicas moved to balance FULL_AUTO resources in the last pipeline run
+   * @return
+   */
+  public long getRebalanceMoveGauge();
+
+  /**
+   * The number of missing FULL_AUTO replicas restored in the last pipeline run
+   * @return
+   */
+  public long getRebalanceRecoveryGauge();
+
+  /**
+   * The number of FULL_AUTO replicas still to move after the last pipeline run because the
+   * movement budget ran out
+   * @return
+   */
+  public long getRebalancePendingMoveGauge();
+
+  /**
+   * The highest load reported by a participant divided by the mean load, as of the last pipeline
+   * run
+   * @return
+   */
+  public double getLoadImbalanceGauge();
+
+  /**
+   * The number of top states and replicas moved away from overloaded participants in the last
+   * pipeline run
+   * @return
+   */
+  public long getLoadMoveGauge();
 }
@@ -37,6 +37,10 @@ public class InstanceMonitor implements InstanceMonitorMBean {
   private List<String> _disabledPartitions;
   private boolean _isUp;
   private boolean _isEnabled;
+  private long _replicaCount;
+  private long _topStateReplicaCount;
+  private double _replicaLoadSkew;
+  private double _topStateLoadSkew;
 
   /**
    * Initialize the bean
@@ -50,6 +54,10 @@ public class InstanceMonitor implements InstanceMonitorMBean {
     _disabledPartitions = Collections.emptyList();
     _isUp = false;
     _isEnabled = false;
+    _replicaCount = 0;
+    _topStateReplicaCount = 0;
+    _replicaLoadSkew = 0.0;
+    _topStateLoadSkew = 0.0;
   }
 
   @Override
@@ -68,6 +76,26 @@ public class InstanceMonitor implements InstanceMonitorMBean {
     return _isEnabled ? 1 : 0;
   }
 
+  @Override
+  public long getReplicaCount() {
+    return _replicaCount;
+  }
+
+  @Override
+  public long getTopStateReplicaCount() {
+    return _topStateReplicaCount;
+  }
+
+  @Override
+  public double getReplicaLoadSkew() {
+    return _replicaLoadSkew;
+  }
+
+  @Override
+  public double getTopStateLoadSkew() {
+    return _topStateLoadSkew;
+  }
+
   /**
    * Get all the tags currently on this instance
    * @return list of tags
@@ -121,4 +149,20 @@ public class InstanceMonitor implements InstanceMonitorMBean {
     _isEnabled = isEnabled;
   }
 
+  /**
+   * Update the load gauges for this instance
+   * @param replicaCount replicas placed on the instance
+   * @param topStateReplicaCount top-state replicas placed on the instance
+   * @param meanReplicaCount mean replicas per live instance
+   * @param meanTopStateReplicaCount mean top-state replicas per live instance
+   */
+  public synchronized void updateLoad(long replicaCount, long topStateReplicaCount,
+      double meanReplicaCount, double meanTopStateReplicaCount) {
+    _replicaCount = replicaCount;
+    _topStateReplicaCount = topStateReplicaCount;
+    _replicaLoadSkew = (meanReplicaCount > 0) ? replicaCount / meanReplicaCount : 0.0;
+    _topStateLoadSkew =
+        (meanTopStateReplicaCount > 0) ? topStateReplicaCount / meanTopStateReplicaCount : 0.0;
+  }
+
 }
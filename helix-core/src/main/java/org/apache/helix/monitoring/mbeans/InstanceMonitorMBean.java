@@ -36,4 +36,28 @@ public interface InstanceMonitorMBean extends SensorNameProvider {
    * @return 1 if enabled, 0 if disabled
    */
   public long getEnabled();
+
+  /**
+   * Get the number of replicas placed on this instance, across all resources
+   * @return replica count
+   */
+  public long getReplicaCount();
+
+  /**
+   * Get the number of top-state replicas placed on this instance, across all resources
+   * @return top-state replica count
+   */
+  public long getTopStateReplicaCount();
+
+  /**
+   * Get the replicas on this instance relative to the mean of the live instances
+   * @return 1.0 for an evenly loaded instance, more if it holds more than its share
+   */
+  public double getReplicaLoadSkew();
+
+  /**
+   * Get the top-state replicas on this instance relative to the mean of the live instances
+   * @return 1.0 for an evenly loaded instance, more if it holds more than its share
+   */
+  public double getTopStateLoadSkew();
 }
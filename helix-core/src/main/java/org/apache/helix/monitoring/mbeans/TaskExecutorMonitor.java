@@ -0,0 +1,154 @@
+package org.apache.helix.monitoring.mbeans;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import javax.management.ObjectName;
+
+import org.apache.helix.monitoring.StatCollector;
+
+/**
+ * Reports the thread pool utilisation, queue wait and run time of the tasks of one command type
+ * on a participant. Queue wait and run time are exported both as summary statistics and as
+ * histograms with fixed buckets.
+ */
+public class TaskExecutorMonitor implements TaskExecutorMonitorMBean {
+  /**
+   * Inclusive upper bounds of the histogram buckets, in milliseconds; a last bucket counts
+   * everything above the largest bound
+   */
+  public static final long[] HISTOGRAM_BUCKET_BOUNDS = {
+      1, 5, 10, 50, 100, 500, 1000, 5000, 10000, 60000, 300000
+  };
+
+  private final String _instanceName;
+  private final String _command;
+  private final ThreadPoolExecutor _pool;
+  private final StatCollector _queueWait;
+  private final StatCollector _runTime;
+  private final long[] _queueWaitHistogram;
+  private final long[] _runTimeHistogram;
+
+  public TaskExecutorMonitor(String instanceName, String command, ThreadPoolExecutor pool) {
+    _instanceName = instanceName;
+    _command = command;
+    _pool = pool;
+    _queueWait = new StatCollector();
+    _runTime = new StatCollector();
+    _queueWaitHistogram = new long[HISTOGRAM_BUCKET_BOUNDS.length + 1];
+    _runTimeHistogram = new long[HISTOGRAM_BUCKET_BOUNDS.length + 1];
+  }
+
+  public String getBeanName() {
+    return "Type=TaskExecutor,Instance=" + _instanceName + ",Command=" + ObjectName.quote(_command);
+  }
+
+  /**
+   * Record a finished task
+   * @param queueWait time between submission and start, in milliseconds
+   * @param runTime time the task ran, in milliseconds
+   */
+  public synchronized void addTask(long queueWait, long runTime) {
+    _queueWait.addData(queueWait);
+    _runTime.addData(runTime);
+    _queueWaitHistogram[getBucket(queueWait)]++;
+    _runTimeHistogram[getBucket(runTime)]++;
+  }
+
+  @Override
+  public int getPoolSizeGauge() {
+    return _pool.getMaximumPoolSize();
+  }
+
+  @Override
+  public int getActiveThreadGauge() {
+    return _pool.getActiveCount();
+  }
+
+  @Override
+  public double getUtilization() {
+    return (double) _pool.getActiveCount() / _pool.getMaximumPoolSize();
+  }
+
+  @Override
+  public synchronized long getTotalTaskGauge() {
+    return _runTime.getNumDataPoints();
+  }
+
+  @Override
+  public double getMeanQueueWaitLatency() {
+    return _queueWait.getMean();
+  }
+
+  @Override
+  public double getMaxQueueWaitLatency() {
+    return _queueWait.getMax();
+  }
+
+  @Override
+  public double getPercentileQueueWaitLatency(int percentage) {
+    return _queueWait.getPercentile(percentage);
+  }
+
+  @Override
+  public double getMeanRunLatency() {
+    return _runTime.getMean();
+  }
+
+  @Override
+  public double getMaxRunLatency() {
+    return _runTime.getMax();
+  }
+
+  @Override
+  public double getPercentileRunLatency(int percentage) {
+    return _runTime.getPercentile(percentage);
+  }
+
+  @Override
+  public long[] getHistogramBucketBounds() {
+    return HISTOGRAM_BUCKET_BOUNDS.clone();
+  }
+
+  @Override
+  public synchronized long[] getQueueWaitHistogram() {
+    return _queueWaitHistogram.clone();
+  }
+
+  @Override
+  public synchronized long[] getRunHistogram() {
+    return _runTimeHistogram.clone();
+  }
+
+  @Override
+  public synchronized void reset() {
+    _queueWait.reset();
+    _runTime.reset();
+    Arrays.fill(_queueWaitHistogram, 0);
+    Arrays.fill(_runTimeHistogram, 0);
+  }
+
+  private static int getBucket(long latency) {
+    int bucket = Arrays.binarySearch(HISTOGRAM_BUCKET_BOUNDS, latency);
+    return (bucket >= 0) ? bucket : -bucket - 1;
+  }
+}
@@ -0,0 +1,235 @@
+package org.apache.helix.participant;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.helix.AccessOption;
+import org.apache.helix.HelixManager;
+import org.apache.helix.ZNRecord;
+import org.apache.log4j.Logger;
+
+/**
+ * Publishes the load of the partitions a participant serves, such as requests per second, bytes
+ * stored or CPU use, so that the controller can move top states and replicas away from overloaded
+ * participants. Reported samples are kept in memory and written to the property store together,
+ * in one record per participant, at most once per flush interval and only if a sample changed.
+ * Unchanged samples are still written once per refresh interval, so that the controller, which
+ * ignores records older than its sample TTL, does not take a steady participant for a silent one.
+ */
+public class PartitionLoadReporter {
+  private static final Logger LOG = Logger.getLogger(PartitionLoadReporter.class);
+
+  /** Property store path under which each participant has a record of its partition loads */
+  public static final String LOAD_ROOT = "/PARTITION_LOAD";
+
+  /** Simple field of a load record with the time it was written */
+  public static final String TIMESTAMP = "TIMESTAMP";
+
+  /** Default time between writes, in milliseconds */
+  public static final long DEFAULT_FLUSH_INTERVAL_MS = 30 * 1000L;
+
+  /**
+   * Default longest time between writes, in milliseconds; half of the controller's default sample
+   * TTL
+   */
+  public static final long DEFAULT_REFRESH_INTERVAL_MS = 150 * 1000L;
+
+  /**
+   * Kinds of load a participant can report for a partition
+   */
+  public enum LoadMetric {
+    /** Requests per second */
+    QPS,
+    /** Bytes stored or transferred */
+    BYTES,
+    /** Share of CPU used */
+    CPU
+  }
+
+  private final HelixManager _manager;
+  private final long _flushIntervalMs;
+  private final long _refreshIntervalMs;
+  private final Map<String, Map<String, String>> _samples;
+  private boolean _dirty;
+  private long _lastWriteMs;
+  private ScheduledExecutorService _executor;
+
+  /**
+   * Create a reporter that writes every {@link #DEFAULT_FLUSH_INTERVAL_MS}
+   * @param manager the participant's connection
+   */
+  public PartitionLoadReporter(HelixManager manager) {
+    this(manager, DEFAULT_FLUSH_INTERVAL_MS);
+  }
+
+  /**
+   * Create a reporter that writes unchanged samples every {@link #DEFAULT_REFRESH_INTERVAL_MS}
+   * @param manager the participant's connection
+   * @param flushIntervalMs the time between writes, in milliseconds
+   */
+  public PartitionLoadReporter(HelixManager manager, long flushIntervalMs) {
+    this(manager, flushIntervalMs, DEFAULT_REFRESH_INTERVAL_MS);
+  }
+
+  /**
+   * Create a reporter
+   * @param manager the participant's connection
+   * @param flushIntervalMs the time between writes, in milliseconds
+   * @param refreshIntervalMs the longest time between writes, in milliseconds, even if no sample
+   *          changed; at most half of the controller's LOAD_SAMPLE_TTL
+   */
+  public PartitionLoadReporter(HelixManager manager, long flushIntervalMs, long refreshIntervalMs) {
+    _manager = manager;
+    _flushIntervalMs = flushIntervalMs;
+    _refreshIntervalMs = refreshIntervalMs;
+    _samples = new HashMap<String, Map<String, String>>();
+    _dirty = false;
+    _lastWriteMs = -1;
+    _executor = null;
+  }
+
+  /**
+   * Get the property store path of the load record of a participant
+   * @param instanceName the participant
+   * @return the path
+   */
+  public static String getLoadPath(String instanceName) {
+    return LOAD_ROOT + "/" + instanceName;
+  }
+
+  /**
+   * Get the map field of a load record that holds the samples of a partition
+   * @param resourceName the resource
+   * @param partitionName the partition
+   * @return the map field key
+   */
+  public static String getSampleKey(String resourceName, String partitionName) {
+    return resourceName + "/" + partitionName;
+  }
+
+  /**
+   * Report the current load of a partition. It replaces the last sample of the same metric.
+   * @param resourceName the resource
+   * @param partitionName the partition
+   * @param metric the kind of load
+   * @param value the load
+   */
+  public synchronized void report(String resourceName, String partitionName, LoadMetric metric,
+      double value) {
+    String key = getSampleKey(resourceName, partitionName);
+    Map<String, String> sample = _samples.get(key);
+    if (sample == null) {
+      sample = new HashMap<String, String>();
+      _samples.put(key, sample);
+    }
+    String previous = sample.put(metric.toString(), Double.toString(value));
+    if (!Double.toString(value).equals(previous)) {
+      _dirty = true;
+    }
+  }
+
+  /**
+   * Stop reporting a partition, e.g. once it is dropped from this participant
+   * @param resourceName the resource
+   * @param partitionName the partition
+   */
+  public synchronized void remove(String resourceName, String partitionName) {
+    if (_samples.remove(getSampleKey(resourceName, partitionName)) != null) {
+      _dirty = true;
+    }
+  }
+
+  /**
+   * Write the samples to the property store if any changed since the last write, or if the last
+   * write is a refresh interval old
+   * @return true if they were written, false otherwise
+   */
+  public boolean flush() {
+    ZNRecord record = new ZNRecord(_manager.getInstanceName());
+    long now = System.currentTimeMillis();
+    synchronized (this) {
+      if (!_dirty && _lastWriteMs >= 0 && now - _lastWriteMs < _refreshIntervalMs) {
+        return false;
+      }
+      for (Map.Entry<String, Map<String, String>> entry : _samples.entrySet()) {
+        record.setMapField(entry.getKey(), new HashMap<String, String>(entry.getValue()));
+      }
+      _dirty = false;
+    }
+    record.setLongField(TIMESTAMP, now);
+    boolean written =
+        _manager.getHelixPropertyStore().set(getLoadPath(_manager.getInstanceName()), record,
+            AccessOption.PERSISTENT);
+    synchronized (this) {
+      if (written) {
+        _lastWriteMs = now;
+      } else {
+        _dirty = true;
+      }
+    }
+    if (!written) {
+      LOG.warn("Failed to write the partition loads of " + _manager.getInstanceName());
+    }
+    return written;
+  }
+
+  /**
+   * Start writing the samples in the background
+   */
+  public synchronized void start() {
+    if (_executor != null) {
+      return;
+    }
+    _executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "PartitionLoadReporter");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    _executor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          flush();
+        } catch (Exception e) {
+          LOG.error("Failed to write the partition loads of " + _manager.getInstanceName(), e);
+        }
+      }
+    }, _flushIntervalMs, Math.min(_flushIntervalMs, _refreshIntervalMs), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stop writing the samples in the background
+   */
+  public synchronized void stop() {
+    if (_executor != null) {
+      _executor.shutdownNow();
+      _executor = null;
+    }
+  }
+}
@@ -34,6 +34,7 @@ import org.apache.helix.HelixDataAccessor;
 import org.apache.helix.InstanceConfigChangeListener;
 import org.apache.helix.NotificationContext;
 import org.apache.helix.PropertyKey.Builder;
+import org.apache.helix.messaging.CriteriaIndex;
 import org.apache.helix.model.ExternalView;
 import org.apache.helix.model.InstanceConfig;
 import org.apache.log4j.Logger;
@@ -42,10 +43,20 @@ public class RoutingTableProvider implements ExternalViewChangeListener,
     InstanceConfigChangeListener {
   private static final Logger logger = Logger.getLogger(RoutingTableProvider.class);
   private final AtomicReference<RoutingTable> _routingTableRef;
+  private final CriteriaIndex _criteriaIndex;
 
   public RoutingTableProvider() {
-    _routingTableRef = new AtomicReference<RoutingTableProvider.RoutingTable>(new RoutingTable());
+    this(null);
+  }
 
+  /**
+   * Create a routing table provider that also keeps a messaging criteria index up to date with the
+   * external views it receives
+   * @param criteriaIndex the index to feed, or null
+   */
+  public RoutingTableProvider(CriteriaIndex criteriaIndex) {
+    _routingTableRef = new AtomicReference<RoutingTableProvider.RoutingTable>(new RoutingTable());
+    _criteriaIndex = criteriaIndex;
   }
 
   /**
@@ -104,6 +115,9 @@ public class RoutingTableProvider implements ExternalViewChangeListener,
   @Override
   public void onExternalViewChange(List<ExternalView> externalViewList,
       NotificationContext changeContext) {
+    if (_criteriaIndex != null) {
+      _criteriaIndex.onExternalViewChange(externalViewList, changeContext);
+    }
     // session has expired clean up the routing table
     if (changeContext.getType() == NotificationContext.Type.FINALIZE) {
       logger.info("Resetting the routing table. ");
@@ -127,6 +141,9 @@ public class RoutingTableProvider implements ExternalViewChangeListener,
     HelixDataAccessor accessor = changeContext.getManager().getHelixDataAccessor();
     Builder keyBuilder = accessor.keyBuilder();
     List<ExternalView> externalViewList = accessor.getChildValues(keyBuilder.externalViews());
+    if (_criteriaIndex != null) {
+      _criteriaIndex.onExternalViewChange(externalViewList, changeContext);
+    }
     refresh(externalViewList, changeContext);
   }
 
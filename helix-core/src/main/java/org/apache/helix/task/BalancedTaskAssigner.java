@@ -0,0 +1,131 @@
+package org.apache.helix.task;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.apache.helix.api.id.ParticipantId;
+
+/**
+ * Spreads independent, single-replica tasks over instances. Tasks that are already placed on an
+ * eligible instance stay there; every other task goes to the instance with the lowest load
+ * relative to its number of task slots, using a min-heap, so placing n tasks on m instances takes
+ * O(n log m).
+ */
+public class BalancedTaskAssigner {
+  private BalancedTaskAssigner() {
+  }
+
+  /**
+   * Compute an assignment of tasks to instances
+   * @param instances the eligible instances; ties go to the earlier instance
+   * @param slots the number of task slots of each instance; instances without slots get no tasks
+   * @param partitions the task partitions to place
+   * @param currentAssignment task partitions that are already placed, and where
+   * @return map of instance to the task partitions it should serve
+   */
+  public static Map<ParticipantId, SortedSet<Integer>> assign(List<ParticipantId> instances,
+      Map<ParticipantId, Integer> slots, Collection<Integer> partitions,
+      Map<Integer, ParticipantId> currentAssignment) {
+    Map<ParticipantId, InstanceLoad> loads = new HashMap<ParticipantId, InstanceLoad>();
+    int index = 0;
+    for (ParticipantId instance : instances) {
+      Integer numSlots = slots.get(instance);
+      if (numSlots != null && numSlots > 0) {
+        loads.put(instance, new InstanceLoad(instance, numSlots, index++));
+      }
+    }
+
+    // Keep tasks where they are, as long as their instance can still take tasks
+    Map<ParticipantId, SortedSet<Integer>> assignment =
+        new HashMap<ParticipantId, SortedSet<Integer>>();
+    List<Integer> unplaced = new ArrayList<Integer>();
+    for (int p : partitions) {
+      ParticipantId current = currentAssignment.get(p);
+      InstanceLoad load = (current != null) ? loads.get(current) : null;
+      if (load != null) {
+        add(assignment, current, p);
+        load._numTasks++;
+      } else {
+        unplaced.add(p);
+      }
+    }
+    if (loads.isEmpty()) {
+      return assignment;
+    }
+
+    // Give every other task to the least loaded instance
+    PriorityQueue<InstanceLoad> heap = new PriorityQueue<InstanceLoad>(loads.values());
+    Collections.sort(unplaced);
+    for (int p : unplaced) {
+      InstanceLoad load = heap.poll();
+      add(assignment, load._instance, p);
+      load._numTasks++;
+      heap.offer(load);
+    }
+    return assignment;
+  }
+
+  private static void add(Map<ParticipantId, SortedSet<Integer>> assignment,
+      ParticipantId instance, int p) {
+    SortedSet<Integer> set = assignment.get(instance);
+    if (set == null) {
+      set = new TreeSet<Integer>();
+      assignment.put(instance, set);
+    }
+    set.add(p);
+  }
+
+  /**
+   * Number of tasks placed on an instance, ordered by tasks per slot
+   */
+  private static class InstanceLoad implements Comparable<InstanceLoad> {
+    final ParticipantId _instance;
+    final int _numSlots;
+    final int _index;
+    int _numTasks;
+
+    InstanceLoad(ParticipantId instance, int numSlots, int index) {
+      _instance = instance;
+      _numSlots = numSlots;
+      _index = index;
+      _numTasks = 0;
+    }
+
+    @Override
+    public int compareTo(InstanceLoad other) {
+      // compare (tasks + 1) / slots without dividing, i.e. the load after one more task
+      long lhs = (long) (_numTasks + 1) * other._numSlots;
+      long rhs = (long) (other._numTasks + 1) * _numSlots;
+      if (lhs != rhs) {
+        return lhs < rhs ? -1 : 1;
+      }
+      return _index < other._index ? -1 : (_index == other._index ? 0 : 1);
+    }
+  }
+}
@@ -0,0 +1,227 @@
+package org.apache.helix.task;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.apache.helix.controller.stages.ClusterDataCache;
+
+/**
+ * A read-only form of a {@link JobDag} that the controller can query without parsing the DAG
+ * again. Jobs are numbered in name order, and the parents and children of each job are kept as
+ * arrays of job numbers. Each controller shares compiled DAGs through a {@link Cache} that keeps
+ * the latest DAG of each workflow, so a DAG is parsed once no matter how many of the workflow's
+ * jobs are rebalanced.
+ */
+public class CompiledJobDag {
+  // Controller attribute with the compiled DAGs of the cluster's workflows
+  private static final String CACHE = "COMPILED_JOB_DAGS";
+  private static final int CACHE_SIZE = 1024;
+
+  private final String[] _jobs;
+  private final Map<String, Integer> _index;
+  private final int[][] _parents;
+  private final int[][] _children;
+  private final SortedSet<String> _allNodes;
+
+  private CompiledJobDag(JobDag dag) {
+    _allNodes = Collections.unmodifiableSortedSet(new TreeSet<String>(dag.getAllNodes()));
+    _jobs = _allNodes.toArray(new String[_allNodes.size()]);
+    _index = new HashMap<String, Integer>();
+    for (int i = 0; i < _jobs.length; i++) {
+      _index.put(_jobs[i], i);
+    }
+    _parents = new int[_jobs.length][];
+    _children = new int[_jobs.length][];
+    for (int i = 0; i < _jobs.length; i++) {
+      _parents[i] = toIndexes(dag.getDirectParents(_jobs[i]));
+      _children[i] = toIndexes(dag.getDirectChildren(_jobs[i]));
+    }
+  }
+
+  /**
+   * Compile a DAG. The result does not change if the DAG is modified afterwards.
+   * @param dag the DAG to compile
+   * @return CompiledJobDag
+   */
+  public static CompiledJobDag compile(JobDag dag) {
+    return new CompiledJobDag(dag);
+  }
+
+  /**
+   * Get the compiled DAGs of a controller. They are dropped with the controller's other state
+   * after a leadership change.
+   * @param cache the cluster data of the controller
+   * @return the DAG cache of the controller's cluster, or null if there is no cluster data
+   */
+  public static Cache getCache(ClusterDataCache cache) {
+    return (cache != null) ? cache.getControllerAttribute(CACHE, new Cache()) : null;
+  }
+
+  /**
+   * Compile a workflow's serialized DAG, sharing it through a controller's DAG cache if there is
+   * one
+   * @param dags the DAG cache, or null to compile without caching
+   * @param workflow the workflow resource
+   * @param json the DAG, as written by {@link JobDag#toJson()}
+   * @return CompiledJobDag
+   */
+  public static CompiledJobDag fromJson(Cache dags, String workflow, String json) {
+    return (dags != null) ? dags.fromJson(workflow, json) : compile(JobDag.fromJson(json));
+  }
+
+  private int[] toIndexes(Set<String> jobs) {
+    int[] indexes = new int[jobs.size()];
+    int i = 0;
+    for (String job : jobs) {
+      Integer index = _index.get(job);
+      if (index == null) {
+        // an edge to a job that is no longer a node of the DAG
+        continue;
+      }
+      indexes[i++] = index;
+    }
+    if (i < indexes.length) {
+      int[] trimmed = new int[i];
+      System.arraycopy(indexes, 0, trimmed, 0, i);
+      return trimmed;
+    }
+    return indexes;
+  }
+
+  /**
+   * Build a modifiable {@link JobDag} with the same jobs and edges
+   * @return JobDag
+   */
+  public JobDag toJobDag() {
+    JobDag dag = new JobDag();
+    for (int i = 0; i < _jobs.length; i++) {
+      dag.addNode(_jobs[i]);
+      for (int child : _children[i]) {
+        dag.addParentToChild(_jobs[i], _jobs[child]);
+      }
+    }
+    return dag;
+  }
+
+  public int size() {
+    return _jobs.length;
+  }
+
+  public SortedSet<String> getAllNodes() {
+    return _allNodes;
+  }
+
+  /**
+   * Get the number of a job
+   * @param job the job name
+   * @return the job number, or -1 if the job is not in the DAG
+   */
+  public int indexOf(String job) {
+    Integer index = _index.get(job);
+    return (index != null) ? index : -1;
+  }
+
+  String getJob(int index) {
+    return _jobs[index];
+  }
+
+  int[] getParentIndexes(int index) {
+    return _parents[index];
+  }
+
+  int[] getChildIndexes(int index) {
+    return _children[index];
+  }
+
+  public Set<String> getDirectParents(String job) {
+    return toNames(_parents, job);
+  }
+
+  public Set<String> getDirectChildren(String job) {
+    return toNames(_children, job);
+  }
+
+  private Set<String> toNames(int[][] edges, String job) {
+    Set<String> names = new TreeSet<String>();
+    int index = indexOf(job);
+    if (index >= 0) {
+      for (int other : edges[index]) {
+        names.add(_jobs[other]);
+      }
+    }
+    return names;
+  }
+
+  /**
+   * The latest compiled DAG of each workflow in one cluster
+   */
+  public static class Cache {
+    // Workflow -> its most recently seen DAG
+    private final Map<String, CachedDag> _dags = new LinkedHashMap<String, CachedDag>(16, 0.75f,
+        true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CachedDag> eldest) {
+        return size() > CACHE_SIZE;
+      }
+    };
+
+    /**
+     * Get the compiled form of a workflow's serialized DAG. Only the latest DAG of each workflow
+     * is kept, along with its JSON, so the DAG is parsed again only when the JSON changes.
+     * @param workflow the workflow resource
+     * @param json the DAG, as written by {@link JobDag#toJson()}
+     * @return CompiledJobDag
+     */
+    public synchronized CompiledJobDag fromJson(String workflow, String json) {
+      CachedDag cached = _dags.get(workflow);
+      if (cached == null || !cached._json.equals(json)) {
+        cached = new CachedDag(json, compile(JobDag.fromJson(json)));
+        _dags.put(workflow, cached);
+      }
+      return cached._dag;
+    }
+
+    /**
+     * Forget the DAG of a workflow that was deleted
+     * @param workflow the workflow resource
+     */
+    public synchronized void remove(String workflow) {
+      _dags.remove(workflow);
+    }
+  }
+
+  private static class CachedDag {
+    private final String _json;
+    private final CompiledJobDag _dag;
+
+    private CachedDag(String json, CompiledJobDag dag) {
+      _json = json;
+      _dag = dag;
+    }
+  }
+}
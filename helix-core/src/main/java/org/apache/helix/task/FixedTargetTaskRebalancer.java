@@ -30,9 +30,7 @@ import java.util.TreeSet;
 
 import org.apache.helix.api.Cluster;
 import org.apache.helix.api.Resource;
-import org.apache.helix.api.State;
 import org.apache.helix.api.id.ParticipantId;
-import org.apache.helix.api.id.PartitionId;
 import org.apache.helix.api.id.ResourceId;
 import org.apache.helix.controller.stages.ResourceCurrentState;
 import org.apache.helix.model.IdealState;
@@ -65,8 +63,10 @@ public class FixedTargetTaskRebalancer extends TaskRebalancer {
       return Collections.emptyMap();
     }
     Set<String> tgtStates = jobCfg.getTargetPartitionStates();
-    return getTgtPartitionAssignment(currStateOutput, instances, tgtIs, tgtStates, partitionSet,
-        jobContext);
+    TargetPartitionIndex index =
+        TargetPartitionIndex.get(cache.getCache(), currStateOutput,
+            ResourceId.from(tgtIs.getResourceName()));
+    return getTgtPartitionAssignment(index, instances, tgtIs, tgtStates, partitionSet, jobContext);
   }
 
   /**
@@ -78,7 +78,7 @@ public class FixedTargetTaskRebalancer extends TaskRebalancer {
   private static IdealState getTgtIdealState(JobConfig jobCfg, Cluster cache) {
     String tgtResourceId = jobCfg.getTargetResource();
     Resource resource = cache.getResource(ResourceId.from(tgtResourceId));
-    return resource.getIdealState();
+    return (resource != null) ? resource.getIdealState() : null;
   }
 
   /**
@@ -118,19 +118,46 @@ public class FixedTargetTaskRebalancer extends TaskRebalancer {
     }
   }
 
+  @Override
+  protected List<ParticipantId> rankInstances(int pId, List<ParticipantId> instances,
+      ResourceCurrentState currStateOutput, JobConfig jobCfg, JobContext jobCtx, Cluster cache) {
+    String pName = jobCtx.getTargetForPartition(pId);
+    if (pName == null) {
+      return instances;
+    }
+    Set<String> tgtStates = jobCfg.getTargetPartitionStates();
+    String assigned = jobCtx.getAssignedParticipant(pId);
+    return getIndex(cache, currStateOutput, jobCfg).rankParticipants(pName, instances,
+        (tgtStates != null) ? Lists.newArrayList(tgtStates) : null,
+        (assigned != null) ? ParticipantId.from(assigned) : null);
+  }
+
+  @Override
+  protected void onTaskAssigned(int pId, ParticipantId instance,
+      ResourceCurrentState currStateOutput, JobConfig jobCfg, JobContext jobCtx, Cluster cache) {
+    getIndex(cache, currStateOutput, jobCfg).addLoad(instance);
+  }
+
+  private static TargetPartitionIndex getIndex(Cluster cache,
+      ResourceCurrentState currStateOutput, JobConfig jobCfg) {
+    return TargetPartitionIndex.get(cache.getCache(), currStateOutput,
+        ResourceId.from(jobCfg.getTargetResource()));
+  }
+
   /**
    * Get partition assignments for the target resource, but only for the partitions of interest.
-   * @param currStateOutput The current state of the instances in the cluster.
+   * A task may run on any replica of its target partition that is in one of the target states;
+   * {@link #rankInstances} decides which of them is tried first.
+   * @param index The shared view of where the target partitions are in this run.
    * @param instances The instances.
    * @param tgtIs The ideal state of the target resource.
-   * @param tgtStates Only partitions in this set of states will be considered. If null, partitions
-   *          do not need to
-   *          be in any specific state to be considered.
+   * @param tgtStates Only partitions in this set of states will be considered. If null,
+   *          partitions do not need to be in any specific state to be considered.
    * @param includeSet The set of partitions to consider.
    * @return A map of instance vs set of partition ids assigned to that instance.
    */
   private static Map<ParticipantId, SortedSet<Integer>> getTgtPartitionAssignment(
-      ResourceCurrentState currStateOutput, Collection<ParticipantId> instances, IdealState tgtIs,
+      TargetPartitionIndex index, Collection<ParticipantId> instances, IdealState tgtIs,
       Set<String> tgtStates, Set<Integer> includeSet, JobContext jobCtx) {
     Map<ParticipantId, SortedSet<Integer>> result =
         new HashMap<ParticipantId, SortedSet<Integer>>();
@@ -145,21 +172,15 @@ public class FixedTargetTaskRebalancer extends TaskRebalancer {
         continue;
       }
       int pId = partitions.get(0);
-      if (includeSet.contains(pId)) {
-        for (ParticipantId instance : instances) {
-          State pending =
-              currStateOutput.getPendingState(ResourceId.from(tgtIs.getResourceName()),
-                  PartitionId.from(pName), instance);
-          if (pending != null) {
-            continue;
-          }
-          State s =
-              currStateOutput.getCurrentState(ResourceId.from(tgtIs.getResourceName()),
-                  PartitionId.from(pName), instance);
-          String state = (s == null ? null : s.toString());
-          if (tgtStates == null || tgtStates.contains(state)) {
-            result.get(instance).add(pId);
-          }
+      if (!includeSet.contains(pId)) {
+        continue;
+      }
+      for (ParticipantId instance : instances) {
+        if (index.isPending(pName, instance)) {
+          continue;
+        }
+        if (tgtStates == null || index.isInState(pName, instance, tgtStates)) {
+          result.get(instance).add(pId);
         }
       }
     }
@@ -19,29 +19,26 @@ package org.apache.helix.task;
  * under the License.
  */
 
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
 
-import org.apache.helix.ZNRecord;
 import org.apache.helix.api.Cluster;
+import org.apache.helix.api.Participant;
 import org.apache.helix.api.Resource;
 import org.apache.helix.api.State;
 import org.apache.helix.api.id.ParticipantId;
 import org.apache.helix.api.id.PartitionId;
 import org.apache.helix.api.id.ResourceId;
 import org.apache.helix.controller.stages.ResourceCurrentState;
-import org.apache.helix.controller.strategy.AutoRebalanceStrategy;
 import org.apache.helix.model.IdealState;
+import org.apache.helix.model.InstanceConfig;
 import org.apache.helix.model.ResourceAssignment;
 
-import com.google.common.base.Function;
 import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
 import com.google.common.collect.Lists;
@@ -49,8 +46,8 @@ import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
 /**
- * This class does an assignment based on an automatic rebalancing strategy, rather than requiring
- * assignment to target partitions and states of another resource
+ * This class does an assignment that spreads tasks evenly over the task slots of the eligible
+ * instances, rather than requiring assignment to target partitions and states of another resource
  */
 public class GenericTaskRebalancer extends TaskRebalancer {
   /** Reassignment policy for this algorithm */
@@ -77,11 +74,7 @@ public class GenericTaskRebalancer extends TaskRebalancer {
       Collection<ParticipantId> instances, JobConfig jobCfg, final JobContext jobContext,
       WorkflowConfig workflowCfg, WorkflowContext workflowCtx, Set<Integer> partitionSet,
       Cluster cache) {
-    // Gather input to the full auto rebalancing algorithm
-    LinkedHashMap<State, Integer> states = new LinkedHashMap<State, Integer>();
-    states.put(State.from("ONLINE"), 1);
-
-    // Only map partitions whose assignment we care about
+    // Only keep partitions in place whose assignment we care about
     final Set<TaskPartitionState> honoredStates =
         Sets.newHashSet(TaskPartitionState.INIT, TaskPartitionState.RUNNING,
             TaskPartitionState.STOPPED);
@@ -93,65 +86,83 @@ public class GenericTaskRebalancer extends TaskRebalancer {
       }
     }
 
-    // Transform from partition id to fully qualified partition name
-    List<Integer> partitionNums = Lists.newArrayList(partitionSet);
-    Collections.sort(partitionNums);
-    final ResourceId resourceId = prevAssignment.getResourceId();
-    List<PartitionId> partitions =
-        new ArrayList<PartitionId>(Lists.transform(partitionNums,
-            new Function<Integer, PartitionId>() {
-              @Override
-              public PartitionId apply(Integer partitionNum) {
-                return PartitionId.from(resourceId + "_" + partitionNum);
-              }
-            }));
+    // Compute the number of task slots of each instance
+    List<ParticipantId> allNodes =
+        Lists.newArrayList(getEligibleInstances(jobCfg, currStateOutput, instances, cache));
+    Collections.sort(allNodes);
+    Map<ParticipantId, Integer> slots = Maps.newHashMap();
+    for (ParticipantId participantId : allNodes) {
+      slots.put(participantId, getNumTaskSlots(jobCfg, participantId, cache));
+    }
 
-    // Compute the current assignment
-    Map<PartitionId, Map<ParticipantId, State>> currentMapping = Maps.newHashMap();
+    // Compute the current assignment, preferring pending over current over previous decisions
+    ResourceId resourceId = prevAssignment.getResourceId();
+    Set<ParticipantId> eligible = Sets.newHashSet(allNodes);
+    Map<Integer, ParticipantId> currentAssignment = Maps.newHashMap();
     for (PartitionId partition : currStateOutput.getCurrentStateMappedPartitions(resourceId)) {
-      if (!filteredPartitionSet.contains(pId(partition.toString()))) {
+      int p = pId(partition.toString());
+      if (!filteredPartitionSet.contains(p)) {
         // not computing old partitions
         continue;
       }
-      Map<ParticipantId, State> allPreviousDecisionMap = Maps.newHashMap();
-      if (prevAssignment != null) {
-        allPreviousDecisionMap.putAll(prevAssignment.getReplicaMap(partition));
+      ParticipantId participantId =
+          getEligibleParticipant(currStateOutput.getPendingStateMap(resourceId, partition),
+              eligible);
+      if (participantId == null) {
+        participantId =
+            getEligibleParticipant(currStateOutput.getCurrentStateMap(resourceId, partition),
+                eligible);
       }
-      allPreviousDecisionMap.putAll(currStateOutput.getCurrentStateMap(resourceId, partition));
-      allPreviousDecisionMap.putAll(currStateOutput.getPendingStateMap(resourceId, partition));
-      currentMapping.put(partition, allPreviousDecisionMap);
-    }
-
-    // Get the assignment keyed on partition
-    AutoRebalanceStrategy strategy =
-        new AutoRebalanceStrategy(resourceId, partitions, states, Integer.MAX_VALUE,
-            new AutoRebalanceStrategy.DefaultPlacementScheme());
-    List<ParticipantId> allNodes =
-        Lists.newArrayList(getEligibleInstances(jobCfg, currStateOutput, instances, cache));
-    Collections.sort(allNodes);
-    ZNRecord record = strategy.typedComputePartitionAssignment(allNodes, currentMapping, allNodes);
-    Map<String, List<String>> preferenceLists = record.getListFields();
-
-    // Convert to an assignment keyed on participant
-    Map<ParticipantId, SortedSet<Integer>> taskAssignment = Maps.newHashMap();
-    for (Map.Entry<String, List<String>> e : preferenceLists.entrySet()) {
-      String partitionName = e.getKey();
-      partitionName = String.valueOf(pId(partitionName));
-      List<String> preferenceList = e.getValue();
-      for (String participantName : preferenceList) {
-        ParticipantId participantId = ParticipantId.from(participantName);
-        if (!taskAssignment.containsKey(participantId)) {
-          taskAssignment.put(participantId, new TreeSet<Integer>());
-        }
-        taskAssignment.get(participantId).add(Integer.valueOf(partitionName));
+      if (participantId == null) {
+        participantId = getEligibleParticipant(prevAssignment.getReplicaMap(partition), eligible);
+      }
+      if (participantId != null) {
+        currentAssignment.put(p, participantId);
       }
     }
 
+    // Keep tasks in place and spread the rest over the least loaded instances
+    Map<ParticipantId, SortedSet<Integer>> taskAssignment =
+        BalancedTaskAssigner.assign(allNodes, slots, partitionSet, currentAssignment);
+
     // Finally, adjust the assignment if tasks have been failing
     taskAssignment = _retryPolicy.reassign(jobCfg, jobContext, allNodes, taskAssignment);
     return taskAssignment;
   }
 
+  /**
+   * Get the number of tasks of a job that an instance can run at once. An instance can lower the
+   * job-wide limit with the {@link TaskConstants#TASK_CAPACITY} field of its config.
+   * @param jobCfg the job configuration
+   * @param participantId the instance
+   * @param cache current snapshot of the cluster
+   * @return the number of task slots
+   */
+  private int getNumTaskSlots(JobConfig jobCfg, ParticipantId participantId, Cluster cache) {
+    int numSlots = jobCfg.getNumConcurrentTasksPerInstance();
+    Participant participant = cache.getParticipantMap().get(participantId);
+    InstanceConfig instanceConfig = (participant != null) ? participant.getInstanceConfig() : null;
+    if (instanceConfig != null) {
+      int capacity = instanceConfig.getRecord().getIntField(TaskConstants.TASK_CAPACITY, -1);
+      if (capacity >= 0) {
+        numSlots = Math.min(numSlots, capacity);
+      }
+    }
+    return numSlots;
+  }
+
+  private static ParticipantId getEligibleParticipant(Map<ParticipantId, State> stateMap,
+      Set<ParticipantId> eligible) {
+    if (stateMap != null) {
+      for (ParticipantId participantId : stateMap.keySet()) {
+        if (eligible.contains(participantId)) {
+          return participantId;
+        }
+      }
+    }
+    return null;
+  }
+
   /**
    * Filter a list of instances based on targeted resource policies
    * @param jobCfg the job configuration
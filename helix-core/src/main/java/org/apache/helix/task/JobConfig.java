@@ -22,7 +22,7 @@ package org.apache.helix.task;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -46,7 +46,8 @@ public class JobConfig {
   public static final String TARGET_RESOURCE = "TargetResource";
   /**
    * The set of the target partition states. The value must be a comma-separated list of partition
-   * states.
+   * states, in order of preference: a task goes to a replica in the first listed state, and only
+   * falls back to the next state if no replica of its target partition is in that state.
    */
   public static final String TARGET_PARTITION_STATES = "TargetPartitionStates";
   /**
@@ -69,6 +70,16 @@ public class JobConfig {
   public static final String FAILURE_THRESHOLD = "FailureThreshold";
   /** The amount of time in ms to wait before retrying a task */
   public static final String TASK_RETRY_DELAY = "TaskRetryDelay";
+  /**
+   * Whether the tasks of the job run on the task pool of its workflow instead of on a resource of
+   * their own
+   */
+  public static final String LIGHTWEIGHT = "Lightweight";
+  /**
+   * How many times longer than the median task of the job a task may take before a second copy of
+   * it is started on another instance; the first copy to finish wins. Not set means no copies.
+   */
+  public static final String SPECULATION_THRESHOLD = "SpeculationThreshold";
 
   /** The individual task configurations, if any **/
   public static final String TASK_CONFIGS = "TaskConfigs";
@@ -81,6 +92,7 @@ public class JobConfig {
   public static final int DEFAULT_NUM_CONCURRENT_TASKS_PER_INSTANCE = 1;
   public static final int DEFAULT_FAILURE_THRESHOLD = 0;
   public static final int DEFAULT_MAX_FORCED_REASSIGNMENTS_PER_TASK = 0;
+  public static final double DEFAULT_SPECULATION_THRESHOLD = -1; // no speculation
 
   private final String _workflow;
   private final String _targetResource;
@@ -94,13 +106,15 @@ public class JobConfig {
   private final int _maxForcedReassignmentsPerTask;
   private final int _failureThreshold;
   private final long _retryDelay;
+  private final boolean _lightweight;
+  private final double _speculationThreshold;
   private final Map<String, TaskConfig> _taskConfigMap;
 
   private JobConfig(String workflow, String targetResource, List<String> targetPartitions,
       Set<String> targetPartitionStates, String command, Map<String, String> jobCommandConfigMap,
       long timeoutPerTask, int numConcurrentTasksPerInstance, int maxAttemptsPerTask,
       int maxForcedReassignmentsPerTask, int failureThreshold, long retryDelay,
-      Map<String, TaskConfig> taskConfigMap) {
+      boolean lightweight, double speculationThreshold, Map<String, TaskConfig> taskConfigMap) {
     _workflow = workflow;
     _targetResource = targetResource;
     _targetPartitions = targetPartitions;
@@ -113,6 +127,8 @@ public class JobConfig {
     _maxForcedReassignmentsPerTask = maxForcedReassignmentsPerTask;
     _failureThreshold = failureThreshold;
     _retryDelay = retryDelay;
+    _lightweight = lightweight;
+    _speculationThreshold = speculationThreshold;
     if (taskConfigMap != null) {
       _taskConfigMap = taskConfigMap;
     } else {
@@ -168,6 +184,14 @@ public class JobConfig {
     return _retryDelay;
   }
 
+  public boolean isLightweight() {
+    return _lightweight;
+  }
+
+  public double getSpeculationThreshold() {
+    return _speculationThreshold;
+  }
+
   public Map<String, TaskConfig> getTaskConfigMap() {
     return _taskConfigMap;
   }
@@ -200,6 +224,12 @@ public class JobConfig {
     if (_retryDelay > 0) {
       cfgMap.put(JobConfig.TASK_RETRY_DELAY, "" + _retryDelay);
     }
+    if (_lightweight) {
+      cfgMap.put(JobConfig.LIGHTWEIGHT, "" + _lightweight);
+    }
+    if (_speculationThreshold > 0) {
+      cfgMap.put(JobConfig.SPECULATION_THRESHOLD, "" + _speculationThreshold);
+    }
     cfgMap.put(JobConfig.TIMEOUT_PER_TASK, "" + _timeoutPerTask);
     cfgMap.put(JobConfig.MAX_ATTEMPTS_PER_TASK, "" + _maxAttemptsPerTask);
     cfgMap.put(JobConfig.MAX_FORCED_REASSIGNMENTS_PER_TASK, "" + _maxForcedReassignmentsPerTask);
@@ -224,6 +254,8 @@ public class JobConfig {
     private int _maxForcedReassignmentsPerTask = DEFAULT_MAX_FORCED_REASSIGNMENTS_PER_TASK;
     private int _failureThreshold = DEFAULT_FAILURE_THRESHOLD;
     private long _retryDelay = DEFAULT_TASK_RETRY_DELAY;
+    private boolean _lightweight = false;
+    private double _speculationThreshold = DEFAULT_SPECULATION_THRESHOLD;
 
     public JobConfig build() {
       validate();
@@ -231,7 +263,7 @@ public class JobConfig {
       return new JobConfig(_workflow, _targetResource, _targetPartitions, _targetPartitionStates,
           _command, _commandConfig, _timeoutPerTask, _numConcurrentTasksPerInstance,
           _maxAttemptsPerTask, _maxForcedReassignmentsPerTask, _failureThreshold, _retryDelay,
-          _taskConfigMap);
+          _lightweight, _speculationThreshold, _taskConfigMap);
     }
 
     /**
@@ -251,7 +283,7 @@ public class JobConfig {
         b.setTargetPartitions(csvToStringList(cfg.get(TARGET_PARTITIONS)));
       }
       if (cfg.containsKey(TARGET_PARTITION_STATES)) {
-        b.setTargetPartitionStates(new HashSet<String>(Arrays.asList(cfg.get(
+        b.setTargetPartitionStates(new LinkedHashSet<String>(Arrays.asList(cfg.get(
             TARGET_PARTITION_STATES).split(","))));
       }
       if (cfg.containsKey(COMMAND)) {
@@ -282,6 +314,12 @@ public class JobConfig {
       if (cfg.containsKey(TASK_RETRY_DELAY)) {
         b.setTaskRetryDelay(Long.parseLong(cfg.get(TASK_RETRY_DELAY)));
       }
+      if (cfg.containsKey(LIGHTWEIGHT)) {
+        b.setLightweight(Boolean.parseBoolean(cfg.get(LIGHTWEIGHT)));
+      }
+      if (cfg.containsKey(SPECULATION_THRESHOLD)) {
+        b.setSpeculationThreshold(Double.parseDouble(cfg.get(SPECULATION_THRESHOLD)));
+      }
       return b;
     }
 
@@ -345,6 +383,26 @@ public class JobConfig {
       return this;
     }
 
+    /**
+     * Run the tasks of this job on the task pool of its workflow. Many small jobs can share the pool
+     * without each becoming a Helix resource. Only jobs with explicit task configs can be
+     * lightweight.
+     */
+    public Builder setLightweight(boolean v) {
+      _lightweight = v;
+      return this;
+    }
+
+    /**
+     * Start a second copy of a task on another instance once it runs this many times longer than
+     * the median finished task of the job, or is projected to from the progress it reports. Only
+     * jobs with explicit task configs can use speculation.
+     */
+    public Builder setSpeculationThreshold(double v) {
+      _speculationThreshold = v;
+      return this;
+    }
+
     public Builder addTaskConfigs(List<TaskConfig> taskConfigs) {
       if (taskConfigs != null) {
         for (TaskConfig taskConfig : taskConfigs) {
@@ -394,6 +452,17 @@ public class JobConfig {
       if (_workflow == null) {
         throw new IllegalArgumentException(String.format("%s cannot be null", WORKFLOW_ID));
       }
+      if (_lightweight && _taskConfigMap.isEmpty()) {
+        throw new IllegalArgumentException(String.format("%s requires task configs", LIGHTWEIGHT));
+      }
+      if (_speculationThreshold > 0 && _speculationThreshold < 1) {
+        throw new IllegalArgumentException(String.format("%s has invalid value %s",
+            SPECULATION_THRESHOLD, _speculationThreshold));
+      }
+      if (_speculationThreshold > 0 && _taskConfigMap.isEmpty()) {
+        throw new IllegalArgumentException(String.format("%s requires task configs",
+            SPECULATION_THRESHOLD));
+      }
     }
 
     private static List<String> csvToStringList(String csv) {
@@ -34,7 +34,8 @@ import com.google.common.collect.Sets;
 
 /**
  * Provides a typed interface to the context information stored by {@link TaskRebalancer} in the
- * Helix property store.
+ * Helix property store. In memory the record has one map field per partition; it is split into
+ * compact buckets by {@link JobContextBucketizer} when it is stored.
  */
 public class JobContext extends HelixProperty {
   private enum ContextProperties {
@@ -45,7 +46,9 @@ public class JobContext extends HelixProperty {
     TARGET,
     TASK_ID,
     ASSIGNED_PARTICIPANT,
-    NEXT_RETRY_TIME
+    NEXT_RETRY_TIME,
+    SPECULATIVE_PARTICIPANT,
+    SPECULATION_TIME
   }
 
   public JobContext(ZNRecord record) {
@@ -121,6 +124,23 @@ public class JobContext extends HelixProperty {
     return Integer.parseInt(nStr);
   }
 
+  public void setPartitionStartTime(int p, long t) {
+    Map<String, String> map = getMapField(p);
+    map.put(ContextProperties.START_TIME.toString(), String.valueOf(t));
+  }
+
+  public long getPartitionStartTime(int p) {
+    Map<String, String> map = getMapField(p);
+    if (map == null) {
+      return -1;
+    }
+    String tStr = map.get(ContextProperties.START_TIME.toString());
+    if (tStr == null) {
+      return -1;
+    }
+    return Long.parseLong(tStr);
+  }
+
   public void setPartitionFinishTime(int p, long t) {
     Map<String, String> map = getMapField(p);
     map.put(ContextProperties.FINISH_TIME.toString(), String.valueOf(t));
@@ -208,6 +228,42 @@ public class JobContext extends HelixProperty {
     return (map != null) ? map.get(ContextProperties.ASSIGNED_PARTICIPANT.toString()) : null;
   }
 
+  /**
+   * Record the instance that runs a speculative copy of a task, next to the assigned participant
+   * @param p the partition
+   * @param participantName the instance, or null if there is no copy
+   */
+  public void setSpeculativeParticipant(int p, String participantName) {
+    Map<String, String> map = getMapField(p);
+    if (participantName != null) {
+      map.put(ContextProperties.SPECULATIVE_PARTICIPANT.toString(), participantName);
+    } else {
+      map.remove(ContextProperties.SPECULATIVE_PARTICIPANT.toString());
+    }
+  }
+
+  public String getSpeculativeParticipant(int p) {
+    Map<String, String> map = getMapField(p);
+    return (map != null) ? map.get(ContextProperties.SPECULATIVE_PARTICIPANT.toString()) : null;
+  }
+
+  public void setSpeculationTime(int p, long t) {
+    Map<String, String> map = getMapField(p);
+    map.put(ContextProperties.SPECULATION_TIME.toString(), String.valueOf(t));
+  }
+
+  public long getSpeculationTime(int p) {
+    Map<String, String> map = getMapField(p);
+    if (map == null) {
+      return -1;
+    }
+    String tStr = map.get(ContextProperties.SPECULATION_TIME.toString());
+    if (tStr == null) {
+      return -1;
+    }
+    return Long.parseLong(tStr);
+  }
+
   public void setNextRetryTime(int p, long t) {
     Map<String, String> map = getMapField(p);
     map.put(ContextProperties.NEXT_RETRY_TIME.toString(), String.valueOf(t));
@@ -0,0 +1,288 @@
+package org.apache.helix.task;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.helix.ZNRecord;
+
+/**
+ * Splits the per-partition fields of a {@link JobContext} record into buckets of consecutive
+ * partitions, so that the context of a job with many tasks neither exceeds the znode size limit
+ * nor needs to be rewritten as a whole when a few tasks change.
+ * <p>
+ * Bucket 0 is the head record: it holds the job-level simple fields, the list of other buckets
+ * and the partitions of bucket 0, so small jobs still take a single znode. Each bucket stores its
+ * partitions column by column in list fields, one list per partition field, rather than one map
+ * per partition; columns whose values are all numbers are stored as deltas from the previous
+ * value, which keeps attempt counts, timestamps and the partition numbers themselves short.
+ * Contexts written before this format, with one map field per partition, are read as they are.
+ * </p>
+ */
+public class JobContextBucketizer {
+  /** Number of partitions per bucket used by the task framework */
+  public static final int DEFAULT_BUCKET_SIZE = 1000;
+
+  // bookkeeping fields of the head record
+  static final String BUCKET_SIZE = "BUCKET_SIZE";
+  static final String BUCKETS = "BUCKETS";
+  // column of partition numbers, present in every bucket
+  static final String PARTITION_COLUMN = "PARTITION";
+  // suffix of columns stored as deltas
+  static final String DELTA_SUFFIX = "#delta";
+
+  private final int _bucketSize;
+
+  /**
+   * Instantiate a bucketizer
+   * @param bucketSize the number of consecutive partitions per bucket
+   */
+  public JobContextBucketizer(int bucketSize) {
+    if (bucketSize <= 0) {
+      throw new IllegalArgumentException("bucketSize must be positive, was " + bucketSize);
+    }
+    _bucketSize = bucketSize;
+  }
+
+  /**
+   * Get the bucket that holds a partition
+   * @param partition the partition number
+   * @return the bucket index
+   */
+  public int getBucket(int partition) {
+    return partition / _bucketSize;
+  }
+
+  /**
+   * Split a context record into buckets
+   * @param context the context record, with one map field per partition
+   * @return bucket index to bucket record, always including the head bucket 0
+   */
+  public Map<Integer, ZNRecord> bucketize(ZNRecord context) {
+    // group partitions by bucket, in partition order
+    SortedMap<Integer, SortedMap<Integer, Map<String, String>>> grouped =
+        new TreeMap<Integer, SortedMap<Integer, Map<String, String>>>();
+    grouped.put(0, new TreeMap<Integer, Map<String, String>>());
+    for (Map.Entry<String, Map<String, String>> e : context.getMapFields().entrySet()) {
+      int partition = Integer.parseInt(e.getKey());
+      int bucket = getBucket(partition);
+      SortedMap<Integer, Map<String, String>> partitions = grouped.get(bucket);
+      if (partitions == null) {
+        partitions = new TreeMap<Integer, Map<String, String>>();
+        grouped.put(bucket, partitions);
+      }
+      partitions.put(partition, e.getValue());
+    }
+
+    Map<Integer, ZNRecord> buckets = new TreeMap<Integer, ZNRecord>();
+    for (Map.Entry<Integer, SortedMap<Integer, Map<String, String>>> e : grouped.entrySet()) {
+      int bucket = e.getKey();
+      ZNRecord record =
+          new ZNRecord(bucket == 0 ? context.getId() : context.getId() + "_" + bucket);
+      encode(e.getValue(), record);
+      buckets.put(bucket, record);
+    }
+
+    ZNRecord head = buckets.get(0);
+    head.getSimpleFields().putAll(context.getSimpleFields());
+    head.setSimpleField(BUCKET_SIZE, String.valueOf(_bucketSize));
+    List<String> others = new ArrayList<String>();
+    for (int bucket : grouped.keySet()) {
+      if (bucket != 0) {
+        others.add(String.valueOf(bucket));
+      }
+    }
+    head.setListField(BUCKETS, others);
+    return buckets;
+  }
+
+  /**
+   * Check if a record was written by {@link #bucketize(ZNRecord)}
+   * @param head the head record
+   * @return true if bucketized, false if it is a context with one map field per partition
+   */
+  public static boolean isBucketized(ZNRecord head) {
+    return head.getSimpleField(BUCKET_SIZE) != null;
+  }
+
+  /**
+   * Get the bucket size that a head record was written with
+   * @param head the head record
+   * @return the bucket size
+   */
+  public static int getBucketSize(ZNRecord head) {
+    return Integer.parseInt(head.getSimpleField(BUCKET_SIZE));
+  }
+
+  /**
+   * Get the buckets, other than the head, that a context is split into
+   * @param head the head record
+   * @return bucket indices, in increasing order
+   */
+  public static List<Integer> getBuckets(ZNRecord head) {
+    List<String> others = head.getListField(BUCKETS);
+    if (others == null) {
+      return Collections.emptyList();
+    }
+    List<Integer> buckets = new ArrayList<Integer>(others.size());
+    for (String bucket : others) {
+      buckets.add(Integer.valueOf(bucket));
+    }
+    Collections.sort(buckets);
+    return buckets;
+  }
+
+  /**
+   * Reassemble a context record from its buckets
+   * @param head the head record
+   * @param buckets the other bucket records; missing buckets may be null or left out
+   * @return the context record, with one map field per partition
+   */
+  public static ZNRecord merge(ZNRecord head, Collection<ZNRecord> buckets) {
+    if (!isBucketized(head)) {
+      return head;
+    }
+    ZNRecord context = new ZNRecord(head.getId());
+    context.getSimpleFields().putAll(head.getSimpleFields());
+    context.getSimpleFields().remove(BUCKET_SIZE);
+    decode(head, context);
+    if (buckets != null) {
+      for (ZNRecord bucket : buckets) {
+        if (bucket != null) {
+          decode(bucket, context);
+        }
+      }
+    }
+    return context;
+  }
+
+  private static void encode(SortedMap<Integer, Map<String, String>> partitions, ZNRecord record) {
+    int n = partitions.size();
+    Map<String, List<String>> columns = new TreeMap<String, List<String>>();
+    List<String> partitionColumn = new ArrayList<String>(n);
+    int row = 0;
+    for (Map.Entry<Integer, Map<String, String>> e : partitions.entrySet()) {
+      partitionColumn.add(String.valueOf(e.getKey()));
+      for (Map.Entry<String, String> field : e.getValue().entrySet()) {
+        List<String> column = columns.get(field.getKey());
+        if (column == null) {
+          column = new ArrayList<String>(Collections.<String> nCopies(n, null));
+          columns.put(field.getKey(), column);
+        }
+        column.set(row, field.getValue());
+      }
+      row++;
+    }
+    columns.put(PARTITION_COLUMN, partitionColumn);
+
+    for (Map.Entry<String, List<String>> e : columns.entrySet()) {
+      List<String> deltas = toDeltas(e.getValue());
+      if (deltas != null) {
+        record.setListField(e.getKey() + DELTA_SUFFIX, deltas);
+      } else {
+        record.setListField(e.getKey(), e.getValue());
+      }
+    }
+  }
+
+  private static void decode(ZNRecord record, ZNRecord context) {
+    List<String> partitionColumn = getColumn(record, PARTITION_COLUMN);
+    if (partitionColumn == null) {
+      return;
+    }
+    List<Map<String, String>> rows = new ArrayList<Map<String, String>>(partitionColumn.size());
+    for (String partition : partitionColumn) {
+      Map<String, String> map = new TreeMap<String, String>();
+      context.setMapField(partition, map);
+      rows.add(map);
+    }
+    for (String key : record.getListFields().keySet()) {
+      String field =
+          key.endsWith(DELTA_SUFFIX) ? key.substring(0, key.length() - DELTA_SUFFIX.length())
+              : key;
+      if (field.equals(PARTITION_COLUMN) || field.equals(BUCKETS)) {
+        continue;
+      }
+      List<String> column = getColumn(record, field);
+      for (int i = 0; i < column.size() && i < rows.size(); i++) {
+        if (column.get(i) != null) {
+          rows.get(i).put(field, column.get(i));
+        }
+      }
+    }
+  }
+
+  private static List<String> getColumn(ZNRecord record, String field) {
+    List<String> column = record.getListField(field);
+    if (column != null) {
+      return column;
+    }
+    List<String> deltas = record.getListField(field + DELTA_SUFFIX);
+    return (deltas != null) ? fromDeltas(deltas) : null;
+  }
+
+  /**
+   * Encode a column of numbers as differences from the previous number, skipping missing values
+   * @return the encoded column, or null if some value is not a number
+   */
+  private static List<String> toDeltas(List<String> column) {
+    List<String> deltas = new ArrayList<String>(column.size());
+    long prev = 0;
+    for (String value : column) {
+      if (value == null) {
+        deltas.add(null);
+        continue;
+      }
+      long v;
+      try {
+        v = Long.parseLong(value);
+      } catch (NumberFormatException e) {
+        return null;
+      }
+      if (!String.valueOf(v).equals(value)) {
+        // e.g. a leading zero or plus sign would not survive the round trip
+        return null;
+      }
+      deltas.add(String.valueOf(v - prev));
+      prev = v;
+    }
+    return deltas;
+  }
+
+  private static List<String> fromDeltas(List<String> deltas) {
+    List<String> column = new ArrayList<String>(deltas.size());
+    long prev = 0;
+    for (String delta : deltas) {
+      if (delta == null) {
+        column.add(null);
+        continue;
+      }
+      prev += Long.parseLong(delta);
+      column.add(String.valueOf(prev));
+    }
+    return column;
+  }
+}
@@ -0,0 +1,189 @@
+package org.apache.helix.task;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.helix.controller.stages.ClusterDataCache;
+
+/**
+ * Tracks which jobs of a workflow have all of their parents completed. Each job keeps a count of
+ * parents that have not completed yet; when a parent is seen to complete, the counts of its
+ * children drop and the ones that reach zero join the ready set. A completion is only ever
+ * applied once, so checking a job costs at most the parents it is still waiting on, rather than
+ * a walk over the workflow's DAG.
+ * <p/>
+ * A tracker belongs to one compiled DAG and one run of a workflow. If the DAG changes or the
+ * workflow context is recreated, a new tracker is started. The trackers of a cluster are kept by
+ * its controller, and dropped after a leadership change.
+ */
+public class JobDagReadiness {
+  // Controller attribute with the trackers of the cluster's workflows
+  private static final String TRACKERS = "JOB_DAG_READINESS";
+  private static final int CACHE_SIZE = 10000;
+
+  private final CompiledJobDag _dag;
+  private final long _workflowStartTime;
+  private final int[] _waitingOn;
+  private final boolean[] _completed;
+  private final Set<String> _ready;
+
+  /**
+   * Create a tracker with no completed jobs
+   * @param dag the DAG of the workflow
+   * @param workflowStartTime start time from the workflow context
+   */
+  public JobDagReadiness(CompiledJobDag dag, long workflowStartTime) {
+    _dag = dag;
+    _workflowStartTime = workflowStartTime;
+    _waitingOn = new int[dag.size()];
+    _completed = new boolean[dag.size()];
+    _ready = new TreeSet<String>();
+    for (int i = 0; i < dag.size(); i++) {
+      _waitingOn[i] = dag.getParentIndexes(i).length;
+      if (_waitingOn[i] == 0) {
+        _ready.add(dag.getJob(i));
+      }
+    }
+  }
+
+  /**
+   * Get the tracker of a workflow, starting a new one if the DAG or the workflow run changed
+   * @param cache the cluster data of the controller, or null for a tracker that is not kept
+   * @param workflow the workflow name
+   * @param dag the current DAG of the workflow
+   * @param workflowCtx the current context of the workflow
+   * @return JobDagReadiness
+   */
+  public static JobDagReadiness get(ClusterDataCache cache, String workflow, CompiledJobDag dag,
+      WorkflowContext workflowCtx) {
+    if (cache == null) {
+      return new JobDagReadiness(dag, workflowCtx.getStartTime());
+    }
+    Map<String, JobDagReadiness> trackers = getTrackers(cache);
+    synchronized (trackers) {
+      JobDagReadiness tracker = trackers.get(workflow);
+      if (tracker == null || tracker._dag != dag
+          || tracker._workflowStartTime != workflowCtx.getStartTime()) {
+        tracker = new JobDagReadiness(dag, workflowCtx.getStartTime());
+        trackers.put(workflow, tracker);
+      }
+      return tracker;
+    }
+  }
+
+  /**
+   * Forget the tracker of a workflow
+   * @param cache the cluster data of the controller, or null
+   * @param workflow the workflow name
+   */
+  public static void remove(ClusterDataCache cache, String workflow) {
+    if (cache == null) {
+      return;
+    }
+    Map<String, JobDagReadiness> trackers = getTrackers(cache);
+    synchronized (trackers) {
+      trackers.remove(workflow);
+    }
+  }
+
+  private static Map<String, JobDagReadiness> getTrackers(ClusterDataCache cache) {
+    return cache.getControllerAttribute(TRACKERS, new LinkedHashMap<String, JobDagReadiness>(16,
+        0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, JobDagReadiness> eldest) {
+        return size() > CACHE_SIZE;
+      }
+    });
+  }
+
+  /**
+   * Check if all parents of a job have completed. Only the parents that were not already known
+   * to be complete are looked up in the context.
+   * @param job the job name
+   * @param workflowCtx the current context of the workflow
+   * @return true if the job may run, false otherwise; a job that is not in the DAG has no parents
+   *         to wait on
+   */
+  public synchronized boolean isReady(String job, WorkflowContext workflowCtx) {
+    int index = _dag.indexOf(job);
+    if (index < 0) {
+      return true;
+    }
+    if (_waitingOn[index] > 0) {
+      for (int parent : _dag.getParentIndexes(index)) {
+        if (!_completed[parent]
+            && workflowCtx.getJobState(_dag.getJob(parent)) == TaskState.COMPLETED) {
+          complete(parent);
+        }
+      }
+    }
+    return _waitingOn[index] == 0;
+  }
+
+  /**
+   * Record that a job completed, releasing the children that were only waiting on it
+   * @param job the job name
+   */
+  public synchronized void markCompleted(String job) {
+    int index = _dag.indexOf(job);
+    if (index >= 0 && !_completed[index]) {
+      complete(index);
+    }
+  }
+
+  /**
+   * Apply all completions found in a workflow context
+   * @param workflowCtx the current context of the workflow
+   */
+  public synchronized void update(WorkflowContext workflowCtx) {
+    Map<String, String> jobStates = workflowCtx.getRecord().getMapField(WorkflowContext.JOB_STATES);
+    if (jobStates == null) {
+      return;
+    }
+    for (Map.Entry<String, String> e : jobStates.entrySet()) {
+      if (TaskState.COMPLETED.name().equals(e.getValue())) {
+        markCompleted(e.getKey());
+      }
+    }
+  }
+
+  /**
+   * Get the jobs that have all parents completed but have not completed themselves
+   * @return set of job names
+   */
+  public synchronized Set<String> getReadyJobs() {
+    return new TreeSet<String>(_ready);
+  }
+
+  private void complete(int index) {
+    _completed[index] = true;
+    _ready.remove(_dag.getJob(index));
+    for (int child : _dag.getChildIndexes(index)) {
+      if (--_waitingOn[child] == 0 && !_completed[child]) {
+        _ready.add(_dag.getJob(child));
+      }
+    }
+  }
+}
@@ -0,0 +1,257 @@
+package org.apache.helix.task;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.I0Itec.zkclient.DataUpdater;
+import org.apache.helix.AccessOption;
+import org.apache.helix.HelixDataAccessor;
+import org.apache.helix.HelixManager;
+import org.apache.helix.HelixProperty;
+import org.apache.helix.ZNRecord;
+import org.apache.helix.controller.stages.ClusterDataCache;
+import org.apache.helix.store.HelixPropertyStore;
+import org.apache.log4j.Logger;
+
+/**
+ * Jobs that were added to a job queue but are not in its DAG yet. Producers append each job as
+ * its own sequential znode, so concurrent producers never write the same znode. The controller
+ * folds the backlog into the queue's DAG in batches, with one update of the queue config per
+ * batch, and removes the entries it consumed.
+ */
+public class JobQueueBacklog {
+  private static final Logger LOG = Logger.getLogger(JobQueueBacklog.class);
+
+  /** Maximum number of jobs appended to the DAG in one update */
+  public static final int MAX_FOLD_BATCH_SIZE = 1000;
+
+  private static final String ENTRY_PREFIX = "job";
+
+  // Run attribute with the config of each queue after its backlog was folded in the run
+  private static final String FOLDED_QUEUES = "FOLDED_QUEUES";
+
+  /**
+   * Add a job to the backlog of a queue
+   * @param manager a connection to Helix
+   * @param queue the queue name
+   * @param job the namespaced job name
+   * @return true if the job was added, false otherwise
+   */
+  public static boolean append(HelixManager manager, String queue, String job) {
+    return manager.getHelixPropertyStore().create(getBacklogPath(queue) + "/" + ENTRY_PREFIX,
+        new ZNRecord(job), AccessOption.PERSISTENT_SEQUENTIAL);
+  }
+
+  /**
+   * Get the jobs in the backlog of a queue
+   * @param manager a connection to Helix
+   * @param queue the queue name
+   * @return namespaced job names in the order they were added
+   */
+  public static List<String> getJobs(HelixManager manager, String queue) {
+    List<String> jobs = new ArrayList<String>();
+    List<String> paths = getEntryPaths(manager, queue, Integer.MAX_VALUE);
+    if (paths.isEmpty()) {
+      return jobs;
+    }
+    List<ZNRecord> records =
+        manager.getHelixPropertyStore().get(paths, null, AccessOption.PERSISTENT);
+    for (ZNRecord record : records) {
+      if (record != null) {
+        jobs.add(record.getId());
+      }
+    }
+    return jobs;
+  }
+
+  /**
+   * Get the number of jobs in the backlog of a queue
+   * @param manager a connection to Helix
+   * @param queue the queue name
+   * @return number of jobs
+   */
+  public static int size(HelixManager manager, String queue) {
+    List<String> entries =
+        manager.getHelixPropertyStore().getChildNames(getBacklogPath(queue),
+            AccessOption.PERSISTENT);
+    return (entries != null) ? entries.size() : 0;
+  }
+
+  /**
+   * Remove every job from the backlog of a queue
+   * @param manager a connection to Helix
+   * @param queue the queue name
+   * @return the namespaced names of the jobs that were removed
+   */
+  public static List<String> clear(HelixManager manager, String queue) {
+    List<String> jobs = getJobs(manager, queue);
+    manager.getHelixPropertyStore().remove(getBacklogPath(queue), AccessOption.PERSISTENT);
+    return jobs;
+  }
+
+  /**
+   * Fold the backlog of a queue at most once per pipeline run. The jobs and the task pool of the
+   * queue share the outcome, which is the queue config as it is after the fold. If nothing was
+   * folded, the config is read again, since jobs may have been folded after the run's snapshot of
+   * the configs was taken.
+   * @param manager a connection to Helix
+   * @param cache the cluster data of the current run
+   * @param queue the queue name
+   * @return the queue config after the fold, or null if it could not be read
+   */
+  public static WorkflowConfig foldOnce(HelixManager manager, ClusterDataCache cache,
+      String queue) {
+    Map<String, WorkflowConfig> folded =
+        cache.getRunAttribute(FOLDED_QUEUES, new HashMap<String, WorkflowConfig>());
+    synchronized (folded) {
+      if (folded.containsKey(queue)) {
+        return folded.get(queue);
+      }
+      WorkflowConfig workflowCfg = fold(manager, queue);
+      if (workflowCfg == null) {
+        workflowCfg = TaskUtil.getWorkflowCfg(manager, queue);
+      }
+      folded.put(queue, workflowCfg);
+      return workflowCfg;
+    }
+  }
+
+  /**
+   * Append the oldest jobs of the backlog to the end of the queue's DAG, as long as the queue has
+   * capacity for them. Jobs that do not fit stay in the backlog.
+   * @param manager a connection to Helix
+   * @param queue the queue name
+   * @return the updated queue config, or null if nothing was folded
+   */
+  public static WorkflowConfig fold(HelixManager manager, final String queue) {
+    HelixPropertyStore<ZNRecord> store = manager.getHelixPropertyStore();
+    List<String> paths = getEntryPaths(manager, queue, MAX_FOLD_BATCH_SIZE);
+    if (paths.isEmpty()) {
+      return null;
+    }
+    List<ZNRecord> records = store.get(paths, null, AccessOption.PERSISTENT);
+    final List<String> jobs = new ArrayList<String>();
+    for (ZNRecord record : records) {
+      jobs.add(record != null ? record.getId() : null);
+    }
+
+    // Append the jobs in one update of the queue config
+    final Set<String> folded = new HashSet<String>();
+    final ZNRecord[] updated = new ZNRecord[1];
+    DataUpdater<ZNRecord> updater = new DataUpdater<ZNRecord>() {
+      @Override
+      public ZNRecord update(ZNRecord currentData) {
+        if (currentData == null) {
+          throw new IllegalStateException("Queue " + queue + " does not exist");
+        }
+        folded.clear();
+        JobDag jobDag = JobDag.fromJson(currentData.getSimpleField(WorkflowConfig.DAG));
+        int capacity = currentData.getIntField(JobQueue.CAPACITY, Integer.MAX_VALUE);
+        Set<String> allNodes = jobDag.getAllNodes();
+        String tail = null;
+        for (String node : allNodes) {
+          if (jobDag.getDirectChildren(node).isEmpty()) {
+            tail = node;
+            break;
+          }
+        }
+        for (String job : jobs) {
+          if (job == null || allNodes.contains(job)) {
+            folded.add(job);
+            continue;
+          }
+          if (allNodes.size() >= capacity) {
+            break;
+          }
+          jobDag.addNode(job);
+          if (tail != null) {
+            jobDag.addParentToChild(tail, job);
+          }
+          tail = job;
+          folded.add(job);
+        }
+        try {
+          currentData.setSimpleField(WorkflowConfig.DAG, jobDag.toJson());
+        } catch (Exception e) {
+          throw new IllegalStateException("Could not add jobs to queue " + queue, e);
+        }
+        updated[0] = currentData;
+        return currentData;
+      }
+    };
+    HelixDataAccessor accessor = manager.getHelixDataAccessor();
+    String configPath = accessor.keyBuilder().resourceConfig(queue).getPath();
+    boolean success;
+    try {
+      success =
+          accessor.getBaseDataAccessor().update(configPath, updater, AccessOption.PERSISTENT);
+    } catch (Exception e) {
+      LOG.error("Failed to fold the backlog of queue " + queue, e);
+      return null;
+    }
+    if (!success || updated[0] == null) {
+      LOG.error("Failed to fold the backlog of queue " + queue + ", will retry");
+      return null;
+    }
+
+    // The consumed entries can go now that the DAG has them
+    List<String> consumed = new ArrayList<String>();
+    for (int i = 0; i < paths.size(); i++) {
+      if (folded.contains(jobs.get(i))) {
+        consumed.add(paths.get(i));
+      }
+    }
+    store.remove(consumed, AccessOption.PERSISTENT);
+    if (consumed.size() < paths.size()) {
+      LOG.info("Queue " + queue + " is at capacity, " + (paths.size() - consumed.size())
+          + " jobs stay in its backlog");
+    }
+    return TaskUtil.getWorkflowCfg(new HelixProperty(updated[0]));
+  }
+
+  private static List<String> getEntryPaths(HelixManager manager, String queue, int limit) {
+    String backlogPath = getBacklogPath(queue);
+    List<String> entries =
+        manager.getHelixPropertyStore().getChildNames(backlogPath, AccessOption.PERSISTENT);
+    List<String> paths = new ArrayList<String>();
+    if (entries == null) {
+      return paths;
+    }
+    // Sequence numbers have a fixed width, so name order is the order of addition
+    Collections.sort(entries);
+    for (String entry : entries) {
+      if (paths.size() >= limit) {
+        break;
+      }
+      paths.add(backlogPath + "/" + entry);
+    }
+    return paths;
+  }
+
+  private static String getBacklogPath(String queue) {
+    return TaskUtil.getContextPath(queue, TaskUtil.QUEUE_BACKLOG_NODE);
+  }
+}
@@ -0,0 +1,221 @@
+package org.apache.helix.task;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.helix.api.State;
+import org.apache.helix.api.id.ParticipantId;
+import org.apache.helix.api.id.PartitionId;
+import org.apache.helix.api.id.ResourceId;
+import org.apache.helix.controller.stages.ClusterDataCache;
+import org.apache.helix.controller.stages.ResourceCurrentState;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Where the partitions of a target resource are, and in which state, as seen by one pipeline run.
+ * The index is computed once from the current state output of the run and shared by every job
+ * that targets the resource, together with the number of tasks those jobs have placed on each
+ * instance so far, so that replicas on lightly loaded instances can be preferred.
+ */
+public class TargetPartitionIndex {
+  // Run attribute with the indexes of the current pipeline run, by target resource
+  private static final String INDEXES = "TARGET_PARTITION_INDEXES";
+
+  private final ResourceId _resourceId;
+  // Partition name -> participant -> state, for replicas that are not in transition
+  private final Map<String, Map<ParticipantId, String>> _stateMap;
+  // Participants that have a replica of a partition in transition
+  private final Map<String, Set<ParticipantId>> _pendingMap;
+  // Number of targeted tasks placed on each participant in this run
+  private final Map<ParticipantId, Integer> _load;
+
+  /**
+   * Get the index of a target resource for the current pipeline run. The index is built by the
+   * first job that asks for it and reused by all the others.
+   * @param cache the cluster data of the run, or null to build an index that is not shared
+   * @param currStateOutput the current state output of the run
+   * @param resourceId the target resource
+   * @return TargetPartitionIndex
+   */
+  public static TargetPartitionIndex get(ClusterDataCache cache,
+      ResourceCurrentState currStateOutput, ResourceId resourceId) {
+    if (cache == null) {
+      return new TargetPartitionIndex(currStateOutput, resourceId);
+    }
+    Map<ResourceId, TargetPartitionIndex> indexes =
+        cache.getRunAttribute(INDEXES, new HashMap<ResourceId, TargetPartitionIndex>());
+    synchronized (indexes) {
+      TargetPartitionIndex index = indexes.get(resourceId);
+      if (index == null) {
+        index = new TargetPartitionIndex(currStateOutput, resourceId);
+        indexes.put(resourceId, index);
+      }
+      return index;
+    }
+  }
+
+  /**
+   * Build the index of a target resource from a current state output
+   * @param currStateOutput the current state output
+   * @param resourceId the target resource
+   */
+  public TargetPartitionIndex(ResourceCurrentState currStateOutput, ResourceId resourceId) {
+    _resourceId = resourceId;
+    _stateMap = new HashMap<String, Map<ParticipantId, String>>();
+    _pendingMap = new HashMap<String, Set<ParticipantId>>();
+    _load = new HashMap<ParticipantId, Integer>();
+    for (PartitionId partitionId : currStateOutput.getCurrentStateMappedPartitions(resourceId)) {
+      Map<ParticipantId, State> pendingStates =
+          currStateOutput.getPendingStateMap(resourceId, partitionId);
+      Set<ParticipantId> pending = Sets.newHashSet();
+      for (Map.Entry<ParticipantId, State> e : pendingStates.entrySet()) {
+        if (e.getValue() != null) {
+          pending.add(e.getKey());
+        }
+      }
+      Map<ParticipantId, String> states = Maps.newHashMap();
+      for (Map.Entry<ParticipantId, State> e : currStateOutput.getCurrentStateMap(resourceId,
+          partitionId).entrySet()) {
+        if (e.getValue() != null && !pending.contains(e.getKey())) {
+          states.put(e.getKey(), e.getValue().toString());
+        }
+      }
+      _stateMap.put(partitionId.stringify(), states);
+      if (!pending.isEmpty()) {
+        _pendingMap.put(partitionId.stringify(), pending);
+      }
+    }
+  }
+
+  public ResourceId getResourceId() {
+    return _resourceId;
+  }
+
+  /**
+   * Get the states of the replicas of a partition that are not in transition
+   * @param partitionName the target partition
+   * @return map of participant to state, empty if no replica is settled
+   */
+  public Map<ParticipantId, String> getStates(String partitionName) {
+    Map<ParticipantId, String> states = _stateMap.get(partitionName);
+    if (states == null) {
+      return Collections.emptyMap();
+    }
+    return Collections.unmodifiableMap(states);
+  }
+
+  /**
+   * Check if a participant has a replica of a partition in transition
+   * @param partitionName the target partition
+   * @param participantId the participant
+   * @return true if a state transition is pending, false otherwise
+   */
+  public boolean isPending(String partitionName, ParticipantId participantId) {
+    Set<ParticipantId> pending = _pendingMap.get(partitionName);
+    return pending != null && pending.contains(participantId);
+  }
+
+  /**
+   * Check if a participant holds a settled replica of a partition in any of the given states
+   * @param partitionName the target partition
+   * @param participantId the participant
+   * @param states the acceptable states, or null to accept any state
+   * @return true if the replica qualifies, false otherwise
+   */
+  public boolean isInState(String partitionName, ParticipantId participantId,
+      Collection<String> states) {
+    String state = getStates(partitionName).get(participantId);
+    return state != null && (states == null || states.contains(state));
+  }
+
+  /**
+   * Order participants by how well they suit a task on a partition: replicas in earlier states
+   * first, then the participant the task is already assigned to, then participants with fewer
+   * targeted tasks in this run.
+   * @param partitionName the target partition
+   * @param participants the participants to order
+   * @param preferredStates states in order of preference, or null if all states are equal
+   * @param assigned the participant the task is assigned to, or null
+   * @return the participants, best first
+   */
+  public List<ParticipantId> rankParticipants(String partitionName,
+      Collection<ParticipantId> participants, List<String> preferredStates,
+      final ParticipantId assigned) {
+    final Map<ParticipantId, String> states = getStates(partitionName);
+    final List<String> order =
+        (preferredStates != null) ? preferredStates : Collections.<String> emptyList();
+    final Map<ParticipantId, Integer> load;
+    synchronized (this) {
+      load = Maps.newHashMap(_load);
+    }
+    List<ParticipantId> ranked = Lists.newArrayList(participants);
+    Collections.sort(ranked, new Comparator<ParticipantId>() {
+      @Override
+      public int compare(ParticipantId p1, ParticipantId p2) {
+        int diff = stateRank(p1) - stateRank(p2);
+        if (diff != 0) {
+          return diff;
+        }
+        if (p1.equals(assigned) != p2.equals(assigned)) {
+          return p1.equals(assigned) ? -1 : 1;
+        }
+        return loadOf(p1) - loadOf(p2);
+      }
+
+      private int stateRank(ParticipantId participantId) {
+        int rank = order.indexOf(states.get(participantId));
+        return (rank >= 0) ? rank : order.size();
+      }
+
+      private int loadOf(ParticipantId participantId) {
+        Integer count = load.get(participantId);
+        return (count != null) ? count : 0;
+      }
+    });
+    return ranked;
+  }
+
+  /**
+   * Get the number of targeted tasks placed on a participant in this run
+   * @param participantId the participant
+   * @return number of tasks
+   */
+  public synchronized int getLoad(ParticipantId participantId) {
+    Integer load = _load.get(participantId);
+    return (load != null) ? load : 0;
+  }
+
+  /**
+   * Count a targeted task against a participant
+   * @param participantId the participant that the task was placed on
+   */
+  public synchronized void addLoad(ParticipantId participantId) {
+    _load.put(participantId, getLoad(participantId) + 1);
+  }
+}
@@ -28,6 +28,9 @@ public class TaskCallbackContext {
   private HelixManager _manager;
   private TaskConfig _taskConfig;
   private JobConfig _jobConfig;
+  private TaskProgressReporter _progressReporter;
+  private String _jobResource;
+  private String _taskPartition;
 
   void setManager(HelixManager manager) {
     _manager = manager;
@@ -41,6 +44,13 @@ public class TaskCallbackContext {
     _jobConfig = jobConfig;
   }
 
+  void setProgressReporter(TaskProgressReporter progressReporter, String jobResource,
+      String taskPartition) {
+    _progressReporter = progressReporter;
+    _jobResource = jobResource;
+    _taskPartition = taskPartition;
+  }
+
   /**
    * Get an active Helix connection
    * @return HelixManager instance
@@ -64,4 +74,15 @@ public class TaskCallbackContext {
   public JobConfig getJobConfig() {
     return _jobConfig;
   }
+
+  /**
+   * Report how far the task has come. Reports are batched, so this can be called often. The
+   * controller uses the progress to decide whether a slow task should also be started elsewhere.
+   * @param progress the fraction of the task that is done, between 0 and 1
+   */
+  public void reportProgress(double progress) {
+    if (_progressReporter != null) {
+      _progressReporter.report(_jobResource, _taskPartition, progress);
+    }
+  }
 }
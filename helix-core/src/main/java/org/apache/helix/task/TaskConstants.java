@@ -43,4 +43,13 @@ public class TaskConstants {
    * Resource prefix for scheduled workflows
    */
   public static final String SCHEDULED = "SCHEDULED";
+  /**
+   * Resource suffix, and resource config field, for the task pool that runs the lightweight jobs of
+   * a workflow
+   */
+  public static final String TASK_POOL = "TaskPool";
+  /**
+   * Instance config field limiting the number of tasks of a job that the instance runs at once
+   */
+  public static final String TASK_CAPACITY = "TaskCapacity";
 }
@@ -187,7 +187,7 @@ public class TaskDriver {
     }
   }
 
-  /** Flushes a named job queue */
+  /** Flushes a named job queue, including jobs that are waiting in its backlog */
   public void flushQueue(String queueName) throws Exception {
     WorkflowConfig config = TaskUtil.getWorkflowCfg(_manager, queueName);
     if (config == null) {
@@ -198,6 +198,7 @@ public class TaskDriver {
     HelixDataAccessor accessor = _manager.getHelixDataAccessor();
     PropertyKey.Builder keyBuilder = accessor.keyBuilder();
     final Set<String> toRemove = Sets.newHashSet(config.getJobDag().getAllNodes());
+    toRemove.addAll(JobQueueBacklog.clear(_manager, queueName));
     for (String resourceName : toRemove) {
       accessor.removeProperty(keyBuilder.idealStates(resourceName));
       accessor.removeProperty(keyBuilder.resourceConfig(resourceName));
@@ -372,49 +373,25 @@ public class TaskDriver {
     // Create the job to ensure that it validates
     JobConfig jobConfig = jobBuilder.setWorkflow(queueName).build();
 
-    // Add the job to the end of the queue in the DAG
-    final String namespacedJobName = TaskUtil.getNamespacedJobName(queueName, jobName);
-    DataUpdater<ZNRecord> updater = new DataUpdater<ZNRecord>() {
-      @Override
-      public ZNRecord update(ZNRecord currentData) {
-        // Add the node to the existing DAG
-        JobDag jobDag = JobDag.fromJson(currentData.getSimpleField(WorkflowConfig.DAG));
-        Set<String> allNodes = jobDag.getAllNodes();
-        if (allNodes.size() >= capacity) {
-          throw new IllegalStateException("Queue " + queueName + " is at capacity, will not add "
-              + jobName);
-        }
-        if (allNodes.contains(namespacedJobName)) {
-          throw new IllegalStateException("Could not add to queue " + queueName + ", job "
-              + jobName + " already exists");
-        }
-        jobDag.addNode(namespacedJobName);
-
-        // Add the node to the end of the queue
-        String candidate = null;
-        for (String node : allNodes) {
-          if (!node.equals(namespacedJobName) && jobDag.getDirectChildren(node).isEmpty()) {
-            candidate = node;
-            break;
-          }
-        }
-        if (candidate != null) {
-          jobDag.addParentToChild(candidate, namespacedJobName);
-        }
+    // Check the queue without locking it; the controller enforces the capacity when it appends
+    // the job to the DAG
+    String namespacedJobName = TaskUtil.getNamespacedJobName(queueName, jobName);
+    CompiledJobDag jobDag =
+        CompiledJobDag.fromJson(null, queueName,
+            workflowConfig.getRecord().getSimpleField(WorkflowConfig.DAG));
+    if (capacity < Integer.MAX_VALUE
+        && jobDag.size() + JobQueueBacklog.size(_manager, queueName) >= capacity) {
+      throw new IllegalStateException("Queue " + queueName + " is at capacity, will not add "
+          + jobName);
+    }
+    if (jobDag.indexOf(namespacedJobName) >= 0
+        || accessor.getProperty(accessor.keyBuilder().resourceConfig(namespacedJobName)) != null) {
+      throw new IllegalStateException("Could not add to queue " + queueName + ", job " + jobName
+          + " already exists");
+    }
 
-        // Save the updated DAG
-        try {
-          currentData.setSimpleField(WorkflowConfig.DAG, jobDag.toJson());
-        } catch (Exception e) {
-          throw new IllegalStateException(
-              "Could not add job " + jobName + " to queue " + queueName, e);
-        }
-        return currentData;
-      }
-    };
-    String path = accessor.keyBuilder().resourceConfig(queueName).getPath();
-    boolean status = accessor.getBaseDataAccessor().update(path, updater, AccessOption.PERSISTENT);
-    if (!status) {
+    // Add the job to the backlog of the queue; the controller appends it to the end of the DAG
+    if (!JobQueueBacklog.append(_manager, queueName, namespacedJobName)) {
       throw new IllegalArgumentException("Could not enqueue job");
     }
     // Schedule the job
@@ -423,6 +400,18 @@ public class TaskDriver {
 
   /** Posts new job to cluster */
   private void scheduleJob(String jobResource, JobConfig jobConfig) throws Exception {
+    String taskPool = TaskUtil.getTaskPoolName(jobConfig.getWorkflow());
+    if (jobResource.equals(taskPool)) {
+      throw new IllegalArgumentException("Job name " + jobResource
+          + " is reserved for the task pool of workflow " + jobConfig.getWorkflow());
+    }
+    if (jobConfig.isLightweight()) {
+      // Lightweight jobs only have a config; their tasks run on the task pool of the workflow
+      setJobConfig(jobResource, jobConfig);
+      ensureTaskPool(jobConfig.getWorkflow(), taskPool);
+      return;
+    }
+
     // Set up job resource based on partitions from target resource
     int numIndependentTasks = jobConfig.getTaskConfigMap().size();
     int numPartitions =
@@ -432,17 +421,8 @@ public class TaskDriver {
     _admin.addResource(_clusterName, jobResource, numPartitions, TaskConstants.STATE_MODEL_NAME);
 
     // Set the job configuration
-    HelixDataAccessor accessor = _manager.getHelixDataAccessor();
-    PropertyKey.Builder keyBuilder = accessor.keyBuilder();
-    HelixProperty resourceConfig = new HelixProperty(jobResource);
-    resourceConfig.getRecord().getSimpleFields().putAll(jobConfig.getResourceConfigMap());
+    setJobConfig(jobResource, jobConfig);
     Map<String, TaskConfig> taskConfigMap = jobConfig.getTaskConfigMap();
-    if (taskConfigMap != null) {
-      for (TaskConfig taskConfig : taskConfigMap.values()) {
-        resourceConfig.getRecord().setMapField(taskConfig.getId(), taskConfig.getConfigMap());
-      }
-    }
-    accessor.setProperty(keyBuilder.resourceConfig(jobResource), resourceConfig);
 
     // Push out new ideal state based on number of target partitions
     CustomModeISBuilder builder = new CustomModeISBuilder(jobResource);
@@ -462,6 +442,46 @@ public class TaskDriver {
     _admin.setResourceIdealState(_clusterName, jobResource, is);
   }
 
+  /** Writes the resource config of a job */
+  private void setJobConfig(String jobResource, JobConfig jobConfig) {
+    HelixDataAccessor accessor = _manager.getHelixDataAccessor();
+    PropertyKey.Builder keyBuilder = accessor.keyBuilder();
+    HelixProperty resourceConfig = new HelixProperty(jobResource);
+    resourceConfig.getRecord().getSimpleFields().putAll(jobConfig.getResourceConfigMap());
+    Map<String, TaskConfig> taskConfigMap = jobConfig.getTaskConfigMap();
+    if (taskConfigMap != null) {
+      for (TaskConfig taskConfig : taskConfigMap.values()) {
+        resourceConfig.getRecord().setMapField(taskConfig.getId(), taskConfig.getConfigMap());
+      }
+    }
+    accessor.setProperty(keyBuilder.resourceConfig(jobResource), resourceConfig);
+  }
+
+  /** Creates the task pool of a workflow if it does not exist, and has it pick up new jobs */
+  private void ensureTaskPool(String workflow, String taskPool) {
+    HelixDataAccessor accessor = _manager.getHelixDataAccessor();
+    PropertyKey.Builder keyBuilder = accessor.keyBuilder();
+    if (accessor.getProperty(keyBuilder.idealStates(taskPool)) != null) {
+      TaskUtil.invokeRebalance(_manager, taskPool);
+      return;
+    }
+
+    HelixProperty resourceConfig = new HelixProperty(taskPool);
+    resourceConfig.getRecord().setSimpleField(JobConfig.WORKFLOW_ID, workflow);
+    resourceConfig.getRecord().setBooleanField(TaskConstants.TASK_POOL, true);
+    accessor.setProperty(keyBuilder.resourceConfig(taskPool), resourceConfig);
+
+    // The pool starts without partitions; the rebalancer adds one per instance while there is work
+    CustomModeISBuilder builder = new CustomModeISBuilder(taskPool);
+    builder.setRebalancerMode(IdealState.RebalanceMode.TASK);
+    builder.setNumReplica(1);
+    builder.setNumPartitions(0);
+    builder.setStateModel(TaskConstants.STATE_MODEL_NAME);
+    IdealState is = builder.build();
+    is.setRebalancerClassName(TaskPoolRebalancer.class.getName());
+    _admin.setResourceIdealState(_clusterName, taskPool, is);
+  }
+
   /** Public method to resume a workflow/queue */
   public void resume(String workflow) {
     setWorkflowTargetState(workflow, TargetState.START);
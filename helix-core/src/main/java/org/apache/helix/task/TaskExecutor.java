@@ -0,0 +1,307 @@
+package org.apache.helix.task;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Timer;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.helix.monitoring.mbeans.TaskExecutorMonitor;
+import org.apache.log4j.Logger;
+
+/**
+ * Runs the tasks of all task partitions on a participant. Tasks share one thread pool, except for
+ * commands that are given a pool of their own, so the number of task threads does not grow with
+ * the number of partitions. A job never has more tasks running here than its
+ * numConcurrentTasksPerInstance; additional tasks wait until one of its tasks finishes, or until
+ * they are {@link #remove removed} because they were canceled in the meantime. Pool
+ * utilisation, queue wait and run times are reported per command through JMX.
+ */
+public class TaskExecutor {
+  private static final Logger LOG = Logger.getLogger(TaskExecutor.class);
+
+  /** Number of threads of the shared pool if none is configured */
+  public static final int DEFAULT_POOL_SIZE = 40;
+
+  private final String _instanceName;
+  private final ThreadPoolExecutor _defaultPool;
+  private final Map<String, ThreadPoolExecutor> _commandPools;
+  private final Map<String, TaskExecutorMonitor> _monitors;
+  private final Map<String, JobAdmission> _admissions;
+  private final Timer _timer;
+  private MBeanServer _beanServer;
+
+  /**
+   * Create an executor where all commands share a pool of {@link #DEFAULT_POOL_SIZE} threads
+   * @param instanceName the participant that runs the tasks
+   */
+  public TaskExecutor(String instanceName) {
+    this(instanceName, DEFAULT_POOL_SIZE, new HashMap<String, Integer>());
+  }
+
+  /**
+   * Create an executor
+   * @param instanceName the participant that runs the tasks
+   * @param poolSize number of threads shared by commands without a pool of their own
+   * @param commandPoolSizes number of threads of each command that has a pool of its own
+   */
+  public TaskExecutor(String instanceName, int poolSize, Map<String, Integer> commandPoolSizes) {
+    _instanceName = instanceName;
+    _defaultPool = createPool("TaskExecutor-thread-pool", poolSize);
+    _commandPools = new HashMap<String, ThreadPoolExecutor>();
+    for (Map.Entry<String, Integer> e : commandPoolSizes.entrySet()) {
+      _commandPools.put(e.getKey(),
+          createPool("TaskExecutor-" + e.getKey() + "-thread-pool", e.getValue()));
+    }
+    _monitors = new HashMap<String, TaskExecutorMonitor>();
+    _admissions = new HashMap<String, JobAdmission>();
+    _timer = new Timer("TaskExecutor time out daemon", true);
+    try {
+      _beanServer = ManagementFactory.getPlatformMBeanServer();
+    } catch (Exception e) {
+      LOG.warn("Could not get the MBean server, task executor metrics will not be reported", e);
+      _beanServer = null;
+    }
+  }
+
+  /**
+   * Run a task once its job is below its concurrency limit on this participant
+   * @param command the command of the task, which selects the pool
+   * @param job the job resource the task belongs to
+   * @param maxConcurrentTasks the most tasks of the job that may run at once, or a non-positive
+   *          value for no limit
+   * @param task the task to run
+   */
+  public synchronized void submit(String command, String job, int maxConcurrentTasks,
+      Runnable task) {
+    JobAdmission admission = _admissions.get(job);
+    if (admission == null) {
+      admission = new JobAdmission();
+      _admissions.put(job, admission);
+    }
+    admission._maxConcurrentTasks = maxConcurrentTasks;
+    AdmittedTask admittedTask = new AdmittedTask(command, job, task, getMonitor(command));
+    if (maxConcurrentTasks <= 0 || admission._numRunning < maxConcurrentTasks) {
+      admission._numRunning++;
+      getPool(command).execute(admittedTask);
+    } else {
+      admission._waiting.add(admittedTask);
+    }
+  }
+
+  /**
+   * Take a task off the queue of its job if it is still waiting for admission
+   * @param job the job resource the task was submitted for
+   * @param task the task as it was submitted
+   * @return true if the task was waiting and will now never run, false if it has already been
+   *         started or is unknown
+   */
+  public synchronized boolean remove(String job, Runnable task) {
+    JobAdmission admission = _admissions.get(job);
+    if (admission == null) {
+      return false;
+    }
+    Iterator<AdmittedTask> it = admission._waiting.iterator();
+    while (it.hasNext()) {
+      if (it.next()._task == task) {
+        it.remove();
+        if (admission._numRunning == 0 && admission._waiting.isEmpty()) {
+          _admissions.remove(job);
+        }
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Get the timer on which task time outs are scheduled
+   * @return a daemon timer
+   */
+  public Timer getTimer() {
+    return _timer;
+  }
+
+  public boolean isShutdown() {
+    return _defaultPool.isShutdown();
+  }
+
+  public boolean isTerminated() {
+    if (!_defaultPool.isTerminated()) {
+      return false;
+    }
+    for (ThreadPoolExecutor pool : _commandPools.values()) {
+      if (!pool.isTerminated()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    for (ThreadPoolExecutor pool : _commandPools.values()) {
+      if (!pool.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+        return false;
+      }
+    }
+    return _defaultPool.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Stop accepting tasks, drop the ones that are waiting for admission and stop reporting metrics
+   */
+  public synchronized void shutdown() {
+    _admissions.clear();
+    _defaultPool.shutdown();
+    for (ThreadPoolExecutor pool : _commandPools.values()) {
+      pool.shutdown();
+    }
+    _timer.cancel();
+    for (TaskExecutorMonitor monitor : _monitors.values()) {
+      unregister(monitor);
+    }
+    _monitors.clear();
+  }
+
+  private ThreadPoolExecutor getPool(String command) {
+    ThreadPoolExecutor pool = _commandPools.get(command);
+    return (pool != null) ? pool : _defaultPool;
+  }
+
+  private TaskExecutorMonitor getMonitor(String command) {
+    TaskExecutorMonitor monitor = _monitors.get(command);
+    if (monitor == null) {
+      monitor = new TaskExecutorMonitor(_instanceName, command, getPool(command));
+      _monitors.put(command, monitor);
+      register(monitor);
+    }
+    return monitor;
+  }
+
+  private synchronized void finished(AdmittedTask admittedTask) {
+    JobAdmission admission = _admissions.get(admittedTask._job);
+    if (admission == null) {
+      return;
+    }
+    admission._numRunning--;
+    while (!admission._waiting.isEmpty()
+        && (admission._maxConcurrentTasks <= 0
+        || admission._numRunning < admission._maxConcurrentTasks)) {
+      AdmittedTask next = admission._waiting.poll();
+      admission._numRunning++;
+      getPool(next._command).execute(next);
+    }
+    if (admission._numRunning == 0 && admission._waiting.isEmpty()) {
+      _admissions.remove(admittedTask._job);
+    }
+  }
+
+  private void register(TaskExecutorMonitor monitor) {
+    if (_beanServer == null) {
+      return;
+    }
+    try {
+      ObjectName name = new ObjectName("CLMParticipantReport:" + monitor.getBeanName());
+      if (_beanServer.isRegistered(name)) {
+        _beanServer.unregisterMBean(name);
+      }
+      _beanServer.registerMBean(monitor, name);
+    } catch (Exception e) {
+      LOG.warn("Could not register MBean " + monitor.getBeanName(), e);
+    }
+  }
+
+  private void unregister(TaskExecutorMonitor monitor) {
+    if (_beanServer == null) {
+      return;
+    }
+    try {
+      ObjectName name = new ObjectName("CLMParticipantReport:" + monitor.getBeanName());
+      if (_beanServer.isRegistered(name)) {
+        _beanServer.unregisterMBean(name);
+      }
+    } catch (Exception e) {
+      LOG.warn("Could not unregister MBean " + monitor.getBeanName(), e);
+    }
+  }
+
+  private static ThreadPoolExecutor createPool(final String threadName, int poolSize) {
+    final AtomicInteger threadId = new AtomicInteger(0);
+    return new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable r) {
+            return new Thread(r, threadName + "-" + threadId.incrementAndGet());
+          }
+        });
+  }
+
+  /**
+   * Tasks of a job that are running, or waiting to run, on this participant
+   */
+  private static class JobAdmission {
+    final Queue<AdmittedTask> _waiting = new LinkedList<AdmittedTask>();
+    int _numRunning = 0;
+    int _maxConcurrentTasks = 0;
+  }
+
+  /**
+   * A task that records how long it waited and ran, and makes room for the next task of its job
+   */
+  private class AdmittedTask implements Runnable {
+    final String _command;
+    final String _job;
+    final Runnable _task;
+    final TaskExecutorMonitor _monitor;
+    final long _submitTime;
+
+    AdmittedTask(String command, String job, Runnable task, TaskExecutorMonitor monitor) {
+      _command = command;
+      _job = job;
+      _task = task;
+      _monitor = monitor;
+      _submitTime = System.currentTimeMillis();
+    }
+
+    @Override
+    public void run() {
+      long startTime = System.currentTimeMillis();
+      try {
+        _task.run();
+      } finally {
+        _monitor.addTask(startTime - _submitTime, System.currentTimeMillis() - startTime);
+        finished(this);
+      }
+    }
+  }
+}
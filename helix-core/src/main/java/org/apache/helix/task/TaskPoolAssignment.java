@@ -0,0 +1,109 @@
+package org.apache.helix.task;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.helix.HelixProperty;
+import org.apache.helix.ZNRecord;
+
+/**
+ * Typed interface to the assignment table of a workflow's task pool, which the
+ * {@link TaskPoolRebalancer} keeps in the Helix property store. Only tasks that are currently
+ * assigned are in the table, keyed by task partition name.
+ */
+public class TaskPoolAssignment extends HelixProperty {
+  private enum AssignmentProperties {
+    INSTANCE,
+    TASK_ID,
+    ATTEMPT
+  }
+
+  public TaskPoolAssignment(ZNRecord record) {
+    super(record);
+  }
+
+  /**
+   * Assign a task to an instance
+   * @param taskPartition the task partition name, i.e. job_partitionId
+   * @param instance the instance that should run the task
+   * @param taskId the id of the task config
+   * @param attempt the attempt number, which distinguishes results of earlier attempts
+   */
+  public void assign(String taskPartition, String instance, String taskId, int attempt) {
+    Map<String, String> map = new TreeMap<String, String>();
+    map.put(AssignmentProperties.INSTANCE.toString(), instance);
+    map.put(AssignmentProperties.TASK_ID.toString(), taskId);
+    map.put(AssignmentProperties.ATTEMPT.toString(), String.valueOf(attempt));
+    _record.setMapField(taskPartition, map);
+  }
+
+  /**
+   * Remove a task from the table
+   * @param taskPartition the task partition name
+   */
+  public void remove(String taskPartition) {
+    _record.getMapFields().remove(taskPartition);
+  }
+
+  /**
+   * Get all assigned tasks
+   * @return set of task partition names
+   */
+  public Set<String> getTaskPartitions() {
+    return new HashSet<String>(_record.getMapFields().keySet());
+  }
+
+  /**
+   * Get the tasks assigned to an instance
+   * @param instance the instance name
+   * @return set of task partition names
+   */
+  public Set<String> getTaskPartitions(String instance) {
+    Set<String> taskPartitions = new HashSet<String>();
+    for (Map.Entry<String, Map<String, String>> e : _record.getMapFields().entrySet()) {
+      if (instance.equals(e.getValue().get(AssignmentProperties.INSTANCE.toString()))) {
+        taskPartitions.add(e.getKey());
+      }
+    }
+    return taskPartitions;
+  }
+
+  public String getInstance(String taskPartition) {
+    return getField(taskPartition, AssignmentProperties.INSTANCE);
+  }
+
+  public String getTaskId(String taskPartition) {
+    return getField(taskPartition, AssignmentProperties.TASK_ID);
+  }
+
+  public int getAttempt(String taskPartition) {
+    String attempt = getField(taskPartition, AssignmentProperties.ATTEMPT);
+    return (attempt != null) ? Integer.parseInt(attempt) : -1;
+  }
+
+  private String getField(String taskPartition, AssignmentProperties property) {
+    Map<String, String> map = _record.getMapField(taskPartition);
+    return (map != null) ? map.get(property.toString()) : null;
+  }
+}
@@ -0,0 +1,487 @@
+package org.apache.helix.task;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.apache.helix.AccessOption;
+import org.apache.helix.HelixDataAccessor;
+import org.apache.helix.HelixManager;
+import org.apache.helix.ZNRecord;
+import org.apache.helix.api.Cluster;
+import org.apache.helix.api.Participant;
+import org.apache.helix.api.State;
+import org.apache.helix.api.id.ParticipantId;
+import org.apache.helix.api.id.PartitionId;
+import org.apache.helix.api.id.ResourceId;
+import org.apache.helix.controller.RebalanceScheduler;
+import org.apache.helix.controller.context.ContextWriteBackCache;
+import org.apache.helix.controller.context.ControllerContextProvider;
+import org.apache.helix.controller.rebalancer.HelixRebalancer;
+import org.apache.helix.controller.rebalancer.config.RebalancerConfig;
+import org.apache.helix.controller.stages.ResourceCurrentState;
+import org.apache.helix.model.IdealState;
+import org.apache.helix.model.ResourceAssignment;
+import org.apache.helix.model.ResourceConfiguration;
+import org.apache.log4j.Logger;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Rebalancer for the task pool of a workflow. The lightweight jobs of the workflow have no ideal
+ * state of their own; instead, their tasks are multiplexed onto a single pool resource that has
+ * one partition per enabled live instance, each of which hosts a {@link TaskPoolRunner}. Running
+ * tasks are handed out through a {@link TaskPoolAssignment} table in the property store, and
+ * instances report results in batched {@link TaskPoolStatus} records. A new report schedules the
+ * pool to run again through the controller's rebalance scheduler. Job and workflow contexts are
+ * kept the same way as for jobs that have their own resource.
+ */
+public class TaskPoolRebalancer implements HelixRebalancer {
+  private static final Logger LOG = Logger.getLogger(TaskPoolRebalancer.class);
+
+  private static final Set<TaskPartitionState> ERROR_STATES = Collections.unmodifiableSet(
+      new HashSet<TaskPartitionState>(Arrays.asList(TaskPartitionState.ERROR,
+          TaskPartitionState.TASK_ERROR, TaskPartitionState.TIMED_OUT)));
+
+  private HelixManager _manager;
+
+  @Override
+  public void init(HelixManager manager, ControllerContextProvider contextProvider) {
+    _manager = manager;
+  }
+
+  @Override
+  public ResourceAssignment computeResourceMapping(IdealState poolIs,
+      RebalancerConfig rebalancerConfig, ResourceAssignment prevAssignment, Cluster cluster,
+      ResourceCurrentState currentState) {
+    String poolResource = poolIs.getResourceId().toString();
+    Map<String, ResourceConfiguration> resourceConfigs =
+        cluster.getCache().getResourceConfigs();
+    ContextWriteBackCache contextCache = TaskRebalancer.getContextCache(cluster);
+
+    // A pool without a workflow has nothing left to run
+    String workflowResource = TaskUtil.getTaskPoolWorkflow(resourceConfigs.get(poolResource));
+    WorkflowConfig workflowCfg =
+        (workflowResource != null) ? TaskUtil.getWorkflowCfg(cluster.getCache(),
+            resourceConfigs.get(workflowResource)) : null;
+    if (workflowCfg == null) {
+      removeTaskPool(_manager, contextCache, poolResource);
+      return TaskRebalancer.emptyAssignment(poolResource, currentState);
+    }
+    if (!workflowCfg.isTerminable()) {
+      // Pick up the jobs that were added to the queue since the last run
+      WorkflowConfig folded =
+          JobQueueBacklog.foldOnce(_manager, cluster.getCache(), workflowResource);
+      if (folded != null) {
+        workflowCfg = folded;
+      }
+    }
+    WorkflowContext workflowCtx =
+        TaskUtil.getWorkflowContext(_manager, contextCache, workflowResource);
+    if (workflowCtx == null) {
+      workflowCtx = new WorkflowContext(new ZNRecord("WorkflowContext"));
+      workflowCtx.setStartTime(System.currentTimeMillis());
+    }
+
+    // Find the lightweight jobs of the workflow
+    Map<String, JobConfig> jobCfgs = new LinkedHashMap<String, JobConfig>();
+    for (String job : workflowCfg.getCompiledJobDag().getAllNodes()) {
+      JobConfig jobCfg = TaskUtil.getJobCfg(resourceConfigs.get(job));
+      if (jobCfg != null && jobCfg.isLightweight()) {
+        jobCfgs.put(job, jobCfg);
+      }
+    }
+
+    // Clean up if the workflow is marked for deletion or finished past its expiry
+    if (workflowCfg.getTargetState() == TargetState.DELETE) {
+      cleanup(contextCache, cluster, workflowCfg, workflowResource, jobCfgs.keySet());
+      return TaskRebalancer.emptyAssignment(poolResource, currentState);
+    }
+    if (workflowCtx.getFinishTime() != WorkflowContext.UNFINISHED
+        && workflowCtx.getFinishTime() + workflowCfg.getExpiry() <= System.currentTimeMillis()) {
+      TaskRebalancer.markForDeletion(_manager, workflowResource);
+      cleanup(contextCache, cluster, workflowCfg, workflowResource, jobCfgs.keySet());
+      return TaskRebalancer.emptyAssignment(poolResource, currentState);
+    }
+
+    // Nothing runs before the workflow is due
+    if (!TaskRebalancer.scheduleIfNotReady(_manager, workflowCfg, workflowCtx, workflowResource,
+        poolResource, cluster)) {
+      return TaskRebalancer.emptyAssignment(poolResource, currentState);
+    }
+
+    // Tasks only go to instances that can run them
+    List<String> instances = new ArrayList<String>();
+    for (Participant participant : cluster.getLiveParticipantMap().values()) {
+      if (participant.isEnabled()) {
+        instances.add(participant.getId().toString());
+      }
+    }
+    Collections.sort(instances);
+
+    // Group the assigned tasks by job, dropping those whose job or instance is gone
+    TaskPoolAssignment assignment =
+        TaskUtil.getTaskPoolAssignment(_manager, contextCache, poolResource);
+    if (assignment == null) {
+      assignment = new TaskPoolAssignment(new ZNRecord(TaskConstants.TASK_POOL));
+    }
+    Set<String> liveInstances = new HashSet<String>(instances);
+    Map<String, List<String>> assignedByJob = new HashMap<String, List<String>>();
+    for (String taskPartition : assignment.getTaskPartitions()) {
+      String job = jobName(taskPartition);
+      if (!jobCfgs.containsKey(job)
+          || !liveInstances.contains(assignment.getInstance(taskPartition))) {
+        assignment.remove(taskPartition);
+        continue;
+      }
+      List<String> assigned = assignedByJob.get(job);
+      if (assigned == null) {
+        assigned = new ArrayList<String>();
+        assignedByJob.put(job, assigned);
+      }
+      assigned.add(taskPartition);
+    }
+
+    // Process each job, collecting results and handing out new tasks
+    Map<String, TaskPoolStatus> statuses = new HashMap<String, TaskPoolStatus>();
+    boolean active = false;
+    for (Map.Entry<String, JobConfig> e : jobCfgs.entrySet()) {
+      String job = e.getKey();
+      List<String> assigned = assignedByJob.get(job);
+      if (assigned == null) {
+        assigned = Collections.emptyList();
+      }
+      active |=
+          processJob(job, e.getValue(), workflowResource, workflowCfg, workflowCtx, poolResource,
+              assignment, assigned, statuses, instances, contextCache, cluster);
+    }
+
+    TaskUtil.setWorkflowContext(_manager, contextCache, workflowResource, workflowCtx);
+    TaskUtil.setTaskPoolAssignment(_manager, contextCache, poolResource, assignment);
+
+    // Keep a runner on every instance while there is work
+    if (!active) {
+      return TaskRebalancer.emptyAssignment(poolResource, currentState);
+    }
+    ResourceAssignment ra = new ResourceAssignment(ResourceId.from(poolResource));
+    for (String instance : instances) {
+      ra.addReplicaMap(PartitionId.from(getPoolPartition(poolResource, instance)),
+          ImmutableMap.of(ParticipantId.from(instance),
+              State.from(TaskPartitionState.RUNNING.name())));
+    }
+    return ra;
+  }
+
+  /**
+   * Update a lightweight job from the results reported for its tasks, and assign more tasks
+   * @return true if the job still needs the pool, false otherwise
+   */
+  private boolean processJob(String job, JobConfig jobCfg, String workflowResource,
+      WorkflowConfig workflowCfg, WorkflowContext workflowCtx, String poolResource,
+      TaskPoolAssignment assignment, List<String> assigned, Map<String, TaskPoolStatus> statuses,
+      List<String> instances, ContextWriteBackCache contextCache, Cluster cluster) {
+    // Check parent dependencies
+    JobDagReadiness readiness =
+        TaskRebalancer.getReadiness(cluster, workflowResource, workflowCfg, workflowCtx);
+    if (!readiness.isReady(job, workflowCtx)) {
+      return false;
+    }
+
+    JobContext jobCtx = TaskUtil.getJobContext(_manager, contextCache, job);
+    if (jobCtx == null) {
+      jobCtx = new JobContext(new ZNRecord("TaskContext"));
+      jobCtx.setStartTime(System.currentTimeMillis());
+    }
+
+    // Check for expired jobs for non-terminable workflows
+    long currentTime = System.currentTimeMillis();
+    long jobFinishTime = jobCtx.getFinishTime();
+    if (!workflowCfg.isTerminable() && jobFinishTime != WorkflowContext.UNFINISHED
+        && jobFinishTime + workflowCfg.getExpiry() <= currentTime) {
+      cleanupJob(contextCache, workflowResource, job);
+      return false;
+    }
+
+    // The job is already in a final state (completed/failed).
+    TaskState jobState = workflowCtx.getJobState(job);
+    if (jobState == TaskState.FAILED || jobState == TaskState.COMPLETED) {
+      return false;
+    }
+
+    // Update running status in workflow context
+    TargetState targetState = workflowCfg.getTargetState();
+    if (targetState == TargetState.STOP) {
+      workflowCtx.setJobState(job, TaskState.STOPPED);
+      if (TaskRebalancer.isWorkflowStopped(workflowCtx, workflowCfg)) {
+        workflowCtx.setWorkflowState(TaskState.STOPPED);
+      }
+    } else {
+      workflowCtx.setJobState(job, TaskState.IN_PROGRESS);
+      workflowCtx.setWorkflowState(TaskState.IN_PROGRESS);
+    }
+
+    // Tasks that used up their attempts, but whose failure was acceptable
+    Set<Integer> allPartitions = getAllTaskPartitions(jobCfg, jobCtx);
+    Set<Integer> skippedPartitions = new HashSet<Integer>();
+    for (int pId : allPartitions) {
+      if (ERROR_STATES.contains(jobCtx.getPartitionState(pId))
+          && jobCtx.getPartitionNumAttempts(pId) >= jobCfg.getMaxAttemptsPerTask()) {
+        skippedPartitions.add(pId);
+      }
+    }
+
+    // Collect the results of assigned tasks
+    Map<String, Integer> numRunning = new HashMap<String, Integer>();
+    Set<Integer> runningPartitions = new HashSet<Integer>();
+    for (String taskPartition : assigned) {
+      int pId = TaskRebalancer.pId(taskPartition);
+      String instance = assignment.getInstance(taskPartition);
+      TaskPoolStatus status = statuses.get(instance);
+      if (status == null && !statuses.containsKey(instance)) {
+        status =
+            TaskUtil.getTaskPoolStatus(_manager, contextCache, poolResource, instance,
+                getStatusListener(poolResource, cluster));
+        statuses.put(instance, status);
+      }
+      TaskPartitionState result = null;
+      if (status != null
+          && status.getAttempt(taskPartition) == assignment.getAttempt(taskPartition)) {
+        result = status.getState(taskPartition);
+      }
+
+      if (result == null) {
+        if (targetState == TargetState.START) {
+          // Still running
+          runningPartitions.add(pId);
+          Integer count = numRunning.get(instance);
+          numRunning.put(instance, (count != null) ? count + 1 : 1);
+        } else {
+          // Removing the task from the table cancels it
+          assignment.remove(taskPartition);
+          jobCtx.setPartitionState(pId, TaskPartitionState.STOPPED);
+        }
+        continue;
+      }
+
+      assignment.remove(taskPartition);
+      if (result == TaskPartitionState.COMPLETED) {
+        TaskRebalancer.markPartitionCompleted(jobCtx, pId);
+        continue;
+      }
+      TaskRebalancer.markPartitionError(jobCtx, pId, result, true);
+      if (jobCtx.getPartitionNumAttempts(pId) < jobCfg.getMaxAttemptsPerTask()) {
+        // Mark the task to be started at some later time (if enabled)
+        TaskRebalancer.markPartitionDelayed(jobCfg, jobCtx, pId);
+        continue;
+      }
+
+      // The task is out of attempts, which fails the job unless the failure is acceptable
+      boolean successOptional = skippedPartitions.size() < jobCfg.getFailureThreshold();
+      TaskConfig taskConfig = jobCfg.getTaskConfig(jobCtx.getTaskIdForPartition(pId));
+      if (taskConfig != null && taskConfig.isSuccessOptional()) {
+        successOptional = true;
+      }
+      if (successOptional) {
+        skippedPartitions.add(pId);
+        continue;
+      }
+      workflowCtx.setJobState(job, TaskState.FAILED);
+      if (workflowCfg.isTerminable()) {
+        workflowCtx.setWorkflowState(TaskState.FAILED);
+        workflowCtx.setFinishTime(currentTime);
+      }
+      jobCtx.setFinishTime(currentTime);
+      TaskRebalancer.markAllPartitionsError(jobCtx, result, false);
+      for (String other : assigned) {
+        assignment.remove(other);
+      }
+      TaskUtil.setJobContext(_manager, contextCache, job, jobCtx);
+      return false;
+    }
+
+    // For delayed tasks, trigger a rebalance event for the closest upcoming ready time
+    TaskRebalancer.scheduleForNextTask(_manager, job, poolResource, jobCtx, currentTime, cluster);
+
+    boolean needsPool = false;
+    if (TaskRebalancer.isJobComplete(jobCtx, allPartitions, skippedPartitions)) {
+      workflowCtx.setJobState(job, TaskState.COMPLETED);
+      readiness.markCompleted(job);
+      jobCtx.setFinishTime(currentTime);
+      if (TaskRebalancer.isWorkflowComplete(workflowCtx, workflowCfg)) {
+        workflowCtx.setWorkflowState(TaskState.COMPLETED);
+        workflowCtx.setFinishTime(currentTime);
+      }
+    } else if (targetState == TargetState.START) {
+      needsPool = true;
+      assignTasks(job, jobCfg, jobCtx, assignment, allPartitions, skippedPartitions,
+          runningPartitions, numRunning, instances, currentTime);
+    }
+    TaskUtil.setJobContext(_manager, contextCache, job, jobCtx);
+    return needsPool;
+  }
+
+  /**
+   * Hand out tasks that are ready to run, spreading them over the instances up to the per-instance
+   * concurrency of the job
+   */
+  private static void assignTasks(String job, JobConfig jobCfg, JobContext jobCtx,
+      TaskPoolAssignment assignment, Set<Integer> allPartitions, Set<Integer> skippedPartitions,
+      Set<Integer> runningPartitions, Map<String, Integer> numRunning, List<String> instances,
+      long currentTime) {
+    Set<Integer> excludeSet = new HashSet<Integer>(runningPartitions);
+    excludeSet.addAll(skippedPartitions);
+    excludeSet.addAll(TaskRebalancer.getNonReadyPartitions(jobCtx, currentTime));
+    SortedSet<Integer> candidates = new TreeSet<Integer>();
+    for (int pId : allPartitions) {
+      if (!excludeSet.contains(pId)
+          && jobCtx.getPartitionState(pId) != TaskPartitionState.COMPLETED) {
+        candidates.add(pId);
+      }
+    }
+
+    int limit = jobCfg.getNumConcurrentTasksPerInstance();
+    Iterator<Integer> it = candidates.iterator();
+    boolean assignedAny = true;
+    while (it.hasNext() && assignedAny) {
+      assignedAny = false;
+      for (String instance : instances) {
+        if (!it.hasNext()) {
+          break;
+        }
+        Integer count = numRunning.get(instance);
+        count = (count != null) ? count : 0;
+        if (count >= limit) {
+          continue;
+        }
+        int pId = it.next();
+        String taskPartition = TaskRebalancer.pName(job, pId);
+        int attempt = Math.max(jobCtx.getPartitionNumAttempts(pId), 0);
+        assignment.assign(taskPartition, instance, jobCtx.getTaskIdForPartition(pId), attempt);
+        jobCtx.setAssignedParticipant(pId, instance);
+        jobCtx.setPartitionState(pId, TaskPartitionState.RUNNING);
+        numRunning.put(instance, count + 1);
+        assignedAny = true;
+        if (LOG.isDebugEnabled()) {
+          LOG.debug(String.format("Assigning task partition %s to instance %s.", taskPartition,
+              instance));
+        }
+      }
+    }
+  }
+
+  /**
+   * Number the tasks of a job, reusing the numbers that are already in the job context
+   */
+  private static Set<Integer> getAllTaskPartitions(JobConfig jobCfg, JobContext jobCtx) {
+    Map<String, Integer> taskIdMap = jobCtx.getTaskIdPartitionMap();
+    int nextPartition = jobCtx.getPartitionSet().size();
+    for (TaskConfig taskCfg : jobCfg.getTaskConfigMap().values()) {
+      if (!taskIdMap.containsKey(taskCfg.getId())) {
+        jobCtx.setTaskIdForPartition(nextPartition++, taskCfg.getId());
+      }
+    }
+    return jobCtx.getPartitionSet();
+  }
+
+  /**
+   * Remove the lightweight jobs of a workflow, and the workflow itself if nothing else is left
+   */
+  private void cleanup(ContextWriteBackCache contextCache, Cluster cluster,
+      WorkflowConfig workflowCfg, String workflowResource, Set<String> jobs) {
+    for (String job : jobs) {
+      cleanupJob(contextCache, workflowResource, job);
+    }
+    TaskRebalancer.cleanupWorkflowIfLast(_manager, contextCache, cluster, workflowCfg,
+        workflowResource);
+  }
+
+  /**
+   * Remove the config and context of a lightweight job, which has no ideal state to remove
+   */
+  private void cleanupJob(ContextWriteBackCache contextCache, String workflowResource, String job) {
+    HelixDataAccessor accessor = _manager.getHelixDataAccessor();
+    TaskRebalancer.removeFromDag(accessor, workflowResource, job);
+    accessor.removeProperty(TaskRebalancer.getConfigPropertyKey(accessor, job));
+    String propStoreKey = TaskRebalancer.getRebalancerPropStoreKey(job);
+    if (contextCache != null) {
+      contextCache.invalidate(propStoreKey);
+    }
+    _manager.getHelixPropertyStore().remove(propStoreKey, AccessOption.PERSISTENT);
+    LOG.info(String.format("Successfully cleaned up lightweight job %s.", job));
+  }
+
+  /**
+   * Remove a task pool, if it exists, along with its assignment table and reported results
+   * @param mgr connection to Helix
+   * @param contextCache the controller's context cache, or null
+   * @param poolResource the task pool resource
+   */
+  static void removeTaskPool(HelixManager mgr, ContextWriteBackCache contextCache,
+      String poolResource) {
+    HelixDataAccessor accessor = mgr.getHelixDataAccessor();
+    accessor.removeProperty(TaskRebalancer.getISPropertyKey(accessor, poolResource));
+    accessor.removeProperty(TaskRebalancer.getConfigPropertyKey(accessor, poolResource));
+    String propStoreKey = TaskRebalancer.getRebalancerPropStoreKey(poolResource);
+    if (contextCache != null) {
+      contextCache.invalidate(propStoreKey);
+    }
+    mgr.getHelixPropertyStore().remove(propStoreKey, AccessOption.PERSISTENT);
+  }
+
+  /**
+   * Get a listener that runs the pool again as soon as an instance reports results
+   */
+  private ContextWriteBackCache.ChangeListener getStatusListener(final String poolResource,
+      Cluster cluster) {
+    final RebalanceScheduler scheduler = TaskRebalancer.getRebalanceScheduler(cluster);
+    final HelixManager manager = _manager;
+    return new ContextWriteBackCache.ChangeListener() {
+      @Override
+      public void onExternalChange(String path) {
+        scheduler.schedule(manager, poolResource, poolResource, System.currentTimeMillis());
+      }
+    };
+  }
+
+  /**
+   * Get the name of the pool partition that hosts the runner of an instance
+   */
+  private static String getPoolPartition(String poolResource, String instance) {
+    return poolResource + "_" + instance;
+  }
+
+  /**
+   * Extract the job name from a task partition name
+   */
+  private static String jobName(String taskPartition) {
+    return taskPartition.substring(0, taskPartition.lastIndexOf('_'));
+  }
+}
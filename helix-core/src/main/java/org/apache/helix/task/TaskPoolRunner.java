@@ -0,0 +1,386 @@
+package org.apache.helix.task;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.I0Itec.zkclient.DataUpdater;
+import org.I0Itec.zkclient.IZkDataListener;
+import org.apache.helix.AccessOption;
+import org.apache.helix.HelixManager;
+import org.apache.helix.ZNRecord;
+import org.apache.helix.store.HelixPropertyStore;
+import org.apache.helix.task.TaskResult.Status;
+import org.apache.log4j.Logger;
+
+/**
+ * Runs the tasks that a task pool assigns to one instance. The runner watches the assignment table
+ * of the pool, starts the tasks that are assigned to its instance, cancels the ones that are taken
+ * away, and periodically writes the results of finished tasks to the status record of the
+ * instance in a single update. The controller watches the status record, so the update is all it
+ * takes to have the results picked up.
+ */
+public class TaskPoolRunner implements IZkDataListener {
+  private static final Logger LOG = Logger.getLogger(TaskPoolRunner.class);
+
+  /** How often finished tasks are reported, in milliseconds */
+  public static final long FLUSH_INTERVAL = 100;
+
+  private final HelixManager _manager;
+  private final Map<String, TaskFactory> _taskFactoryRegistry;
+  private final TaskExecutor _taskExecutor;
+  private final Timer _timer;
+  private final String _instance;
+  private final String _assignmentPath;
+  private final String _statusPath;
+
+  // Tasks that are running, by task partition name
+  private final Map<String, PoolTask> _running;
+  // Results that have not yet been written, by task partition name
+  private final Map<String, PoolTask> _pending;
+  // Attempt of each task that is currently assigned to this instance, by task partition name
+  private Map<String, Integer> _assigned;
+  // Configs of the jobs that have tasks assigned to this instance, by job name
+  private final Map<String, JobConfig> _jobCfgs;
+  // If true, the status record may hold results that need to be added or removed
+  private boolean _statusStale;
+  private TimerTask _flushTask;
+  private boolean _shutdown;
+
+  public TaskPoolRunner(HelixManager manager, Map<String, TaskFactory> taskFactoryRegistry,
+      TaskExecutor taskExecutor, String taskPool, String instance) {
+    _manager = manager;
+    _taskFactoryRegistry = taskFactoryRegistry;
+    _taskExecutor = taskExecutor;
+    _timer = taskExecutor.getTimer();
+    _instance = instance;
+    _assignmentPath = TaskUtil.getContextPath(taskPool, TaskUtil.TASK_POOL_ASSIGNMENT_NODE);
+    _statusPath = TaskUtil.getTaskPoolStatusPath(taskPool, instance);
+    _running = new HashMap<String, PoolTask>();
+    _pending = new HashMap<String, PoolTask>();
+    _assigned = new HashMap<String, Integer>();
+    _jobCfgs = new HashMap<String, JobConfig>();
+    _statusStale = false;
+    _shutdown = false;
+  }
+
+  /**
+   * Start following the assignment table of the pool
+   */
+  public void start() {
+    HelixPropertyStore<ZNRecord> store = _manager.getHelixPropertyStore();
+    // Results of a previous incarnation refer to tasks that are no longer running here
+    store.set(_statusPath, new ZNRecord(_instance), AccessOption.PERSISTENT);
+    store.subscribeDataChanges(_assignmentPath, this);
+    apply(store.get(_assignmentPath, null, AccessOption.PERSISTENT));
+
+    synchronized (this) {
+      _flushTask = new TimerTask() {
+        @Override
+        public void run() {
+          flush();
+        }
+      };
+    }
+    _timer.schedule(_flushTask, FLUSH_INTERVAL, FLUSH_INTERVAL);
+  }
+
+  /**
+   * Cancel all running tasks and stop following the assignment table
+   */
+  public void shutdown() {
+    synchronized (this) {
+      if (_shutdown) {
+        return;
+      }
+      _shutdown = true;
+      if (_flushTask != null) {
+        _flushTask.cancel();
+      }
+      for (PoolTask poolTask : _running.values()) {
+        poolTask.cancel();
+      }
+      _running.clear();
+      _pending.clear();
+      _jobCfgs.clear();
+    }
+    _manager.getHelixPropertyStore().unsubscribeDataChanges(_assignmentPath, this);
+  }
+
+  @Override
+  public void handleDataChange(String dataPath, Object data) throws Exception {
+    apply((ZNRecord) data);
+  }
+
+  @Override
+  public void handleDataDeleted(String dataPath) throws Exception {
+    apply(null);
+  }
+
+  /**
+   * Reconcile the running tasks with the assignment table
+   * @param record the assignment table, or null if there is none
+   */
+  private synchronized void apply(ZNRecord record) {
+    if (_shutdown) {
+      return;
+    }
+    TaskPoolAssignment assignment = (record != null) ? new TaskPoolAssignment(record) : null;
+    Map<String, Integer> assigned = new HashMap<String, Integer>();
+    if (assignment != null) {
+      for (String taskPartition : assignment.getTaskPartitions(_instance)) {
+        assigned.put(taskPartition, assignment.getAttempt(taskPartition));
+      }
+    }
+    _assigned = assigned;
+    _statusStale = true;
+
+    // Forget the configs of jobs that no longer have tasks here
+    Set<String> assignedJobs = new HashSet<String>();
+    for (String taskPartition : assigned.keySet()) {
+      assignedJobs.add(jobName(taskPartition));
+    }
+    _jobCfgs.keySet().retainAll(assignedJobs);
+
+    // Cancel the tasks that were taken away from this instance
+    for (PoolTask poolTask : _running.values().toArray(new PoolTask[0])) {
+      Integer attempt = assigned.get(poolTask._taskPartition);
+      if (attempt == null || attempt != poolTask._attempt) {
+        poolTask.cancel();
+        _running.remove(poolTask._taskPartition);
+      }
+    }
+
+    // Start the newly assigned ones, unless they already finished and are waiting to be reported
+    for (Map.Entry<String, Integer> e : assigned.entrySet()) {
+      String taskPartition = e.getKey();
+      int attempt = e.getValue();
+      PoolTask pending = _pending.get(taskPartition);
+      if (_running.containsKey(taskPartition)
+          || (pending != null && pending._attempt == attempt)) {
+        continue;
+      }
+      try {
+        startTask(taskPartition, assignment.getTaskId(taskPartition), attempt);
+      } catch (Exception ex) {
+        LOG.error("Could not start task partition " + taskPartition, ex);
+        PoolTask failed = new PoolTask(taskPartition, null, attempt, null, 0);
+        failed._result = new TaskResult(Status.ERROR, ex.getMessage());
+        _pending.put(taskPartition, failed);
+        _statusStale = true;
+      }
+    }
+  }
+
+  private void startTask(String taskPartition, String taskId, int attempt) {
+    String job = jobName(taskPartition);
+    JobConfig cfg = _jobCfgs.get(job);
+    if (cfg == null) {
+      cfg = TaskUtil.getJobCfg(_manager, job);
+      if (cfg == null) {
+        throw new IllegalStateException("No config for job " + job);
+      }
+      _jobCfgs.put(job, cfg);
+    }
+    TaskConfig taskConfig = cfg.getTaskConfig(taskId);
+
+    // Get a task-specific command if specified
+    String command = cfg.getCommand();
+    if (taskConfig != null && taskConfig.getCommand() != null) {
+      command = taskConfig.getCommand();
+    }
+
+    // Populate a task callback context
+    TaskCallbackContext callbackContext = new TaskCallbackContext();
+    callbackContext.setManager(_manager);
+    callbackContext.setJobConfig(cfg);
+    callbackContext.setTaskConfig(taskConfig);
+
+    // Create a task instance with this command
+    if (command == null || _taskFactoryRegistry == null
+        || !_taskFactoryRegistry.containsKey(command)) {
+      throw new IllegalStateException("No callback implemented for task " + command);
+    }
+    Task task = _taskFactoryRegistry.get(command).createNewTask(callbackContext);
+
+    PoolTask poolTask =
+        new PoolTask(taskPartition, job, attempt, task, cfg.getTimeoutPerTask());
+    _running.put(taskPartition, poolTask);
+    _taskExecutor.submit(command, job, cfg.getNumConcurrentTasksPerInstance(), poolTask);
+  }
+
+  /**
+   * Record the result of a finished task
+   */
+  private synchronized void finished(PoolTask poolTask) {
+    if (_running.get(poolTask._taskPartition) != poolTask) {
+      // The controller took the task away, so the result is not wanted
+      return;
+    }
+    _running.remove(poolTask._taskPartition);
+    _pending.put(poolTask._taskPartition, poolTask);
+    _statusStale = true;
+  }
+
+  /**
+   * Write the results of finished tasks in one update. This runs on the timer that also times out
+   * tasks, so a failure is logged and retried on the next flush rather than thrown, which would
+   * cancel the timer.
+   */
+  private void flush() {
+    final Map<String, PoolTask> results;
+    final Map<String, Integer> assigned;
+    synchronized (this) {
+      if (_shutdown || !_statusStale) {
+        return;
+      }
+      _statusStale = false;
+      results = new HashMap<String, PoolTask>(_pending);
+      assigned = _assigned;
+    }
+
+    // Results of tasks that are no longer assigned have been consumed by the controller
+    boolean success;
+    try {
+      success =
+          _manager.getHelixPropertyStore().update(_statusPath, new DataUpdater<ZNRecord>() {
+            @Override
+            public ZNRecord update(ZNRecord currentData) {
+              TaskPoolStatus status =
+                  new TaskPoolStatus(currentData != null ? currentData : new ZNRecord(_instance));
+              for (String taskPartition : status.getTaskPartitions()) {
+                Integer attempt = assigned.get(taskPartition);
+                if (attempt == null || attempt != status.getAttempt(taskPartition)) {
+                  status.remove(taskPartition);
+                }
+              }
+              for (PoolTask poolTask : results.values()) {
+                Integer attempt = assigned.get(poolTask._taskPartition);
+                if (attempt != null && attempt == poolTask._attempt) {
+                  status.setResult(poolTask._taskPartition, poolTask.getState(),
+                      poolTask._attempt, poolTask._result.getInfo());
+                }
+              }
+              return status.getRecord();
+            }
+          }, AccessOption.PERSISTENT);
+    } catch (RuntimeException e) {
+      LOG.error("Failed to report task results to " + _statusPath + ", will retry", e);
+      synchronized (this) {
+        _statusStale = true;
+      }
+      return;
+    }
+    synchronized (this) {
+      if (!success) {
+        LOG.error("Failed to report task results to " + _statusPath + ", will retry");
+        _statusStale = true;
+        return;
+      }
+      for (PoolTask poolTask : results.values()) {
+        if (_pending.get(poolTask._taskPartition) == poolTask) {
+          _pending.remove(poolTask._taskPartition);
+        }
+      }
+    }
+  }
+
+  /**
+   * Extract the job name from a task partition name
+   */
+  private static String jobName(String taskPartition) {
+    return taskPartition.substring(0, taskPartition.lastIndexOf('_'));
+  }
+
+  /**
+   * One assigned attempt of a task
+   */
+  private class PoolTask implements Runnable {
+    private final String _taskPartition;
+    private final String _job;
+    private final int _attempt;
+    private final Task _task;
+    private final long _timeout;
+    private volatile TaskResult _result = null;
+    private volatile boolean _timedOut = false;
+    private TimerTask _timeoutTask;
+
+    PoolTask(String taskPartition, String job, int attempt, Task task, long timeout) {
+      _taskPartition = taskPartition;
+      _job = job;
+      _attempt = attempt;
+      _task = task;
+      _timeout = timeout;
+    }
+
+    @Override
+    public void run() {
+      // Set up a timer to cancel the task when its time out expires.
+      _timeoutTask = new TimerTask() {
+        @Override
+        public void run() {
+          _timedOut = true;
+          _task.cancel();
+        }
+      };
+      _timer.schedule(_timeoutTask, _timeout);
+      try {
+        _result = _task.run();
+      } catch (ThreadDeath death) {
+        throw death;
+      } catch (Throwable t) {
+        LOG.error("Problem running the task", t);
+        _result = new TaskResult(Status.ERROR, null);
+      } finally {
+        _timeoutTask.cancel();
+      }
+      if (_result.getStatus() == Status.CANCELED && !_timedOut) {
+        // The cancellation was initiated by the controller
+        return;
+      }
+      finished(this);
+    }
+
+    void cancel() {
+      // A task that is still waiting for admission never needs to run
+      if (_task != null && !_taskExecutor.remove(_job, this)) {
+        _task.cancel();
+      }
+    }
+
+    TaskPartitionState getState() {
+      switch (_result.getStatus()) {
+      case COMPLETED:
+        return TaskPartitionState.COMPLETED;
+      case CANCELED:
+        return TaskPartitionState.TIMED_OUT;
+      case ERROR:
+        return TaskPartitionState.TASK_ERROR;
+      default:
+        throw new AssertionError("Unknown result type.");
+      }
+    }
+  }
+}
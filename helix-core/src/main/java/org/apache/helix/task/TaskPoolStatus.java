@@ -0,0 +1,95 @@
+package org.apache.helix.task;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.helix.HelixProperty;
+import org.apache.helix.ZNRecord;
+
+/**
+ * Typed interface to the results that one instance reports for the tasks it ran from a task pool.
+ * Each instance writes its own record, in batches, and removes results once the task is no longer
+ * assigned to it.
+ */
+public class TaskPoolStatus extends HelixProperty {
+  private enum StatusProperties {
+    STATE,
+    ATTEMPT,
+    INFO
+  }
+
+  public TaskPoolStatus(ZNRecord record) {
+    super(record);
+  }
+
+  /**
+   * Record the result of a task
+   * @param taskPartition the task partition name
+   * @param state the final state of the task
+   * @param attempt the attempt number from the assignment
+   * @param info optional information returned by the task
+   */
+  public void setResult(String taskPartition, TaskPartitionState state, int attempt, String info) {
+    Map<String, String> map = new TreeMap<String, String>();
+    map.put(StatusProperties.STATE.toString(), state.name());
+    map.put(StatusProperties.ATTEMPT.toString(), String.valueOf(attempt));
+    if (info != null) {
+      map.put(StatusProperties.INFO.toString(), info);
+    }
+    _record.setMapField(taskPartition, map);
+  }
+
+  /**
+   * Remove the result of a task
+   * @param taskPartition the task partition name
+   */
+  public void remove(String taskPartition) {
+    _record.getMapFields().remove(taskPartition);
+  }
+
+  /**
+   * Get the tasks that have results
+   * @return set of task partition names
+   */
+  public Set<String> getTaskPartitions() {
+    return new HashSet<String>(_record.getMapFields().keySet());
+  }
+
+  public TaskPartitionState getState(String taskPartition) {
+    Map<String, String> map = _record.getMapField(taskPartition);
+    String state = (map != null) ? map.get(StatusProperties.STATE.toString()) : null;
+    return (state != null) ? TaskPartitionState.valueOf(state) : null;
+  }
+
+  public int getAttempt(String taskPartition) {
+    Map<String, String> map = _record.getMapField(taskPartition);
+    String attempt = (map != null) ? map.get(StatusProperties.ATTEMPT.toString()) : null;
+    return (attempt != null) ? Integer.parseInt(attempt) : -1;
+  }
+
+  public String getInfo(String taskPartition) {
+    Map<String, String> map = _record.getMapField(taskPartition);
+    return (map != null) ? map.get(StatusProperties.INFO.toString()) : null;
+  }
+}
@@ -0,0 +1,94 @@
+package org.apache.helix.task;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.helix.HelixProperty;
+import org.apache.helix.ZNRecord;
+
+/**
+ * Typed interface to the progress that one instance reports for the running tasks of a job. Each
+ * instance writes its own record, in batches, and removes a task once it has finished.
+ */
+public class TaskProgress extends HelixProperty {
+  private enum ProgressProperties {
+    PROGRESS,
+    HEARTBEAT_TIME
+  }
+
+  public TaskProgress(ZNRecord record) {
+    super(record);
+  }
+
+  /**
+   * Record the progress of a task
+   * @param taskPartition the task partition name
+   * @param progress the fraction of the task that is done, between 0 and 1
+   * @param time when the progress was reported
+   */
+  public void setProgress(String taskPartition, double progress, long time) {
+    Map<String, String> map = new TreeMap<String, String>();
+    map.put(ProgressProperties.PROGRESS.toString(), String.valueOf(progress));
+    map.put(ProgressProperties.HEARTBEAT_TIME.toString(), String.valueOf(time));
+    _record.setMapField(taskPartition, map);
+  }
+
+  /**
+   * Remove the progress of a task
+   * @param taskPartition the task partition name
+   */
+  public void remove(String taskPartition) {
+    _record.getMapFields().remove(taskPartition);
+  }
+
+  /**
+   * Get the tasks that have reported progress
+   * @return set of task partition names
+   */
+  public Set<String> getTaskPartitions() {
+    return new HashSet<String>(_record.getMapFields().keySet());
+  }
+
+  /**
+   * Get the last reported progress of a task
+   * @param taskPartition the task partition name
+   * @return the fraction of the task that is done, or -1 if unknown
+   */
+  public double getProgress(String taskPartition) {
+    Map<String, String> map = _record.getMapField(taskPartition);
+    String progress = (map != null) ? map.get(ProgressProperties.PROGRESS.toString()) : null;
+    return (progress != null) ? Double.parseDouble(progress) : -1;
+  }
+
+  /**
+   * Get the time of the last report of a task
+   * @param taskPartition the task partition name
+   * @return the time in milliseconds, or -1 if unknown
+   */
+  public long getHeartbeatTime(String taskPartition) {
+    Map<String, String> map = _record.getMapField(taskPartition);
+    String time = (map != null) ? map.get(ProgressProperties.HEARTBEAT_TIME.toString()) : null;
+    return (time != null) ? Long.parseLong(time) : -1;
+  }
+}
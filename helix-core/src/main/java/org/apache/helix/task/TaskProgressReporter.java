@@ -0,0 +1,222 @@
+package org.apache.helix.task;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.I0Itec.zkclient.DataUpdater;
+import org.apache.helix.AccessOption;
+import org.apache.helix.HelixManager;
+import org.apache.helix.ZNRecord;
+import org.apache.helix.store.HelixPropertyStore;
+import org.apache.log4j.Logger;
+
+/**
+ * Collects the progress that running tasks report on a participant, and periodically writes it to
+ * one {@link TaskProgress} record per job with a single update. The controller uses the progress
+ * to tell slow tasks from stuck ones.
+ */
+public class TaskProgressReporter {
+  private static final Logger LOG = Logger.getLogger(TaskProgressReporter.class);
+
+  /** How often reported progress is written, in milliseconds */
+  public static final long FLUSH_INTERVAL = 1000;
+
+  private final HelixManager _manager;
+  private final Timer _timer;
+  // Progress not yet written, by job and task partition; null means the task finished
+  private Map<String, Map<String, Double>> _pending;
+  // Tasks that have reported progress and not yet finished, as job and task partition pairs
+  private final Set<List<String>> _reporting;
+  private TimerTask _flushTask;
+  private boolean _shutdown;
+
+  /**
+   * Create a reporter
+   * @param manager the participant connection
+   * @param timer the timer to flush on
+   */
+  public TaskProgressReporter(HelixManager manager, Timer timer) {
+    _manager = manager;
+    _timer = timer;
+    _pending = new HashMap<String, Map<String, Double>>();
+    _reporting = new HashSet<List<String>>();
+  }
+
+  /**
+   * Report the progress of a running task
+   * @param job the job resource
+   * @param taskPartition the task partition name
+   * @param progress the fraction of the task that is done, between 0 and 1
+   */
+  public void report(String job, String taskPartition, double progress) {
+    put(job, taskPartition, Math.max(0.0, Math.min(1.0, progress)));
+  }
+
+  /**
+   * Stop reporting a task that finished. Nothing is written if the task never reported progress.
+   * @param job the job resource
+   * @param taskPartition the task partition name
+   */
+  public void remove(String job, String taskPartition) {
+    put(job, taskPartition, null);
+  }
+
+  /**
+   * Stop writing progress; progress that was not yet written is dropped
+   */
+  public synchronized void shutdown() {
+    _shutdown = true;
+    if (_flushTask != null) {
+      _flushTask.cancel();
+      _flushTask = null;
+    }
+    _pending.clear();
+    _reporting.clear();
+  }
+
+  private synchronized void put(String job, String taskPartition, Double progress) {
+    List<String> key = Arrays.asList(job, taskPartition);
+    if (progress != null) {
+      _reporting.add(key);
+    } else if (!_reporting.remove(key)) {
+      return;
+    }
+    Map<String, Double> jobProgress = _pending.get(job);
+    if (jobProgress == null) {
+      jobProgress = new HashMap<String, Double>();
+      _pending.put(job, jobProgress);
+    }
+    jobProgress.put(taskPartition, progress);
+    scheduleFlush();
+  }
+
+  /**
+   * Schedule a flush unless one is already scheduled. Must be called with the lock held.
+   */
+  private void scheduleFlush() {
+    if (_flushTask == null && !_shutdown) {
+      _flushTask = new TimerTask() {
+        @Override
+        public void run() {
+          flush();
+        }
+      };
+      try {
+        _timer.schedule(_flushTask, FLUSH_INTERVAL);
+      } catch (IllegalStateException e) {
+        // the timer was cancelled on shutdown
+        _flushTask = null;
+      }
+    }
+  }
+
+  /**
+   * Put progress that could not be written back so that the next flush retries it, unless newer
+   * progress was reported for the same task in the meantime
+   * @param job the job resource
+   * @param jobProgress the progress of the job's tasks that was not written
+   */
+  private synchronized void retry(String job, Map<String, Double> jobProgress) {
+    if (_shutdown) {
+      return;
+    }
+    Map<String, Double> pending = _pending.get(job);
+    if (pending == null) {
+      pending = new HashMap<String, Double>();
+      _pending.put(job, pending);
+    }
+    for (Map.Entry<String, Double> task : jobProgress.entrySet()) {
+      if (!pending.containsKey(task.getKey())) {
+        pending.put(task.getKey(), task.getValue());
+      }
+    }
+    scheduleFlush();
+  }
+
+  /**
+   * Write all pending progress with one update per job. This runs on the timer that also times out
+   * tasks, so failures are logged and retried on the next flush rather than thrown, which would
+   * cancel the timer.
+   */
+  private void flush() {
+    final Map<String, Map<String, Double>> pending;
+    synchronized (this) {
+      if (_flushTask == null) {
+        return;
+      }
+      _flushTask = null;
+      pending = _pending;
+      _pending = new HashMap<String, Map<String, Double>>();
+    }
+
+    final String instance = _manager.getInstanceName();
+    final long now = System.currentTimeMillis();
+    for (Map.Entry<String, Map<String, Double>> e : pending.entrySet()) {
+      final Map<String, Double> jobProgress = e.getValue();
+      String path = TaskUtil.getTaskProgressPath(e.getKey(), instance);
+      try {
+        HelixPropertyStore<ZNRecord> store = _manager.getHelixPropertyStore();
+        if (!hasProgress(jobProgress) && !store.exists(path, AccessOption.PERSISTENT)) {
+          // only removals, and nothing to remove them from; the job may already be cleaned up
+          continue;
+        }
+        boolean success = store.update(path, new DataUpdater<ZNRecord>() {
+          @Override
+          public ZNRecord update(ZNRecord currentData) {
+            TaskProgress progress =
+                new TaskProgress(currentData != null ? currentData : new ZNRecord(instance));
+            for (Map.Entry<String, Double> task : jobProgress.entrySet()) {
+              if (task.getValue() != null) {
+                progress.setProgress(task.getKey(), task.getValue(), now);
+              } else {
+                progress.remove(task.getKey());
+              }
+            }
+            return progress.getRecord();
+          }
+        }, AccessOption.PERSISTENT);
+        if (!success) {
+          LOG.warn("Failed to report task progress to " + path);
+          retry(e.getKey(), jobProgress);
+        }
+      } catch (RuntimeException ex) {
+        LOG.error("Failed to report task progress to " + path, ex);
+        retry(e.getKey(), jobProgress);
+      }
+    }
+  }
+
+  private static boolean hasProgress(Map<String, Double> jobProgress) {
+    for (Double progress : jobProgress.values()) {
+      if (progress != null) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
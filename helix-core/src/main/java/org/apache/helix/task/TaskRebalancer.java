@@ -20,7 +20,9 @@ package org.apache.helix.task;
  */
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -30,9 +32,6 @@ import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.TreeSet;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 
 import org.I0Itec.zkclient.DataUpdater;
 import org.apache.helix.AccessOption;
@@ -47,9 +46,12 @@ import org.apache.helix.api.State;
 import org.apache.helix.api.id.ParticipantId;
 import org.apache.helix.api.id.PartitionId;
 import org.apache.helix.api.id.ResourceId;
+import org.apache.helix.controller.RebalanceScheduler;
+import org.apache.helix.controller.context.ContextWriteBackCache;
 import org.apache.helix.controller.context.ControllerContextProvider;
 import org.apache.helix.controller.rebalancer.HelixRebalancer;
 import org.apache.helix.controller.rebalancer.config.RebalancerConfig;
+import org.apache.helix.controller.stages.ClusterDataCache;
 import org.apache.helix.controller.stages.ResourceCurrentState;
 import org.apache.helix.model.IdealState;
 import org.apache.helix.model.ResourceAssignment;
@@ -57,8 +59,6 @@ import org.apache.helix.model.ResourceConfiguration;
 import org.apache.log4j.Logger;
 
 import com.google.common.base.Joiner;
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
@@ -69,10 +69,19 @@ import com.google.common.collect.Sets;
 public abstract class TaskRebalancer implements HelixRebalancer {
   private static final Logger LOG = Logger.getLogger(TaskRebalancer.class);
 
-  // Management of already-scheduled rebalances across jobs
-  private static final BiMap<String, Date> SCHEDULED_TIMES = HashBiMap.create();
-  private static final ScheduledExecutorService SCHEDULED_EXECUTOR = Executors
-      .newSingleThreadScheduledExecutor();
+  // Only used when the cluster snapshot does not come from a controller, which owns the scheduler
+  private static final RebalanceScheduler FALLBACK_SCHEDULER = new RebalanceScheduler(
+      new RebalanceScheduler.Handler() {
+        @Override
+        public void onScheduledRebalance(HelixManager manager, List<String> resources) {
+          for (String resource : Sets.newHashSet(resources)) {
+            TaskUtil.invokeRebalance(manager, resource);
+          }
+        }
+      });
+
+  /** Fraction of the tasks of a job that must be finished before stragglers get copies */
+  private static final double MIN_FINISHED_FRACTION_FOR_SPECULATION = 0.25;
 
   // For connection management
   private HelixManager _manager;
@@ -108,6 +117,35 @@ public abstract class TaskRebalancer implements HelixRebalancer {
       WorkflowConfig workflowCfg, WorkflowContext workflowCtx, Set<Integer> partitionSet,
       Cluster cache);
 
+  /**
+   * Order the instances that may run a task, most preferred first. The task is given to the first
+   * of them that has room for it. By default the instances are tried in the order given.
+   * @param pId the task partition
+   * @param instances the instances whose task assignment contains the task
+   * @param currStateOutput the current state of the instances
+   * @param jobCfg the task configuration
+   * @param jobCtx the task context
+   * @param cache cluster snapshot
+   * @return the instances in order of preference
+   */
+  protected List<ParticipantId> rankInstances(int pId, List<ParticipantId> instances,
+      ResourceCurrentState currStateOutput, JobConfig jobCfg, JobContext jobCtx, Cluster cache) {
+    return instances;
+  }
+
+  /**
+   * Called for each task that is given to an instance in this run. Does nothing by default.
+   * @param pId the task partition
+   * @param instance the instance that the task was given to
+   * @param currStateOutput the current state of the instances
+   * @param jobCfg the task configuration
+   * @param jobCtx the task context
+   * @param cache cluster snapshot
+   */
+  protected void onTaskAssigned(int pId, ParticipantId instance,
+      ResourceCurrentState currStateOutput, JobConfig jobCfg, JobContext jobCtx, Cluster cache) {
+  }
+
   @Override
   public void init(HelixManager manager, ControllerContextProvider contextProvider) {
     _manager = manager;
@@ -135,11 +173,24 @@ public abstract class TaskRebalancer implements HelixRebalancer {
     String workflowResource = jobCfg.getWorkflow();
 
     // Fetch workflow configuration and context
-    WorkflowConfig workflowCfg = TaskUtil.getWorkflowCfg(resourceConfigs.get(workflowResource));
+    WorkflowConfig workflowCfg =
+        TaskUtil.getWorkflowCfg(clusterData.getCache(), resourceConfigs.get(workflowResource));
     if (workflowCfg == null) {
       return emptyAssignment(resourceName, currStateOutput);
     }
-    WorkflowContext workflowCtx = TaskUtil.getWorkflowContext(_manager, workflowResource);
+
+    // A job added to a queue waits in the queue's backlog until it is appended to the DAG
+    if (!workflowCfg.isTerminable()
+        && workflowCfg.getCompiledJobDag().indexOf(resourceName) < 0) {
+      workflowCfg =
+          JobQueueBacklog.foldOnce(_manager, clusterData.getCache(), workflowResource);
+      if (workflowCfg == null || workflowCfg.getCompiledJobDag().indexOf(resourceName) < 0) {
+        return emptyAssignment(resourceName, currStateOutput);
+      }
+    }
+    ContextWriteBackCache contextCache = getContextCache(clusterData);
+    WorkflowContext workflowCtx =
+        TaskUtil.getWorkflowContext(_manager, contextCache, workflowResource);
 
     // Initialize workflow context if needed
     if (workflowCtx == null) {
@@ -148,17 +199,15 @@ public abstract class TaskRebalancer implements HelixRebalancer {
     }
 
     // Check parent dependencies
-    for (String parent : workflowCfg.getJobDag().getDirectParents(resourceName)) {
-      if (workflowCtx.getJobState(parent) == null
-          || !workflowCtx.getJobState(parent).equals(TaskState.COMPLETED)) {
-        return emptyAssignment(resourceName, currStateOutput);
-      }
+    if (!getReadiness(clusterData, workflowResource, workflowCfg, workflowCtx).isReady(
+        resourceName, workflowCtx)) {
+      return emptyAssignment(resourceName, currStateOutput);
     }
 
     // Clean up if workflow marked for deletion
     TargetState targetState = workflowCfg.getTargetState();
     if (targetState == TargetState.DELETE) {
-      cleanup(_manager, resourceName, workflowCfg, workflowResource);
+      cleanup(_manager, contextCache, clusterData, resourceName, workflowCfg, workflowResource);
       return emptyAssignment(resourceName, currStateOutput);
     }
 
@@ -166,12 +215,12 @@ public abstract class TaskRebalancer implements HelixRebalancer {
     if (workflowCtx.getFinishTime() != WorkflowContext.UNFINISHED
         && workflowCtx.getFinishTime() + workflowCfg.getExpiry() <= System.currentTimeMillis()) {
       markForDeletion(_manager, workflowResource);
-      cleanup(_manager, resourceName, workflowCfg, workflowResource);
+      cleanup(_manager, contextCache, clusterData, resourceName, workflowCfg, workflowResource);
       return emptyAssignment(resourceName, currStateOutput);
     }
 
     // Fetch any existing context information from the property store.
-    JobContext jobCtx = TaskUtil.getJobContext(_manager, resourceName);
+    JobContext jobCtx = TaskUtil.getJobContext(_manager, contextCache, resourceName);
     if (jobCtx == null) {
       jobCtx = new JobContext(new ZNRecord("TaskContext"));
       jobCtx.setStartTime(System.currentTimeMillis());
@@ -181,7 +230,7 @@ public abstract class TaskRebalancer implements HelixRebalancer {
     long jobFinishTime = jobCtx.getFinishTime();
     if (!workflowCfg.isTerminable() && jobFinishTime != WorkflowContext.UNFINISHED
         && jobFinishTime + workflowCfg.getExpiry() <= System.currentTimeMillis()) {
-      cleanup(_manager, resourceName, workflowCfg, workflowResource);
+      cleanup(_manager, contextCache, clusterData, resourceName, workflowCfg, workflowResource);
       return emptyAssignment(resourceName, currStateOutput);
     }
 
@@ -193,13 +242,15 @@ public abstract class TaskRebalancer implements HelixRebalancer {
 
     // Check for readiness, and stop processing if it's not ready
     boolean isReady =
-        scheduleIfNotReady(workflowCfg, workflowCtx, workflowResource, resourceName, clusterData);
+        scheduleIfNotReady(_manager, workflowCfg, workflowCtx, workflowResource, resourceName,
+            clusterData);
     if (!isReady) {
       return emptyAssignment(resourceName, currStateOutput);
     }
 
     // Grab the old assignment, or an empty one if it doesn't exist
-    ResourceAssignment prevAssignment = TaskUtil.getPrevResourceAssignment(_manager, resourceName);
+    ResourceAssignment prevAssignment =
+        TaskUtil.getPrevResourceAssignment(_manager, contextCache, resourceName);
     if (prevAssignment == null) {
       prevAssignment = new ResourceAssignment(ResourceId.from(resourceName));
     }
@@ -224,10 +275,11 @@ public abstract class TaskRebalancer implements HelixRebalancer {
       accessor.setProperty(propertyKey, taskIs);
     }
 
-    // Update rebalancer context, previous ideal state.
-    TaskUtil.setJobContext(_manager, resourceName, jobCtx);
-    TaskUtil.setWorkflowContext(_manager, workflowResource, workflowCtx);
-    TaskUtil.setPrevResourceAssignment(_manager, resourceName, newAssignment);
+    // Update rebalancer context, previous ideal state. These are written once per pipeline run, and
+    // only if they changed.
+    TaskUtil.setJobContext(_manager, contextCache, resourceName, jobCtx);
+    TaskUtil.setWorkflowContext(_manager, contextCache, workflowResource, workflowCtx);
+    TaskUtil.setPrevResourceAssignment(_manager, contextCache, resourceName, newAssignment);
 
     return newAssignment;
   }
@@ -268,6 +320,12 @@ public abstract class TaskRebalancer implements HelixRebalancer {
         getTaskPartitionAssignments(liveInstances, prevAssignment, allPartitions);
 
     long currentTime = System.currentTimeMillis();
+
+    // Settle tasks that also run as a speculative copy, so that the loop below sees one of them
+    Map<Integer, PartitionAssignment> speculativeMap =
+        resolveSpeculativeTasks(jobResource, jobTgtState, jobCtx, allPartitions, taskAssignments,
+            currStateOutput, prevAssignment);
+
     for (ParticipantId instance : taskAssignments.keySet()) {
       Set<Integer> pSet = taskAssignments.get(instance);
       // Used to keep track of partitions that are in one of the final states: COMPLETED, TIMED_OUT,
@@ -276,6 +334,12 @@ public abstract class TaskRebalancer implements HelixRebalancer {
       for (int pId : pSet) {
         final String pName = pName(jobResource, pId);
 
+        // Speculative copies that keep running have already been assigned.
+        PartitionAssignment copy = speculativeMap.get(pId);
+        if (copy != null && copy._instance.equals(instance.toString())) {
+          continue;
+        }
+
         // Check for pending state transitions on this (partition, instance).
         State pendingState =
             currStateOutput.getPendingState(ResourceId.from(jobResource), PartitionId.from(pName),
@@ -423,10 +487,12 @@ public abstract class TaskRebalancer implements HelixRebalancer {
     }
 
     // For delayed tasks, trigger a rebalance event for the closest upcoming ready time
-    scheduleForNextTask(jobResource, jobCtx, currentTime);
+    scheduleForNextTask(_manager, jobResource, jobResource, jobCtx, currentTime, cache);
 
     if (isJobComplete(jobCtx, allPartitions, skippedPartitions)) {
       workflowCtx.setJobState(jobResource, TaskState.COMPLETED);
+      getReadiness(cache, jobCfg.getWorkflow(), workflowConfig, workflowCtx).markCompleted(
+          jobResource);
       jobCtx.setFinishTime(currentTime);
       if (isWorkflowComplete(workflowCtx, workflowConfig)) {
         workflowCtx.setWorkflowState(TaskState.COMPLETED);
@@ -447,6 +513,9 @@ public abstract class TaskRebalancer implements HelixRebalancer {
       Map<ParticipantId, SortedSet<Integer>> tgtPartitionAssignments =
           getTaskAssignment(currStateOutput, prevAssignment, liveInstances, jobCfg, jobCtx,
               workflowConfig, workflowCtx, allPartitions, cache);
+      // Number of additional tasks each instance can take, and the instances each task may go to
+      Map<ParticipantId, Integer> room = new HashMap<ParticipantId, Integer>();
+      Map<Integer, List<ParticipantId>> candidates = new TreeMap<Integer, List<ParticipantId>>();
       for (Map.Entry<ParticipantId, SortedSet<Integer>> entry : taskAssignments.entrySet()) {
         ParticipantId instance = entry.getKey();
         if (!tgtPartitionAssignments.containsKey(instance)) {
@@ -454,45 +523,275 @@ public abstract class TaskRebalancer implements HelixRebalancer {
         }
         // Contains the set of task partitions currently assigned to the instance.
         Set<Integer> pSet = entry.getValue();
-        int numToAssign = jobCfg.getNumConcurrentTasksPerInstance() - pSet.size();
-        if (numToAssign > 0) {
-          List<Integer> nextPartitions =
-              getNextPartitions(tgtPartitionAssignments.get(instance), excludeSet, numToAssign);
-          for (Integer pId : nextPartitions) {
-            String pName = pName(jobResource, pId);
-            paMap.put(pId,
-                new PartitionAssignment(instance.toString(), TaskPartitionState.RUNNING.name()));
-            excludeSet.add(pId);
-            jobCtx.setAssignedParticipant(pId, instance.toString());
-            jobCtx.setPartitionState(pId, TaskPartitionState.INIT);
-            LOG.debug(String.format("Setting task partition %s state to %s on instance %s.", pName,
-                TaskPartitionState.RUNNING, instance));
+        room.put(instance, jobCfg.getNumConcurrentTasksPerInstance() - pSet.size());
+        for (Integer pId : tgtPartitionAssignments.get(instance)) {
+          if (excludeSet.contains(pId)) {
+            continue;
+          }
+          List<ParticipantId> instances = candidates.get(pId);
+          if (instances == null) {
+            instances = new ArrayList<ParticipantId>();
+            candidates.put(pId, instances);
           }
+          instances.add(instance);
         }
       }
+      // Give each task to the first of its instances that has room for it
+      for (Map.Entry<Integer, List<ParticipantId>> entry : candidates.entrySet()) {
+        int pId = entry.getKey();
+        for (ParticipantId instance : rankInstances(pId, entry.getValue(), currStateOutput,
+            jobCfg, jobCtx, cache)) {
+          Integer numToAssign = room.get(instance);
+          if (numToAssign == null || numToAssign <= 0) {
+            continue;
+          }
+          room.put(instance, numToAssign - 1);
+          String pName = pName(jobResource, pId);
+          paMap.put(pId,
+              new PartitionAssignment(instance.toString(), TaskPartitionState.RUNNING.name()));
+          excludeSet.add(pId);
+          jobCtx.setAssignedParticipant(pId, instance.toString());
+          jobCtx.setPartitionState(pId, TaskPartitionState.INIT);
+          jobCtx.setPartitionStartTime(pId, currentTime);
+          onTaskAssigned(pId, instance, currStateOutput, jobCfg, jobCtx, cache);
+          LOG.debug(String.format("Setting task partition %s state to %s on instance %s.", pName,
+              TaskPartitionState.RUNNING, instance));
+          break;
+        }
+      }
+
+      // Start copies of stragglers elsewhere. Tasks of targeted jobs must run where their target is.
+      if (jobCfg.getSpeculationThreshold() > 0 && !jobCfg.getTaskConfigMap().isEmpty()) {
+        launchSpeculativeTasks(jobResource, jobCfg, jobCtx, allPartitions, paMap, speculativeMap,
+            tgtPartitionAssignments.keySet(), currentTime, cache);
+      }
     }
 
     // Construct a ResourceAssignment object from the map of partition assignments.
     ResourceAssignment ra = new ResourceAssignment(ResourceId.from(jobResource));
     for (Map.Entry<Integer, PartitionAssignment> e : paMap.entrySet()) {
       PartitionAssignment pa = e.getValue();
-      ra.addReplicaMap(PartitionId.from(pName(jobResource, e.getKey())),
-          ImmutableMap.of(ParticipantId.from(pa._instance), State.from(pa._state)));
+      ImmutableMap.Builder<ParticipantId, State> replicaMap = ImmutableMap.builder();
+      replicaMap.put(ParticipantId.from(pa._instance), State.from(pa._state));
+      PartitionAssignment copy = speculativeMap.get(e.getKey());
+      if (copy != null && !copy._instance.equals(pa._instance)) {
+        replicaMap.put(ParticipantId.from(copy._instance), State.from(copy._state));
+      }
+      ra.addReplicaMap(PartitionId.from(pName(jobResource, e.getKey())), replicaMap.build());
     }
     return ra;
   }
 
+  /**
+   * Decide what happens to tasks that also run as a speculative copy. The first copy to complete
+   * wins and the other one is dropped. The copy also takes over if the original stopped running
+   * or its instance went away, and is dropped if it failed or the job is stopping.
+   * @param jobResource the job
+   * @param jobTgtState the target state of the job
+   * @param jobCtx the job context, updated with the outcome
+   * @param allPartitions the task partitions of the job
+   * @param taskAssignments the task partitions on each live instance, updated with the outcome
+   * @param currStateOutput the current state of the job
+   * @param prevAssignment the previous assignment of the job
+   * @return the copies that keep running, by partition
+   */
+  private static Map<Integer, PartitionAssignment> resolveSpeculativeTasks(String jobResource,
+      TargetState jobTgtState, JobContext jobCtx, Set<Integer> allPartitions,
+      Map<ParticipantId, SortedSet<Integer>> taskAssignments,
+      ResourceCurrentState currStateOutput, ResourceAssignment prevAssignment) {
+    Map<Integer, PartitionAssignment> speculativeMap = new TreeMap<Integer, PartitionAssignment>();
+    ResourceId resourceId = ResourceId.from(jobResource);
+    for (int pId : allPartitions) {
+      String copyInstance = jobCtx.getSpeculativeParticipant(pId);
+      if (copyInstance == null) {
+        continue;
+      }
+      // Set again below if the copy keeps running
+      jobCtx.setSpeculativeParticipant(pId, null);
+      ParticipantId copyId = ParticipantId.from(copyInstance);
+      SortedSet<Integer> copySet = taskAssignments.get(copyId);
+      if (copySet == null || !copySet.contains(pId)) {
+        // The instance of the copy went away
+        continue;
+      }
+
+      PartitionId partition = PartitionId.from(pName(jobResource, pId));
+      String instance = jobCtx.getAssignedParticipant(pId);
+      ParticipantId instanceId = (instance != null) ? ParticipantId.from(instance) : null;
+      SortedSet<Integer> pSet = (instanceId != null) ? taskAssignments.get(instanceId) : null;
+      boolean instanceLive = pSet != null && pSet.contains(pId) && !instance.equals(copyInstance);
+      TaskPartitionState copyState = getTaskState(currStateOutput, resourceId, partition, copyId);
+      TaskPartitionState state =
+          instanceLive ? getTaskState(currStateOutput, resourceId, partition, instanceId) : null;
+      boolean copyActive =
+          copyState == TaskPartitionState.RUNNING
+              || currStateOutput.getPendingState(resourceId, partition, copyId) != null;
+      boolean active =
+          instanceLive
+              && (state == TaskPartitionState.RUNNING || currStateOutput.getPendingState(
+                  resourceId, partition, instanceId) != null);
+
+      if (!instanceLive
+          || (copyState == TaskPartitionState.COMPLETED && state != TaskPartitionState.COMPLETED)
+          || (copyActive && !active && state != TaskPartitionState.COMPLETED)) {
+        // The copy takes over and the original is dropped
+        if (instanceLive) {
+          pSet.remove(pId);
+        }
+        jobCtx.setAssignedParticipant(pId, copyInstance);
+        LOG.info(String.format("Speculative copy of task partition %s on %s takes over from %s.",
+            partition, copyInstance, instance));
+      } else if (copyActive && active && jobTgtState == TargetState.START) {
+        // Both are still running
+        State pendingState = currStateOutput.getPendingState(resourceId, partition, copyId);
+        State requestedState = currStateOutput.getRequestedState(resourceId, partition, copyId);
+        String nextState = TaskPartitionState.RUNNING.name();
+        if (pendingState != null) {
+          Map<ParticipantId, State> stateMap = prevAssignment.getReplicaMap(partition);
+          if (stateMap != null && stateMap.containsKey(copyId)) {
+            nextState = stateMap.get(copyId).toString();
+          }
+        } else if (requestedState != null && !requestedState.toString().isEmpty()) {
+          nextState = requestedState.toString();
+        }
+        speculativeMap.put(pId, new PartitionAssignment(copyInstance, nextState));
+        jobCtx.setSpeculativeParticipant(pId, copyInstance);
+      } else {
+        // The original wins, the copy failed, or the job is stopping; the copy is dropped
+        copySet.remove(pId);
+        LOG.info(String.format("Dropping speculative copy of task partition %s on %s.", partition,
+            copyInstance));
+      }
+    }
+    return speculativeMap;
+  }
+
+  /**
+   * Start a copy of each running task that takes much longer than the median finished task of the
+   * job, on the least loaded eligible instance with room for it. A task gets at most one copy per
+   * attempt. A rebalance is scheduled for when the next task would become a straggler.
+   * @param jobResource the job
+   * @param jobCfg the job configuration
+   * @param jobCtx the job context
+   * @param allPartitions the task partitions of the job
+   * @param paMap the assignment of the tasks of the job
+   * @param speculativeMap the copies that are running, to which new copies are added
+   * @param eligibleInstances the instances that may run tasks of the job
+   * @param currentTime the current time
+   * @param cache the current snapshot of the cluster
+   */
+  private void launchSpeculativeTasks(String jobResource, JobConfig jobCfg, JobContext jobCtx,
+      Set<Integer> allPartitions, Map<Integer, PartitionAssignment> paMap,
+      Map<Integer, PartitionAssignment> speculativeMap, Set<ParticipantId> eligibleInstances,
+      long currentTime, Cluster cache) {
+    // The median duration of the finished tasks is the baseline
+    List<Long> durations = new ArrayList<Long>();
+    for (int pId : allPartitions) {
+      long startTime = jobCtx.getPartitionStartTime(pId);
+      long finishTime = jobCtx.getPartitionFinishTime(pId);
+      if (jobCtx.getPartitionState(pId) == TaskPartitionState.COMPLETED && startTime > 0
+          && finishTime >= startTime) {
+        durations.add(finishTime - startTime);
+      }
+    }
+    if (durations.isEmpty()
+        || durations.size() < allPartitions.size() * MIN_FINISHED_FRACTION_FOR_SPECULATION) {
+      return;
+    }
+    Collections.sort(durations);
+    long median = Math.max(durations.get(durations.size() / 2), 1L);
+    long threshold = (long) (jobCfg.getSpeculationThreshold() * median);
+
+    // Count the tasks on each instance
+    Map<String, Integer> numTasks = new HashMap<String, Integer>();
+    for (Map<Integer, PartitionAssignment> map : Arrays.asList(paMap, speculativeMap)) {
+      for (PartitionAssignment pa : map.values()) {
+        Integer n = numTasks.get(pa._instance);
+        numTasks.put(pa._instance, (n != null) ? n + 1 : 1);
+      }
+    }
+
+    ContextWriteBackCache contextCache = getContextCache(cache);
+    Map<String, TaskProgress> progressMap = new HashMap<String, TaskProgress>();
+    long nextCheckTime = Long.MAX_VALUE;
+    for (Map.Entry<Integer, PartitionAssignment> e : paMap.entrySet()) {
+      int pId = e.getKey();
+      PartitionAssignment pa = e.getValue();
+      long startTime = jobCtx.getPartitionStartTime(pId);
+      if (!pa._state.equals(TaskPartitionState.RUNNING.name()) || speculativeMap.containsKey(pId)
+          || startTime <= 0 || jobCtx.getSpeculationTime(pId) >= startTime) {
+        continue;
+      }
+
+      // Project the duration of the task from the progress it reported, if any
+      long elapsed = currentTime - startTime;
+      double projected = elapsed;
+      if (!progressMap.containsKey(pa._instance)) {
+        progressMap.put(pa._instance,
+            TaskUtil.getTaskProgress(_manager, contextCache, jobResource, pa._instance));
+      }
+      TaskProgress progress = progressMap.get(pa._instance);
+      double fraction = (progress != null) ? progress.getProgress(pName(jobResource, pId)) : -1;
+      if (fraction > 0) {
+        projected = elapsed / fraction;
+      }
+      if (elapsed < median || projected <= threshold) {
+        // Look again when the task would cross the threshold without making progress
+        long checkTime = startTime + threshold;
+        nextCheckTime = Math.min(nextCheckTime, checkTime > currentTime ? checkTime
+            : currentTime + median);
+        continue;
+      }
+
+      // Pick the least loaded other instance that has room for another task of the job
+      String copyInstance = null;
+      int copyNumTasks = jobCfg.getNumConcurrentTasksPerInstance();
+      for (ParticipantId instance : eligibleInstances) {
+        String instanceName = instance.toString();
+        Integer n = numTasks.get(instanceName);
+        n = (n != null) ? n : 0;
+        if (!instanceName.equals(pa._instance) && n < copyNumTasks) {
+          copyInstance = instanceName;
+          copyNumTasks = n;
+        }
+      }
+      if (copyInstance == null) {
+        nextCheckTime = Math.min(nextCheckTime, currentTime + median);
+        continue;
+      }
+      speculativeMap.put(pId, new PartitionAssignment(copyInstance,
+          TaskPartitionState.RUNNING.name()));
+      numTasks.put(copyInstance, copyNumTasks + 1);
+      jobCtx.setSpeculativeParticipant(pId, copyInstance);
+      jobCtx.setSpeculationTime(pId, currentTime);
+      LOG.info(String.format(
+          "Task partition %s has run for %d ms against a median of %d ms, starting a copy on %s.",
+          pName(jobResource, pId), elapsed, median, copyInstance));
+    }
+
+    if (nextCheckTime < Long.MAX_VALUE) {
+      getRebalanceScheduler(cache).schedule(_manager, jobResource, jobResource, nextCheckTime);
+    }
+  }
+
+  private static TaskPartitionState getTaskState(ResourceCurrentState currStateOutput,
+      ResourceId resourceId, PartitionId partition, ParticipantId instance) {
+    State state = currStateOutput.getCurrentState(resourceId, partition, instance);
+    return (state != null) ? TaskPartitionState.valueOf(state.toString()) : null;
+  }
+
   /**
    * Check if a workflow is ready to schedule, and schedule a rebalance if it is not
+   * @param manager connection to Helix
    * @param workflowCfg the workflow to check
    * @param workflowCtx the current workflow context
    * @param workflowResource the Helix resource associated with the workflow
-   * @param jobResource a job from the workflow
+   * @param jobResource a resource of the workflow to rebalance when it becomes ready
    * @param cache the current snapshot of the cluster
    * @return true if ready, false if not ready
    */
-  private boolean scheduleIfNotReady(WorkflowConfig workflowCfg, WorkflowContext workflowCtx,
-      String workflowResource, String jobResource, Cluster cache) {
+  static boolean scheduleIfNotReady(HelixManager manager, WorkflowConfig workflowCfg,
+      WorkflowContext workflowCtx, String workflowResource, String jobResource, Cluster cache) {
 
     // Ignore non-scheduled workflows
     if (workflowCfg == null || workflowCfg.getScheduleConfig() == null) {
@@ -506,12 +805,6 @@ public abstract class TaskRebalancer implements HelixRebalancer {
     long delayFromStart = startTime.getTime() - currentTime;
 
     if (delayFromStart <= 0) {
-      // Remove any timers that are past-time for this workflow
-      Date scheduledTime = SCHEDULED_TIMES.get(workflowResource);
-      if (scheduledTime != null && currentTime > scheduledTime.getTime()) {
-        SCHEDULED_TIMES.remove(workflowResource);
-      }
-
       // Recurring workflows are just templates that spawn new workflows
       if (scheduleConfig.isRecurring()) {
         // Skip scheduling this workflow if it's not in a start state
@@ -522,7 +815,8 @@ public abstract class TaskRebalancer implements HelixRebalancer {
         // Skip scheduling this workflow again if the previous run (if any) is still active
         String lastScheduled = workflowCtx.getLastScheduledSingleWorkflow();
         if (lastScheduled != null) {
-          WorkflowContext lastWorkflowCtx = TaskUtil.getWorkflowContext(_manager, lastScheduled);
+          WorkflowContext lastWorkflowCtx =
+              TaskUtil.getWorkflowContext(manager, getContextCache(cache), lastScheduled);
           if (lastWorkflowCtx == null
               || lastWorkflowCtx.getFinishTime() == WorkflowContext.UNFINISHED) {
             return false;
@@ -541,9 +835,9 @@ public abstract class TaskRebalancer implements HelixRebalancer {
             workflowResource + "_" + TaskConstants.SCHEDULED + "_" + offsetMultiplier;
         if (lastScheduled == null || !lastScheduled.equals(newWorkflowName)) {
           Workflow clonedWf =
-              TaskUtil.cloneWorkflow(_manager, workflowResource, newWorkflowName, new Date(
+              TaskUtil.cloneWorkflow(manager, workflowResource, newWorkflowName, new Date(
                   timeToSchedule));
-          TaskDriver driver = new TaskDriver(_manager);
+          TaskDriver driver = new TaskDriver(manager);
           try {
             // Start the cloned workflow
             driver.start(clonedWf);
@@ -552,47 +846,36 @@ public abstract class TaskRebalancer implements HelixRebalancer {
           }
           // Persist workflow start regardless of success to avoid retrying and failing
           workflowCtx.setLastScheduledSingleWorkflow(newWorkflowName);
-          TaskUtil.setWorkflowContext(_manager, workflowResource, workflowCtx);
+          TaskUtil.setWorkflowContext(manager, getContextCache(cache), workflowResource,
+              workflowCtx);
         }
 
         // Change the time to trigger the pipeline to that of the next run
         startTime = new Date(timeToSchedule + period);
-        delayFromStart = startTime.getTime() - System.currentTimeMillis();
       } else {
         // This is a one-time workflow and is ready
         return true;
       }
     }
 
-    // No need to schedule the same runnable at the same time
-    if (SCHEDULED_TIMES.containsKey(workflowResource)
-        || SCHEDULED_TIMES.inverse().containsKey(startTime)) {
-      return false;
-    }
-
-    scheduleRebalance(workflowResource, jobResource, startTime, delayFromStart);
+    // A schedule that is already pending for this workflow is kept unless this one is earlier
+    getRebalanceScheduler(cache).schedule(manager, workflowResource, jobResource,
+        startTime.getTime());
     return false;
   }
 
-  private void scheduleRebalance(String id, String jobResource, Date startTime, long delayFromStart) {
-    // No need to schedule the same runnable at the same time
-    if (SCHEDULED_TIMES.containsKey(id) || SCHEDULED_TIMES.inverse().containsKey(startTime)) {
-      return;
-    }
-
-    // For workflows not yet scheduled, schedule them and record it
-    RebalanceInvoker rebalanceInvoker = new RebalanceInvoker(_manager, jobResource);
-    SCHEDULED_TIMES.put(id, startTime);
-    SCHEDULED_EXECUTOR.schedule(rebalanceInvoker, delayFromStart, TimeUnit.MILLISECONDS);
-  }
-
-  private void scheduleForNextTask(String jobResource, JobContext ctx, long now) {
-    // Clear current entries if they exist and are expired
+  /**
+   * Schedule a rebalance for the earliest time at which a failed task of a job may be retried
+   * @param manager connection to Helix
+   * @param jobResource the job
+   * @param invokedResource the resource to rebalance at that time
+   * @param ctx the job context
+   * @param now the current time
+   * @param cache the current snapshot of the cluster
+   */
+  static void scheduleForNextTask(HelixManager manager, String jobResource,
+      String invokedResource, JobContext ctx, long now, Cluster cache) {
     long currentTime = now;
-    Date scheduledTime = SCHEDULED_TIMES.get(jobResource);
-    if (scheduledTime != null && currentTime > scheduledTime.getTime()) {
-      SCHEDULED_TIMES.remove(jobResource);
-    }
 
     // Figure out the earliest schedulable time in the future of a non-complete job
     boolean shouldSchedule = false;
@@ -612,9 +895,7 @@ public abstract class TaskRebalancer implements HelixRebalancer {
 
     // If any was found, then schedule it
     if (shouldSchedule) {
-      long delay = earliestTime - currentTime;
-      Date startTime = new Date(earliestTime);
-      scheduleRebalance(jobResource, jobResource, startTime, delay);
+      getRebalanceScheduler(cache).schedule(manager, jobResource, invokedResource, earliestTime);
     }
   }
 
@@ -627,7 +908,7 @@ public abstract class TaskRebalancer implements HelixRebalancer {
    *         {@link TaskPartitionState#COMPLETED} in the rebalancer
    *         context, false otherwise.
    */
-  private static boolean isJobComplete(JobContext ctx, Set<Integer> allPartitions,
+  static boolean isJobComplete(JobContext ctx, Set<Integer> allPartitions,
       Set<Integer> skippedPartitions) {
     for (Integer pId : allPartitions) {
       TaskPartitionState state = ctx.getPartitionState(pId);
@@ -644,11 +925,11 @@ public abstract class TaskRebalancer implements HelixRebalancer {
    * @param cfg Workflow config containing set of jobs
    * @return returns true if all tasks are {@link TaskState#COMPLETED}, false otherwise.
    */
-  private static boolean isWorkflowComplete(WorkflowContext ctx, WorkflowConfig cfg) {
+  static boolean isWorkflowComplete(WorkflowContext ctx, WorkflowConfig cfg) {
     if (!cfg.isTerminable()) {
       return false;
     }
-    for (String job : cfg.getJobDag().getAllNodes()) {
+    for (String job : cfg.getCompiledJobDag().getAllNodes()) {
       if (ctx.getJobState(job) != TaskState.COMPLETED) {
         return false;
       }
@@ -662,8 +943,8 @@ public abstract class TaskRebalancer implements HelixRebalancer {
    * @param cfg Workflow config containing set of tasks
    * @return returns true if all tasks are {@link TaskState#STOPPED}, false otherwise.
    */
-  private static boolean isWorkflowStopped(WorkflowContext ctx, WorkflowConfig cfg) {
-    for (String job : cfg.getJobDag().getAllNodes()) {
+  static boolean isWorkflowStopped(WorkflowContext ctx, WorkflowConfig cfg) {
+    for (String job : cfg.getCompiledJobDag().getAllNodes()) {
       if (ctx.getJobState(job) != TaskState.STOPPED && ctx.getJobState(job) != null) {
         return false;
       }
@@ -671,7 +952,21 @@ public abstract class TaskRebalancer implements HelixRebalancer {
     return true;
   }
 
-  private static void markForDeletion(HelixManager mgr, String resourceName) {
+  /**
+   * Get the tracker of which jobs of a workflow have all parents completed
+   * @param cluster the cluster snapshot, whose controller keeps the trackers
+   * @param workflowResource the workflow
+   * @param cfg the workflow configuration
+   * @param ctx the workflow context
+   * @return JobDagReadiness
+   */
+  static JobDagReadiness getReadiness(Cluster cluster, String workflowResource,
+      WorkflowConfig cfg, WorkflowContext ctx) {
+    return JobDagReadiness.get((cluster != null) ? cluster.getCache() : null, workflowResource,
+        cfg.getCompiledJobDag(), ctx);
+  }
+
+  static void markForDeletion(HelixManager mgr, String resourceName) {
     mgr.getConfigAccessor().set(
         TaskUtil.getResourceConfigScope(mgr.getClusterName(), resourceName),
         WorkflowConfig.TARGET_STATE, TargetState.DELETE.name());
@@ -681,35 +976,12 @@ public abstract class TaskRebalancer implements HelixRebalancer {
    * Cleans up all Helix state associated with this job, wiping workflow-level information if this
    * is the last remaining job in its workflow, and the workflow is terminable.
    */
-  private static void cleanup(HelixManager mgr, final String resourceName, WorkflowConfig cfg,
-      String workflowResource) {
+  private static void cleanup(HelixManager mgr, ContextWriteBackCache contextCache,
+      Cluster cluster, final String resourceName, WorkflowConfig cfg, String workflowResource) {
     HelixDataAccessor accessor = mgr.getHelixDataAccessor();
 
     // Remove any DAG references in workflow
-    PropertyKey workflowKey = getConfigPropertyKey(accessor, workflowResource);
-    DataUpdater<ZNRecord> dagRemover = new DataUpdater<ZNRecord>() {
-      @Override
-      public ZNRecord update(ZNRecord currentData) {
-        JobDag jobDag = JobDag.fromJson(currentData.getSimpleField(WorkflowConfig.DAG));
-        for (String child : jobDag.getDirectChildren(resourceName)) {
-          jobDag.getChildrenToParents().get(child).remove(resourceName);
-        }
-        for (String parent : jobDag.getDirectParents(resourceName)) {
-          jobDag.getParentsToChildren().get(parent).remove(resourceName);
-        }
-        jobDag.getChildrenToParents().remove(resourceName);
-        jobDag.getParentsToChildren().remove(resourceName);
-        jobDag.getAllNodes().remove(resourceName);
-        try {
-          currentData.setSimpleField(WorkflowConfig.DAG, jobDag.toJson());
-        } catch (Exception e) {
-          LOG.equals("Could not update DAG for job " + resourceName);
-        }
-        return currentData;
-      }
-    };
-    accessor.getBaseDataAccessor().update(workflowKey.getPath(), dagRemover,
-        AccessOption.PERSISTENT);
+    removeFromDag(accessor, workflowResource, resourceName);
 
     // Delete resource configs.
     PropertyKey cfgKey = getConfigPropertyKey(accessor, resourceName);
@@ -722,6 +994,9 @@ public abstract class TaskRebalancer implements HelixRebalancer {
     }
     // Delete property store information for this resource.
     String propStoreKey = getRebalancerPropStoreKey(resourceName);
+    if (contextCache != null) {
+      contextCache.invalidate(propStoreKey);
+    }
     if (!mgr.getHelixPropertyStore().remove(propStoreKey, AccessOption.PERSISTENT)) {
       throw new RuntimeException(
           String
@@ -738,8 +1013,57 @@ public abstract class TaskRebalancer implements HelixRebalancer {
     }
     LOG.info(String.format("Successfully cleaned up job resource %s.", resourceName));
 
+    cleanupWorkflowIfLast(mgr, contextCache, cluster, cfg, workflowResource);
+  }
+
+  /**
+   * Remove a job from the DAG of its workflow
+   * @param accessor connected data accessor
+   * @param workflowResource the workflow
+   * @param resourceName the job to remove
+   */
+  static void removeFromDag(HelixDataAccessor accessor, String workflowResource,
+      final String resourceName) {
+    PropertyKey workflowKey = getConfigPropertyKey(accessor, workflowResource);
+    DataUpdater<ZNRecord> dagRemover = new DataUpdater<ZNRecord>() {
+      @Override
+      public ZNRecord update(ZNRecord currentData) {
+        JobDag jobDag = JobDag.fromJson(currentData.getSimpleField(WorkflowConfig.DAG));
+        for (String child : jobDag.getDirectChildren(resourceName)) {
+          jobDag.getChildrenToParents().get(child).remove(resourceName);
+        }
+        for (String parent : jobDag.getDirectParents(resourceName)) {
+          jobDag.getParentsToChildren().get(parent).remove(resourceName);
+        }
+        jobDag.getChildrenToParents().remove(resourceName);
+        jobDag.getParentsToChildren().remove(resourceName);
+        jobDag.getAllNodes().remove(resourceName);
+        try {
+          currentData.setSimpleField(WorkflowConfig.DAG, jobDag.toJson());
+        } catch (Exception e) {
+          LOG.equals("Could not update DAG for job " + resourceName);
+        }
+        return currentData;
+      }
+    };
+    accessor.getBaseDataAccessor().update(workflowKey.getPath(), dagRemover,
+        AccessOption.PERSISTENT);
+  }
+
+  /**
+   * Wipe workflow-level information, including the workflow's task pool, if no job of a terminable
+   * workflow is left
+   * @param mgr connection to Helix
+   * @param contextCache the controller's context cache, or null
+   * @param cluster the cluster snapshot, whose controller keeps the workflow's DAG and tracker
+   * @param cfg the workflow configuration
+   * @param workflowResource the workflow
+   */
+  static void cleanupWorkflowIfLast(HelixManager mgr, ContextWriteBackCache contextCache,
+      Cluster cluster, WorkflowConfig cfg, String workflowResource) {
+    HelixDataAccessor accessor = mgr.getHelixDataAccessor();
     boolean lastInWorkflow = true;
-    for (String job : cfg.getJobDag().getAllNodes()) {
+    for (String job : cfg.getCompiledJobDag().getAllNodes()) {
       // check if property store information or resource configs exist for this job
       if (mgr.getHelixPropertyStore().exists(getRebalancerPropStoreKey(job),
           AccessOption.PERSISTENT)
@@ -762,6 +1086,9 @@ public abstract class TaskRebalancer implements HelixRebalancer {
       }
       // Delete property store information for this workflow
       String workflowPropStoreKey = getRebalancerPropStoreKey(workflowResource);
+      if (contextCache != null) {
+        contextCache.invalidate(workflowPropStoreKey);
+      }
       if (!mgr.getHelixPropertyStore().remove(workflowPropStoreKey, AccessOption.PERSISTENT)) {
         throw new RuntimeException(
             String
@@ -769,19 +1096,42 @@ public abstract class TaskRebalancer implements HelixRebalancer {
                     "Error occurred while trying to clean up workflow %s. Failed to remove node %s from Helix. Aborting further clean up steps.",
                     workflowResource, workflowPropStoreKey));
       }
+      // The task pool, if there is one, has nothing left to run
+      TaskPoolRebalancer.removeTaskPool(mgr, contextCache,
+          TaskUtil.getTaskPoolName(workflowResource));
+      ClusterDataCache cache = (cluster != null) ? cluster.getCache() : null;
+      JobDagReadiness.remove(cache, workflowResource);
+      CompiledJobDag.Cache dags = CompiledJobDag.getCache(cache);
+      if (dags != null) {
+        dags.remove(workflowResource);
+      }
+    }
+  }
+
+  static RebalanceScheduler getRebalanceScheduler(Cluster cluster) {
+    if (cluster == null || cluster.getCache() == null
+        || cluster.getCache().getRebalanceScheduler() == null) {
+      return FALLBACK_SCHEDULER;
     }
+    return cluster.getCache().getRebalanceScheduler();
+  }
 
+  static ContextWriteBackCache getContextCache(Cluster cluster) {
+    if (cluster == null || cluster.getCache() == null) {
+      return null;
+    }
+    return cluster.getCache().getContextWriteBackCache();
   }
 
-  private static String getRebalancerPropStoreKey(String resource) {
+  static String getRebalancerPropStoreKey(String resource) {
     return Joiner.on("/").join(TaskConstants.REBALANCER_CONTEXT_ROOT, resource);
   }
 
-  private static PropertyKey getISPropertyKey(HelixDataAccessor accessor, String resource) {
+  static PropertyKey getISPropertyKey(HelixDataAccessor accessor, String resource) {
     return accessor.keyBuilder().idealStates(resource);
   }
 
-  private static PropertyKey getConfigPropertyKey(HelixDataAccessor accessor, String resource) {
+  static PropertyKey getConfigPropertyKey(HelixDataAccessor accessor, String resource) {
     return accessor.keyBuilder().resourceConfig(resource);
   }
 
@@ -791,7 +1141,7 @@ public abstract class TaskRebalancer implements HelixRebalancer {
     }
   }
 
-  private static ResourceAssignment emptyAssignment(String name,
+  static ResourceAssignment emptyAssignment(String name,
       ResourceCurrentState currStateOutput) {
     ResourceId resourceId = ResourceId.from(name);
     ResourceAssignment assignment = new ResourceAssignment(resourceId);
@@ -818,23 +1168,7 @@ public abstract class TaskRebalancer implements HelixRebalancer {
     }
   }
 
-  private static List<Integer> getNextPartitions(SortedSet<Integer> candidatePartitions,
-      Set<Integer> excluded, int n) {
-    List<Integer> result = new ArrayList<Integer>();
-    for (Integer pId : candidatePartitions) {
-      if (result.size() >= n) {
-        break;
-      }
-
-      if (!excluded.contains(pId)) {
-        result.add(pId);
-      }
-    }
-
-    return result;
-  }
-
-  private static void markPartitionDelayed(JobConfig cfg, JobContext ctx, int p) {
+  static void markPartitionDelayed(JobConfig cfg, JobContext ctx, int p) {
     long delayInterval = cfg.getTaskRetryDelay();
     if (delayInterval <= 0) {
       return;
@@ -843,13 +1177,13 @@ public abstract class TaskRebalancer implements HelixRebalancer {
     ctx.setNextRetryTime(p, nextStartTime);
   }
 
-  private static void markPartitionCompleted(JobContext ctx, int pId) {
+  static void markPartitionCompleted(JobContext ctx, int pId) {
     ctx.setPartitionState(pId, TaskPartitionState.COMPLETED);
     ctx.setPartitionFinishTime(pId, System.currentTimeMillis());
     ctx.incrementNumAttempts(pId);
   }
 
-  private static void markPartitionError(JobContext ctx, int pId, TaskPartitionState state,
+  static void markPartitionError(JobContext ctx, int pId, TaskPartitionState state,
       boolean incrementAttempts) {
     ctx.setPartitionState(pId, state);
     ctx.setPartitionFinishTime(pId, System.currentTimeMillis());
@@ -858,7 +1192,7 @@ public abstract class TaskRebalancer implements HelixRebalancer {
     }
   }
 
-  private static void markAllPartitionsError(JobContext ctx, TaskPartitionState state,
+  static void markAllPartitionsError(JobContext ctx, TaskPartitionState state,
       boolean incrementAttempts) {
     for (int pId : ctx.getPartitionSet()) {
       markPartitionError(ctx, pId, state, incrementAttempts);
@@ -891,7 +1225,7 @@ public abstract class TaskRebalancer implements HelixRebalancer {
     return result;
   }
 
-  private static Set<Integer> getNonReadyPartitions(JobContext ctx, long now) {
+  static Set<Integer> getNonReadyPartitions(JobContext ctx, long now) {
     Set<Integer> nonReadyPartitions = Sets.newHashSet();
     for (int p : ctx.getPartitionSet()) {
       long toStart = ctx.getNextRetryTime(p);
@@ -929,22 +1263,4 @@ public abstract class TaskRebalancer implements HelixRebalancer {
       _state = state;
     }
   }
-
-  /**
-   * The simplest possible runnable that will trigger a run of the controller pipeline
-   */
-  private static class RebalanceInvoker implements Runnable {
-    private final HelixManager _manager;
-    private final String _resource;
-
-    public RebalanceInvoker(HelixManager manager, String resource) {
-      _manager = manager;
-      _resource = resource;
-    }
-
-    @Override
-    public void run() {
-      TaskUtil.invokeRebalance(_manager, _resource);
-    }
-  }
 }
@@ -117,6 +117,26 @@ public class TaskRunner implements Runnable {
     _task.cancel();
   }
 
+  /**
+   * Finishes a task that was taken off the executor's queue before it started, as if it had been
+   * canceled. A task that timed out while it waited requests a transition to TIMED_OUT.
+   * @param timedOut true if the task timed out, false if the controller canceled it
+   */
+  public void cancelWaiting(boolean timedOut) {
+    _timeout = timedOut;
+    _result = new TaskResult(Status.CANCELED, timedOut ? "Timed out before it started" : null);
+    try {
+      if (timedOut) {
+        requestStateTransition(TaskPartitionState.TIMED_OUT);
+      }
+    } finally {
+      synchronized (_doneSync) {
+        _done = true;
+        _doneSync.notifyAll();
+      }
+    }
+  }
+
   /**
    * Waits uninterruptibly until the task has started.
    */
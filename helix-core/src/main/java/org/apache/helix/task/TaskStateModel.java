@@ -20,11 +20,7 @@ package org.apache.helix.task;
  */
 
 import java.util.Map;
-import java.util.Timer;
 import java.util.TimerTask;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.helix.HelixManager;
@@ -39,20 +35,41 @@ import org.apache.log4j.Logger;
 public class TaskStateModel extends TransitionHandler {
   private static final Logger LOG = Logger.getLogger(TaskStateModel.class);
   private final HelixManager _manager;
-  private final ExecutorService _taskExecutor;
+  private final TaskExecutor _taskExecutor;
+  private final boolean _ownsTaskExecutor;
   private final Map<String, TaskFactory> _taskFactoryRegistry;
-  private final Timer _timer = new Timer("TaskStateModel time out daemon", true);
+  private final TaskProgressReporter _progressReporter;
   private TaskRunner _taskRunner;
+  // What was submitted to the executor for _taskRunner, and for which job
+  private Runnable _taskSubmission;
+  private String _taskJob;
+  private TaskPoolRunner _taskPoolRunner;
 
   public TaskStateModel(HelixManager manager, Map<String, TaskFactory> taskFactoryRegistry) {
+    this(manager, taskFactoryRegistry, new TaskExecutor(manager.getInstanceName()), null, true);
+  }
+
+  /**
+   * Create a state model that runs its tasks on a shared executor, which it does not shut down
+   * @param manager the participant connection
+   * @param taskFactoryRegistry factories of the tasks, by command
+   * @param taskExecutor the executor shared by the task partitions of the participant
+   * @param progressReporter the progress reporter shared by the task partitions of the participant
+   */
+  public TaskStateModel(HelixManager manager, Map<String, TaskFactory> taskFactoryRegistry,
+      TaskExecutor taskExecutor, TaskProgressReporter progressReporter) {
+    this(manager, taskFactoryRegistry, taskExecutor, progressReporter, false);
+  }
+
+  private TaskStateModel(HelixManager manager, Map<String, TaskFactory> taskFactoryRegistry,
+      TaskExecutor taskExecutor, TaskProgressReporter progressReporter, boolean ownsTaskExecutor) {
     _manager = manager;
     _taskFactoryRegistry = taskFactoryRegistry;
-    _taskExecutor = Executors.newFixedThreadPool(40, new ThreadFactory() {
-      @Override
-      public Thread newThread(Runnable r) {
-        return new Thread(r, "TaskStateModel-thread-pool");
-      }
-    });
+    _taskExecutor = taskExecutor;
+    _progressReporter =
+        (progressReporter != null) ? progressReporter : new TaskProgressReporter(manager,
+            taskExecutor.getTimer());
+    _ownsTaskExecutor = ownsTaskExecutor;
   }
 
   public boolean isShutdown() {
@@ -65,8 +82,10 @@ public class TaskStateModel extends TransitionHandler {
 
   public void shutdown() {
     reset();
-    _taskExecutor.shutdown();
-    _timer.cancel();
+    if (_ownsTaskExecutor) {
+      _progressReporter.shutdown();
+      _taskExecutor.shutdown();
+    }
   }
 
   public boolean awaitTermination(long timeout, TimeUnit unit)
@@ -81,14 +100,16 @@ public class TaskStateModel extends TransitionHandler {
 
   @Transition(to = "STOPPED", from = "RUNNING")
   public String onBecomeStoppedFromRunning(Message msg, NotificationContext context) {
+    if (stopTaskPoolRunner()) {
+      return null;
+    }
     String taskPartition = msg.getPartitionName();
     if (_taskRunner == null) {
       throw new IllegalStateException(String.format(
           "Invalid state transition. There is no running task for partition %s.", taskPartition));
     }
 
-    _taskRunner.cancel();
-    TaskResult r = _taskRunner.waitTillDone();
+    TaskResult r = cancelTask();
     LOG.info(String.format("Task %s completed with result %s.", msg.getPartitionName(), r));
 
     return r.getInfo();
@@ -158,14 +179,16 @@ public class TaskStateModel extends TransitionHandler {
 
   @Transition(to = "DROPPED", from = "RUNNING")
   public void onBecomeDroppedFromRunning(Message msg, NotificationContext context) {
+    if (stopTaskPoolRunner()) {
+      return;
+    }
     String taskPartition = msg.getPartitionName();
     if (_taskRunner == null) {
       throw new IllegalStateException(String.format(
           "Invalid state transition. There is no running task for partition %s.", taskPartition));
     }
 
-    _taskRunner.cancel();
-    TaskResult r = _taskRunner.waitTillDone();
+    TaskResult r = cancelTask();
     LOG.info(String.format("Task partition %s returned result %s.", msg.getPartitionName(), r));
     _taskRunner = null;
   }
@@ -192,14 +215,16 @@ public class TaskStateModel extends TransitionHandler {
 
   @Transition(to = "INIT", from = "RUNNING")
   public void onBecomeInitFromRunning(Message msg, NotificationContext context) {
+    if (stopTaskPoolRunner()) {
+      return;
+    }
     String taskPartition = msg.getPartitionName();
     if (_taskRunner == null) {
       throw new IllegalStateException(String.format(
           "Invalid state transition. There is no running task for partition %s.", taskPartition));
     }
 
-    _taskRunner.cancel();
-    TaskResult r = _taskRunner.waitTillDone();
+    TaskResult r = cancelTask();
     LOG.info(String.format("Task partition %s returned result %s.", msg.getPartitionName(), r));
     _taskRunner = null;
   }
@@ -227,18 +252,59 @@ public class TaskStateModel extends TransitionHandler {
   @Override
   public void reset() {
     if (_taskRunner != null) {
+      if (_taskExecutor.remove(_taskJob, _taskSubmission)) {
+        _taskRunner.cancelWaiting(false);
+      } else {
+        _taskRunner.cancel();
+      }
+    }
+    stopTaskPoolRunner();
+  }
+
+  /**
+   * Cancel the task of this partition and wait for it to finish. A task that is still waiting for
+   * admission is taken off the executor's queue instead.
+   * @return the result of the task
+   */
+  private TaskResult cancelTask() {
+    if (_taskExecutor.remove(_taskJob, _taskSubmission)) {
+      _taskRunner.cancelWaiting(false);
+    } else {
       _taskRunner.cancel();
     }
+    return _taskRunner.waitTillDone();
+  }
+
+  /**
+   * Stop the task pool runner, if this partition hosts one
+   * @return true if a runner was stopped, false otherwise
+   */
+  private boolean stopTaskPoolRunner() {
+    if (_taskPoolRunner == null) {
+      return false;
+    }
+    _taskPoolRunner.shutdown();
+    _taskPoolRunner = null;
+    return true;
   }
 
   private void startTask(Message msg, String taskPartition) {
+    // A task pool partition runs whatever the pool assigns to this instance
+    if (TaskUtil.getTaskPoolWorkflow(_manager, msg.getResourceName()) != null) {
+      _taskPoolRunner =
+          new TaskPoolRunner(_manager, _taskFactoryRegistry, _taskExecutor, msg.getResourceName(),
+              msg.getTgtName());
+      _taskPoolRunner.start();
+      return;
+    }
+
     JobConfig cfg = TaskUtil.getJobCfg(_manager, msg.getResourceName());
     TaskConfig taskConfig = null;
     String command = cfg.getCommand();
 
     // Get a task-specific command if specified
-    JobContext ctx = TaskUtil.getJobContext(_manager, msg.getResourceName());
     int pId = Integer.parseInt(taskPartition.substring(taskPartition.lastIndexOf('_') + 1));
+    JobContext ctx = TaskUtil.getJobContextForPartition(_manager, msg.getResourceName(), pId);
     if (ctx.getTaskIdForPartition(pId) != null) {
       taskConfig = cfg.getTaskConfig(ctx.getTaskIdForPartition(pId));
       if (taskConfig != null) {
@@ -259,6 +325,7 @@ public class TaskStateModel extends TransitionHandler {
     callbackContext.setManager(_manager);
     callbackContext.setJobConfig(cfg);
     callbackContext.setTaskConfig(taskConfig);
+    callbackContext.setProgressReporter(_progressReporter, msg.getResourceName(), taskPartition);
 
     // Create a task instance with this command
     if (command == null || _taskFactoryRegistry == null
@@ -269,18 +336,37 @@ public class TaskStateModel extends TransitionHandler {
     Task task = taskFactory.createNewTask(callbackContext);
 
     // Submit the task for execution
-    _taskRunner =
+    final TaskRunner taskRunner =
         new TaskRunner(this, task, msg.getResourceName(), taskPartition, msg.getTgtName(),
             _manager, msg.getTgtSessionId());
-    _taskExecutor.submit(_taskRunner);
-    _taskRunner.waitTillStarted();
+    final String jobResource = msg.getResourceName();
+    final String partitionName = taskPartition;
+    final Runnable submission = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          taskRunner.run();
+        } finally {
+          _progressReporter.remove(jobResource, partitionName);
+        }
+      }
+    };
+    _taskRunner = taskRunner;
+    _taskSubmission = submission;
+    _taskJob = jobResource;
+
+    _taskExecutor.submit(command, jobResource, cfg.getNumConcurrentTasksPerInstance(),
+        submission);
 
-    // Set up a timer to cancel the task when its time out expires.
-    _timer.schedule(new TimerTask() {
+    // Set up a timer to cancel the task when its time out expires, including time spent waiting
+    // for admission. The transition does not wait for the task to start.
+    _taskExecutor.getTimer().schedule(new TimerTask() {
       @Override
       public void run() {
-        if (_taskRunner != null) {
-          _taskRunner.timeout();
+        if (_taskExecutor.remove(jobResource, submission)) {
+          taskRunner.cancelWaiting(true);
+        } else {
+          taskRunner.timeout();
         }
       }
     }, cfg.getTimeoutPerTask());
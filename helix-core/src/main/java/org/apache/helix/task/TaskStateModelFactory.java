@@ -19,6 +19,7 @@ package org.apache.helix.task;
  * under the License.
  */
 
+import java.util.Collections;
 import java.util.Deque;
 import java.util.Map;
 
@@ -38,16 +39,34 @@ public class TaskStateModelFactory extends StateTransitionHandlerFactory<TaskSta
   private final HelixManager _manager;
   private final Map<String, TaskFactory> _taskFactoryRegistry;
   private final Deque<TaskStateModel> _taskStateModels;
+  private final TaskExecutor _taskExecutor;
+  private final TaskProgressReporter _progressReporter;
 
   public TaskStateModelFactory(HelixManager manager, Map<String, TaskFactory> taskFactoryRegistry) {
+    this(manager, taskFactoryRegistry, TaskExecutor.DEFAULT_POOL_SIZE,
+        Collections.<String, Integer> emptyMap());
+  }
+
+  /**
+   * Create a factory whose task partitions run their tasks on one shared executor
+   * @param manager the participant connection
+   * @param taskFactoryRegistry factories of the tasks, by command
+   * @param poolSize number of threads shared by commands without a pool of their own
+   * @param commandPoolSizes number of threads of each command that has a pool of its own
+   */
+  public TaskStateModelFactory(HelixManager manager, Map<String, TaskFactory> taskFactoryRegistry,
+      int poolSize, Map<String, Integer> commandPoolSizes) {
     _manager = manager;
     _taskFactoryRegistry = ImmutableMap.copyOf(taskFactoryRegistry);
     _taskStateModels = Lists.newLinkedList();
+    _taskExecutor = new TaskExecutor(manager.getInstanceName(), poolSize, commandPoolSizes);
+    _progressReporter = new TaskProgressReporter(manager, _taskExecutor.getTimer());
   }
 
   @Override
   public TaskStateModel createStateTransitionHandler(ResourceId resourceId, PartitionId partitionId) {
-    final TaskStateModel taskStateModel = new TaskStateModel(_manager, _taskFactoryRegistry);
+    final TaskStateModel taskStateModel =
+        new TaskStateModel(_manager, _taskFactoryRegistry, _taskExecutor, _progressReporter);
     _taskStateModels.push(taskStateModel);
     return taskStateModel;
   }
@@ -57,7 +76,7 @@ public class TaskStateModelFactory extends StateTransitionHandlerFactory<TaskSta
    *
    * <p>
    *   This method shuts down all of the {@link TaskStateModel} instances created by this
-   *   {@link TaskStateModelFactory} instance.
+   *   {@link TaskStateModelFactory} instance, and the executor they share.
    * </p>
    */
   public void shutdown() {
@@ -65,5 +84,7 @@ public class TaskStateModelFactory extends StateTransitionHandlerFactory<TaskSta
       TaskStateModel taskStateModel = _taskStateModels.pop();
       taskStateModel.shutdown();
     }
+    _progressReporter.shutdown();
+    _taskExecutor.shutdown();
   }
 }
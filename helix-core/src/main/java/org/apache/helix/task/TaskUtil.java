@@ -21,6 +21,7 @@ package org.apache.helix.task;
 
 import java.io.IOException;
 import java.text.ParseException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
@@ -38,11 +39,14 @@ import org.apache.helix.PropertyKey;
 import org.apache.helix.ZNRecord;
 import org.apache.helix.api.State;
 import org.apache.helix.api.id.PartitionId;
+import org.apache.helix.controller.context.ContextWriteBackCache;
+import org.apache.helix.controller.stages.ClusterDataCache;
 import org.apache.helix.model.CurrentState;
 import org.apache.helix.model.HelixConfigScope;
 import org.apache.helix.model.IdealState;
 import org.apache.helix.model.ResourceAssignment;
 import org.apache.helix.model.builder.HelixConfigScopeBuilder;
+import org.apache.helix.store.HelixPropertyStore;
 import org.apache.log4j.Logger;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.type.TypeReference;
@@ -58,6 +62,12 @@ public class TaskUtil {
   private static final Logger LOG = Logger.getLogger(TaskUtil.class);
   public static final String CONTEXT_NODE = "Context";
   public static final String PREV_RA_NODE = "PreviousResourceAssignment";
+  private static final JobContextBucketizer CONTEXT_BUCKETIZER = new JobContextBucketizer(
+      JobContextBucketizer.DEFAULT_BUCKET_SIZE);
+  public static final String TASK_POOL_ASSIGNMENT_NODE = "Assignment";
+  public static final String TASK_POOL_STATUS_NODE = "Status";
+  public static final String TASK_PROGRESS_NODE = "Progress";
+  public static final String QUEUE_BACKLOG_NODE = "Backlog";
 
   /**
    * Parses job resource configurations in Helix into a {@link JobConfig} object.
@@ -103,7 +113,7 @@ public class TaskUtil {
    */
   public static WorkflowConfig getWorkflowCfg(HelixManager manager, String workflowResource) {
     Map<String, String> workflowCfg = getResourceConfigMap(manager, workflowResource);
-    return getWorkflowCfg(workflowCfg);
+    return getWorkflowCfg(null, workflowResource, workflowCfg);
   }
 
   /**
@@ -113,23 +123,41 @@ public class TaskUtil {
    *         workflow, null otherwise.
    */
   public static WorkflowConfig getWorkflowCfg(HelixProperty workflowResourceConfig) {
+    return getWorkflowCfg(null, workflowResourceConfig);
+  }
+
+  /**
+   * Parses workflow resource configurations in Helix into a {@link WorkflowConfig} object, sharing
+   * the compiled DAG through the controller's DAG cache.
+   * @param cache the cluster data of the controller, or null to compile the DAG without caching it
+   * @param workflowResourceConfig the proeprty containing the configurations
+   * @return A {@link WorkflowConfig} object if the property contains valid configurations for the
+   *         workflow, null otherwise.
+   */
+  public static WorkflowConfig getWorkflowCfg(ClusterDataCache cache,
+      HelixProperty workflowResourceConfig) {
     if (workflowResourceConfig == null) {
       return null;
     }
-    return getWorkflowCfg(workflowResourceConfig.getRecord().getSimpleFields());
+    ZNRecord record = workflowResourceConfig.getRecord();
+    return getWorkflowCfg(CompiledJobDag.getCache(cache), record.getId(),
+        record.getSimpleFields());
   }
 
   /**
    * Parses a key-value map into a {@link WorkflowConfig} object.
+   * @param dags the DAG cache of the controller, or null
+   * @param workflowResource the name of the workflow resource
    * @param workflowCfg the map of configurations
    * @return A {@link WorkflowConfig} object if the map contains valid configurations for the
    *         workflow, null otherwise.
    */
-  private static WorkflowConfig getWorkflowCfg(Map<String, String> workflowCfg) {
+  private static WorkflowConfig getWorkflowCfg(CompiledJobDag.Cache dags, String workflowResource,
+      Map<String, String> workflowCfg) {
     if (workflowCfg == null) {
       return null;
     }
-    WorkflowConfig.Builder b = WorkflowConfig.Builder.fromMap(workflowCfg);
+    WorkflowConfig.Builder b = WorkflowConfig.Builder.fromMap(dags, workflowResource, workflowCfg);
 
     return b.build();
   }
@@ -208,11 +236,49 @@ public class TaskUtil {
    * @return the {@link JobContext}, or null if none is available
    */
   public static JobContext getJobContext(HelixManager manager, String jobResource) {
-    ZNRecord r =
-        manager.getHelixPropertyStore().get(
-            Joiner.on("/").join(TaskConstants.REBALANCER_CONTEXT_ROOT, jobResource, CONTEXT_NODE),
-            null, AccessOption.PERSISTENT);
-    return r != null ? new JobContext(r) : null;
+    HelixPropertyStore<ZNRecord> propertyStore = manager.getHelixPropertyStore();
+    String path = getContextPath(jobResource, CONTEXT_NODE);
+    ZNRecord head = propertyStore.get(path, null, AccessOption.PERSISTENT);
+    if (head == null) {
+      return null;
+    }
+    List<String> bucketPaths = new ArrayList<String>();
+    for (int bucket : JobContextBucketizer.getBuckets(head)) {
+      bucketPaths.add(getContextBucketPath(path, bucket));
+    }
+    List<ZNRecord> buckets =
+        bucketPaths.isEmpty() ? null : propertyStore.get(bucketPaths, null,
+            AccessOption.PERSISTENT);
+    return new JobContext(JobContextBucketizer.merge(head, buckets));
+  }
+
+  /**
+   * Get the runtime context of a single job, reading only the part that holds one partition. This
+   * is much cheaper than {@link #getJobContext(HelixManager, String)} for a job with many tasks,
+   * but other partitions may be missing from the result.
+   * @param manager a connection to Helix
+   * @param jobResource the name of the job
+   * @param partition the partition number of interest
+   * @return the {@link JobContext}, or null if none is available
+   */
+  public static JobContext getJobContextForPartition(HelixManager manager, String jobResource,
+      int partition) {
+    HelixPropertyStore<ZNRecord> propertyStore = manager.getHelixPropertyStore();
+    String path = getContextPath(jobResource, CONTEXT_NODE);
+    ZNRecord head = propertyStore.get(path, null, AccessOption.PERSISTENT);
+    if (head == null) {
+      return null;
+    }
+    List<ZNRecord> buckets = null;
+    if (JobContextBucketizer.isBucketized(head)) {
+      int bucket = partition / JobContextBucketizer.getBucketSize(head);
+      if (bucket != 0 && JobContextBucketizer.getBuckets(head).contains(bucket)) {
+        buckets =
+            Collections.singletonList(propertyStore.get(getContextBucketPath(path, bucket), null,
+                AccessOption.PERSISTENT));
+      }
+    }
+    return new JobContext(JobContextBucketizer.merge(head, buckets));
   }
 
   /**
@@ -222,9 +288,15 @@ public class TaskUtil {
    * @param ctx the up-to-date {@link JobContext} for the job
    */
   public static void setJobContext(HelixManager manager, String jobResource, JobContext ctx) {
-    manager.getHelixPropertyStore().set(
-        Joiner.on("/").join(TaskConstants.REBALANCER_CONTEXT_ROOT, jobResource, CONTEXT_NODE),
-        ctx.getRecord(), AccessOption.PERSISTENT);
+    String path = getContextPath(jobResource, CONTEXT_NODE);
+    List<String> paths = new ArrayList<String>();
+    List<ZNRecord> records = new ArrayList<ZNRecord>();
+    Map<Integer, ZNRecord> buckets = CONTEXT_BUCKETIZER.bucketize(ctx.getRecord());
+    for (Map.Entry<Integer, ZNRecord> e : buckets.entrySet()) {
+      paths.add(getContextBucketPath(path, e.getKey()));
+      records.add(e.getValue());
+    }
+    manager.getHelixPropertyStore().setChildren(paths, records, AccessOption.PERSISTENT);
   }
 
   /**
@@ -254,6 +326,265 @@ public class TaskUtil {
         ctx.getRecord(), AccessOption.PERSISTENT);
   }
 
+  /**
+   * Get the last task assignment for a given job through the controller's context cache
+   * @param manager a connection to Helix
+   * @param cache the controller's context cache, or null to read directly
+   * @param resourceName the name of the job
+   * @return {@link ResourceAssignment} instance, or null if no assignment is available
+   */
+  public static ResourceAssignment getPrevResourceAssignment(HelixManager manager,
+      ContextWriteBackCache cache, String resourceName) {
+    if (cache == null) {
+      return getPrevResourceAssignment(manager, resourceName);
+    }
+    ZNRecord r = cache.get(manager, getContextPath(resourceName, PREV_RA_NODE));
+    return r != null ? new ResourceAssignment(r) : null;
+  }
+
+  /**
+   * Set the last task assignment for a given job through the controller's context cache. The write
+   * is deferred until the cache is flushed.
+   * @param manager a connection to Helix
+   * @param cache the controller's context cache, or null to write directly
+   * @param resourceName the name of the job
+   * @param ra {@link ResourceAssignment} containing the task assignment
+   */
+  public static void setPrevResourceAssignment(HelixManager manager, ContextWriteBackCache cache,
+      String resourceName, ResourceAssignment ra) {
+    if (cache == null) {
+      setPrevResourceAssignment(manager, resourceName, ra);
+      return;
+    }
+    cache.put(manager, getContextPath(resourceName, PREV_RA_NODE), ra.getRecord());
+  }
+
+  /**
+   * Get the runtime context of a single job through the controller's context cache
+   * @param manager a connection to Helix
+   * @param cache the controller's context cache, or null to read directly
+   * @param jobResource the name of the job
+   * @return the {@link JobContext}, or null if none is available
+   */
+  public static JobContext getJobContext(HelixManager manager, ContextWriteBackCache cache,
+      String jobResource) {
+    if (cache == null) {
+      return getJobContext(manager, jobResource);
+    }
+    String path = getContextPath(jobResource, CONTEXT_NODE);
+    ZNRecord head = cache.get(manager, path);
+    if (head == null) {
+      return null;
+    }
+    List<ZNRecord> buckets = new ArrayList<ZNRecord>();
+    for (int bucket : JobContextBucketizer.getBuckets(head)) {
+      buckets.add(cache.get(manager, getContextBucketPath(path, bucket)));
+    }
+    return new JobContext(JobContextBucketizer.merge(head, buckets));
+  }
+
+  /**
+   * Set the runtime context of a single job through the controller's context cache. The write is
+   * deferred until the cache is flushed.
+   * @param manager a connection to Helix
+   * @param cache the controller's context cache, or null to write directly
+   * @param jobResource the name of the job
+   * @param ctx the up-to-date {@link JobContext} for the job
+   */
+  public static void setJobContext(HelixManager manager, ContextWriteBackCache cache,
+      String jobResource, JobContext ctx) {
+    if (cache == null) {
+      setJobContext(manager, jobResource, ctx);
+      return;
+    }
+    // only the buckets whose content changed are written when the cache is flushed
+    String path = getContextPath(jobResource, CONTEXT_NODE);
+    Map<Integer, ZNRecord> buckets = CONTEXT_BUCKETIZER.bucketize(ctx.getRecord());
+    for (Map.Entry<Integer, ZNRecord> e : buckets.entrySet()) {
+      cache.put(manager, getContextBucketPath(path, e.getKey()), e.getValue());
+    }
+  }
+
+  /**
+   * Get the runtime context of a single workflow through the controller's context cache
+   * @param manager a connection to Helix
+   * @param cache the controller's context cache, or null to read directly
+   * @param workflowResource the name of the workflow
+   * @return the {@link WorkflowContext}, or null if none is available
+   */
+  public static WorkflowContext getWorkflowContext(HelixManager manager,
+      ContextWriteBackCache cache, String workflowResource) {
+    if (cache == null) {
+      return getWorkflowContext(manager, workflowResource);
+    }
+    ZNRecord r = cache.get(manager, getContextPath(workflowResource, CONTEXT_NODE));
+    return r != null ? new WorkflowContext(r) : null;
+  }
+
+  /**
+   * Set the runtime context of a single workflow through the controller's context cache. The
+   * write is deferred until the cache is flushed.
+   * @param manager a connection to Helix
+   * @param cache the controller's context cache, or null to write directly
+   * @param workflowResource the name of the workflow
+   * @param ctx the up-to-date {@link WorkflowContext} for the workflow
+   */
+  public static void setWorkflowContext(HelixManager manager, ContextWriteBackCache cache,
+      String workflowResource, WorkflowContext ctx) {
+    if (cache == null) {
+      setWorkflowContext(manager, workflowResource, ctx);
+      return;
+    }
+    cache.put(manager, getContextPath(workflowResource, CONTEXT_NODE), ctx.getRecord());
+  }
+
+  /**
+   * Get the assignment table of a task pool through the controller's context cache
+   * @param manager a connection to Helix
+   * @param cache the controller's context cache, or null to read directly
+   * @param taskPool the task pool resource
+   * @return the {@link TaskPoolAssignment}, or null if none is available
+   */
+  public static TaskPoolAssignment getTaskPoolAssignment(HelixManager manager,
+      ContextWriteBackCache cache, String taskPool) {
+    String path = getContextPath(taskPool, TASK_POOL_ASSIGNMENT_NODE);
+    ZNRecord r =
+        (cache != null) ? cache.get(manager, path) : manager.getHelixPropertyStore().get(path,
+            null, AccessOption.PERSISTENT);
+    return r != null ? new TaskPoolAssignment(r) : null;
+  }
+
+  /**
+   * Set the assignment table of a task pool through the controller's context cache
+   * @param manager a connection to Helix
+   * @param cache the controller's context cache, or null to write directly
+   * @param taskPool the task pool resource
+   * @param assignment the up-to-date {@link TaskPoolAssignment}
+   */
+  public static void setTaskPoolAssignment(HelixManager manager, ContextWriteBackCache cache,
+      String taskPool, TaskPoolAssignment assignment) {
+    String path = getContextPath(taskPool, TASK_POOL_ASSIGNMENT_NODE);
+    if (cache == null) {
+      manager.getHelixPropertyStore().set(path, assignment.getRecord(), AccessOption.PERSISTENT);
+      return;
+    }
+    cache.put(manager, path, assignment.getRecord());
+  }
+
+  /**
+   * Get the task results that an instance reported to a task pool, through the controller's
+   * context cache
+   * @param manager a connection to Helix
+   * @param cache the controller's context cache, or null to read directly
+   * @param taskPool the task pool resource
+   * @param instance the instance name
+   * @param listener notified when the instance next reports results, or null; only used with a
+   *          cache
+   * @return the {@link TaskPoolStatus}, or null if none is available
+   */
+  public static TaskPoolStatus getTaskPoolStatus(HelixManager manager,
+      ContextWriteBackCache cache, String taskPool, String instance,
+      ContextWriteBackCache.ChangeListener listener) {
+    String path = getTaskPoolStatusPath(taskPool, instance);
+    ZNRecord r =
+        (cache != null) ? cache.get(manager, path, listener) : manager.getHelixPropertyStore()
+            .get(path, null, AccessOption.PERSISTENT);
+    return r != null ? new TaskPoolStatus(r) : null;
+  }
+
+  /**
+   * Get the progress that an instance reported for the running tasks of a job, through the
+   * controller's context cache
+   * @param manager a connection to Helix
+   * @param cache the controller's context cache, or null to read directly
+   * @param jobResource the job resource
+   * @param instance the instance name
+   * @return the {@link TaskProgress}, or null if none is available
+   */
+  public static TaskProgress getTaskProgress(HelixManager manager, ContextWriteBackCache cache,
+      String jobResource, String instance) {
+    String path = getTaskProgressPath(jobResource, instance);
+    ZNRecord r =
+        (cache != null) ? cache.get(manager, path) : manager.getHelixPropertyStore().get(path,
+            null, AccessOption.PERSISTENT);
+    return r != null ? new TaskProgress(r) : null;
+  }
+
+  /**
+   * Get the property store path of a node that the task rebalancer keeps for a resource
+   * @param resource the job or workflow name
+   * @param node the node, e.g. {@link #CONTEXT_NODE}
+   * @return the path
+   */
+  static String getContextPath(String resource, String node) {
+    return Joiner.on("/").join(TaskConstants.REBALANCER_CONTEXT_ROOT, resource, node);
+  }
+
+  /**
+   * Get the property store path of one bucket of a job context
+   * @param contextPath the path of the job context
+   * @param bucket the bucket index, 0 for the head of the context
+   * @return the path
+   */
+  private static String getContextBucketPath(String contextPath, int bucket) {
+    return (bucket == 0) ? contextPath : contextPath + "/" + bucket;
+  }
+
+  /**
+   * Get the name of the resource that runs the lightweight jobs of a workflow
+   * @param workflowResource the name of the workflow
+   * @return the task pool resource name
+   */
+  public static String getTaskPoolName(String workflowResource) {
+    return workflowResource + "_" + TaskConstants.TASK_POOL;
+  }
+
+  /**
+   * Check if a resource is a task pool
+   * @param manager a connection to Helix
+   * @param resource the resource name
+   * @return the workflow that the pool serves, or null if the resource is not a task pool
+   */
+  public static String getTaskPoolWorkflow(HelixManager manager, String resource) {
+    HelixProperty resourceConfig = getResourceConfig(manager, resource);
+    return getTaskPoolWorkflow(resourceConfig);
+  }
+
+  /**
+   * Check if a resource config belongs to a task pool
+   * @param resourceConfig the resource config
+   * @return the workflow that the pool serves, or null if the resource is not a task pool
+   */
+  public static String getTaskPoolWorkflow(HelixProperty resourceConfig) {
+    if (resourceConfig == null
+        || !resourceConfig.getRecord().getBooleanField(TaskConstants.TASK_POOL, false)) {
+      return null;
+    }
+    return resourceConfig.getRecord().getSimpleField(JobConfig.WORKFLOW_ID);
+  }
+
+  /**
+   * Get the property store path at which an instance reports results for a task pool
+   * @param taskPool the task pool resource
+   * @param instance the instance name
+   * @return the path
+   */
+  static String getTaskPoolStatusPath(String taskPool, String instance) {
+    return Joiner.on("/").join(TaskConstants.REBALANCER_CONTEXT_ROOT, taskPool,
+        TASK_POOL_STATUS_NODE, instance);
+  }
+
+  /**
+   * Get the property store path at which an instance reports the progress of the tasks of a job
+   * @param jobResource the job resource
+   * @param instance the instance name
+   * @return the path
+   */
+  static String getTaskProgressPath(String jobResource, String instance) {
+    return Joiner.on("/").join(TaskConstants.REBALANCER_CONTEXT_ROOT, jobResource,
+        TASK_PROGRESS_NODE, instance);
+  }
+
   /**
    * Get a workflow-qualified job name for a single-job workflow
    * @param singleJobWorkflow the name of the single-job workflow
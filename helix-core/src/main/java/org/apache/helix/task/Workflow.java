@@ -183,6 +183,13 @@ public class Workflow {
           String.valueOf(job.timeoutPerPartition));
       builder
           .addConfig(job.name, JobConfig.FAILURE_THRESHOLD, String.valueOf(job.failureThreshold));
+      if (job.lightweight) {
+        builder.addConfig(job.name, JobConfig.LIGHTWEIGHT, String.valueOf(job.lightweight));
+      }
+      if (job.speculationThreshold > 0) {
+        builder.addConfig(job.name, JobConfig.SPECULATION_THRESHOLD,
+            String.valueOf(job.speculationThreshold));
+      }
       if (job.tasks != null) {
         List<TaskConfig> taskConfigs = Lists.newArrayList();
         for (TaskBean task : job.tasks) {
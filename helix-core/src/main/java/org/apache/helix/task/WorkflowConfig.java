@@ -42,7 +42,8 @@ public class WorkflowConfig {
   public static final long DEFAULT_EXPIRY = 24 * 60 * 60 * 1000;
 
   /* Member variables */
-  private final JobDag _jobDag;
+  private JobDag _jobDag;
+  private CompiledJobDag _compiledJobDag;
   private final TargetState _targetState;
   private final long _expiry;
   private final boolean _terminable;
@@ -50,17 +51,41 @@ public class WorkflowConfig {
 
   protected WorkflowConfig(JobDag jobDag, TargetState targetState, long expiry, boolean terminable,
       ScheduleConfig scheduleConfig) {
+    this(jobDag, null, targetState, expiry, terminable, scheduleConfig);
+  }
+
+  private WorkflowConfig(JobDag jobDag, CompiledJobDag compiledJobDag, TargetState targetState,
+      long expiry, boolean terminable, ScheduleConfig scheduleConfig) {
     _jobDag = jobDag;
+    _compiledJobDag = compiledJobDag;
     _targetState = targetState;
     _expiry = expiry;
     _terminable = terminable;
     _scheduleConfig = scheduleConfig;
   }
 
+  /**
+   * Get the DAG of the workflow. If the config was read from Helix, the DAG is built on first use.
+   * @return JobDag
+   */
   public JobDag getJobDag() {
+    if (_jobDag == null) {
+      _jobDag = _compiledJobDag.toJobDag();
+    }
     return _jobDag;
   }
 
+  /**
+   * Get the read-only DAG of the workflow, which is shared by all configs read with the same DAG
+   * @return CompiledJobDag
+   */
+  public CompiledJobDag getCompiledJobDag() {
+    if (_compiledJobDag == null) {
+      _compiledJobDag = CompiledJobDag.compile(_jobDag);
+    }
+    return _compiledJobDag;
+  }
+
   public TargetState getTargetState() {
     return _targetState;
   }
@@ -110,6 +135,7 @@ public class WorkflowConfig {
 
   public static class Builder {
     private JobDag _taskDag = JobDag.EMPTY_DAG;
+    private CompiledJobDag _compiledDag;
     private TargetState _targetState = TargetState.START;
     private long _expiry = DEFAULT_EXPIRY;
     private boolean _isTerminable = true;
@@ -118,11 +144,21 @@ public class WorkflowConfig {
     public WorkflowConfig build() {
       validate();
 
+      if (_compiledDag != null) {
+        return new WorkflowConfig(null, _compiledDag, _targetState, _expiry, _isTerminable,
+            _scheduleConfig);
+      }
       return new WorkflowConfig(_taskDag, _targetState, _expiry, _isTerminable, _scheduleConfig);
     }
 
     public Builder setJobDag(JobDag v) {
       _taskDag = v;
+      _compiledDag = null;
+      return this;
+    }
+
+    private Builder setCompiledJobDag(CompiledJobDag v) {
+      _compiledDag = v;
       return this;
     }
 
@@ -147,6 +183,19 @@ public class WorkflowConfig {
     }
 
     public static Builder fromMap(Map<String, String> cfg) {
+      return fromMap(null, null, cfg);
+    }
+
+    /**
+     * Create a builder from the configuration of a workflow. The DAG is shared with other configs
+     * read through the same DAG cache for the same workflow as long as it does not change.
+     * @param dags the DAG cache of the controller, or null to compile the DAG without caching it
+     * @param workflow the workflow resource
+     * @param cfg the configuration map
+     * @return Builder
+     */
+    public static Builder fromMap(CompiledJobDag.Cache dags, String workflow,
+        Map<String, String> cfg) {
       Builder b = new Builder();
       if (cfg == null) {
         return b;
@@ -155,7 +204,7 @@ public class WorkflowConfig {
         b.setExpiry(Long.parseLong(cfg.get(EXPIRY)));
       }
       if (cfg.containsKey(DAG)) {
-        b.setJobDag(JobDag.fromJson(cfg.get(DAG)));
+        b.setCompiledJobDag(CompiledJobDag.fromJson(dags, workflow, cfg.get(DAG)));
       }
       if (cfg.containsKey(TARGET_STATE)) {
         b.setTargetState(TargetState.valueOf(cfg.get(TARGET_STATE)));
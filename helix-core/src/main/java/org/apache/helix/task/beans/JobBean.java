@@ -42,4 +42,6 @@ public class JobBean {
   public int maxForcedReassignmentsPerTask = JobConfig.DEFAULT_MAX_FORCED_REASSIGNMENTS_PER_TASK;
   public int failureThreshold = JobConfig.DEFAULT_FAILURE_THRESHOLD;
   public long taskRetryDelay = JobConfig.DEFAULT_TASK_RETRY_DELAY;
+  public boolean lightweight = false;
+  public double speculationThreshold = JobConfig.DEFAULT_SPECULATION_THRESHOLD;
 }
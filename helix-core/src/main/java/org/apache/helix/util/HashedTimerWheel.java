@@ -0,0 +1,195 @@
+package org.apache.helix.util;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A hashed timer wheel that buckets entries by the tick in which they expire.
+ * <p>
+ * Entries are intrusive: the linkage lives in {@link Entry} itself, so scheduling an entry does not
+ * allocate. Scheduling and cancelling are O(1); expiring is proportional to the number of ticks
+ * elapsed plus the number of entries in the visited buckets. Deadlines further out than one
+ * revolution of the wheel simply stay in their bucket until their tick comes up.
+ * </p>
+ * <p>
+ * The wheel does not own a thread. Callers drive it by calling {@link #expire(long)}, typically from
+ * a single periodic task, and handle the returned entries in bulk.
+ * </p>
+ * @param <T> the entry type
+ */
+public class HashedTimerWheel<T extends HashedTimerWheel.Entry> {
+  /**
+   * Base class for anything that can be scheduled on a {@link HashedTimerWheel}
+   */
+  public static abstract class Entry {
+    long _deadlineTick;
+    int _bucket = -1;
+    Entry _prev;
+    Entry _next;
+
+    /**
+     * Check if this entry is currently scheduled on a wheel
+     * @return true if scheduled, false otherwise
+     */
+    public boolean isScheduled() {
+      return _bucket >= 0;
+    }
+  }
+
+  private final long _tickMillis;
+  private final long _startMillis;
+  private final Entry[] _buckets;
+  private final int _mask;
+  private long _currentTick;
+  private int _size;
+
+  /**
+   * Create a timer wheel
+   * @param tickMillis the resolution of the wheel in milliseconds
+   * @param numBuckets the number of buckets, rounded up to a power of two
+   * @param nowMillis the current time in milliseconds
+   */
+  public HashedTimerWheel(long tickMillis, int numBuckets, long nowMillis) {
+    if (tickMillis <= 0) {
+      throw new IllegalArgumentException("tickMillis must be positive, was " + tickMillis);
+    }
+    if (numBuckets <= 0 || numBuckets > (1 << 30)) {
+      throw new IllegalArgumentException("numBuckets out of range: " + numBuckets);
+    }
+    int size = Integer.highestOneBit(numBuckets);
+    if (size < numBuckets) {
+      size <<= 1;
+    }
+    _tickMillis = tickMillis;
+    _startMillis = nowMillis;
+    _buckets = new Entry[size];
+    _mask = size - 1;
+    _currentTick = 0;
+    _size = 0;
+  }
+
+  /**
+   * Schedule an entry to expire at a given time. If the entry is already scheduled, it is moved to
+   * the new deadline.
+   * @param entry the entry to schedule
+   * @param deadlineMillis the time at which the entry should expire
+   */
+  public synchronized void schedule(T entry, long deadlineMillis) {
+    if (entry.isScheduled()) {
+      unlink(entry);
+    }
+    long elapsed = Math.max(0L, deadlineMillis - _startMillis);
+    long deadlineTick = (elapsed + _tickMillis - 1) / _tickMillis;
+    if (deadlineTick <= _currentTick) {
+      deadlineTick = _currentTick + 1;
+    }
+    entry._deadlineTick = deadlineTick;
+    link(entry, (int) (deadlineTick & _mask));
+  }
+
+  /**
+   * Remove an entry from the wheel
+   * @param entry the entry to remove
+   * @return true if the entry was scheduled, false otherwise
+   */
+  public synchronized boolean cancel(T entry) {
+    if (!entry.isScheduled()) {
+      return false;
+    }
+    unlink(entry);
+    return true;
+  }
+
+  /**
+   * Advance the wheel to the given time and remove every entry whose deadline has passed
+   * @param nowMillis the current time in milliseconds
+   * @return the expired entries, in no particular order
+   */
+  @SuppressWarnings("unchecked")
+  public synchronized List<T> expire(long nowMillis) {
+    long nowTick = Math.max(0L, nowMillis - _startMillis) / _tickMillis;
+    if (nowTick <= _currentTick || _size == 0) {
+      _currentTick = Math.max(_currentTick, nowTick);
+      return Collections.emptyList();
+    }
+    List<T> expired = new ArrayList<T>();
+    long numTicks = Math.min(nowTick - _currentTick, (long) _buckets.length);
+    for (long i = 1; i <= numTicks; i++) {
+      int bucket = (int) ((_currentTick + i) & _mask);
+      Entry entry = _buckets[bucket];
+      while (entry != null) {
+        Entry next = entry._next;
+        if (entry._deadlineTick <= nowTick) {
+          unlink(entry);
+          expired.add((T) entry);
+        }
+        entry = next;
+      }
+    }
+    _currentTick = nowTick;
+    return expired;
+  }
+
+  /**
+   * Get the number of scheduled entries
+   * @return entry count
+   */
+  public synchronized int size() {
+    return _size;
+  }
+
+  /**
+   * Get the resolution of this wheel
+   * @return tick duration in milliseconds
+   */
+  public long getTickMillis() {
+    return _tickMillis;
+  }
+
+  private void link(Entry entry, int bucket) {
+    Entry head = _buckets[bucket];
+    entry._prev = null;
+    entry._next = head;
+    if (head != null) {
+      head._prev = entry;
+    }
+    _buckets[bucket] = entry;
+    entry._bucket = bucket;
+    _size++;
+  }
+
+  private void unlink(Entry entry) {
+    if (entry._prev != null) {
+      entry._prev._next = entry._next;
+    } else {
+      _buckets[entry._bucket] = entry._next;
+    }
+    if (entry._next != null) {
+      entry._next._prev = entry._prev;
+    }
+    entry._prev = null;
+    entry._next = null;
+    entry._bucket = -1;
+    _size--;
+  }
+}
@@ -329,6 +329,14 @@ public class StatusUpdateUtil {
    */
   public void logMessageStatusUpdateRecord(Message message, Level level, Class<?> classInfo,
       String additionalInfo, HelixDataAccessor accessor) {
+    if (message.isDirectDelivery()) {
+      // keep directly delivered messages off zk entirely
+      if (_logger.isDebugEnabled()) {
+        _logger.debug("StatusUpdate for direct message " + message.getId() + ": "
+            + additionalInfo);
+      }
+      return;
+    }
     try {
       ZNRecord record = createMessageStatusUpdateRecord(message, level, classInfo, additionalInfo);
       publishStatusUpdateRecord(record, message, level, accessor);
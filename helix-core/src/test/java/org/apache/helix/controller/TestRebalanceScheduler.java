@@ -0,0 +1,90 @@
+package org.apache.helix.controller;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.helix.HelixManager;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Test {@link RebalanceScheduler} to ensure each key keeps only its earliest pending rebalance and
+ * that due keys are handed over in one batch.
+ */
+public class TestRebalanceScheduler {
+  // far enough ahead that the scheduler's own timer thread never fires these
+  private static final long FUTURE = System.currentTimeMillis() + 3600 * 1000L;
+
+  private static class RecordingHandler implements RebalanceScheduler.Handler {
+    final List<List<String>> _batches = new ArrayList<List<String>>();
+
+    @Override
+    public synchronized void onScheduledRebalance(HelixManager manager, List<String> resources) {
+      _batches.add(resources);
+    }
+  }
+
+  @Test
+  public void testEarliestPerKey() {
+    RecordingHandler handler = new RecordingHandler();
+    RebalanceScheduler scheduler = new RebalanceScheduler(handler, 10, 16);
+    try {
+      Assert.assertTrue(scheduler.schedule(null, "workflow", "job", FUTURE + 100));
+      // a later time for the same key is ignored, an earlier one replaces it
+      Assert.assertFalse(scheduler.schedule(null, "workflow", "job", FUTURE + 200));
+      Assert.assertTrue(scheduler.schedule(null, "workflow", "job", FUTURE + 50));
+      Assert.assertEquals(scheduler.getScheduledTime("workflow"), FUTURE + 50);
+      Assert.assertEquals(scheduler.size(), 1);
+
+      // different keys at the same time do not collide
+      Assert.assertTrue(scheduler.schedule(null, "otherWorkflow", "otherJob", FUTURE + 50));
+      Assert.assertEquals(scheduler.size(), 2);
+
+      Assert.assertEquals(scheduler.fire(FUTURE), 0);
+      Assert.assertEquals(scheduler.fire(FUTURE + 60), 2);
+      Assert.assertEquals(handler._batches.size(), 1);
+      Assert.assertEquals(handler._batches.get(0).size(), 2);
+      Assert.assertEquals(scheduler.size(), 0);
+      Assert.assertEquals(scheduler.getScheduledTime("workflow"), -1L);
+    } finally {
+      scheduler.shutdown();
+    }
+  }
+
+  @Test
+  public void testCancelAndClear() {
+    RecordingHandler handler = new RecordingHandler();
+    RebalanceScheduler scheduler = new RebalanceScheduler(handler, 10, 16);
+    try {
+      scheduler.schedule(null, "a", "a", FUTURE);
+      scheduler.schedule(null, "b", "b", FUTURE);
+      Assert.assertTrue(scheduler.cancel("a"));
+      Assert.assertFalse(scheduler.cancel("a"));
+      scheduler.clear();
+      Assert.assertEquals(scheduler.size(), 0);
+      Assert.assertEquals(scheduler.fire(FUTURE + 1000), 0);
+      Assert.assertTrue(handler._batches.isEmpty());
+    } finally {
+      scheduler.shutdown();
+    }
+  }
+}
@@ -0,0 +1,96 @@
+package org.apache.helix.controller.context;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import org.apache.helix.AccessOption;
+import org.apache.helix.Mocks;
+import org.apache.helix.ZNRecord;
+import org.apache.helix.manager.zk.ZkBaseDataAccessor;
+import org.apache.helix.store.zk.ZkHelixPropertyStore;
+import org.apache.helix.testutil.ZkTestBase;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Test {@link ContextWriteBackCache} to ensure unchanged records are not rewritten and that writes
+ * made outside of the cache are picked up.
+ */
+public class TestContextWriteBackCache extends ZkTestBase {
+  private final String _root = "/TestContextWriteBackCache";
+
+  @Test
+  public void testWriteBack() throws Exception {
+    final ZkHelixPropertyStore<ZNRecord> store =
+        new ZkHelixPropertyStore<ZNRecord>(new ZkBaseDataAccessor<ZNRecord>(_zkclient), _root,
+            null);
+    Mocks.MockManager manager = new Mocks.MockManager() {
+      @Override
+      public ZkHelixPropertyStore<ZNRecord> getHelixPropertyStore() {
+        return store;
+      }
+    };
+    String path = "/TaskRebalancer/job/Context";
+    ZNRecord record = new ZNRecord("job");
+    record.setSimpleField("state", "IN_PROGRESS");
+    store.set(path, record, AccessOption.PERSISTENT);
+
+    // the first get reads the record, later ones are served from memory
+    ContextWriteBackCache cache = new ContextWriteBackCache();
+    Assert.assertEquals(cache.get(manager, path), record);
+    Assert.assertEquals(cache.get(manager, path), record);
+    ContextWriteBackCache.FlushStats stats = cache.flush();
+    Assert.assertEquals(stats.getNumParents(), 1);
+    Assert.assertEquals(stats.getNumReads(), 1);
+    Assert.assertEquals(stats.getNumWrites(), 0);
+
+    // putting back an equal record does not write
+    cache.put(manager, path, cache.get(manager, path));
+    stats = cache.flush();
+    Assert.assertEquals(stats.getNumReads(), 0);
+    Assert.assertEquals(stats.getNumWrites(), 0);
+
+    // a changed record is written on flush
+    ZNRecord updated = cache.get(manager, path);
+    updated.setSimpleField("state", "COMPLETED");
+    cache.put(manager, path, updated);
+    Assert.assertEquals(store.get(path, null, AccessOption.PERSISTENT), record);
+    stats = cache.flush();
+    Assert.assertEquals(stats.getNumWrites(), 1);
+    Assert.assertEquals(store.get(path, null, AccessOption.PERSISTENT), updated);
+    Assert.assertEquals(cache.size(), 1);
+
+    // a write made outside of the cache evicts the record
+    ZNRecord external = new ZNRecord(updated);
+    external.setSimpleField("state", "STOPPED");
+    store.set(path, external, AccessOption.PERSISTENT);
+    for (int i = 0; i < 100 && cache.size() > 0; i++) {
+      Thread.sleep(50);
+    }
+    Assert.assertEquals(cache.size(), 0);
+    Assert.assertEquals(cache.get(manager, path), external);
+    stats = cache.flush();
+    Assert.assertEquals(stats.getNumReads(), 1);
+
+    // invalidating a parent drops everything below it
+    cache.invalidate("/TaskRebalancer/job");
+    Assert.assertEquals(cache.size(), 0);
+    cache.clear();
+  }
+}
@@ -0,0 +1,227 @@
+package org.apache.helix.controller.rebalancer;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.helix.ZNRecord;
+import org.apache.helix.api.State;
+import org.apache.helix.api.id.ParticipantId;
+import org.apache.helix.api.id.PartitionId;
+import org.apache.helix.api.id.ResourceId;
+import org.apache.helix.controller.stages.ResourceCurrentState;
+import org.apache.helix.participant.PartitionLoadReporter;
+import org.apache.helix.participant.PartitionLoadReporter.LoadMetric;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Test {@link LoadFeedback} to ensure load is taken off an overloaded participant by moving top
+ * states first and replicas second, and that moves are kept in later runs.
+ */
+public class TestLoadFeedback {
+  private static final ResourceId RESOURCE = ResourceId.from("TestDB");
+  private static final long NOW = 1000000L;
+
+  @Test
+  public void testTopStateSwap() {
+    // n0 holds the master of four partitions, and the masters take 100 qps against 10 for a slave
+    ZNRecord mapping = new ZNRecord(RESOURCE.stringify());
+    place(mapping, "TestDB_0", "n0", "n1");
+    place(mapping, "TestDB_1", "n0", "n2");
+    place(mapping, "TestDB_2", "n0", "n1");
+    place(mapping, "TestDB_3", "n0", "n2");
+    place(mapping, "TestDB_4", "n1", "n2");
+    place(mapping, "TestDB_5", "n2", "n1");
+    List<ZNRecord> records =
+        Arrays.asList(
+            record("n0", NOW, "TestDB_0", 100, "TestDB_1", 100, "TestDB_2", 100, "TestDB_3", 100),
+            record("n1", NOW, "TestDB_0", 10, "TestDB_2", 10, "TestDB_4", 100, "TestDB_5", 10),
+            record("n2", NOW, "TestDB_1", 10, "TestDB_3", 10, "TestDB_4", 10, "TestDB_5", 100));
+    Set<ParticipantId> live = participants("n0", "n1", "n2");
+    LoadFeedback.Loads loads = new LoadFeedback.Loads(LoadMetric.QPS, records, live, 0);
+    Assert.assertEquals(loads.getMeasuredImbalance(), 400.0 / 220, 0.001);
+
+    LoadFeedback loadFeedback = new LoadFeedback();
+    ZNRecord result =
+        loadFeedback.apply(RESOURCE, mapping, loads, live, new ResourceCurrentState(), NOW);
+    // two masters move to the slaves, which stay below the low watermark, and then n0 is fine
+    Assert.assertEquals(loads.getNumMoves(), 2);
+    Assert.assertEquals(result.getListField("TestDB_0"), Arrays.asList("n1", "n0"));
+    Assert.assertEquals(result.getMapField("TestDB_0").get("n1"), "MASTER");
+    Assert.assertEquals(result.getMapField("TestDB_0").get("n0"), "SLAVE");
+    Assert.assertEquals(result.getListField("TestDB_1"), Arrays.asList("n2", "n0"));
+    Assert.assertEquals(result.getListField("TestDB_2"), Arrays.asList("n0", "n1"));
+    Assert.assertEquals(loads.getInstanceLoad(ParticipantId.from("n0")), 220.0, 0.001);
+    Assert.assertEquals(loads.getInstanceLoad(ParticipantId.from("n1")), 220.0, 0.001);
+    Assert.assertEquals(loads.getInstanceLoad(ParticipantId.from("n2")), 220.0, 0.001);
+
+    // the input is not changed
+    Assert.assertEquals(mapping.getListField("TestDB_0"), Arrays.asList("n0", "n1"));
+    Assert.assertEquals(mapping.getMapField("TestDB_0").get("n0"), "MASTER");
+
+    // a later run keeps the moves even if it is not allowed to make any
+    LoadFeedback.Loads nextLoads = new LoadFeedback.Loads(LoadMetric.QPS, records, live, 0);
+    nextLoads.configure(125, 110, 0, LoadFeedback.DEFAULT_COOLDOWN_MS);
+    result =
+        loadFeedback.apply(RESOURCE, mapping, nextLoads, live, new ResourceCurrentState(), NOW + 1);
+    Assert.assertEquals(nextLoads.getNumMoves(), 0);
+    Assert.assertEquals(nextLoads.getNumInFlightMoves(), 2);
+    Assert.assertEquals(result.getListField("TestDB_0"), Arrays.asList("n1", "n0"));
+    Assert.assertEquals(result.getListField("TestDB_1"), Arrays.asList("n2", "n0"));
+
+    // a move whose receiver is gone is forgotten
+    Set<ParticipantId> remaining = participants("n0", "n2");
+    result =
+        loadFeedback.apply(RESOURCE, mapping, nextLoads, remaining, new ResourceCurrentState(),
+            NOW + 2);
+    Assert.assertEquals(result.getListField("TestDB_0"), Arrays.asList("n0", "n1"));
+    Assert.assertEquals(result.getListField("TestDB_1"), Arrays.asList("n2", "n0"));
+  }
+
+  @Test
+  public void testInFlightMoves() {
+    // the same placement as testTopStateSwap, but only one move at a time is allowed
+    ZNRecord mapping = new ZNRecord(RESOURCE.stringify());
+    place(mapping, "TestDB_0", "n0", "n1");
+    place(mapping, "TestDB_1", "n0", "n2");
+    place(mapping, "TestDB_2", "n0", "n1");
+    place(mapping, "TestDB_3", "n0", "n2");
+    place(mapping, "TestDB_4", "n1", "n2");
+    place(mapping, "TestDB_5", "n2", "n1");
+    List<ZNRecord> records =
+        Arrays.asList(
+            record("n0", NOW, "TestDB_0", 100, "TestDB_1", 100, "TestDB_2", 100, "TestDB_3", 100),
+            record("n1", NOW, "TestDB_0", 10, "TestDB_2", 10, "TestDB_4", 100, "TestDB_5", 10),
+            record("n2", NOW, "TestDB_1", 10, "TestDB_3", 10, "TestDB_4", 10, "TestDB_5", 100));
+    Set<ParticipantId> live = participants("n0", "n1", "n2");
+    LoadFeedback loadFeedback = new LoadFeedback();
+    LoadFeedback.Loads loads = new LoadFeedback.Loads(LoadMetric.QPS, records, live, 0);
+    loads.configure(125, 110, 1, LoadFeedback.DEFAULT_COOLDOWN_MS);
+    ZNRecord result =
+        loadFeedback.apply(RESOURCE, mapping, loads, live, new ResourceCurrentState(), NOW);
+    Assert.assertEquals(loads.getNumMoves(), 1);
+    Assert.assertEquals(result.getListField("TestDB_0"), Arrays.asList("n1", "n0"));
+
+    // n1 is still becoming the master, so the move is in flight and no other move is allowed
+    ResourceCurrentState currentState = new ResourceCurrentState();
+    currentState.setCurrentState(RESOURCE, PartitionId.from("TestDB_0"), ParticipantId.from("n1"),
+        State.from("SLAVE"));
+    currentState.setPendingState(RESOURCE, PartitionId.from("TestDB_0"), ParticipantId.from("n1"),
+        State.from("MASTER"));
+    loads = new LoadFeedback.Loads(LoadMetric.QPS, records, live, 0);
+    loads.configure(125, 110, 1, LoadFeedback.DEFAULT_COOLDOWN_MS);
+    result = loadFeedback.apply(RESOURCE, mapping, loads, live, currentState, NOW + 1);
+    Assert.assertEquals(loads.getNumInFlightMoves(), 1);
+    Assert.assertEquals(loads.getNumMoves(), 0);
+    Assert.assertEquals(result.getListField("TestDB_0"), Arrays.asList("n1", "n0"));
+    Assert.assertEquals(result.getListField("TestDB_1"), Arrays.asList("n0", "n2"));
+
+    // once n1 is the master, the next move is made
+    currentState = new ResourceCurrentState();
+    currentState.setCurrentState(RESOURCE, PartitionId.from("TestDB_0"), ParticipantId.from("n1"),
+        State.from("MASTER"));
+    loads = new LoadFeedback.Loads(LoadMetric.QPS, records, live, 0);
+    loads.configure(125, 110, 1, LoadFeedback.DEFAULT_COOLDOWN_MS);
+    result = loadFeedback.apply(RESOURCE, mapping, loads, live, currentState, NOW + 2);
+    Assert.assertEquals(loads.getNumInFlightMoves(), 0);
+    Assert.assertEquals(loads.getNumMoves(), 1);
+    Assert.assertEquals(result.getListField("TestDB_1"), Arrays.asList("n2", "n0"));
+  }
+
+  @Test
+  public void testReplicaMove() {
+    // replicas load their instances equally, so swapping top states does not help
+    ZNRecord mapping = new ZNRecord(RESOURCE.stringify());
+    place(mapping, "TestDB_0", "n0", "n1");
+    place(mapping, "TestDB_1", "n0", "n1");
+    List<ZNRecord> records =
+        Arrays.asList(record("n0", NOW, "TestDB_0", 100, "TestDB_1", 100),
+            record("n1", NOW, "TestDB_0", 100, "TestDB_1", 100), record("n2", NOW));
+    Set<ParticipantId> live = participants("n0", "n1", "n2");
+    LoadFeedback.Loads loads = new LoadFeedback.Loads(LoadMetric.QPS, records, live, 0);
+
+    ZNRecord result =
+        new LoadFeedback().apply(RESOURCE, mapping, loads, live, new ResourceCurrentState(), NOW);
+    // one replica moves to n2; a second would put n2 above the low watermark
+    Assert.assertEquals(loads.getNumMoves(), 1);
+    int onIdle = 0;
+    for (String partition : Arrays.asList("TestDB_0", "TestDB_1")) {
+      List<String> preferenceList = result.getListField(partition);
+      Assert.assertEquals(preferenceList.size(), 2);
+      Assert.assertEquals(new HashSet<String>(preferenceList).size(), 2);
+      Assert.assertEquals(result.getMapField(partition).keySet(),
+          new HashSet<String>(preferenceList));
+      if (preferenceList.contains("n2")) {
+        onIdle++;
+      }
+    }
+    Assert.assertEquals(onIdle, 1);
+    Assert.assertEquals(loads.getInstanceLoad(ParticipantId.from("n2")), 100.0, 0.001);
+  }
+
+  @Test
+  public void testStaleSamples() {
+    List<ZNRecord> records =
+        Arrays.asList(record("n0", NOW, "TestDB_0", 100), record("n1", NOW - 10, "TestDB_0", 50),
+            record("n2", NOW, "TestDB_0", 50));
+    // n1 has not reported recently and n2 is not live
+    LoadFeedback.Loads loads =
+        new LoadFeedback.Loads(LoadMetric.QPS, records, participants("n0", "n1"), NOW - 5);
+    Assert.assertEquals(loads.getInstanceLoad(ParticipantId.from("n0")), 100.0, 0.001);
+    Assert.assertEquals(loads.getInstanceLoad(ParticipantId.from("n1")), -1.0);
+    Assert.assertEquals(loads.getInstanceLoad(ParticipantId.from("n2")), -1.0);
+    Assert.assertEquals(loads.getMeasuredImbalance(), 1.0, 0.001);
+  }
+
+  private static void place(ZNRecord mapping, String partition, String master, String slave) {
+    mapping.setListField(partition, Arrays.asList(master, slave));
+    Map<String, String> stateMap = new HashMap<String, String>();
+    stateMap.put(master, "MASTER");
+    stateMap.put(slave, "SLAVE");
+    mapping.setMapField(partition, stateMap);
+  }
+
+  private static ZNRecord record(String instance, long timestamp, Object... partitionLoads) {
+    ZNRecord record = new ZNRecord(instance);
+    for (int i = 0; i < partitionLoads.length; i += 2) {
+      Map<String, String> sample = new HashMap<String, String>();
+      sample.put(LoadMetric.QPS.toString(), partitionLoads[i + 1].toString());
+      record.setMapField(
+          PartitionLoadReporter.getSampleKey(RESOURCE.stringify(), (String) partitionLoads[i]),
+          sample);
+    }
+    record.setLongField(PartitionLoadReporter.TIMESTAMP, timestamp);
+    return record;
+  }
+
+  private static Set<ParticipantId> participants(String... names) {
+    Set<ParticipantId> participants = new HashSet<ParticipantId>();
+    for (String name : names) {
+      participants.add(ParticipantId.from(name));
+    }
+    return participants;
+  }
+}
@@ -20,16 +20,26 @@ package org.apache.helix.controller.stages;
  */
 
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import org.apache.helix.api.Cluster;
 import org.apache.helix.api.State;
 import org.apache.helix.api.config.ResourceConfig;
+import org.apache.helix.api.id.ClusterId;
 import org.apache.helix.api.id.ParticipantId;
 import org.apache.helix.api.id.PartitionId;
 import org.apache.helix.api.id.ResourceId;
+import org.apache.helix.controller.rebalancer.ClusterBalancedPlacement;
+import org.apache.helix.controller.rebalancer.DelayedRebalance;
+import org.apache.helix.controller.rebalancer.MovementBudget;
+import org.apache.helix.model.ClusterConfiguration;
 import org.apache.helix.model.IdealState;
 import org.apache.helix.model.IdealState.RebalanceMode;
+import org.apache.helix.model.ResourceAssignment;
 import org.testng.AssertJUnit;
 import org.testng.annotations.Test;
 
@@ -69,4 +79,323 @@ public class TestBestPossibleStateCalcStage extends BaseStageTest {
     System.out.println("END TestBestPossibleStateCalcStage at "
         + new Date(System.currentTimeMillis()));
   }
+
+  @Test
+  public void testFullAutoPlacementReused() {
+    String resourceName = "testFullAutoResource";
+    List<IdealState> idealStates = setupIdealState(5, new String[] {
+      resourceName
+    }, 10, 2, RebalanceMode.FULL_AUTO);
+    for (IdealState idealState : idealStates) {
+      idealState.setReplicas("2");
+      accessor.setProperty(accessor.keyBuilder().idealStates(resourceName), idealState);
+    }
+    setupLiveInstances(5);
+    setupStateModel();
+
+    Map<ResourceId, ResourceConfig> resourceMap = getResourceMap(idealStates);
+    ResourceCurrentState currentStateOutput = new ResourceCurrentState();
+    event.addAttribute(AttributeName.RESOURCES.toString(), resourceMap);
+    event.addAttribute(AttributeName.CURRENT_STATE.toString(), currentStateOutput);
+    runStage(event, new ReadClusterDataStage());
+
+    // The first run computes the placement
+    BestPossibleStateCalcStage stage = new BestPossibleStateCalcStage();
+    runStage(event, stage);
+    AssertJUnit.assertEquals(0, stage.getPlacementCacheHits());
+    AssertJUnit.assertEquals(1, stage.getPlacementCacheMisses());
+    ResourceAssignment first =
+        ((BestPossibleStateOutput) event.getAttribute(AttributeName.BEST_POSSIBLE_STATE
+            .toString())).getResourceAssignment(ResourceId.from(resourceName));
+
+    // Nothing changed, so the placement is reused and the result is the same
+    runStage(event, stage);
+    AssertJUnit.assertEquals(1, stage.getPlacementCacheHits());
+    AssertJUnit.assertEquals(0, stage.getPlacementCacheMisses());
+    ResourceAssignment second =
+        ((BestPossibleStateOutput) event.getAttribute(AttributeName.BEST_POSSIBLE_STATE
+            .toString())).getResourceAssignment(ResourceId.from(resourceName));
+    for (int p = 0; p < 10; p++) {
+      PartitionId partitionId = PartitionId.from(resourceName + "_" + p);
+      AssertJUnit.assertEquals(first.getReplicaMap(partitionId), second.getReplicaMap(partitionId));
+    }
+
+    // A change in the current state is a new input
+    currentStateOutput.setCurrentState(ResourceId.from(resourceName),
+        PartitionId.from(resourceName + "_0"), ParticipantId.from("localhost_0"),
+        State.from("SLAVE"));
+    runStage(event, stage);
+    AssertJUnit.assertEquals(0, stage.getPlacementCacheHits());
+    AssertJUnit.assertEquals(1, stage.getPlacementCacheMisses());
+    runStage(event, stage);
+    AssertJUnit.assertEquals(1, stage.getPlacementCacheHits());
+
+    // A new leader does not reuse what the rebalancers remembered
+    ClusterDataCache cache = event.getAttribute("ClusterDataCache");
+    cache.requireContextReload();
+    runStage(event, new ReadClusterDataStage());
+    runStage(event, stage);
+    AssertJUnit.assertEquals(0, stage.getPlacementCacheHits());
+    AssertJUnit.assertEquals(1, stage.getPlacementCacheMisses());
+  }
+
+  @Test
+  public void testClusterBalancedPlacement() {
+    String[] resources = new String[] {
+      "testResource0", "testResource1", "testResource2", "testResource3", "testResource4",
+      "testResource5"
+    };
+    List<IdealState> idealStates = setupIdealState(4, resources, 2, 2, RebalanceMode.FULL_AUTO);
+    for (IdealState idealState : idealStates) {
+      idealState.setReplicas("2");
+      accessor.setProperty(
+          accessor.keyBuilder().idealStates(idealState.getResourceId().stringify()), idealState);
+    }
+    ClusterConfiguration clusterConfig = new ClusterConfiguration(ClusterId.from("testCluster"));
+    clusterConfig.getRecord().setBooleanField(ClusterBalancedPlacement.CLUSTER_BALANCED_PLACEMENT,
+        true);
+    accessor.setProperty(accessor.keyBuilder().clusterConfig(), clusterConfig);
+    setupLiveInstances(4);
+    setupStateModel();
+
+    Map<ResourceId, ResourceConfig> resourceMap = getResourceMap(idealStates);
+    ResourceCurrentState currentStateOutput = new ResourceCurrentState();
+    event.addAttribute(AttributeName.RESOURCES.toString(), resourceMap);
+    event.addAttribute(AttributeName.CURRENT_STATE.toString(), currentStateOutput);
+    runStage(event, new ReadClusterDataStage());
+    runStage(event, new BestPossibleStateCalcStage());
+
+    // 24 replicas and 12 masters across 4 instances, so every instance gets an equal share
+    BestPossibleStateOutput output =
+        event.getAttribute(AttributeName.BEST_POSSIBLE_STATE.toString());
+    Map<ParticipantId, Integer> replicaCounts = new HashMap<ParticipantId, Integer>();
+    Map<ParticipantId, Integer> masterCounts = new HashMap<ParticipantId, Integer>();
+    for (String resourceName : resources) {
+      ResourceAssignment assignment = output.getResourceAssignment(ResourceId.from(resourceName));
+      for (int p = 0; p < 2; p++) {
+        Map<ParticipantId, State> replicaMap =
+            assignment.getReplicaMap(PartitionId.from(resourceName + "_" + p));
+        AssertJUnit.assertEquals(2, replicaMap.size());
+        for (Map.Entry<ParticipantId, State> e : replicaMap.entrySet()) {
+          increment(replicaCounts, e.getKey());
+          if (e.getValue().equals(State.from("MASTER"))) {
+            increment(masterCounts, e.getKey());
+          }
+        }
+      }
+    }
+    for (int i = 0; i < 4; i++) {
+      ParticipantId participantId = ParticipantId.from("localhost_" + i);
+      AssertJUnit.assertEquals(Integer.valueOf(6), replicaCounts.get(participantId));
+      AssertJUnit.assertEquals(Integer.valueOf(3), masterCounts.get(participantId));
+    }
+    Cluster cluster = event.getAttribute("Cluster");
+    ClusterBalancedPlacement first = ClusterBalancedPlacement.get(cluster, currentStateOutput);
+    AssertJUnit.assertEquals(0, first.getNumReusedGroups());
+
+    // the next run has the same inputs, so the placement of the group is reused
+    runStage(event, new ReadClusterDataStage());
+    runStage(event, new BestPossibleStateCalcStage());
+    cluster = event.getAttribute("Cluster");
+    ClusterBalancedPlacement second = ClusterBalancedPlacement.get(cluster, currentStateOutput);
+    AssertJUnit.assertNotSame(first, second);
+    AssertJUnit.assertEquals(1, second.getNumReusedGroups());
+    for (String resourceName : resources) {
+      ResourceId resourceId = ResourceId.from(resourceName);
+      AssertJUnit.assertEquals(first.getMapping(resourceId).getListFields(),
+          second.getMapping(resourceId).getListFields());
+    }
+  }
+
+  @Test
+  public void testMovementBudget() {
+    String resourceName = "testBudgetedResource";
+    List<IdealState> idealStates = setupIdealState(4, new String[] {
+      resourceName
+    }, 6, 2, RebalanceMode.FULL_AUTO);
+    for (IdealState idealState : idealStates) {
+      idealState.setReplicas("2");
+      accessor.setProperty(accessor.keyBuilder().idealStates(resourceName), idealState);
+    }
+    ClusterConfiguration clusterConfig = new ClusterConfiguration(ClusterId.from("testCluster"));
+    clusterConfig.getRecord().setIntField(MovementBudget.MAX_MOVES_PER_CYCLE, 1);
+    accessor.setProperty(accessor.keyBuilder().clusterConfig(), clusterConfig);
+    setupLiveInstances(4);
+    setupStateModel();
+
+    // every replica is on the first three instances, and localhost_3 has just joined
+    ResourceCurrentState currentStateOutput = new ResourceCurrentState();
+    for (int p = 0; p < 6; p++) {
+      PartitionId partitionId = PartitionId.from(resourceName + "_" + p);
+      currentStateOutput.setCurrentState(ResourceId.from(resourceName), partitionId,
+          ParticipantId.from("localhost_" + p % 3), State.from("MASTER"));
+      currentStateOutput.setCurrentState(ResourceId.from(resourceName), partitionId,
+          ParticipantId.from("localhost_" + (p + 1) % 3), State.from("SLAVE"));
+    }
+    Map<ResourceId, ResourceConfig> resourceMap = getResourceMap(idealStates);
+    event.addAttribute(AttributeName.RESOURCES.toString(), resourceMap);
+    event.addAttribute(AttributeName.CURRENT_STATE.toString(), currentStateOutput);
+    runStage(event, new ReadClusterDataStage());
+    runStage(event, new BestPossibleStateCalcStage());
+
+    // only one replica moves to the new instance, and no partition loses a replica
+    BestPossibleStateOutput output =
+        event.getAttribute(AttributeName.BEST_POSSIBLE_STATE.toString());
+    ResourceAssignment assignment = output.getResourceAssignment(ResourceId.from(resourceName));
+    int movedReplicas = 0;
+    for (int p = 0; p < 6; p++) {
+      Map<ParticipantId, State> replicaMap =
+          assignment.getReplicaMap(PartitionId.from(resourceName + "_" + p));
+      AssertJUnit.assertEquals(2, replicaMap.size());
+      if (replicaMap.containsKey(ParticipantId.from("localhost_3"))) {
+        movedReplicas++;
+      }
+    }
+    AssertJUnit.assertEquals(1, movedReplicas);
+    MovementBudget budget =
+        MovementBudget.peek((ClusterDataCache) event.getAttribute("ClusterDataCache"));
+    AssertJUnit.assertEquals(1, budget.getNumMoves());
+    AssertJUnit.assertEquals(0, budget.getNumRecoveries());
+    AssertJUnit.assertTrue(budget.getNumPendingMoves() > 0);
+  }
+
+  @Test
+  public void testMovementBudgetInFlight() {
+    String resourceName = "testInFlightResource";
+    List<IdealState> idealStates = setupIdealState(4, new String[] {
+      resourceName
+    }, 6, 2, RebalanceMode.FULL_AUTO);
+    for (IdealState idealState : idealStates) {
+      idealState.setReplicas("2");
+      accessor.setProperty(accessor.keyBuilder().idealStates(resourceName), idealState);
+    }
+    ClusterConfiguration clusterConfig = new ClusterConfiguration(ClusterId.from("testCluster"));
+    clusterConfig.getRecord().setIntField(MovementBudget.MAX_MOVES_PER_CYCLE, 1);
+    accessor.setProperty(accessor.keyBuilder().clusterConfig(), clusterConfig);
+    setupLiveInstances(4);
+    setupStateModel();
+
+    // a replica that an earlier run moved to localhost_3 is still coming up
+    ResourceCurrentState currentStateOutput = new ResourceCurrentState();
+    for (int p = 0; p < 6; p++) {
+      PartitionId partitionId = PartitionId.from(resourceName + "_" + p);
+      currentStateOutput.setCurrentState(ResourceId.from(resourceName), partitionId,
+          ParticipantId.from("localhost_" + p % 3), State.from("MASTER"));
+      currentStateOutput.setCurrentState(ResourceId.from(resourceName), partitionId,
+          ParticipantId.from("localhost_" + (p + 1) % 3), State.from("SLAVE"));
+    }
+    PartitionId moving = PartitionId.from(resourceName + "_0");
+    currentStateOutput.setCurrentState(ResourceId.from(resourceName), moving,
+        ParticipantId.from("localhost_3"), State.from("OFFLINE"));
+    currentStateOutput.setPendingState(ResourceId.from(resourceName), moving,
+        ParticipantId.from("localhost_3"), State.from("SLAVE"));
+    Map<ResourceId, ResourceConfig> resourceMap = getResourceMap(idealStates);
+    event.addAttribute(AttributeName.RESOURCES.toString(), resourceMap);
+    event.addAttribute(AttributeName.CURRENT_STATE.toString(), currentStateOutput);
+    runStage(event, new ReadClusterDataStage());
+    runStage(event, new BestPossibleStateCalcStage());
+
+    // the move in flight uses up the budget, so no other replica moves in this run
+    MovementBudget budget =
+        MovementBudget.peek((ClusterDataCache) event.getAttribute("ClusterDataCache"));
+    AssertJUnit.assertEquals(1, budget.getNumInFlightMoves());
+    AssertJUnit.assertEquals(0, budget.getNumMoves());
+    BestPossibleStateOutput output =
+        event.getAttribute(AttributeName.BEST_POSSIBLE_STATE.toString());
+    ResourceAssignment assignment = output.getResourceAssignment(ResourceId.from(resourceName));
+    for (int p = 1; p < 6; p++) {
+      AssertJUnit.assertFalse(assignment.getReplicaMap(PartitionId.from(resourceName + "_" + p))
+          .containsKey(ParticipantId.from("localhost_3")));
+    }
+  }
+
+  @Test
+  public void testDelayedRebalance() {
+    String resourceName = "testDelayedResource";
+    List<IdealState> idealStates = setupIdealState(4, new String[] {
+      resourceName
+    }, 4, 2, RebalanceMode.FULL_AUTO);
+    for (IdealState idealState : idealStates) {
+      idealState.setReplicas("2");
+      accessor.setProperty(accessor.keyBuilder().idealStates(resourceName), idealState);
+    }
+    ClusterConfiguration clusterConfig = new ClusterConfiguration(ClusterId.from("testCluster"));
+    clusterConfig.getRecord().setLongField(DelayedRebalance.DELAY_REBALANCE_TIME, 3600000L);
+    accessor.setProperty(accessor.keyBuilder().clusterConfig(), clusterConfig);
+    setupLiveInstances(4);
+    setupStateModel();
+
+    Map<ResourceId, ResourceConfig> resourceMap = getResourceMap(idealStates);
+    event.addAttribute(AttributeName.RESOURCES.toString(), resourceMap);
+    event.addAttribute(AttributeName.CURRENT_STATE.toString(), currentStates(resourceName, 4, -1));
+    runStage(event, new ReadClusterDataStage());
+    BestPossibleStateCalcStage stage = new BestPossibleStateCalcStage();
+    runStage(event, stage);
+    ResourceAssignment first =
+        ((BestPossibleStateOutput) event.getAttribute(AttributeName.BEST_POSSIBLE_STATE
+            .toString())).getResourceAssignment(ResourceId.from(resourceName));
+
+    // localhost_0 goes away: its replicas stay where they are and only the masters fail over
+    ParticipantId lostParticipant = ParticipantId.from("localhost_0");
+    accessor.removeProperty(accessor.keyBuilder().liveInstance(lostParticipant.stringify()));
+    event.addAttribute(AttributeName.CURRENT_STATE.toString(), currentStates(resourceName, 4, 0));
+    runStage(event, new ReadClusterDataStage());
+    runStage(event, stage);
+    ResourceAssignment second =
+        ((BestPossibleStateOutput) event.getAttribute(AttributeName.BEST_POSSIBLE_STATE
+            .toString())).getResourceAssignment(ResourceId.from(resourceName));
+    for (int p = 0; p < 4; p++) {
+      PartitionId partitionId = PartitionId.from(resourceName + "_" + p);
+      Set<ParticipantId> expected =
+          new HashSet<ParticipantId>(first.getReplicaMap(partitionId).keySet());
+      expected.remove(lostParticipant);
+      Map<ParticipantId, State> replicaMap = second.getReplicaMap(partitionId);
+      AssertJUnit.assertEquals(expected, replicaMap.keySet());
+      AssertJUnit.assertTrue(replicaMap.containsValue(State.from("MASTER")));
+    }
+
+    // with two live replicas required, the partitions that lost one are placed elsewhere
+    clusterConfig.getRecord().setIntField(DelayedRebalance.MIN_ACTIVE_REPLICAS, 2);
+    accessor.setProperty(accessor.keyBuilder().clusterConfig(), clusterConfig);
+    runStage(event, new ReadClusterDataStage());
+    runStage(event, stage);
+    ResourceAssignment third =
+        ((BestPossibleStateOutput) event.getAttribute(AttributeName.BEST_POSSIBLE_STATE
+            .toString())).getResourceAssignment(ResourceId.from(resourceName));
+    for (int p = 0; p < 4; p++) {
+      Map<ParticipantId, State> replicaMap =
+          third.getReplicaMap(PartitionId.from(resourceName + "_" + p));
+      AssertJUnit.assertEquals(2, replicaMap.size());
+      AssertJUnit.assertFalse(replicaMap.containsKey(lostParticipant));
+    }
+  }
+
+  /**
+   * Put the master of partition p on localhost_p and its slave on the next instance
+   * @param resourceName the resource
+   * @param numParticipants the number of instances and partitions
+   * @param lostParticipant the instance without current state, or -1 for none
+   * @return the current state
+   */
+  private static ResourceCurrentState currentStates(String resourceName, int numParticipants,
+      int lostParticipant) {
+    ResourceCurrentState currentStateOutput = new ResourceCurrentState();
+    for (int p = 0; p < numParticipants; p++) {
+      PartitionId partitionId = PartitionId.from(resourceName + "_" + p);
+      if (p != lostParticipant) {
+        currentStateOutput.setCurrentState(ResourceId.from(resourceName), partitionId,
+            ParticipantId.from("localhost_" + p), State.from("MASTER"));
+      }
+      if ((p + 1) % numParticipants != lostParticipant) {
+        currentStateOutput.setCurrentState(ResourceId.from(resourceName), partitionId,
+            ParticipantId.from("localhost_" + (p + 1) % numParticipants), State.from("SLAVE"));
+      }
+    }
+    return currentStateOutput;
+  }
+
+  private static void increment(Map<ParticipantId, Integer> counts, ParticipantId participantId) {
+    Integer count = counts.get(participantId);
+    counts.put(participantId, (count != null) ? count + 1 : 1);
+  }
 }
@@ -0,0 +1,127 @@
+package org.apache.helix.controller.strategy;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.helix.ZNRecord;
+import org.apache.helix.api.State;
+import org.apache.helix.api.id.ParticipantId;
+import org.apache.helix.api.id.PartitionId;
+import org.apache.helix.api.id.ResourceId;
+
+/**
+ * Place a MasterSlave resource with {@link AutoRebalanceStrategy}, with and without fault zones,
+ * then take down every participant of one zone and report how many partitions lost all of their
+ * replicas, how many replicas had to be recovered, and how long the recovery placement took.
+ * Run with: java org.apache.helix.controller.strategy.FaultZoneRecoveryBenchmark [numInstances]
+ * [numZones] [numPartitions] [numReplicas]
+ */
+public class FaultZoneRecoveryBenchmark {
+  public static void main(String[] args) {
+    int numInstances = (args.length > 0) ? Integer.parseInt(args[0]) : 60;
+    int numZones = (args.length > 1) ? Integer.parseInt(args[1]) : 4;
+    int numPartitions = (args.length > 2) ? Integer.parseInt(args[2]) : 10000;
+    int numReplicas = (args.length > 3) ? Integer.parseInt(args[3]) : 3;
+
+    List<ParticipantId> instances = new ArrayList<ParticipantId>();
+    Map<ParticipantId, String> faultZones = new HashMap<ParticipantId, String>();
+    for (int i = 0; i < numInstances; i++) {
+      ParticipantId instance = ParticipantId.from("localhost_" + (12918 + i));
+      instances.add(instance);
+      // hosts are racked in consecutive blocks, as they usually are numbered
+      faultZones.put(instance, "zone=z" + (i * numZones / numInstances));
+    }
+
+    run("without zones", instances, null, numZones, numPartitions, numReplicas);
+    run("with zones", instances, faultZones, numZones, numPartitions, numReplicas);
+  }
+
+  private static void run(String label, List<ParticipantId> instances,
+      Map<ParticipantId, String> faultZones, int numZones, int numPartitions, int numReplicas) {
+    ResourceId resourceId = ResourceId.from("benchmarkDB");
+    List<PartitionId> partitions = new ArrayList<PartitionId>();
+    for (int p = 0; p < numPartitions; p++) {
+      partitions.add(PartitionId.from(resourceId, Integer.toString(p)));
+    }
+    LinkedHashMap<State, Integer> states = new LinkedHashMap<State, Integer>();
+    states.put(State.from("MASTER"), 1);
+    states.put(State.from("SLAVE"), numReplicas - 1);
+
+    // fail zone z0; without zones, fail the same hosts
+    List<ParticipantId> liveInstances = new ArrayList<ParticipantId>();
+    for (int i = 0; i < instances.size(); i++) {
+      if (i * numZones / instances.size() != 0) {
+        liveInstances.add(instances.get(i));
+      }
+    }
+    Set<ParticipantId> liveSet = new HashSet<ParticipantId>(liveInstances);
+
+    ZNRecord initial =
+        newStrategy(resourceId, partitions, states, faultZones).typedComputePartitionAssignment(
+            instances, new HashMap<PartitionId, Map<ParticipantId, State>>(), instances);
+    Map<PartitionId, Map<ParticipantId, State>> currentMapping =
+        new HashMap<PartitionId, Map<ParticipantId, State>>();
+    int numUnavailable = 0;
+    int numLostReplicas = 0;
+    for (PartitionId partition : partitions) {
+      Map<ParticipantId, State> replicaMap = new HashMap<ParticipantId, State>();
+      Map<String, String> stateMap = initial.getMapField(partition.stringify());
+      for (Map.Entry<String, String> entry : stateMap.entrySet()) {
+        ParticipantId participant = ParticipantId.from(entry.getKey());
+        if (liveSet.contains(participant)) {
+          replicaMap.put(participant, State.from(entry.getValue()));
+        } else {
+          numLostReplicas++;
+        }
+      }
+      if (replicaMap.isEmpty()) {
+        numUnavailable++;
+      }
+      currentMapping.put(partition, replicaMap);
+    }
+
+    long start = System.currentTimeMillis();
+    newStrategy(resourceId, partitions, states, faultZones).typedComputePartitionAssignment(
+        liveInstances, currentMapping, instances);
+    long recoveryTime = System.currentTimeMillis() - start;
+    System.out.println(String.format(
+        "%s: %d of %d partitions unavailable, %d replicas to recover, recovery placement %d ms",
+        label, numUnavailable, numPartitions, numLostReplicas, recoveryTime));
+  }
+
+  private static AutoRebalanceStrategy newStrategy(ResourceId resourceId,
+      List<PartitionId> partitions, LinkedHashMap<State, Integer> states,
+      Map<ParticipantId, String> faultZones) {
+    AutoRebalanceStrategy strategy =
+        new AutoRebalanceStrategy(resourceId, partitions, states, Integer.MAX_VALUE,
+            new AutoRebalanceStrategy.DefaultPlacementScheme());
+    if (faultZones != null) {
+      strategy.setFaultZones(faultZones);
+    }
+    return strategy;
+  }
+}
@@ -0,0 +1,130 @@
+package org.apache.helix.controller.strategy;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.helix.ZNRecord;
+import org.apache.helix.api.State;
+import org.apache.helix.api.id.ParticipantId;
+import org.apache.helix.api.id.PartitionId;
+import org.apache.helix.api.id.ResourceId;
+
+/**
+ * Time {@link AutoRebalanceStrategy} on a MasterSlave resource with a large number of partitions,
+ * on one thread and on all available processors. Each size is timed both for a fresh placement
+ * and for a recompute over the placement it produced, which is what the controller does on every
+ * pipeline run.
+ * Run with: java org.apache.helix.controller.strategy.PreferenceListBenchmark [numInstances]
+ * [numPartitions...]
+ */
+public class PreferenceListBenchmark {
+  private static final int NUM_RUNS = 3;
+
+  public static void main(String[] args) {
+    int numInstances = (args.length > 0) ? Integer.parseInt(args[0]) : 100;
+    List<Integer> numPartitionsList = new ArrayList<Integer>();
+    for (int i = 1; i < args.length; i++) {
+      numPartitionsList.add(Integer.parseInt(args[i]));
+    }
+    if (numPartitionsList.isEmpty()) {
+      numPartitionsList.add(10000);
+      numPartitionsList.add(100000);
+      numPartitionsList.add(1000000);
+    }
+
+    List<ParticipantId> instances = new ArrayList<ParticipantId>();
+    for (int i = 0; i < numInstances; i++) {
+      instances.add(ParticipantId.from("localhost_" + (12918 + i)));
+    }
+    int numThreads = Runtime.getRuntime().availableProcessors();
+
+    for (int numPartitions : numPartitionsList) {
+      ResourceId resourceId = ResourceId.from("benchmarkDB");
+      List<PartitionId> partitions = new ArrayList<PartitionId>();
+      for (int p = 0; p < numPartitions; p++) {
+        partitions.add(PartitionId.from(resourceId, Integer.toString(p)));
+      }
+      ZNRecord placement =
+          newStrategy(resourceId, partitions, 1).typedComputePartitionAssignment(instances,
+              new HashMap<PartitionId, Map<ParticipantId, State>>(), instances);
+
+      long[] freshTimes = {
+          Long.MAX_VALUE, Long.MAX_VALUE
+      };
+      long[] steadyTimes = {
+          Long.MAX_VALUE, Long.MAX_VALUE
+      };
+      int[] parallelism = {
+          1, numThreads
+      };
+      for (int run = 0; run < NUM_RUNS; run++) {
+        for (int i = 0; i < parallelism.length; i++) {
+          long start = System.currentTimeMillis();
+          newStrategy(resourceId, partitions, parallelism[i]).typedComputePartitionAssignment(
+              instances, new HashMap<PartitionId, Map<ParticipantId, State>>(), instances);
+          freshTimes[i] = Math.min(freshTimes[i], System.currentTimeMillis() - start);
+
+          Map<PartitionId, Map<ParticipantId, State>> currentMapping =
+              currentMapping(placement, partitions);
+          start = System.currentTimeMillis();
+          newStrategy(resourceId, partitions, parallelism[i]).typedComputePartitionAssignment(
+              instances, currentMapping, instances);
+          steadyTimes[i] = Math.min(steadyTimes[i], System.currentTimeMillis() - start);
+        }
+      }
+      System.out.println(String.format(
+          "%d partitions on %d instances: fresh %d ms (1 thread), %d ms (%d threads); "
+              + "recompute %d ms (1 thread), %d ms (%d threads)", numPartitions, numInstances,
+          freshTimes[0], freshTimes[1], numThreads, steadyTimes[0], steadyTimes[1], numThreads));
+    }
+  }
+
+  private static AutoRebalanceStrategy newStrategy(ResourceId resourceId,
+      List<PartitionId> partitions, int parallelism) {
+    LinkedHashMap<State, Integer> states = new LinkedHashMap<State, Integer>();
+    states.put(State.from("MASTER"), 1);
+    states.put(State.from("SLAVE"), 2);
+    AutoRebalanceStrategy strategy =
+        new AutoRebalanceStrategy(resourceId, partitions, states, Integer.MAX_VALUE,
+            new AutoRebalanceStrategy.DefaultPlacementScheme());
+    strategy.setParallelism(parallelism);
+    return strategy;
+  }
+
+  private static Map<PartitionId, Map<ParticipantId, State>> currentMapping(ZNRecord placement,
+      List<PartitionId> partitions) {
+    Map<PartitionId, Map<ParticipantId, State>> currentMapping =
+        new HashMap<PartitionId, Map<ParticipantId, State>>();
+    for (PartitionId partition : partitions) {
+      Map<ParticipantId, State> replicaMap = new HashMap<ParticipantId, State>();
+      for (Map.Entry<String, String> entry : placement.getMapField(partition.stringify())
+          .entrySet()) {
+        replicaMap.put(ParticipantId.from(entry.getKey()), State.from(entry.getValue()));
+      }
+      currentMapping.put(partition, replicaMap);
+    }
+    return currentMapping;
+  }
+}
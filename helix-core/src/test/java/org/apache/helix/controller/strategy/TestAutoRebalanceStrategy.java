@@ -850,4 +850,128 @@ public class TestAutoRebalanceStrategy {
     // finally, make sure we haven't moved it.
     Assert.assertEquals(finalPreferredNode, otherNode);
   }
+
+  /**
+   * Nine nodes in three fault zones, with every replica of every partition currently placed in
+   * the same zone. Once zones are declared, each partition should end up with one replica per zone
+   * while the per-node load stays within one replica
+   * of the average.
+   */
+  @Test
+  public void testFaultZoneSpreading() {
+    final ResourceId RESOURCE = ResourceId.from("resource");
+    final int NUM_PARTITIONS = 30;
+    LinkedHashMap<State, Integer> stateCount = Maps.newLinkedHashMap();
+    stateCount.put(State.from("MASTER"), 1);
+    stateCount.put(State.from("SLAVE"), 2);
+
+    List<ParticipantId> allNodes = Lists.newArrayList();
+    Map<ParticipantId, String> faultZones = Maps.newHashMap();
+    for (int i = 0; i < 9; i++) {
+      ParticipantId participantId = ParticipantId.from("node_" + i);
+      allNodes.add(participantId);
+      faultZones.put(participantId, "zone=" + (i % 3));
+    }
+
+    // all replicas start out on node_0, node_3 and node_6, which share zone=0
+    List<PartitionId> partitions = Lists.newArrayList();
+    Map<PartitionId, Map<ParticipantId, State>> currentMapping = Maps.newHashMap();
+    for (int i = 0; i < NUM_PARTITIONS; i++) {
+      PartitionId partitionId = PartitionId.from(RESOURCE, Integer.toString(i));
+      partitions.add(partitionId);
+      Map<ParticipantId, State> replicaMap = Maps.newHashMap();
+      replicaMap.put(allNodes.get(0), State.from("MASTER"));
+      replicaMap.put(allNodes.get(3), State.from("SLAVE"));
+      replicaMap.put(allNodes.get(6), State.from("SLAVE"));
+      currentMapping.put(partitionId, replicaMap);
+    }
+
+    AutoRebalanceStrategy strategy =
+        new AutoRebalanceStrategy(RESOURCE, partitions, stateCount, Integer.MAX_VALUE,
+            new AutoRebalanceStrategy.DefaultPlacementScheme());
+    strategy.setFaultZones(faultZones);
+    ZNRecord znRecord =
+        strategy.typedComputePartitionAssignment(allNodes, currentMapping, allNodes);
+
+    Map<String, Integer> replicaCounts = Maps.newHashMap();
+    for (PartitionId partitionId : partitions) {
+      List<String> preferenceList = znRecord.getListField(partitionId.stringify());
+      Assert.assertNotNull(preferenceList, "invalid preference list for " + partitionId);
+      Assert.assertEquals(preferenceList.size(), 3, "invalid preference list for " + partitionId);
+      Set<String> zones = Sets.newHashSet();
+      for (String participantName : preferenceList) {
+        zones.add(faultZones.get(ParticipantId.from(participantName)));
+        Integer count = replicaCounts.get(participantName);
+        replicaCounts.put(participantName, (count == null) ? 1 : count + 1);
+      }
+      Assert.assertEquals(zones.size(), 3, "replicas share a fault zone for " + partitionId);
+    }
+    for (ParticipantId participantId : allNodes) {
+      int count = replicaCounts.get(participantId.stringify());
+      Assert.assertTrue(count >= 9 && count <= 11, "unbalanced replica count on " + participantId);
+    }
+  }
+
+  /**
+   * A resource large enough for the placement to be split across threads should get exactly the
+   * assignment it gets on one thread.
+   */
+  @Test
+  public void testParallelPlacementMatchesSerial() {
+    final ResourceId RESOURCE = ResourceId.from("resource");
+    final int NUM_PARTITIONS = 20000;
+    LinkedHashMap<State, Integer> stateCount = Maps.newLinkedHashMap();
+    stateCount.put(State.from("MASTER"), 1);
+    stateCount.put(State.from("SLAVE"), 2);
+
+    List<ParticipantId> allNodes = Lists.newArrayList();
+    List<ParticipantId> liveNodes = Lists.newArrayList();
+    Map<ParticipantId, String> faultZones = Maps.newHashMap();
+    for (int i = 0; i < 40; i++) {
+      ParticipantId participantId = ParticipantId.from("node_" + i);
+      allNodes.add(participantId);
+      if (i % 7 != 3) {
+        liveNodes.add(participantId);
+      }
+      faultZones.put(participantId, "zone=" + (i / 10));
+    }
+    List<PartitionId> partitions = Lists.newArrayList();
+    for (int i = 0; i < NUM_PARTITIONS; i++) {
+      partitions.add(PartitionId.from(RESOURCE, Integer.toString(i)));
+    }
+
+    for (boolean useZones : new boolean[] {
+        false, true
+    }) {
+      ZNRecord[] results = new ZNRecord[2];
+      int[] parallelism = {
+          1, 4
+      };
+      for (int run = 0; run < results.length; run++) {
+        // the same random current mapping for both runs
+        Random random = new Random(7);
+        Map<PartitionId, Map<ParticipantId, State>> currentMapping = Maps.newHashMap();
+        for (PartitionId partitionId : partitions) {
+          Map<ParticipantId, State> replicaMap = Maps.newHashMap();
+          int numReplicas = random.nextInt(4);
+          for (int r = 0; r < numReplicas; r++) {
+            replicaMap.put(allNodes.get(random.nextInt(allNodes.size())),
+                State.from((r == 0) ? "MASTER" : "SLAVE"));
+          }
+          currentMapping.put(partitionId, replicaMap);
+        }
+        AutoRebalanceStrategy strategy =
+            new AutoRebalanceStrategy(RESOURCE, partitions, stateCount, Integer.MAX_VALUE,
+                new AutoRebalanceStrategy.DefaultPlacementScheme());
+        if (useZones) {
+          strategy.setFaultZones(faultZones);
+        }
+        strategy.setParallelism(parallelism[run]);
+        results[run] =
+            strategy.typedComputePartitionAssignment(liveNodes, currentMapping, allNodes);
+      }
+      Assert.assertEquals(results[1].getListFields(), results[0].getListFields());
+      Assert.assertEquals(results[1].getMapFields(), results[0].getMapFields());
+    }
+  }
 }
@@ -120,6 +120,46 @@ public class TestEspressoStorageClusterIdealState {
     Assert.assertTrue(0.66 < slaveKeepRatio && 0.67 > slaveKeepRatio);
   }
 
+  @Test
+  public void testCalculateIdealStateMatchesAssignmentMaps() {
+    int[][] sizes = {
+        {
+            5, 5, 1
+        }, {
+            10, 144, 3
+        }, {
+            7, 1000, 2
+        }, {
+            20, 8192, 3
+        }, {
+            6, 100, 0
+        }
+    };
+    for (int[] size : sizes) {
+      List<String> instanceNames = new ArrayList<String>();
+      for (int i = 0; i < size[0]; i++) {
+        instanceNames.add("localhost:" + (12918 + i));
+      }
+      ZNRecord expected =
+          DefaultTwoStateStrategy.convertToZNRecord(DefaultTwoStateStrategy
+              .calculateInitialIdealState(instanceNames, size[1], size[2]), "TestDB", "MASTER",
+              "SLAVE");
+      ZNRecord actual =
+          DefaultTwoStateStrategy.calculateIdealState(instanceNames, size[1], size[2], "TestDB",
+              "MASTER", "SLAVE");
+      Assert.assertEquals(actual.getSimpleFields(), expected.getSimpleFields());
+      Assert.assertEquals(actual.getMapFields(), expected.getMapFields());
+      // the secondaries are in random order behind the primary
+      Assert.assertEquals(actual.getListFields().keySet(), expected.getListFields().keySet());
+      for (String partitionName : expected.getListFields().keySet()) {
+        List<String> expectedList = expected.getListField(partitionName);
+        List<String> actualList = actual.getListField(partitionName);
+        Assert.assertEquals(actualList.get(0), expectedList.get(0));
+        Assert.assertEquals(new TreeSet<String>(actualList), new TreeSet<String>(expectedList));
+      }
+    }
+  }
+
   public static void Verify(Map<String, Object> result, int partitions, int replicas) {
     Map<String, List<Integer>> masterAssignmentMap =
         (Map<String, List<Integer>>) (result.get("PrimaryAssignmentMap"));
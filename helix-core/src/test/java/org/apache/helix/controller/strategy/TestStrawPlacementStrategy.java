@@ -0,0 +1,98 @@
+package org.apache.helix.controller.strategy;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestStrawPlacementStrategy {
+  private static final int NUM_PARTITIONS = 1000;
+  private static final int NUM_REPLICAS = 3;
+
+  /**
+   * Replicas of a partition should land in different zones while there are zones left
+   */
+  @Test
+  public void testZoneSpreading() {
+    Map<String, Long> weights = new HashMap<String, Long>();
+    Map<String, String> zones = new HashMap<String, String>();
+    for (int i = 0; i < 12; i++) {
+      weights.put("node_" + i, 1L);
+      zones.put("node_" + i, "zone_" + i % 4);
+    }
+    StrawPlacementStrategy strategy = new StrawPlacementStrategy(weights, zones);
+    Assert.assertEquals(strategy.getNumZones(), 4);
+    for (int p = 0; p < NUM_PARTITIONS; p++) {
+      List<String> preferenceList = strategy.computePreferenceList("resource_" + p, NUM_REPLICAS);
+      Assert.assertEquals(preferenceList.size(), NUM_REPLICAS);
+      Set<String> usedZones = new HashSet<String>();
+      for (String instance : preferenceList) {
+        usedZones.add(zones.get(instance));
+      }
+      Assert.assertEquals(usedZones.size(), NUM_REPLICAS);
+    }
+
+    // with more replicas than zones, zones are reused but instances are not
+    List<String> preferenceList = strategy.computePreferenceList("resource_0", 6);
+    Assert.assertEquals(new HashSet<String>(preferenceList).size(), 6);
+    Assert.assertEquals(strategy.computePreferenceList("resource_0", 20).size(), 12);
+  }
+
+  /**
+   * Removing an instance should only move the replicas it held, and an instance with twice the
+   * weight should get about twice the replicas
+   */
+  @Test
+  public void testMinimalMovement() {
+    Map<String, Long> weights = new HashMap<String, Long>();
+    for (int i = 0; i < 10; i++) {
+      weights.put("node_" + i, (i < 5) ? 1L : 2L);
+    }
+    StrawPlacementStrategy before = new StrawPlacementStrategy(weights, null);
+    weights.remove("node_9");
+    StrawPlacementStrategy after = new StrawPlacementStrategy(weights, null);
+
+    Map<String, Integer> counts = new HashMap<String, Integer>();
+    for (int p = 0; p < NUM_PARTITIONS; p++) {
+      List<String> oldList = before.computePreferenceList("resource_" + p, NUM_REPLICAS);
+      List<String> newList = after.computePreferenceList("resource_" + p, NUM_REPLICAS);
+      Set<String> moved = new HashSet<String>(oldList);
+      moved.removeAll(newList);
+      if (oldList.contains("node_9")) {
+        Assert.assertEquals(moved.size(), 1);
+      } else {
+        Assert.assertEquals(newList, oldList);
+      }
+      for (String instance : oldList) {
+        Integer count = counts.get(instance);
+        counts.put(instance, (count != null) ? count + 1 : 1);
+      }
+    }
+    int light = counts.get("node_0") + counts.get("node_1") + counts.get("node_2");
+    int heavy = counts.get("node_5") + counts.get("node_6") + counts.get("node_7");
+    Assert.assertTrue(heavy > light * 1.4 && heavy < light * 2.6, light + " vs " + heavy);
+  }
+}
@@ -0,0 +1,139 @@
+package org.apache.helix.controller.strategy;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.helix.ZNRecord;
+import org.apache.helix.api.State;
+import org.apache.helix.api.id.ParticipantId;
+import org.apache.helix.api.id.PartitionId;
+import org.apache.helix.api.id.ResourceId;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.Lists;
+
+public class TestWeightedPlacementStrategy {
+  private static final ResourceId RESOURCE = ResourceId.from("resource");
+  private static final long[] WEIGHTS = {
+      10, 20, 30, 40, 50, 60, 10, 20, 30, 40, 50, 60
+  };
+
+  /**
+   * Instances with more capacity should get proportionally more weight, and none should be
+   * overloaded
+   */
+  @Test
+  public void testHeterogeneousCapacities() {
+    List<PartitionId> partitions = Lists.newArrayList();
+    Map<PartitionId, Long> weights = new HashMap<PartitionId, Long>();
+    for (int i = 0; i < WEIGHTS.length; i++) {
+      PartitionId partition = PartitionId.from(RESOURCE, String.valueOf(i));
+      partitions.add(partition);
+      weights.put(partition, WEIGHTS[i]);
+    }
+    List<ParticipantId> nodes =
+        Lists.newArrayList(ParticipantId.from("node_0"), ParticipantId.from("node_1"),
+            ParticipantId.from("node_2"));
+    Map<ParticipantId, Long> capacities = new HashMap<ParticipantId, Long>();
+    capacities.put(nodes.get(0), 200L);
+    capacities.put(nodes.get(1), 400L);
+    capacities.put(nodes.get(2), 600L);
+
+    WeightedPlacementStrategy strategy =
+        new WeightedPlacementStrategy(RESOURCE, partitions, masterSlave(), Integer.MAX_VALUE,
+            weights, WeightedPlacementStrategy.DEFAULT_TIME_BUDGET);
+    ZNRecord result =
+        strategy.typedComputePartitionAssignment(nodes, capacities,
+            new HashMap<PartitionId, Map<ParticipantId, State>>());
+    Assert.assertNotNull(result);
+
+    Map<String, Long> load = new HashMap<String, Long>();
+    for (PartitionId partition : partitions) {
+      List<String> preferenceList = result.getListField(partition.stringify());
+      Assert.assertEquals(preferenceList.size(), 2);
+      Assert.assertEquals(new HashSet<String>(preferenceList).size(), 2);
+      Assert.assertEquals(result.getMapField(partition.stringify()).get(preferenceList.get(0)),
+          "MASTER");
+      for (String node : preferenceList) {
+        Long current = load.get(node);
+        load.put(node, (current != null ? current : 0L) + weights.get(partition));
+      }
+    }
+
+    // the total weight is 70% of the total capacity, so each node should be close to 70% full
+    for (ParticipantId node : nodes) {
+      long nodeLoad = load.containsKey(node.stringify()) ? load.get(node.stringify()) : 0L;
+      double utilisation = (double) nodeLoad / capacities.get(node);
+      Assert.assertTrue(nodeLoad <= capacities.get(node));
+      Assert.assertTrue(utilisation > 0.5 && utilisation < 0.9, node + ": " + utilisation);
+    }
+
+    // placing again from the result should not move anything
+    Map<PartitionId, Map<ParticipantId, State>> currentMapping =
+        new HashMap<PartitionId, Map<ParticipantId, State>>();
+    for (PartitionId partition : partitions) {
+      Map<ParticipantId, State> replicaMap = new HashMap<ParticipantId, State>();
+      for (Map.Entry<String, String> e : result.getMapField(partition.stringify()).entrySet()) {
+        replicaMap.put(ParticipantId.from(e.getKey()), State.from(e.getValue()));
+      }
+      currentMapping.put(partition, replicaMap);
+    }
+    ZNRecord again = strategy.typedComputePartitionAssignment(nodes, capacities, currentMapping);
+    Assert.assertEquals(again.getListFields(), result.getListFields());
+  }
+
+  /**
+   * No placement should be returned if the replicas cannot fit
+   */
+  @Test
+  public void testInsufficientCapacity() {
+    List<PartitionId> partitions = Lists.newArrayList();
+    Map<PartitionId, Long> weights = new HashMap<PartitionId, Long>();
+    for (int i = 0; i < WEIGHTS.length; i++) {
+      PartitionId partition = PartitionId.from(RESOURCE, String.valueOf(i));
+      partitions.add(partition);
+      weights.put(partition, WEIGHTS[i]);
+    }
+    List<ParticipantId> nodes =
+        Lists.newArrayList(ParticipantId.from("node_0"), ParticipantId.from("node_1"));
+    Map<ParticipantId, Long> capacities = new HashMap<ParticipantId, Long>();
+    capacities.put(nodes.get(0), 300L);
+    capacities.put(nodes.get(1), 300L);
+
+    WeightedPlacementStrategy strategy =
+        new WeightedPlacementStrategy(RESOURCE, partitions, masterSlave(), Integer.MAX_VALUE,
+            weights, WeightedPlacementStrategy.DEFAULT_TIME_BUDGET);
+    Assert.assertNull(strategy.typedComputePartitionAssignment(nodes, capacities,
+        new HashMap<PartitionId, Map<ParticipantId, State>>()));
+  }
+
+  private static LinkedHashMap<State, Integer> masterSlave() {
+    LinkedHashMap<State, Integer> states = new LinkedHashMap<State, Integer>();
+    states.put(State.from("MASTER"), 1);
+    states.put(State.from("SLAVE"), 1);
+    return states;
+  }
+}
@@ -0,0 +1,79 @@
+package org.apache.helix.controller.strategy;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Time {@link DefaultTwoStateStrategy} and {@link ShufflingTwoStateStrategy} on a MasterSlave
+ * resource with a large number of partitions. The default strategy is also timed through the
+ * assignment maps of calculateInitialIdealState, which give the same ideal state.
+ * Run with: java org.apache.helix.controller.strategy.TwoStateStrategyBenchmark [numInstances]
+ * [numSecondaries] [numPartitions...]
+ */
+public class TwoStateStrategyBenchmark {
+  private static final int NUM_RUNS = 5;
+
+  public static void main(String[] args) {
+    int numInstances = (args.length > 0) ? Integer.parseInt(args[0]) : 20;
+    int numSecondaries = (args.length > 1) ? Integer.parseInt(args[1]) : 2;
+    List<Integer> numPartitionsList = new ArrayList<Integer>();
+    for (int i = 2; i < args.length; i++) {
+      numPartitionsList.add(Integer.parseInt(args[i]));
+    }
+    if (numPartitionsList.isEmpty()) {
+      numPartitionsList.add(10000);
+      numPartitionsList.add(100000);
+    }
+
+    List<String> instanceNames = new ArrayList<String>();
+    for (int i = 0; i < numInstances; i++) {
+      instanceNames.add("localhost_" + (12918 + i));
+    }
+
+    for (int numPartitions : numPartitionsList) {
+      long arrayTime = Long.MAX_VALUE;
+      long mapTime = Long.MAX_VALUE;
+      long shufflingTime = Long.MAX_VALUE;
+      for (int run = 0; run < NUM_RUNS; run++) {
+        long start = System.currentTimeMillis();
+        DefaultTwoStateStrategy.calculateIdealState(instanceNames, numPartitions, numSecondaries,
+            "benchmarkDB", "MASTER", "SLAVE");
+        arrayTime = Math.min(arrayTime, System.currentTimeMillis() - start);
+
+        start = System.currentTimeMillis();
+        DefaultTwoStateStrategy.convertToZNRecord(DefaultTwoStateStrategy
+            .calculateInitialIdealState(instanceNames, numPartitions, numSecondaries),
+            "benchmarkDB", "MASTER", "SLAVE");
+        mapTime = Math.min(mapTime, System.currentTimeMillis() - start);
+
+        start = System.currentTimeMillis();
+        ShufflingTwoStateStrategy.calculateIdealState(instanceNames, numPartitions,
+            numSecondaries, "benchmarkDB");
+        shufflingTime = Math.min(shufflingTime, System.currentTimeMillis() - start);
+      }
+      System.out.println(String.format(
+          "%d partitions with %d secondaries on %d instances: default %d ms "
+              + "(%d ms through assignment maps), shuffling %d ms", numPartitions,
+          numSecondaries, numInstances, arrayTime, mapTime, shufflingTime));
+    }
+  }
+}
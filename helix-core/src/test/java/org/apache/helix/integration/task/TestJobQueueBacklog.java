@@ -0,0 +1,245 @@
+package org.apache.helix.integration.task;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.helix.HelixManager;
+import org.apache.helix.HelixManagerFactory;
+import org.apache.helix.InstanceType;
+import org.apache.helix.TestHelper;
+import org.apache.helix.api.id.StateModelDefId;
+import org.apache.helix.controller.stages.ClusterDataCache;
+import org.apache.helix.manager.zk.MockController;
+import org.apache.helix.manager.zk.MockParticipant;
+import org.apache.helix.participant.StateMachineEngine;
+import org.apache.helix.task.JobConfig;
+import org.apache.helix.task.JobDag;
+import org.apache.helix.task.JobQueue;
+import org.apache.helix.task.JobQueueBacklog;
+import org.apache.helix.task.Task;
+import org.apache.helix.task.TaskCallbackContext;
+import org.apache.helix.task.TaskConfig;
+import org.apache.helix.task.TaskDriver;
+import org.apache.helix.task.TaskFactory;
+import org.apache.helix.task.TaskState;
+import org.apache.helix.task.TaskStateModelFactory;
+import org.apache.helix.task.TaskUtil;
+import org.apache.helix.task.WorkflowConfig;
+import org.apache.helix.testutil.ZkTestBase;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.Lists;
+
+public class TestJobQueueBacklog extends ZkTestBase {
+  private static final int n = 3;
+  private static final int START_PORT = 12918;
+  private static final int NUM_PRODUCERS = 4;
+  private static final int JOBS_PER_PRODUCER = 10;
+  private final String CLUSTER_NAME = "TestJobQueueBacklog";
+  private final MockParticipant[] _participants = new MockParticipant[n];
+  private MockController _controller;
+
+  private HelixManager _manager;
+  private TaskDriver _driver;
+
+  @BeforeClass
+  public void beforeClass() throws Exception {
+    String namespace = "/" + CLUSTER_NAME;
+    if (_zkclient.exists(namespace)) {
+      _zkclient.deleteRecursive(namespace);
+    }
+
+    // Setup cluster and instances
+    _setupTool.addCluster(CLUSTER_NAME, true);
+    for (int i = 0; i < n; i++) {
+      String storageNodeName = "localhost_" + (START_PORT + i);
+      _setupTool.addInstanceToCluster(CLUSTER_NAME, storageNodeName);
+    }
+
+    // start dummy participants
+    Map<String, TaskFactory> taskFactoryReg = new HashMap<String, TaskFactory>();
+    taskFactoryReg.put("DummyTask", new TaskFactory() {
+      @Override
+      public Task createNewTask(TaskCallbackContext context) {
+        return new DummyTask(context);
+      }
+    });
+    for (int i = 0; i < n; i++) {
+      String instanceName = "localhost_" + (START_PORT + i);
+      _participants[i] = new MockParticipant(_zkaddr, CLUSTER_NAME, instanceName);
+
+      // Register a Task state model factory.
+      StateMachineEngine stateMachine = _participants[i].getStateMachineEngine();
+      stateMachine.registerStateModelFactory(StateModelDefId.from("Task"),
+          new TaskStateModelFactory(_participants[i], taskFactoryReg));
+      _participants[i].syncStart();
+    }
+
+    // Start controller
+    String controllerName = "controller_0";
+    _controller = new MockController(_zkaddr, CLUSTER_NAME, controllerName);
+    _controller.syncStart();
+
+    // Start an admin connection
+    _manager =
+        HelixManagerFactory.getZKHelixManager(CLUSTER_NAME, "Admin", InstanceType.ADMINISTRATOR,
+            _zkaddr);
+    _manager.connect();
+    _driver = new TaskDriver(_manager);
+  }
+
+  @AfterClass
+  public void afterClass() throws Exception {
+    _controller.syncStop();
+    for (int i = 0; i < n; i++) {
+      _participants[i].syncStop();
+    }
+    _manager.disconnect();
+  }
+
+  @Test
+  public void testConcurrentProducers() throws Exception {
+    final String queueName = TestHelper.getTestMethodName();
+    _driver.createQueue(new JobQueue.Builder(queueName).build());
+
+    // Several producers enqueue at the same time
+    ExecutorService producers = Executors.newFixedThreadPool(NUM_PRODUCERS);
+    List<Future<List<String>>> futures = new ArrayList<Future<List<String>>>();
+    for (int p = 0; p < NUM_PRODUCERS; p++) {
+      final int producer = p;
+      futures.add(producers.submit(new Callable<List<String>>() {
+        @Override
+        public List<String> call() throws Exception {
+          List<String> jobs = new ArrayList<String>();
+          for (int i = 0; i < JOBS_PER_PRODUCER; i++) {
+            String job = "producer" + producer + "_job" + i;
+            _driver.enqueueJob(queueName, job, createJob());
+            jobs.add(TaskUtil.getNamespacedJobName(queueName, job));
+          }
+          return jobs;
+        }
+      }));
+    }
+    List<List<String>> enqueued = new ArrayList<List<String>>();
+    for (Future<List<String>> future : futures) {
+      enqueued.add(future.get());
+    }
+    producers.shutdown();
+
+    // Every job runs
+    for (List<String> jobs : enqueued) {
+      for (String job : jobs) {
+        TestUtil.pollForJobState(_manager, queueName, job, TaskState.COMPLETED);
+      }
+    }
+    Assert.assertTrue(JobQueueBacklog.getJobs(_manager, queueName).isEmpty());
+
+    // The DAG is one chain that keeps the order of each producer
+    JobDag dag = TaskUtil.getWorkflowCfg(_manager, queueName).getJobDag();
+    Assert.assertEquals(dag.getAllNodes().size(), NUM_PRODUCERS * JOBS_PER_PRODUCER);
+    List<String> chain = new ArrayList<String>();
+    for (String node : dag.getAllNodes()) {
+      if (dag.getDirectParents(node).isEmpty()) {
+        Assert.assertTrue(chain.isEmpty(), "More than one head: " + chain + ", " + node);
+        chain.add(node);
+      }
+    }
+    while (chain.size() < dag.getAllNodes().size()) {
+      Set<String> children = dag.getDirectChildren(chain.get(chain.size() - 1));
+      Assert.assertEquals(children.size(), 1);
+      chain.add(children.iterator().next());
+    }
+    for (List<String> jobs : enqueued) {
+      List<Integer> positions = new ArrayList<Integer>();
+      for (String job : jobs) {
+        positions.add(chain.indexOf(job));
+      }
+      List<Integer> sorted = new ArrayList<Integer>(positions);
+      Collections.sort(sorted);
+      Assert.assertEquals(positions, sorted);
+    }
+  }
+
+  @Test
+  public void testCapacity() throws Exception {
+    String queueName = TestHelper.getTestMethodName();
+    _driver.createQueue(new JobQueue.Builder(queueName).capacity(2).build());
+    _driver.enqueueJob(queueName, "job0", createJob());
+    try {
+      _driver.enqueueJob(queueName, "job0", createJob());
+      Assert.fail("Job should already exist");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+
+    // Jobs in the backlog count against the capacity
+    _driver.enqueueJob(queueName, "job1", createJob());
+    try {
+      _driver.enqueueJob(queueName, "job2", createJob());
+      Assert.fail("Queue should be at capacity");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    TestUtil.pollForJobState(_manager, queueName,
+        TaskUtil.getNamespacedJobName(queueName, "job1"), TaskState.COMPLETED);
+  }
+
+  @Test
+  public void testFoldOncePerRun() throws Exception {
+    String queueName = TestHelper.getTestMethodName();
+    _driver.createQueue(new JobQueue.Builder(queueName).build());
+
+    // Everything in a run shares one fold of the queue
+    ClusterDataCache cache = new ClusterDataCache();
+    WorkflowConfig cfg = JobQueueBacklog.foldOnce(_manager, cache, queueName);
+    Assert.assertNotNull(cfg);
+    Assert.assertSame(JobQueueBacklog.foldOnce(_manager, cache, queueName), cfg);
+
+    // The next run sees the job, whether it folds it or the controller got to it first
+    _driver.enqueueJob(queueName, "job0", createJob());
+    String job = TaskUtil.getNamespacedJobName(queueName, "job0");
+    Assert.assertTrue(cfg.getCompiledJobDag().indexOf(job) < 0);
+    cfg = JobQueueBacklog.foldOnce(_manager, new ClusterDataCache(), queueName);
+    Assert.assertTrue(cfg.getCompiledJobDag().indexOf(job) >= 0);
+    TestUtil.pollForJobState(_manager, queueName, job, TaskState.COMPLETED);
+  }
+
+  private static JobConfig.Builder createJob() {
+    List<TaskConfig> taskConfigs = Lists.newArrayList();
+    for (int i = 0; i < 2; i++) {
+      taskConfigs.add(new TaskConfig("DummyTask", null, false));
+    }
+    return new JobConfig.Builder().setCommand("DummyTask").setLightweight(true)
+        .addTaskConfigs(taskConfigs);
+  }
+}
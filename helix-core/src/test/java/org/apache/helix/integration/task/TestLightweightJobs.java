@@ -0,0 +1,158 @@
+package org.apache.helix.integration.task;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.helix.HelixManager;
+import org.apache.helix.HelixManagerFactory;
+import org.apache.helix.InstanceType;
+import org.apache.helix.TestHelper;
+import org.apache.helix.api.id.StateModelDefId;
+import org.apache.helix.manager.zk.MockController;
+import org.apache.helix.manager.zk.MockParticipant;
+import org.apache.helix.participant.StateMachineEngine;
+import org.apache.helix.task.JobConfig;
+import org.apache.helix.task.JobContext;
+import org.apache.helix.task.Task;
+import org.apache.helix.task.TaskCallbackContext;
+import org.apache.helix.task.TaskConfig;
+import org.apache.helix.task.TaskDriver;
+import org.apache.helix.task.TaskFactory;
+import org.apache.helix.task.TaskPartitionState;
+import org.apache.helix.task.TaskState;
+import org.apache.helix.task.TaskStateModelFactory;
+import org.apache.helix.task.TaskUtil;
+import org.apache.helix.task.Workflow;
+import org.apache.helix.testutil.ZkTestBase;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.Lists;
+
+public class TestLightweightJobs extends ZkTestBase {
+  private static final int n = 3;
+  private static final int START_PORT = 12918;
+  private static final int NUM_TASKS = 50;
+  private final String CLUSTER_NAME = "TestLightweightJobs";
+  private final MockParticipant[] _participants = new MockParticipant[n];
+  private MockController _controller;
+
+  private HelixManager _manager;
+  private TaskDriver _driver;
+
+  @BeforeClass
+  public void beforeClass() throws Exception {
+    String namespace = "/" + CLUSTER_NAME;
+    if (_zkclient.exists(namespace)) {
+      _zkclient.deleteRecursive(namespace);
+    }
+
+    // Setup cluster and instances
+    _setupTool.addCluster(CLUSTER_NAME, true);
+    for (int i = 0; i < n; i++) {
+      String storageNodeName = "localhost_" + (START_PORT + i);
+      _setupTool.addInstanceToCluster(CLUSTER_NAME, storageNodeName);
+    }
+
+    // start dummy participants
+    Map<String, TaskFactory> taskFactoryReg = new HashMap<String, TaskFactory>();
+    taskFactoryReg.put("DummyTask", new TaskFactory() {
+      @Override
+      public Task createNewTask(TaskCallbackContext context) {
+        return new DummyTask(context);
+      }
+    });
+    for (int i = 0; i < n; i++) {
+      String instanceName = "localhost_" + (START_PORT + i);
+      _participants[i] = new MockParticipant(_zkaddr, CLUSTER_NAME, instanceName);
+
+      // Register a Task state model factory.
+      StateMachineEngine stateMachine = _participants[i].getStateMachineEngine();
+      stateMachine.registerStateModelFactory(StateModelDefId.from("Task"),
+          new TaskStateModelFactory(_participants[i], taskFactoryReg));
+      _participants[i].syncStart();
+    }
+
+    // Start controller
+    String controllerName = "controller_0";
+    _controller = new MockController(_zkaddr, CLUSTER_NAME, controllerName);
+    _controller.syncStart();
+
+    // Start an admin connection
+    _manager =
+        HelixManagerFactory.getZKHelixManager(CLUSTER_NAME, "Admin", InstanceType.ADMINISTRATOR,
+            _zkaddr);
+    _manager.connect();
+    _driver = new TaskDriver(_manager);
+  }
+
+  @AfterClass
+  public void afterClass() throws Exception {
+    _controller.syncStop();
+    for (int i = 0; i < n; i++) {
+      _participants[i].syncStop();
+    }
+    _manager.disconnect();
+  }
+
+  @Test
+  public void testJobsShareTaskPool() throws Exception {
+    String workflowName = TestHelper.getTestMethodName();
+    Workflow.Builder builder = new Workflow.Builder(workflowName);
+    addLightweightJob(builder, "first");
+    addLightweightJob(builder, "second");
+    builder.addParentChildDependency("first", "second");
+    _driver.start(builder.build());
+
+    TestUtil.pollForWorkflowState(_manager, workflowName, TaskState.COMPLETED);
+
+    // Every task ran to completion, without an ideal state per job
+    for (String job : new String[] {
+        "first", "second"
+    }) {
+      String namespacedJob = TaskUtil.getNamespacedJobName(workflowName, job);
+      Assert.assertNull(_manager.getClusterManagmentTool().getResourceIdealState(CLUSTER_NAME,
+          namespacedJob));
+      JobContext ctx = TaskUtil.getJobContext(_manager, namespacedJob);
+      Assert.assertEquals(ctx.getPartitionSet().size(), NUM_TASKS);
+      for (int pId : ctx.getPartitionSet()) {
+        Assert.assertEquals(ctx.getPartitionState(pId), TaskPartitionState.COMPLETED);
+      }
+    }
+    Assert.assertNotNull(_manager.getClusterManagmentTool().getResourceIdealState(CLUSTER_NAME,
+        TaskUtil.getTaskPoolName(workflowName)));
+  }
+
+  private static void addLightweightJob(Workflow.Builder builder, String job) {
+    List<TaskConfig> taskConfigs = Lists.newArrayListWithCapacity(NUM_TASKS);
+    for (int i = 0; i < NUM_TASKS; i++) {
+      taskConfigs.add(new TaskConfig("DummyTask", null, false));
+    }
+    builder.addTaskConfigs(job, taskConfigs);
+    builder.addConfig(job, JobConfig.COMMAND, "DummyTask");
+    builder.addConfig(job, JobConfig.LIGHTWEIGHT, String.valueOf(true));
+    builder.addConfig(job, JobConfig.NUM_CONCURRENT_TASKS_PER_INSTANCE, String.valueOf(10));
+  }
+}
@@ -0,0 +1,212 @@
+package org.apache.helix.integration.task;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.helix.HelixManager;
+import org.apache.helix.HelixManagerFactory;
+import org.apache.helix.InstanceType;
+import org.apache.helix.TestHelper;
+import org.apache.helix.api.id.StateModelDefId;
+import org.apache.helix.manager.zk.MockController;
+import org.apache.helix.manager.zk.MockParticipant;
+import org.apache.helix.participant.StateMachineEngine;
+import org.apache.helix.task.JobConfig;
+import org.apache.helix.task.JobContext;
+import org.apache.helix.task.Task;
+import org.apache.helix.task.TaskCallbackContext;
+import org.apache.helix.task.TaskConfig;
+import org.apache.helix.task.TaskDriver;
+import org.apache.helix.task.TaskFactory;
+import org.apache.helix.task.TaskPartitionState;
+import org.apache.helix.task.TaskResult;
+import org.apache.helix.task.TaskState;
+import org.apache.helix.task.TaskStateModelFactory;
+import org.apache.helix.task.TaskUtil;
+import org.apache.helix.task.Workflow;
+import org.apache.helix.testutil.ZkTestBase;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+public class TestSpeculativeTasks extends ZkTestBase {
+  private static final int n = 3;
+  private static final int START_PORT = 12918;
+  private static final int NUM_TASKS = 12;
+  private static final long TASK_DURATION = 200;
+  private static final long STRAGGLER_DURATION = 60 * 1000;
+  private final String CLUSTER_NAME = "TestSpeculativeTasks";
+  private final MockParticipant[] _participants = new MockParticipant[n];
+  private MockController _controller;
+
+  private HelixManager _manager;
+  private TaskDriver _driver;
+
+  // Set once the first run of the straggling task has started
+  private static final AtomicBoolean _stragglerStarted = new AtomicBoolean(false);
+  private static final AtomicBoolean _stragglerCanceled = new AtomicBoolean(false);
+
+  @BeforeClass
+  public void beforeClass() throws Exception {
+    String namespace = "/" + CLUSTER_NAME;
+    if (_zkclient.exists(namespace)) {
+      _zkclient.deleteRecursive(namespace);
+    }
+
+    // Setup cluster and instances
+    _setupTool.addCluster(CLUSTER_NAME, true);
+    for (int i = 0; i < n; i++) {
+      String storageNodeName = "localhost_" + (START_PORT + i);
+      _setupTool.addInstanceToCluster(CLUSTER_NAME, storageNodeName);
+    }
+
+    // start dummy participants
+    Map<String, TaskFactory> taskFactoryReg = new HashMap<String, TaskFactory>();
+    taskFactoryReg.put("SleepTask", new TaskFactory() {
+      @Override
+      public Task createNewTask(TaskCallbackContext context) {
+        return new SleepTask(context);
+      }
+    });
+    for (int i = 0; i < n; i++) {
+      String instanceName = "localhost_" + (START_PORT + i);
+      _participants[i] = new MockParticipant(_zkaddr, CLUSTER_NAME, instanceName);
+
+      // Register a Task state model factory.
+      StateMachineEngine stateMachine = _participants[i].getStateMachineEngine();
+      stateMachine.registerStateModelFactory(StateModelDefId.from("Task"),
+          new TaskStateModelFactory(_participants[i], taskFactoryReg));
+      _participants[i].syncStart();
+    }
+
+    // Start controller
+    String controllerName = "controller_0";
+    _controller = new MockController(_zkaddr, CLUSTER_NAME, controllerName);
+    _controller.syncStart();
+
+    // Start an admin connection
+    _manager =
+        HelixManagerFactory.getZKHelixManager(CLUSTER_NAME, "Admin", InstanceType.ADMINISTRATOR,
+            _zkaddr);
+    _manager.connect();
+    _driver = new TaskDriver(_manager);
+  }
+
+  @AfterClass
+  public void afterClass() throws Exception {
+    _controller.syncStop();
+    for (int i = 0; i < n; i++) {
+      _participants[i].syncStop();
+    }
+    _manager.disconnect();
+  }
+
+  @Test
+  public void testStragglerIsCopied() throws Exception {
+    String jobName = TestHelper.getTestMethodName();
+    Workflow.Builder builder = new Workflow.Builder(jobName);
+    List<TaskConfig> taskConfigs = Lists.newArrayListWithCapacity(NUM_TASKS);
+    Map<String, String> stragglerConfig = Maps.newHashMap(ImmutableMap.of("straggler", "true"));
+    taskConfigs.add(new TaskConfig("SleepTask", stragglerConfig, false));
+    for (int i = 1; i < NUM_TASKS; i++) {
+      taskConfigs.add(new TaskConfig("SleepTask", null, false));
+    }
+    builder.addTaskConfigs(jobName, taskConfigs);
+    builder.addConfig(jobName, JobConfig.COMMAND, "SleepTask");
+    builder.addConfig(jobName, JobConfig.NUM_CONCURRENT_TASKS_PER_INSTANCE, String.valueOf(2));
+    builder.addConfig(jobName, JobConfig.SPECULATION_THRESHOLD, String.valueOf(2.0));
+    builder.addConfig(jobName, JobConfig.TIMEOUT_PER_TASK, String.valueOf(2 * STRAGGLER_DURATION));
+    long startTime = System.currentTimeMillis();
+    _driver.start(builder.build());
+
+    // The job finishes long before the straggler would have
+    TestUtil.pollForWorkflowState(_manager, jobName, TaskState.COMPLETED);
+    Assert.assertTrue(System.currentTimeMillis() - startTime < STRAGGLER_DURATION);
+    Assert.assertTrue(_stragglerStarted.get());
+
+    // Every task completed, and the original straggler was stopped
+    JobContext ctx = TaskUtil.getJobContext(_manager, jobName + "_" + jobName);
+    for (int pId : ctx.getPartitionSet()) {
+      Assert.assertEquals(ctx.getPartitionState(pId), TaskPartitionState.COMPLETED);
+    }
+    boolean canceled = false;
+    for (int i = 0; i < 10 && !canceled; i++) {
+      canceled = _stragglerCanceled.get();
+      Thread.sleep(500);
+    }
+    Assert.assertTrue(canceled);
+  }
+
+  /**
+   * Sleeps for a short while, except for the first run of the straggler, which reports progress
+   * but takes much longer
+   */
+  private static class SleepTask implements Task {
+    private final TaskCallbackContext _context;
+    private final boolean _straggler;
+    private volatile boolean _canceled = false;
+
+    SleepTask(TaskCallbackContext context) {
+      _context = context;
+      Map<String, String> configMap =
+          (context.getTaskConfig() != null) ? context.getTaskConfig().getConfigMap() : null;
+      _straggler =
+          configMap != null && configMap.containsKey("straggler")
+              && _stragglerStarted.compareAndSet(false, true);
+    }
+
+    @Override
+    public TaskResult run() {
+      long duration = _straggler ? STRAGGLER_DURATION : TASK_DURATION;
+      long start = System.currentTimeMillis();
+      long elapsed;
+      while (!_canceled && (elapsed = System.currentTimeMillis() - start) < duration) {
+        _context.reportProgress((double) elapsed / duration);
+        try {
+          Thread.sleep(50);
+        } catch (InterruptedException e) {
+          break;
+        }
+      }
+      if (_canceled) {
+        if (_straggler) {
+          _stragglerCanceled.set(true);
+        }
+        return new TaskResult(TaskResult.Status.CANCELED, null);
+      }
+      return new TaskResult(TaskResult.Status.COMPLETED, null);
+    }
+
+    @Override
+    public void cancel() {
+      _canceled = true;
+    }
+  }
+}
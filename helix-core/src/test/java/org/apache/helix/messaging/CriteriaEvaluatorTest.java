@@ -30,6 +30,7 @@ import org.apache.helix.HelixManager;
 import org.apache.helix.HelixProperty;
 import org.apache.helix.InstanceType;
 import org.apache.helix.Mocks;
+import org.apache.helix.NotificationContext;
 import org.apache.helix.PropertyKey;
 import org.apache.helix.PropertyType;
 import org.apache.helix.ZNRecord;
@@ -107,6 +108,85 @@ public class CriteriaEvaluatorTest {
     Assert.assertEquals(result.size(), 8);
   }
 
+  @Test
+  public void testIndexedEvaluation() {
+    CriteriaEvaluator unindexedEvaluator = new CriteriaEvaluator();
+    CriteriaIndex index = new CriteriaIndex();
+    CriteriaEvaluator indexedEvaluator = new CriteriaEvaluator(index);
+
+    // feed the index the same data the accessor serves
+    HelixDataAccessor accessor = _helixManager.getHelixDataAccessor();
+    PropertyKey.Builder keyBuilder = accessor.keyBuilder();
+    NotificationContext changeContext = new NotificationContext(_helixManager);
+    changeContext.setType(NotificationContext.Type.CALLBACK);
+    List<IdealState> idealStates = accessor.getChildValues(keyBuilder.idealStates());
+    List<LiveInstance> liveInstances = accessor.getChildValues(keyBuilder.liveInstances());
+    index.onIdealStateChange(idealStates, changeContext);
+    index.onLiveInstanceChange(liveInstances, changeContext);
+    Assert.assertTrue(index.isIndexed(Criteria.DataSource.IDEALSTATES));
+    Assert.assertTrue(index.isIndexed(Criteria.DataSource.LIVEINSTANCES));
+    Assert.assertFalse(index.isIndexed(Criteria.DataSource.EXTERNALVIEW));
+
+    String[][] criteriaFields = {
+        // instance, resource, partition, state
+        { "%", "%", "%", "" }, { "%", "%", "%", "%" }, { INSTANCE_NAME_PREFIX + 4, "%", "%", "" },
+        { "LOCALHOST_3", "db", "%", "MASTER" }, { "%", RESOURCE_NAME, RESOURCE_NAME + "_1", "%" },
+        { "localhost__", RESOURCE_NAME, "%_1%", "slave" }, { "%", "", "", "" },
+        { "", RESOURCE_NAME, "", "" }, { "*", "*", RESOURCE_NAME + "_1_", "" },
+        { "%", "other", "%", "" }, { "localhost.1", "%", "%", "" }
+    };
+    for (Criteria.DataSource dataSource : new Criteria.DataSource[] {
+        Criteria.DataSource.IDEALSTATES, Criteria.DataSource.LIVEINSTANCES
+    }) {
+      for (String[] fields : criteriaFields) {
+        Criteria recipientCriteria = new Criteria();
+        recipientCriteria.setInstanceName(fields[0]);
+        recipientCriteria.setResource(fields[1]);
+        recipientCriteria.setPartition(fields[2]);
+        recipientCriteria.setPartitionState(fields[3]);
+        recipientCriteria.setRecipientInstanceType(InstanceType.PARTICIPANT);
+        recipientCriteria.setDataSource(dataSource);
+        Set<Map<String, String>> expected =
+            Sets.newHashSet(unindexedEvaluator.evaluateCriteria(recipientCriteria, _helixManager));
+        Set<Map<String, String>> actual =
+            Sets.newHashSet(indexedEvaluator.evaluateCriteria(recipientCriteria, _helixManager));
+        Assert.assertEquals(actual, expected, dataSource + " " + recipientCriteria);
+      }
+    }
+
+    // a finalized source is read on demand again, and expires after its time-to-live
+    NotificationContext finalizeContext = new NotificationContext(_helixManager);
+    finalizeContext.setType(NotificationContext.Type.FINALIZE);
+    index.onIdealStateChange(idealStates, finalizeContext);
+    Assert.assertFalse(index.isIndexed(Criteria.DataSource.IDEALSTATES));
+    Criteria recipientCriteria = new Criteria();
+    recipientCriteria.setInstanceName(INSTANCE_NAME_PREFIX + 4);
+    recipientCriteria.setResource("%");
+    recipientCriteria.setPartition("%");
+    recipientCriteria.setRecipientInstanceType(InstanceType.PARTICIPANT);
+    recipientCriteria.setDataSource(Criteria.DataSource.IDEALSTATES);
+    Assert.assertEquals(indexedEvaluator.evaluateCriteria(recipientCriteria, _helixManager).size(),
+        8);
+    Assert.assertTrue(index.isIndexed(Criteria.DataSource.IDEALSTATES));
+
+    // an index whose live instances are not fed reads them on every evaluation
+    CriteriaIndex readIndex = new CriteriaIndex(60 * 1000);
+    CriteriaEvaluator readEvaluator = new CriteriaEvaluator(readIndex);
+    Assert.assertEquals(readEvaluator.evaluateCriteria(recipientCriteria, _helixManager).size(), 8);
+    Assert.assertFalse(readIndex.isIndexed(Criteria.DataSource.IDEALSTATES));
+    Assert.assertFalse(readIndex.isIndexed(Criteria.DataSource.LIVEINSTANCES));
+
+    // ideal states it reads itself are served until they expire
+    readIndex.onLiveInstanceChange(liveInstances, changeContext);
+    Assert.assertTrue(readIndex.isIndexed(Criteria.DataSource.IDEALSTATES));
+    Assert.assertEquals(readEvaluator.evaluateCriteria(recipientCriteria, _helixManager).size(), 8);
+    CriteriaIndex expiredIndex = new CriteriaIndex(0);
+    expiredIndex.onLiveInstanceChange(liveInstances, changeContext);
+    Assert.assertEquals(new CriteriaEvaluator(expiredIndex).evaluateCriteria(recipientCriteria,
+        _helixManager).size(), 8);
+    Assert.assertFalse(expiredIndex.isIndexed(Criteria.DataSource.IDEALSTATES));
+  }
+
   @AfterClass
   public void tearDown() {
     this._helixManager.disconnect();
@@ -23,9 +23,13 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.helix.api.id.MessageId;
 import org.apache.helix.model.Message;
+import org.testng.Assert;
 import org.testng.AssertJUnit;
 import org.testng.annotations.Test;
 
@@ -108,6 +112,49 @@ public class TestAsyncCallback {
     System.out.println("END TestAsyncCallback at " + new Date(System.currentTimeMillis()));
   }
 
+  @Test()
+  public void testReplyFuture() throws Exception {
+    int nMsgs = 3;
+    List<Message> messageSent = new ArrayList<Message>();
+    for (int i = 0; i < nMsgs; i++) {
+      messageSent.add(new Message("Test", MessageId.from(UUID.randomUUID().toString())));
+    }
+
+    // the future completes once every reply has been streamed to the callback
+    AsyncCallbackSample callback = new AsyncCallbackSample();
+    callback.setMessagesSent(messageSent);
+    callback.setTimeout(10000);
+    callback.startTimer();
+    for (int i = 0; i < nMsgs; i++) {
+      Assert.assertFalse(callback.getReplyFuture().isDone());
+      callback.onReply(new Message("TestReply", MessageId.from(UUID.randomUUID().toString())));
+      Assert.assertEquals(callback._onReplyMessageCalled, i + 1);
+    }
+    Assert.assertEquals(callback.getReplyFuture().get(1, TimeUnit.SECONDS).size(), nMsgs);
+
+    // many concurrent callbacks time out off one shared timer
+    List<AsyncCallbackSample> callbacks = new ArrayList<AsyncCallbackSample>();
+    for (int i = 0; i < 1000; i++) {
+      callback = new AsyncCallbackSample();
+      callback.setMessagesSent(messageSent);
+      callback.setTimeout(100 + i % 100);
+      callback.startTimer();
+      callback.onReply(new Message("TestReply", MessageId.from(UUID.randomUUID().toString())));
+      callbacks.add(callback);
+    }
+    for (AsyncCallbackSample timedOut : callbacks) {
+      try {
+        timedOut.getReplyFuture().get(5, TimeUnit.SECONDS);
+        Assert.fail("Expected a timeout");
+      } catch (ExecutionException e) {
+        Assert.assertTrue(e.getCause() instanceof TimeoutException);
+      }
+      Assert.assertTrue(timedOut.isTimedOut());
+      Assert.assertEquals(timedOut._onTimeOutCalled, 1);
+      Assert.assertEquals(timedOut.getMessageReplied().size(), 1);
+    }
+  }
+
   void sleep(int time) {
     try {
       Thread.sleep(time);
@@ -41,6 +41,7 @@ import org.apache.helix.messaging.handling.MessageHandlerFactory;
 import org.apache.helix.model.ExternalView;
 import org.apache.helix.model.LiveInstance.LiveInstanceProperty;
 import org.apache.helix.model.Message;
+import org.apache.helix.model.Message.MessageType;
 import org.testng.AssertJUnit;
 import org.testng.annotations.Test;
 
@@ -48,6 +49,14 @@ public class TestDefaultMessagingService {
   class MockHelixManager extends Mocks.MockManager {
     class MockDataAccessor extends Mocks.MockAccessor {
 
+      @Override
+      public boolean setProperty(PropertyKey key, HelixProperty value) {
+        if (key.getType() == PropertyType.MESSAGES) {
+          _numMessageWrites++;
+        }
+        return super.setProperty(key, value);
+      }
+
       @Override
       public <T extends HelixProperty> T getProperty(PropertyKey key) {
 
@@ -76,6 +85,7 @@ public class TestDefaultMessagingService {
     }
 
     HelixDataAccessor _accessor = new MockDataAccessor();
+    int _numMessageWrites = 0;
     ZNRecord _externalView;
     List<String> _instances;
     List<ZNRecord> _liveInstances;
@@ -245,4 +255,59 @@ public class TestDefaultMessagingService {
     recipientCriteria.setPartition("%");
     AssertJUnit.assertEquals(1, svc.send(recipientCriteria, template));
   }
+
+  @Test()
+  public void TestMessageSendOverTransport() {
+    MockHelixManager manager = new MockHelixManager();
+    DefaultMessagingService svc = new DefaultMessagingService(manager);
+
+    // only one instance is reachable over the transport
+    final List<Message> sentDirect = new ArrayList<Message>();
+    final List<HelixMessageTransport.MessageReceiver> receivers =
+        new ArrayList<HelixMessageTransport.MessageReceiver>();
+    svc.setMessageTransport(new HelixMessageTransport() {
+      @Override
+      public void setMessageReceiver(MessageReceiver receiver) {
+        receivers.add(receiver);
+      }
+
+      @Override
+      public boolean send(Message message) {
+        if (message.getTgtName().equals("localhost_12920")) {
+          sentDirect.add(message);
+          return true;
+        }
+        return false;
+      }
+    });
+
+    Criteria recipientCriteria = new Criteria();
+    recipientCriteria.setRecipientInstanceType(InstanceType.PARTICIPANT);
+    recipientCriteria.setSelfExcluded(true);
+    recipientCriteria.setInstanceName("%");
+    recipientCriteria.setResource("DB");
+    recipientCriteria.setPartition("%");
+
+    // user-defined messages to the reachable instance bypass zk, the rest fall back
+    Message template =
+        new Message("TestingMessageHandler", MessageId.from(UUID.randomUUID().toString()));
+    AssertJUnit.assertEquals(159, svc.send(recipientCriteria, template));
+    AssertJUnit.assertEquals(39, sentDirect.size());
+    AssertJUnit.assertEquals(120, manager._numMessageWrites);
+
+    // messages the transport accepted but could not deliver end up in zk after all
+    AssertJUnit.assertEquals(1, receivers.size());
+    receivers.get(0).onUndelivered(sentDirect.get(0));
+    AssertJUnit.assertEquals(121, manager._numMessageWrites);
+
+    // state transitions always go through zk
+    sentDirect.clear();
+    manager._numMessageWrites = 0;
+    recipientCriteria.setInstanceName("localhost_12920");
+    Message transition =
+        new Message(MessageType.STATE_TRANSITION, MessageId.from(UUID.randomUUID().toString()));
+    AssertJUnit.assertEquals(39, svc.send(recipientCriteria, transition));
+    AssertJUnit.assertEquals(0, sentDirect.size());
+    AssertJUnit.assertEquals(39, manager._numMessageWrites);
+  }
 }
@@ -29,6 +29,7 @@ import org.apache.helix.HelixException;
 import org.apache.helix.HelixManager;
 import org.apache.helix.Mocks;
 import org.apache.helix.NotificationContext;
+import org.apache.helix.ZNRecord;
 import org.apache.helix.api.id.MessageId;
 import org.apache.helix.api.id.SessionId;
 import org.apache.helix.model.Message;
@@ -235,6 +236,45 @@ public class TestHelixTaskExecutor {
     System.out.println("END TestCMTaskExecutor.testNormalMsgExecution()");
   }
 
+  @Test()
+  public void testDirectMsgValidation() throws InterruptedException {
+    HelixTaskExecutor executor = new HelixTaskExecutor();
+    HelixManager manager = new MockClusterManager();
+
+    TestMessageHandlerFactory factory = new TestMessageHandlerFactory();
+    executor.registerMessageHandlerFactory(factory.getMessageType(), factory);
+
+    NotificationContext changeContext = new NotificationContext(manager);
+    Message msg =
+        new Message(factory.getMessageType(), MessageId.from(UUID.randomUUID().toString()));
+    msg.setTgtSessionId(SessionId.from(manager.getSessionId()));
+    msg.setTgtName("Localhost_1123");
+    msg.setSrcName("127.101.1.23_2234");
+    msg.setDirectDelivery(true);
+
+    // a re-sent copy of the same message is dropped
+    Message resent = new Message(new ZNRecord(msg.getRecord()));
+    executor.onDirectMessage(msg, changeContext);
+    executor.onDirectMessage(resent, changeContext);
+
+    // so are messages without a session and messages for another session
+    Message noSession =
+        new Message(factory.getMessageType(), MessageId.from(UUID.randomUUID().toString()));
+    noSession.setTgtName("Localhost_1123");
+    executor.onDirectMessage(noSession, changeContext);
+    Message otherSession =
+        new Message(factory.getMessageType(), MessageId.from(UUID.randomUUID().toString()));
+    otherSession.setTgtSessionId(SessionId.from("456"));
+    otherSession.setTgtName("Localhost_1123");
+    executor.onDirectMessage(otherSession, changeContext);
+
+    Thread.sleep(1000);
+
+    AssertJUnit.assertEquals(1, factory._handlersCreated);
+    AssertJUnit.assertEquals(1, factory._processedMsgIds.size());
+    AssertJUnit.assertTrue(factory._processedMsgIds.containsKey(msg.getId()));
+  }
+
   @Test()
   public void testUnknownTypeMsgExecution() throws InterruptedException {
     HelixTaskExecutor executor = new HelixTaskExecutor();
@@ -36,4 +36,16 @@ public class TestInstanceConfig {
     Assert.assertTrue(config.isValid(),
         "HELIX-65: should not check host/port existence for instance-config");
   }
+
+  @Test
+  public void testFaultZone() {
+    InstanceConfig config = new InstanceConfig("node_0");
+    Assert.assertNull(config.getFaultZone(null));
+
+    config.setDomain("zone=z1, rack=r2, host=h3");
+    Assert.assertEquals(config.getFaultZone(null), "zone=z1");
+    Assert.assertEquals(config.getFaultZone("zone"), "zone=z1");
+    Assert.assertEquals(config.getFaultZone("rack"), "zone=z1,rack=r2");
+    Assert.assertNull(config.getFaultZone("datacenter"));
+  }
 }
@@ -0,0 +1,123 @@
+package org.apache.helix.task;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.helix.ZNRecord;
+import org.apache.helix.controller.stages.ClusterDataCache;
+
+/**
+ * Compare the time a pipeline run spends checking the parents of every job of a large workflow,
+ * when each job parses the workflow config and walks its parents, and when the compiled DAG and
+ * the readiness tracker are used. Jobs are laid out in layers, each job depending on a few jobs of
+ * the layer above, and the first half of the layers is completed.
+ * Run with: java org.apache.helix.task.JobDagBenchmark [numJobs] [jobsPerLayer] [numRuns]
+ */
+public class JobDagBenchmark {
+  private static final int PARENTS_PER_JOB = 3;
+
+  public static void main(String[] args) throws Exception {
+    int numJobs = (args.length > 0) ? Integer.parseInt(args[0]) : 5000;
+    int jobsPerLayer = (args.length > 1) ? Integer.parseInt(args[1]) : 50;
+    int numRuns = (args.length > 2) ? Integer.parseInt(args[2]) : 5;
+
+    JobDag dag = new JobDag();
+    for (int i = 0; i < numJobs; i++) {
+      dag.addNode(jobName(i));
+      int layer = i / jobsPerLayer;
+      if (layer > 0) {
+        for (int p = 0; p < PARENTS_PER_JOB; p++) {
+          int parent = (layer - 1) * jobsPerLayer + (i + p) % jobsPerLayer;
+          dag.addParentToChild(jobName(parent), jobName(i));
+        }
+      }
+    }
+    Map<String, String> cfgMap = new HashMap<String, String>();
+    cfgMap.put(WorkflowConfig.DAG, dag.toJson());
+
+    WorkflowContext ctx = new WorkflowContext(new ZNRecord("WorkflowContext"));
+    ctx.setStartTime(System.currentTimeMillis());
+    int numLayers = (numJobs + jobsPerLayer - 1) / jobsPerLayer;
+    for (int i = 0; i < (numLayers / 2) * jobsPerLayer; i++) {
+      ctx.setJobState(jobName(i), TaskState.COMPLETED);
+    }
+
+    long parseTime = Long.MAX_VALUE;
+    long compiledTime = Long.MAX_VALUE;
+    int readyByParse = 0;
+    int readyByCompiled = 0;
+    for (int run = 0; run < numRuns; run++) {
+      long start = System.nanoTime();
+      readyByParse = runParse(cfgMap, ctx, numJobs);
+      parseTime = Math.min(parseTime, System.nanoTime() - start);
+
+      start = System.nanoTime();
+      readyByCompiled = runCompiled(cfgMap, ctx, numJobs);
+      compiledTime = Math.min(compiledTime, System.nanoTime() - start);
+    }
+    if (readyByParse != readyByCompiled) {
+      throw new IllegalStateException("Ready jobs differ: " + readyByParse + " vs "
+          + readyByCompiled);
+    }
+    System.out.println(String.format(
+        "%d jobs, %d ready: parse per job %d ms, compiled DAG %d ms", numJobs, readyByParse,
+        parseTime / 1000000, compiledTime / 1000000));
+  }
+
+  private static int runParse(Map<String, String> cfgMap, WorkflowContext ctx, int numJobs) {
+    int ready = 0;
+    for (int i = 0; i < numJobs; i++) {
+      JobDag dag = JobDag.fromJson(cfgMap.get(WorkflowConfig.DAG));
+      boolean parentsDone = true;
+      for (String parent : dag.getDirectParents(jobName(i))) {
+        if (ctx.getJobState(parent) != TaskState.COMPLETED) {
+          parentsDone = false;
+          break;
+        }
+      }
+      if (parentsDone) {
+        ready++;
+      }
+    }
+    return ready;
+  }
+
+  private static int runCompiled(Map<String, String> cfgMap, WorkflowContext ctx, int numJobs) {
+    // the controller keeps the compiled DAGs and trackers in its cluster data
+    ClusterDataCache cache = new ClusterDataCache();
+    int ready = 0;
+    for (int i = 0; i < numJobs; i++) {
+      WorkflowConfig cfg =
+          WorkflowConfig.Builder.fromMap(CompiledJobDag.getCache(cache), "workflow", cfgMap)
+              .build();
+      JobDagReadiness readiness =
+          JobDagReadiness.get(cache, "workflow", cfg.getCompiledJobDag(), ctx);
+      if (readiness.isReady(jobName(i), ctx)) {
+        ready++;
+      }
+    }
+    return ready;
+  }
+
+  private static String jobName(int i) {
+    return "workflow_job" + i;
+  }
+}
@@ -0,0 +1,102 @@
+package org.apache.helix.task;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.helix.api.State;
+import org.apache.helix.api.id.ParticipantId;
+import org.apache.helix.api.id.PartitionId;
+import org.apache.helix.api.id.ResourceId;
+import org.apache.helix.controller.strategy.AutoRebalanceStrategy;
+
+/**
+ * Compare the time to place the tasks of a large generic job with {@link AutoRebalanceStrategy},
+ * which the generic task rebalancer used to call, and with {@link BalancedTaskAssigner}.
+ * Run with: java org.apache.helix.task.TaskAssignmentBenchmark [numInstances] [numTasks...]
+ */
+public class TaskAssignmentBenchmark {
+  private static final int NUM_RUNS = 5;
+
+  public static void main(String[] args) {
+    int numInstances = (args.length > 0) ? Integer.parseInt(args[0]) : 50;
+    List<Integer> numTasksList = new ArrayList<Integer>();
+    for (int i = 1; i < args.length; i++) {
+      numTasksList.add(Integer.parseInt(args[i]));
+    }
+    if (numTasksList.isEmpty()) {
+      numTasksList.add(10000);
+      numTasksList.add(50000);
+      numTasksList.add(100000);
+    }
+
+    List<ParticipantId> instances = new ArrayList<ParticipantId>();
+    Map<ParticipantId, Integer> slots = new HashMap<ParticipantId, Integer>();
+    for (int i = 0; i < numInstances; i++) {
+      ParticipantId instance = ParticipantId.from("localhost_" + (12918 + i));
+      instances.add(instance);
+      slots.put(instance, 40);
+    }
+
+    for (int numTasks : numTasksList) {
+      long strategyTime = Long.MAX_VALUE;
+      long heapTime = Long.MAX_VALUE;
+      for (int run = 0; run < NUM_RUNS; run++) {
+        strategyTime = Math.min(strategyTime, runStrategy(instances, numTasks));
+        heapTime = Math.min(heapTime, runHeap(instances, slots, numTasks));
+      }
+      System.out.println(String.format("%d tasks on %d instances: strategy %d ms, heap %d ms",
+          numTasks, numInstances, strategyTime, heapTime));
+    }
+  }
+
+  private static long runStrategy(List<ParticipantId> instances, int numTasks) {
+    ResourceId resourceId = ResourceId.from("benchmarkJob");
+    List<PartitionId> partitions = new ArrayList<PartitionId>();
+    for (int p = 0; p < numTasks; p++) {
+      partitions.add(PartitionId.from(resourceId + "_" + p));
+    }
+    LinkedHashMap<State, Integer> states = new LinkedHashMap<State, Integer>();
+    states.put(State.from("ONLINE"), 1);
+    long start = System.currentTimeMillis();
+    AutoRebalanceStrategy strategy =
+        new AutoRebalanceStrategy(resourceId, partitions, states, Integer.MAX_VALUE,
+            new AutoRebalanceStrategy.DefaultPlacementScheme());
+    strategy.typedComputePartitionAssignment(instances,
+        new HashMap<PartitionId, Map<ParticipantId, State>>(), instances);
+    return System.currentTimeMillis() - start;
+  }
+
+  private static long runHeap(List<ParticipantId> instances, Map<ParticipantId, Integer> slots,
+      int numTasks) {
+    List<Integer> partitions = new ArrayList<Integer>();
+    for (int p = 0; p < numTasks; p++) {
+      partitions.add(p);
+    }
+    long start = System.currentTimeMillis();
+    BalancedTaskAssigner.assign(instances, slots, partitions,
+        new HashMap<Integer, ParticipantId>());
+    return System.currentTimeMillis() - start;
+  }
+}
@@ -0,0 +1,130 @@
+package org.apache.helix.task;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+
+import org.apache.helix.api.id.ParticipantId;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Test {@link BalancedTaskAssigner} to ensure tasks are spread by slots, stay in place and never
+ * go to instances without slots.
+ */
+public class TestBalancedTaskAssigner {
+  @Test
+  public void testEvenSpread() {
+    List<ParticipantId> instances = createInstances(4);
+    Map<ParticipantId, Integer> slots = createSlots(instances, 10);
+    Map<ParticipantId, SortedSet<Integer>> assignment =
+        BalancedTaskAssigner.assign(instances, slots, createPartitions(102),
+            new HashMap<Integer, ParticipantId>());
+    int total = 0;
+    for (ParticipantId instance : instances) {
+      int size = assignment.get(instance).size();
+      Assert.assertTrue(size == 25 || size == 26);
+      total += size;
+    }
+    Assert.assertEquals(total, 102);
+  }
+
+  @Test
+  public void testSpreadBySlots() {
+    List<ParticipantId> instances = createInstances(2);
+    Map<ParticipantId, Integer> slots = createSlots(instances, 10);
+    slots.put(instances.get(1), 30);
+    Map<ParticipantId, SortedSet<Integer>> assignment =
+        BalancedTaskAssigner.assign(instances, slots, createPartitions(40),
+            new HashMap<Integer, ParticipantId>());
+    Assert.assertEquals(assignment.get(instances.get(0)).size(), 10);
+    Assert.assertEquals(assignment.get(instances.get(1)).size(), 30);
+  }
+
+  @Test
+  public void testSticky() {
+    List<ParticipantId> instances = createInstances(3);
+    Map<ParticipantId, Integer> slots = createSlots(instances, 10);
+    Map<Integer, ParticipantId> current = new HashMap<Integer, ParticipantId>();
+    for (int p = 0; p < 5; p++) {
+      current.put(p, instances.get(2));
+    }
+    // a task on an unknown instance must be moved
+    current.put(5, ParticipantId.from("gone"));
+    Map<ParticipantId, SortedSet<Integer>> assignment =
+        BalancedTaskAssigner.assign(instances, slots, createPartitions(9), current);
+    for (int p = 0; p < 5; p++) {
+      Assert.assertTrue(assignment.get(instances.get(2)).contains(p));
+    }
+    Assert.assertEquals(assignment.get(instances.get(0)).size(), 2);
+    Assert.assertEquals(assignment.get(instances.get(1)).size(), 2);
+    Assert.assertFalse(assignment.containsKey(ParticipantId.from("gone")));
+  }
+
+  @Test
+  public void testNoSlots() {
+    List<ParticipantId> instances = createInstances(3);
+    Map<ParticipantId, Integer> slots = createSlots(instances, 5);
+    slots.put(instances.get(0), 0);
+    Map<Integer, ParticipantId> current = new HashMap<Integer, ParticipantId>();
+    current.put(0, instances.get(0));
+    Map<ParticipantId, SortedSet<Integer>> assignment =
+        BalancedTaskAssigner.assign(instances, slots, createPartitions(10), current);
+    Assert.assertFalse(assignment.containsKey(instances.get(0)));
+    Assert.assertEquals(assignment.get(instances.get(1)).size(), 5);
+    Assert.assertEquals(assignment.get(instances.get(2)).size(), 5);
+
+    // nothing is assigned if no instance has slots
+    slots = createSlots(instances, 0);
+    assignment =
+        BalancedTaskAssigner.assign(instances, slots, createPartitions(10),
+            new HashMap<Integer, ParticipantId>());
+    Assert.assertTrue(assignment.isEmpty());
+  }
+
+  private static List<ParticipantId> createInstances(int numInstances) {
+    List<ParticipantId> instances = new ArrayList<ParticipantId>();
+    for (int i = 0; i < numInstances; i++) {
+      instances.add(ParticipantId.from("localhost_" + (12918 + i)));
+    }
+    return instances;
+  }
+
+  private static Map<ParticipantId, Integer> createSlots(List<ParticipantId> instances,
+      int numSlots) {
+    Map<ParticipantId, Integer> slots = new HashMap<ParticipantId, Integer>();
+    for (ParticipantId instance : instances) {
+      slots.put(instance, numSlots);
+    }
+    return slots;
+  }
+
+  private static List<Integer> createPartitions(int numPartitions) {
+    List<Integer> partitions = new ArrayList<Integer>();
+    for (int p = 0; p < numPartitions; p++) {
+      partitions.add(p);
+    }
+    return partitions;
+  }
+}
@@ -0,0 +1,104 @@
+package org.apache.helix.task;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.helix.ZNRecord;
+import org.apache.helix.manager.zk.ZNRecordSerializer;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Test {@link JobContextBucketizer} to ensure contexts survive the round trip, stay within the
+ * znode size limit and only touch the buckets of changed partitions.
+ */
+public class TestJobContextBucketizer {
+  private static final int NUM_PARTITIONS = 50000;
+
+  @Test
+  public void testRoundTrip() {
+    JobContext ctx = createContext(NUM_PARTITIONS);
+    ZNRecord original = new ZNRecord(ctx.getRecord());
+
+    JobContextBucketizer bucketizer = new JobContextBucketizer(1000);
+    Map<Integer, ZNRecord> buckets = bucketizer.bucketize(ctx.getRecord());
+    Assert.assertEquals(buckets.size(), NUM_PARTITIONS / 1000);
+    ZNRecord head = buckets.get(0);
+    Assert.assertTrue(JobContextBucketizer.isBucketized(head));
+    Assert.assertEquals(JobContextBucketizer.getBuckets(head).size(), buckets.size() - 1);
+
+    // every bucket fits in a znode even though the whole context would not
+    ZNRecordSerializer serializer = new ZNRecordSerializer();
+    for (ZNRecord bucket : buckets.values()) {
+      Assert.assertTrue(serializer.serialize(bucket).length < ZNRecord.SIZE_LIMIT);
+    }
+
+    List<ZNRecord> others = new ArrayList<ZNRecord>();
+    for (int bucket : JobContextBucketizer.getBuckets(head)) {
+      others.add(buckets.get(bucket));
+    }
+    ZNRecord merged = JobContextBucketizer.merge(head, others);
+    Assert.assertEquals(merged.getSimpleFields(), original.getSimpleFields());
+    Assert.assertEquals(merged.getMapFields(), original.getMapFields());
+  }
+
+  @Test
+  public void testIncrementalChange() {
+    JobContextBucketizer bucketizer = new JobContextBucketizer(1000);
+    JobContext ctx = createContext(5000);
+    Map<Integer, ZNRecord> before = bucketizer.bucketize(ctx.getRecord());
+
+    // a change to one task only changes the bucket that holds it
+    ctx.setPartitionState(2500, TaskPartitionState.TASK_ERROR);
+    Map<Integer, ZNRecord> after = bucketizer.bucketize(ctx.getRecord());
+    for (int bucket : before.keySet()) {
+      if (bucket == 2) {
+        Assert.assertFalse(before.get(bucket).equals(after.get(bucket)));
+      } else {
+        Assert.assertEquals(after.get(bucket), before.get(bucket));
+      }
+    }
+  }
+
+  @Test
+  public void testLegacyContext() {
+    // contexts with one map field per partition are read as they are
+    JobContext ctx = createContext(10);
+    Assert.assertFalse(JobContextBucketizer.isBucketized(ctx.getRecord()));
+    Assert.assertSame(JobContextBucketizer.merge(ctx.getRecord(), null), ctx.getRecord());
+  }
+
+  private static JobContext createContext(int numPartitions) {
+    JobContext ctx = new JobContext(new ZNRecord("TaskContext"));
+    long now = 1400000000000L;
+    ctx.setStartTime(now);
+    for (int p = 0; p < numPartitions; p++) {
+      ctx.setTaskIdForPartition(p, "task-" + p);
+      ctx.setAssignedParticipant(p, "localhost_" + (12918 + p % 5));
+      ctx.setPartitionState(p, TaskPartitionState.COMPLETED);
+      ctx.setPartitionNumAttempts(p, 1 + p % 3);
+      ctx.setPartitionFinishTime(p, now + p * 7);
+    }
+    return ctx;
+  }
+}
@@ -0,0 +1,147 @@
+package org.apache.helix.task;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.helix.ZNRecord;
+import org.apache.helix.controller.stages.ClusterDataCache;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Test {@link CompiledJobDag} and {@link JobDagReadiness} to ensure compiled DAGs are shared and
+ * jobs become ready exactly when all of their parents complete.
+ */
+public class TestJobDagReadiness {
+  @Test
+  public void testCompiledDagShared() throws Exception {
+    ClusterDataCache cache = new ClusterDataCache();
+    CompiledJobDag.Cache dags = CompiledJobDag.getCache(cache);
+    Assert.assertSame(CompiledJobDag.getCache(cache), dags);
+    JobDag dag = createDag();
+    String json = dag.toJson();
+    CompiledJobDag compiled = dags.fromJson("wf", json);
+    Assert.assertSame(dags.fromJson("wf", json), compiled);
+    Assert.assertSame(dags.fromJson("wf", new String(json)), compiled);
+    Assert.assertEquals(compiled.getAllNodes(), dag.getAllNodes());
+    Assert.assertEquals(compiled.getDirectParents("d"), ImmutableSet.of("b", "c"));
+    Assert.assertEquals(compiled.getDirectChildren("a"), ImmutableSet.of("b", "c"));
+    Assert.assertTrue(compiled.getDirectParents("unknown").isEmpty());
+    Assert.assertEquals(compiled.toJobDag().toJson(), json);
+
+    // Configs read from the same DAG share the compiled form
+    WorkflowConfig cfg1 = WorkflowConfig.Builder.fromMap(dags, "wf", createConfigMap(json)).build();
+    WorkflowConfig cfg2 = WorkflowConfig.Builder.fromMap(dags, "wf", createConfigMap(json)).build();
+    Assert.assertSame(cfg1.getCompiledJobDag(), cfg2.getCompiledJobDag());
+    Assert.assertEquals(cfg1.getJobDag().getDirectParents("d"), ImmutableSet.of("b", "c"));
+
+    // Only the latest DAG of a workflow is kept
+    dag.addNode("e");
+    CompiledJobDag changed = dags.fromJson("wf", dag.toJson());
+    Assert.assertNotSame(changed, compiled);
+    Assert.assertSame(dags.fromJson("wf", dag.toJson()), changed);
+    Assert.assertNotSame(dags.fromJson("wf", json), compiled);
+
+    // JSON of the same length and hash code is still a different DAG
+    JobDag aa = new JobDag();
+    aa.addNode("Aa");
+    JobDag bb = new JobDag();
+    bb.addNode("BB");
+    Assert.assertEquals(aa.toJson().hashCode(), bb.toJson().hashCode());
+    Assert.assertEquals(dags.fromJson("wf", aa.toJson()).getAllNodes(), ImmutableSet.of("Aa"));
+    Assert.assertEquals(dags.fromJson("wf", bb.toJson()).getAllNodes(), ImmutableSet.of("BB"));
+
+    // Another controller has its own DAGs
+    Assert.assertNotSame(CompiledJobDag.getCache(new ClusterDataCache()), dags);
+  }
+
+  @Test
+  public void testReadiness() {
+    CompiledJobDag dag = CompiledJobDag.compile(createDag());
+    WorkflowContext ctx = new WorkflowContext(new ZNRecord("WorkflowContext"));
+    JobDagReadiness readiness = new JobDagReadiness(dag, ctx.getStartTime());
+    Assert.assertEquals(readiness.getReadyJobs(), ImmutableSet.of("a", "e"));
+    Assert.assertTrue(readiness.isReady("a", ctx));
+    Assert.assertFalse(readiness.isReady("b", ctx));
+
+    // Completions found in the context release the children
+    ctx.setJobState("a", TaskState.COMPLETED);
+    Assert.assertTrue(readiness.isReady("b", ctx));
+    Assert.assertEquals(readiness.getReadyJobs(), ImmutableSet.of("b", "c", "e"));
+
+    // A job with two parents waits for both
+    readiness.markCompleted("b");
+    Assert.assertFalse(readiness.isReady("d", ctx));
+    ctx.setJobState("c", TaskState.IN_PROGRESS);
+    Assert.assertFalse(readiness.isReady("d", ctx));
+    ctx.setJobState("c", TaskState.COMPLETED);
+    readiness.update(ctx);
+    Assert.assertEquals(readiness.getReadyJobs(), ImmutableSet.of("d", "e"));
+    Assert.assertTrue(readiness.isReady("d", ctx));
+
+    // Jobs outside of the DAG have nothing to wait on
+    Assert.assertTrue(readiness.isReady("unknown", ctx));
+  }
+
+  @Test
+  public void testTrackerRestarts() {
+    CompiledJobDag dag = CompiledJobDag.compile(createDag());
+    WorkflowContext ctx = new WorkflowContext(new ZNRecord("WorkflowContext"));
+    ctx.setStartTime(1000L);
+    ClusterDataCache cache = new ClusterDataCache();
+    JobDagReadiness readiness = JobDagReadiness.get(cache, "workflow", dag, ctx);
+    Assert.assertSame(JobDagReadiness.get(cache, "workflow", dag, ctx), readiness);
+    Assert.assertNotSame(JobDagReadiness.get(new ClusterDataCache(), "workflow", dag, ctx),
+        readiness);
+    readiness.markCompleted("a");
+
+    // A new run of the workflow starts over
+    WorkflowContext newCtx = new WorkflowContext(new ZNRecord("WorkflowContext"));
+    newCtx.setStartTime(2000L);
+    JobDagReadiness restarted = JobDagReadiness.get(cache, "workflow", dag, newCtx);
+    Assert.assertNotSame(restarted, readiness);
+    Assert.assertFalse(restarted.isReady("b", newCtx));
+
+    // So does a changed DAG
+    CompiledJobDag changed = CompiledJobDag.compile(createDag());
+    Assert.assertNotSame(JobDagReadiness.get(cache, "workflow", changed, newCtx), restarted);
+    JobDagReadiness.remove(cache, "workflow");
+  }
+
+  private static JobDag createDag() {
+    // a -> b -> d, a -> c -> d, and e on its own
+    JobDag dag = new JobDag();
+    dag.addParentToChild("a", "b");
+    dag.addParentToChild("a", "c");
+    dag.addParentToChild("b", "d");
+    dag.addParentToChild("c", "d");
+    dag.addNode("e");
+    return dag;
+  }
+
+  private static Map<String, String> createConfigMap(String json) {
+    Map<String, String> cfg = new HashMap<String, String>();
+    cfg.put(WorkflowConfig.DAG, json);
+    return cfg;
+  }
+}
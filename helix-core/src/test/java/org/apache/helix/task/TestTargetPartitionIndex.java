@@ -0,0 +1,110 @@
+package org.apache.helix.task;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+import java.util.List;
+import java.util.Set;
+
+import org.apache.helix.api.State;
+import org.apache.helix.api.id.ParticipantId;
+import org.apache.helix.api.id.PartitionId;
+import org.apache.helix.api.id.ResourceId;
+import org.apache.helix.controller.stages.ClusterDataCache;
+import org.apache.helix.controller.stages.ResourceCurrentState;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Test {@link TargetPartitionIndex} to ensure it is shared within a pipeline run, skips replicas
+ * in transition and ranks replicas by state, current assignment and load.
+ */
+public class TestTargetPartitionIndex {
+  private static final ResourceId DB = ResourceId.from("TestDB");
+  private static final ParticipantId P0 = ParticipantId.from("localhost_0");
+  private static final ParticipantId P1 = ParticipantId.from("localhost_1");
+  private static final ParticipantId P2 = ParticipantId.from("localhost_2");
+  private static final Set<ParticipantId> ALL = ImmutableSet.of(P0, P1, P2);
+
+  @Test
+  public void testSharedPerRun() {
+    ClusterDataCache run1 = new ClusterDataCache();
+    ResourceCurrentState currentState = createCurrentState();
+    TargetPartitionIndex index = TargetPartitionIndex.get(run1, currentState, DB);
+    Assert.assertSame(TargetPartitionIndex.get(run1, currentState, DB), index);
+    Assert.assertNotSame(
+        TargetPartitionIndex.get(run1, currentState, ResourceId.from("OtherDB")), index);
+
+    // A new run sees a fresh index with no load carried over
+    index.addLoad(P0);
+    ClusterDataCache run2 = new ClusterDataCache();
+    TargetPartitionIndex next = TargetPartitionIndex.get(run2, createCurrentState(), DB);
+    Assert.assertNotSame(next, index);
+    Assert.assertEquals(next.getLoad(P0), 0);
+    Assert.assertEquals(index.getLoad(P0), 1);
+  }
+
+  @Test
+  public void testPendingReplicasSkipped() {
+    TargetPartitionIndex index = new TargetPartitionIndex(createCurrentState(), DB);
+    Assert.assertTrue(index.isPending("TestDB_1", P1));
+    Assert.assertFalse(index.isPending("TestDB_1", P0));
+    Assert.assertFalse(index.getStates("TestDB_1").containsKey(P1));
+    Assert.assertTrue(index.getStates("TestDB_3").isEmpty());
+  }
+
+  @Test
+  public void testRanking() {
+    TargetPartitionIndex index = new TargetPartitionIndex(createCurrentState(), DB);
+    List<String> masterFirst = ImmutableList.of("MASTER", "SLAVE");
+    Assert.assertTrue(index.isInState("TestDB_0", P1, masterFirst));
+    Assert.assertFalse(index.isInState("TestDB_0", P1, ImmutableList.of("MASTER")));
+    Assert.assertFalse(index.isInState("TestDB_1", P1, null));
+
+    // The master comes first, then the slaves in order of load
+    index.addLoad(P1);
+    Assert.assertEquals(index.rankParticipants("TestDB_0", ALL, masterFirst, null),
+        ImmutableList.of(P0, P2, P1));
+
+    // Within a state the current assignment wins over a lighter load
+    Assert.assertEquals(index.rankParticipants("TestDB_0", ALL, masterFirst, P1),
+        ImmutableList.of(P0, P1, P2));
+
+    // Without preferred states only the assignment and the load count
+    Assert.assertEquals(index.rankParticipants("TestDB_0", ImmutableList.of(P1, P0), null, null),
+        ImmutableList.of(P0, P1));
+  }
+
+  private static ResourceCurrentState createCurrentState() {
+    ResourceCurrentState currentState = new ResourceCurrentState();
+    PartitionId p0 = PartitionId.from("TestDB_0");
+    currentState.setCurrentState(DB, p0, P0, State.from("MASTER"));
+    currentState.setCurrentState(DB, p0, P1, State.from("SLAVE"));
+    currentState.setCurrentState(DB, p0, P2, State.from("SLAVE"));
+    PartitionId p1 = PartitionId.from("TestDB_1");
+    currentState.setCurrentState(DB, p1, P0, State.from("SLAVE"));
+    currentState.setCurrentState(DB, p1, P1, State.from("MASTER"));
+    currentState.setPendingState(DB, p1, P1, State.from("SLAVE"));
+    PartitionId p3 = PartitionId.from("TestDB_3");
+    currentState.setPendingState(DB, p3, P2, State.from("SLAVE"));
+    return currentState;
+  }
+}
@@ -0,0 +1,134 @@
+package org.apache.helix.task;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Test {@link TaskExecutor} to ensure a job never runs more tasks at once than allowed, and that
+ * waiting tasks run once earlier ones finish.
+ */
+public class TestTaskExecutor {
+  @Test
+  public void testJobAdmission() throws Exception {
+    TaskExecutor executor =
+        new TaskExecutor("localhost_12918", 10, Collections.<String, Integer> emptyMap());
+    final int numTasks = 20;
+    final AtomicInteger running = new AtomicInteger(0);
+    final AtomicInteger maxRunning = new AtomicInteger(0);
+    final CountDownLatch done = new CountDownLatch(numTasks);
+    for (int i = 0; i < numTasks; i++) {
+      executor.submit("Test", "job", 2, new Runnable() {
+        @Override
+        public void run() {
+          int current = running.incrementAndGet();
+          synchronized (maxRunning) {
+            maxRunning.set(Math.max(maxRunning.get(), current));
+          }
+          try {
+            Thread.sleep(10);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          running.decrementAndGet();
+          done.countDown();
+        }
+      });
+    }
+    Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+    Assert.assertTrue(maxRunning.get() <= 2);
+
+    executor.shutdown();
+    Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    Assert.assertTrue(executor.isTerminated());
+  }
+
+  @Test
+  public void testRemoveWaitingTask() throws Exception {
+    TaskExecutor executor =
+        new TaskExecutor("localhost_12918", 10, Collections.<String, Integer> emptyMap());
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger numRun = new AtomicInteger(0);
+    Runnable blocking = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        numRun.incrementAndGet();
+      }
+    };
+    Runnable waiting = new Runnable() {
+      @Override
+      public void run() {
+        numRun.incrementAndGet();
+      }
+    };
+    executor.submit("Test", "job", 1, blocking);
+    executor.submit("Test", "job", 1, waiting);
+
+    // only a task that has not been admitted yet can be removed
+    Assert.assertFalse(executor.remove("job", blocking));
+    Assert.assertTrue(executor.remove("job", waiting));
+    Assert.assertFalse(executor.remove("job", waiting));
+    release.countDown();
+
+    executor.shutdown();
+    Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    Assert.assertEquals(numRun.get(), 1);
+  }
+
+  @Test
+  public void testCommandPool() throws Exception {
+    TaskExecutor executor =
+        new TaskExecutor("localhost_12918", 1, Collections.singletonMap("Dedicated", 1));
+    final CountDownLatch blocker = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(1);
+
+    // a blocked task in the shared pool does not hold up a command with its own pool
+    executor.submit("Shared", "job1", 0, new Runnable() {
+      @Override
+      public void run() {
+        try {
+          blocker.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    executor.submit("Dedicated", "job2", 0, new Runnable() {
+      @Override
+      public void run() {
+        done.countDown();
+      }
+    });
+    Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+    blocker.countDown();
+    executor.shutdown();
+  }
+}
@@ -0,0 +1,91 @@
+package org.apache.helix.util;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Test {@link HashedTimerWheel} to ensure entries expire in the right tick, including deadlines
+ * further out than one revolution of the wheel.
+ */
+public class TestHashedTimerWheel {
+  private static class TestEntry extends HashedTimerWheel.Entry {
+    final String _name;
+
+    TestEntry(String name) {
+      _name = name;
+    }
+  }
+
+  @Test
+  public void testExpire() {
+    HashedTimerWheel<TestEntry> wheel = new HashedTimerWheel<TestEntry>(10, 4, 0);
+    TestEntry early = new TestEntry("early");
+    TestEntry late = new TestEntry("late");
+    TestEntry farOut = new TestEntry("farOut");
+    wheel.schedule(early, 15);
+    wheel.schedule(late, 30);
+    wheel.schedule(farOut, 200);
+    Assert.assertEquals(wheel.size(), 3);
+
+    // nothing is due yet
+    Assert.assertTrue(wheel.expire(9).isEmpty());
+
+    // early rounds up to the second tick
+    Assert.assertTrue(wheel.expire(19).isEmpty());
+    List<TestEntry> expired = wheel.expire(20);
+    Assert.assertEquals(expired.size(), 1);
+    Assert.assertEquals(expired.get(0)._name, "early");
+    Assert.assertFalse(early.isScheduled());
+
+    // the far out entry's bucket is swept here, but it is not due yet
+    expired = wheel.expire(40);
+    Assert.assertEquals(expired.size(), 1);
+    Assert.assertEquals(expired.get(0)._name, "late");
+    Assert.assertTrue(farOut.isScheduled());
+
+    // jumping past several revolutions expires it
+    expired = wheel.expire(1000);
+    Assert.assertEquals(expired.size(), 1);
+    Assert.assertEquals(expired.get(0)._name, "farOut");
+    Assert.assertEquals(wheel.size(), 0);
+  }
+
+  @Test
+  public void testCancelAndReschedule() {
+    HashedTimerWheel<TestEntry> wheel = new HashedTimerWheel<TestEntry>(10, 8, 0);
+    TestEntry entry = new TestEntry("entry");
+    wheel.schedule(entry, 20);
+    Assert.assertTrue(wheel.cancel(entry));
+    Assert.assertFalse(wheel.cancel(entry));
+    Assert.assertTrue(wheel.expire(100).isEmpty());
+
+    // deadlines in the past fire on the next tick
+    wheel.schedule(entry, 50);
+    Assert.assertTrue(wheel.expire(100).isEmpty());
+    wheel.schedule(entry, 300);
+    wheel.schedule(entry, 120);
+    Assert.assertEquals(wheel.size(), 1);
+    Assert.assertEquals(wheel.expire(120).size(), 1);
+  }
+}
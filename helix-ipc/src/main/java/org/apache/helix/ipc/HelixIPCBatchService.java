@@ -0,0 +1,42 @@
+package org.apache.helix.ipc;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import io.netty.buffer.ByteBuf;
+import org.apache.helix.resolver.HelixAddress;
+
+import java.util.UUID;
+
+/**
+ * A {@link HelixIPCService} that can queue several messages for a destination and write them out
+ * together.
+ * <p>
+ * Messages passed to {@link #write} follow the same buffer ownership rules as {@link #send}; they
+ * are only guaranteed to go out once {@link #flush} is called for their destination.
+ * </p>
+ */
+public interface HelixIPCBatchService extends HelixIPCService {
+
+  /** Queues a message for a destination without writing it out yet */
+  void write(HelixAddress destination, int messageType, UUID messageId, ByteBuf message);
+
+  /** Writes out all messages queued for a destination */
+  void flush(HelixAddress destination);
+}
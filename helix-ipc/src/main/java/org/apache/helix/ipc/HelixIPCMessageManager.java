@@ -22,15 +22,28 @@ package org.apache.helix.ipc;
 import io.netty.buffer.ByteBuf;
 import org.apache.helix.resolver.HelixAddress;
 import org.apache.helix.resolver.HelixMessageScope;
+import org.apache.helix.util.HashedTimerWheel;
 import org.apache.log4j.Logger;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.JmxReporter;
+import com.codahale.metrics.MetricRegistry;
+
 /**
  * A wrapper around a base IPC service that manages message retries / timeouts.
  * <p>
@@ -69,72 +82,189 @@ import java.util.concurrent.atomic.AtomicInteger;
  * callback registered with the message manager will only be called once, even if the message is
  * acknowledged several times.
  * </p>
+ * <p>
+ * Each in-flight message is tracked by a single record that is also its entry on a hashed timer
+ * wheel. One periodic task on the provided scheduler advances the wheel and re-sends all expired
+ * messages as one batch per destination. Acknowledgements only complete the record; completed
+ * records are dropped from the wheel in bulk when their bucket is swept. The number of in-flight
+ * messages is bounded, and in-flight, retry and timeout counts are exported via JMX.
+ * </p>
+ * <p>
+ * Recipients that acknowledge through {@link #sendAck} have their acknowledgements queued and
+ * written out by the same periodic task, again as one batch per destination. Batches are written
+ * with a single flush when the base service is a {@link HelixIPCBatchService}. Messages can only be
+ * sent between {@link #start} and {@link #shutdown}.
+ * </p>
+ * <p>
+ * Senders that need to know about messages that were never acknowledged, e.g. to deliver them
+ * some other way, can register a callback with {@link #registerTimeoutCallback}. It is called once
+ * for every message of that type that times out or is still pending at {@link #shutdown}.
+ * </p>
  */
 public class HelixIPCMessageManager implements HelixIPCService {
 
   private static final Logger LOG = Logger.getLogger(HelixIPCMessageManager.class);
 
+  /** Default upper bound on the number of unacknowledged messages */
+  public static final int DEFAULT_MAX_IN_FLIGHT = 1 << 20;
+
+  // Resolution of the retry wheel relative to the message timeout
+  private static final int TICKS_PER_TIMEOUT = 8;
+  private static final int NUM_BUCKETS = 64;
+
   private final ScheduledExecutorService scheduler;
   private final HelixIPCService baseIpcService;
+  private final HelixIPCBatchService batchIpcService;
   private final long messageTimeoutMillis;
   private final int maxNumRetries;
-  private final ConcurrentMap<UUID, Boolean> pendingMessages;
-  private final ConcurrentMap<UUID, AtomicInteger> retriesLeft;
-  private final ConcurrentMap<UUID, ByteBuf> messageBuffers;
+  private final int maxInFlight;
+  private final AtomicBoolean isShutdown;
+  private final AtomicInteger numInFlight;
+  private final ConcurrentMap<UUID, PendingMessage> pendingMessages;
   private final ConcurrentMap<Integer, HelixIPCCallback> callbacks;
+  private final ConcurrentMap<Integer, HelixIPCCallback> timeoutCallbacks;
+  private final HashedTimerWheel<PendingMessage> retryWheel;
+  private final ConcurrentLinkedQueue<PendingAck> pendingAcks;
+  private final MetricRegistry metricRegistry;
+  private final Counter statRetries;
+  private final Counter statTimeouts;
+  private final Counter statRejected;
+
+  private ScheduledFuture<?> tickFuture;
+  private JmxReporter jmxReporter;
 
   public HelixIPCMessageManager(ScheduledExecutorService scheduler, HelixIPCService baseIpcService,
       long messageTimeoutMillis, int maxNumRetries) {
+    this(scheduler, baseIpcService, messageTimeoutMillis, maxNumRetries, DEFAULT_MAX_IN_FLIGHT);
+  }
+
+  public HelixIPCMessageManager(ScheduledExecutorService scheduler, HelixIPCService baseIpcService,
+      long messageTimeoutMillis, int maxNumRetries, int maxInFlight) {
     this.scheduler = scheduler;
     this.baseIpcService = baseIpcService;
+    this.batchIpcService =
+        (baseIpcService instanceof HelixIPCBatchService) ? (HelixIPCBatchService) baseIpcService
+            : null;
     this.maxNumRetries = maxNumRetries;
     this.messageTimeoutMillis = messageTimeoutMillis;
-    this.pendingMessages = new ConcurrentHashMap<UUID, Boolean>();
-    this.retriesLeft = new ConcurrentHashMap<UUID, AtomicInteger>();
-    this.messageBuffers = new ConcurrentHashMap<UUID, ByteBuf>();
+    this.maxInFlight = maxInFlight;
+    this.isShutdown = new AtomicBoolean(true);
+    this.numInFlight = new AtomicInteger();
+    this.pendingMessages = new ConcurrentHashMap<UUID, PendingMessage>();
     this.callbacks = new ConcurrentHashMap<Integer, HelixIPCCallback>();
+    this.timeoutCallbacks = new ConcurrentHashMap<Integer, HelixIPCCallback>();
+    this.retryWheel =
+        new HashedTimerWheel<PendingMessage>(Math.max(1L, messageTimeoutMillis / TICKS_PER_TIMEOUT),
+            NUM_BUCKETS, System.currentTimeMillis());
+    this.pendingAcks = new ConcurrentLinkedQueue<PendingAck>();
+    this.metricRegistry = new MetricRegistry();
+    this.statRetries =
+        metricRegistry.counter(MetricRegistry.name(HelixIPCMessageManager.class, "retries"));
+    this.statTimeouts =
+        metricRegistry.counter(MetricRegistry.name(HelixIPCMessageManager.class, "timeouts"));
+    this.statRejected =
+        metricRegistry.counter(MetricRegistry.name(HelixIPCMessageManager.class, "rejected"));
+    metricRegistry.register(MetricRegistry.name(HelixIPCMessageManager.class, "inFlight"),
+        new Gauge<Integer>() {
+          @Override
+          public Integer getValue() {
+            return numInFlight.get();
+          }
+        });
   }
 
   @Override
   public void start() throws Exception {
     baseIpcService.start();
+    if (isShutdown.getAndSet(false)) {
+      // Report metrics via JMX
+      jmxReporter = JmxReporter.forRegistry(metricRegistry).build();
+      jmxReporter.start();
+
+      // A single task drives all retries
+      long tickMillis = retryWheel.getTickMillis();
+      tickFuture = scheduler.scheduleAtFixedRate(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            sendAcks();
+            processExpired();
+          } catch (Throwable t) {
+            LOG.error("Failed to process message retries", t);
+          }
+        }
+      }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
   }
 
   @Override
   public void shutdown() throws Exception {
+    if (!isShutdown.getAndSet(true)) {
+      tickFuture.cancel(false);
+      jmxReporter.stop();
+      sendAcks();
+      for (PendingMessage pending : pendingMessages.values()) {
+        if (complete(pending)) {
+          notifyTimeout(pending);
+        }
+      }
+    }
     baseIpcService.shutdown();
   }
 
   @Override
   public void send(final HelixAddress destination, final int messageType, final UUID messageId,
       final ByteBuf message) {
-    // State
-    pendingMessages.put(messageId, true);
-    retriesLeft.putIfAbsent(messageId, new AtomicInteger(maxNumRetries));
-    messageBuffers.put(messageId, message);
-
-    // Will free it when we've finally received response
-    message.retain();
+    if (isShutdown.get()) {
+      statRejected.inc();
+      throw new IllegalStateException("Could not send message " + messageId
+          + ", the message manager is not started");
+    }
+    PendingMessage pending =
+        new PendingMessage(destination, messageType, messageId, message, maxNumRetries);
+    PendingMessage existing = pendingMessages.putIfAbsent(messageId, pending);
+    if (existing != null) {
+      // Already tracked, so this is just an explicit re-send of the tracked buffer
+      if (message != null && message != existing.message) {
+        message.release();
+      }
+      if (existing.retain()) {
+        sendRetained(existing, false);
+      }
+      return;
+    }
+    if (numInFlight.incrementAndGet() > maxInFlight) {
+      numInFlight.decrementAndGet();
+      pendingMessages.remove(messageId, pending);
+      statRejected.inc();
+      throw new IllegalStateException("Could not send message " + messageId + ", " + maxInFlight
+          + " messages are already in flight");
+    }
 
-    // Send initial message
-    baseIpcService.send(destination, messageType, messageId, message);
+    // Send initial message (the caller's reference is freed when we've finally received response)
+    try {
+      pending.retain();
+      sendRetained(pending, false);
+    } catch (RuntimeException e) {
+      complete(pending);
+      throw e;
+    }
+    retryWheel.schedule(pending, System.currentTimeMillis() + messageTimeoutMillis);
+  }
 
-    // Retries
-    scheduler.schedule(new Runnable() {
-      @Override
-      public void run() {
-        Boolean isPending = pendingMessages.get(messageId);
-        AtomicInteger numLeft = retriesLeft.get(messageId);
-        if (numLeft != null && isPending != null && isPending) {
-          if (numLeft.decrementAndGet() > 0 || maxNumRetries == -1) {
-            // n.b. will schedule another retry
-            send(destination, messageType, messageId, message);
-          } else {
-            LOG.warn("Message " + messageId + " timed out after " + maxNumRetries + " retries");
-          }
-        }
-      }
-    }, messageTimeoutMillis, TimeUnit.MILLISECONDS);
+  /**
+   * Acknowledge a message. Acknowledgements are queued and sent by the periodic retry task as one
+   * batch per destination, so they reach the sender within one tick of the retry wheel.
+   * @param destination the sender of the message
+   * @param ackMessageType the acknowledgement message type the sender registered a callback for
+   * @param messageId the id of the message being acknowledged
+   */
+  public void sendAck(HelixAddress destination, int ackMessageType, UUID messageId) {
+    if (isShutdown.get()) {
+      baseIpcService.send(destination, ackMessageType, messageId, null);
+      return;
+    }
+    pendingAcks.add(new PendingAck(destination, ackMessageType, messageId));
   }
 
   @Override
@@ -145,13 +275,8 @@ public class HelixIPCMessageManager implements HelixIPCService {
     HelixIPCCallback wrappedCallback = new HelixIPCCallback() {
       @Override
       public void onMessage(HelixMessageScope scope, UUID messageId, ByteBuf message) {
-        if (pendingMessages.replace(messageId, true, false)) {
-          pendingMessages.remove(messageId);
-          ByteBuf originalMessage = messageBuffers.remove(messageId);
-          if (originalMessage != null) {
-            originalMessage.release();
-          }
-          retriesLeft.remove(messageId);
+        PendingMessage pending = pendingMessages.get(messageId);
+        if (pending != null && complete(pending)) {
           callback.onMessage(scope, messageId, message);
         }
       }
@@ -160,4 +285,229 @@ public class HelixIPCMessageManager implements HelixIPCService {
     callbacks.put(messageType, wrappedCallback);
     baseIpcService.registerCallback(messageType, wrappedCallback);
   }
+
+  /**
+   * Register a callback for messages that are never acknowledged. It is called with a null message
+   * buffer, once for every message of the given type that times out or is abandoned on shutdown.
+   * @param messageType the type of the original messages, not of their acknowledgements
+   * @param callback the callback to invoke
+   */
+  public void registerTimeoutCallback(int messageType, HelixIPCCallback callback) {
+    timeoutCallbacks.put(messageType, callback);
+  }
+
+  /**
+   * Get the number of messages that have been sent but not yet acknowledged or timed out
+   * @return in-flight message count
+   */
+  public int getNumInFlight() {
+    return numInFlight.get();
+  }
+
+  /**
+   * Mark a message as done and release its buffer. Only the first caller for a given message wins.
+   */
+  private boolean complete(PendingMessage pending) {
+    if (!pending.complete()) {
+      return false;
+    }
+    pendingMessages.remove(pending.messageId, pending);
+    numInFlight.decrementAndGet();
+    return true;
+  }
+
+  /**
+   * Re-send or time out every message whose deadline has passed, batching sends by destination
+   */
+  private void processExpired() {
+    List<PendingMessage> expired = retryWheel.expire(System.currentTimeMillis());
+    if (expired.isEmpty()) {
+      return;
+    }
+    Map<HelixAddress, List<PendingMessage>> retriesByDestination =
+        new HashMap<HelixAddress, List<PendingMessage>>();
+    for (PendingMessage pending : expired) {
+      if (pending.isComplete()) {
+        continue;
+      }
+      if (maxNumRetries != -1 && --pending.retriesLeft <= 0) {
+        if (complete(pending)) {
+          statTimeouts.inc();
+          LOG.warn("Message " + pending.messageId + " timed out after " + maxNumRetries
+              + " retries");
+          notifyTimeout(pending);
+        }
+        continue;
+      }
+      List<PendingMessage> retries = retriesByDestination.get(pending.destination);
+      if (retries == null) {
+        retries = new ArrayList<PendingMessage>();
+        retriesByDestination.put(pending.destination, retries);
+      }
+      retries.add(pending);
+    }
+
+    long deadline = System.currentTimeMillis() + messageTimeoutMillis;
+    for (Map.Entry<HelixAddress, List<PendingMessage>> entry : retriesByDestination.entrySet()) {
+      for (PendingMessage pending : entry.getValue()) {
+        if (!pending.retain()) {
+          continue;
+        }
+        try {
+          sendRetained(pending, true);
+          statRetries.inc();
+        } catch (Exception e) {
+          LOG.warn("Could not re-send message " + pending.messageId + " to " + entry.getKey(), e);
+        }
+        retryWheel.schedule(pending, deadline);
+      }
+      flush(entry.getKey());
+    }
+  }
+
+  private void notifyTimeout(PendingMessage pending) {
+    HelixIPCCallback callback = timeoutCallbacks.get(pending.messageType);
+    if (callback == null) {
+      return;
+    }
+    try {
+      callback.onMessage(pending.destination.getScope(), pending.messageId, null);
+    } catch (Exception e) {
+      LOG.error("Timeout callback failed for message " + pending.messageId, e);
+    }
+  }
+
+  /**
+   * Send the queued acknowledgements, batching them by destination
+   */
+  private void sendAcks() {
+    Map<HelixAddress, List<PendingAck>> acksByDestination =
+        new HashMap<HelixAddress, List<PendingAck>>();
+    PendingAck ack;
+    while ((ack = pendingAcks.poll()) != null) {
+      List<PendingAck> acks = acksByDestination.get(ack.destination);
+      if (acks == null) {
+        acks = new ArrayList<PendingAck>();
+        acksByDestination.put(ack.destination, acks);
+      }
+      acks.add(ack);
+    }
+    for (Map.Entry<HelixAddress, List<PendingAck>> entry : acksByDestination.entrySet()) {
+      try {
+        for (PendingAck pendingAck : entry.getValue()) {
+          write(entry.getKey(), pendingAck.messageType, pendingAck.messageId, null);
+        }
+      } catch (Exception e) {
+        // the sender retries the messages, and they are acknowledged again
+        LOG.warn("Could not acknowledge messages to " + entry.getKey(), e);
+      }
+      flush(entry.getKey());
+    }
+  }
+
+  /**
+   * Send a message whose buffer was retained for this send. If the base service fails before
+   * taking the buffer, the reference is released here.
+   * @param batch true to only queue the message until its destination is flushed
+   */
+  private void sendRetained(PendingMessage pending, boolean batch) {
+    try {
+      if (batch) {
+        write(pending.destination, pending.messageType, pending.messageId, pending.message);
+      } else {
+        baseIpcService.send(pending.destination, pending.messageType, pending.messageId,
+            pending.message);
+      }
+    } catch (RuntimeException e) {
+      if (pending.message != null) {
+        pending.message.release();
+      }
+      throw e;
+    }
+  }
+
+  private void write(HelixAddress destination, int messageType, UUID messageId, ByteBuf message) {
+    if (batchIpcService != null) {
+      batchIpcService.write(destination, messageType, messageId, message);
+    } else {
+      baseIpcService.send(destination, messageType, messageId, message);
+    }
+  }
+
+  private void flush(HelixAddress destination) {
+    if (batchIpcService != null) {
+      try {
+        batchIpcService.flush(destination);
+      } catch (Exception e) {
+        LOG.warn("Could not flush messages to " + destination, e);
+      }
+    }
+  }
+
+  /**
+   * An acknowledgement waiting to be sent with the next batch
+   */
+  private static class PendingAck {
+    final HelixAddress destination;
+    final int messageType;
+    final UUID messageId;
+
+    PendingAck(HelixAddress destination, int messageType, UUID messageId) {
+      this.destination = destination;
+      this.messageType = messageType;
+      this.messageId = messageId;
+    }
+  }
+
+  /**
+   * All state for one unacknowledged message. It doubles as the message's retry wheel entry.
+   */
+  private static class PendingMessage extends HashedTimerWheel.Entry {
+    final HelixAddress destination;
+    final int messageType;
+    final UUID messageId;
+    final ByteBuf message;
+
+    // Only touched by the retry task
+    int retriesLeft;
+
+    private boolean isComplete;
+
+    PendingMessage(HelixAddress destination, int messageType, UUID messageId, ByteBuf message,
+        int retriesLeft) {
+      this.destination = destination;
+      this.messageType = messageType;
+      this.messageId = messageId;
+      this.message = message;
+      this.retriesLeft = retriesLeft;
+      this.isComplete = false;
+    }
+
+    /** Takes a reference for one send (the base service frees it once written) */
+    synchronized boolean retain() {
+      if (isComplete) {
+        return false;
+      }
+      if (message != null) {
+        message.retain();
+      }
+      return true;
+    }
+
+    /** Marks the message as done and drops the reference held for retries */
+    synchronized boolean complete() {
+      if (isComplete) {
+        return false;
+      }
+      isComplete = true;
+      if (message != null) {
+        message.release();
+      }
+      return true;
+    }
+
+    synchronized boolean isComplete() {
+      return isComplete;
+    }
+  }
 }
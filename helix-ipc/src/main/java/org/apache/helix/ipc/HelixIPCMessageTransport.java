@@ -0,0 +1,168 @@
+package org.apache.helix.ipc;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.helix.ZNRecord;
+import org.apache.helix.manager.zk.ZNRecordSerializer;
+import org.apache.helix.messaging.HelixMessageTransport;
+import org.apache.helix.model.Message;
+import org.apache.helix.resolver.HelixAddress;
+import org.apache.helix.resolver.HelixMessageScope;
+import org.apache.helix.resolver.HelixResolver;
+import org.apache.log4j.Logger;
+
+/**
+ * Delivers {@link org.apache.helix.ClusterMessagingService} messages over a
+ * {@link HelixIPCMessageManager} instead of ZooKeeper.
+ * <p>
+ * A message is only sent this way when both the local and the target instance advertise an IPC
+ * endpoint ({@link HelixIPCService#IPC_HOST} and {@link HelixIPCService#IPC_PORT} in their instance
+ * configs). Otherwise {@link #send(Message)} declines and the messaging service writes the message
+ * to ZooKeeper as usual. Register it with
+ * {@link org.apache.helix.messaging.DefaultMessagingService#setMessageTransport}.
+ * </p>
+ * <p>
+ * The recipient acknowledges every message it can read, and the message manager re-sends it until
+ * then. A message that is still unacknowledged when the manager gives up on it is handed back to
+ * the messaging service, which writes it to ZooKeeper. Re-sends and the ZooKeeper fallback can
+ * deliver a message more than once; the recipient's task executor drops the duplicates.
+ * </p>
+ */
+public class HelixIPCMessageTransport implements HelixMessageTransport {
+
+  private static final Logger LOG = Logger.getLogger(HelixIPCMessageTransport.class);
+
+  private final HelixIPCService ipcService;
+  private final HelixIPCMessageManager messageManager;
+  private final HelixResolver resolver;
+  private final String clusterName;
+  private final String instanceName;
+  private final int messageType;
+  private final int ackMessageType;
+  private final ZNRecordSerializer serializer;
+  private final ConcurrentMap<UUID, Message> unacknowledged;
+
+  /**
+   * @param ipcService the IPC service of the local instance, which receives messages
+   * @param messageManager the started message manager wrapping ipcService, which sends them
+   * @param resolver resolves instance names to IPC endpoints
+   * @param clusterName the cluster of the local instance
+   * @param instanceName the local instance
+   * @param messageType the IPC message type reserved for Helix messages
+   * @param ackMessageType the IPC message type reserved for their acknowledgements
+   */
+  public HelixIPCMessageTransport(HelixIPCService ipcService,
+      HelixIPCMessageManager messageManager, HelixResolver resolver, String clusterName,
+      String instanceName, int messageType, int ackMessageType) {
+    this.ipcService = ipcService;
+    this.messageManager = messageManager;
+    this.resolver = resolver;
+    this.clusterName = clusterName;
+    this.instanceName = instanceName;
+    this.messageType = messageType;
+    this.ackMessageType = ackMessageType;
+    this.serializer = new ZNRecordSerializer();
+    this.unacknowledged = new ConcurrentHashMap<UUID, Message>();
+  }
+
+  @Override
+  public void setMessageReceiver(final MessageReceiver receiver) {
+    ipcService.registerCallback(messageType, new HelixIPCCallback() {
+      @Override
+      public void onMessage(HelixMessageScope scope, UUID messageId, ByteBuf message) {
+        byte[] bytes = new byte[message.readableBytes()];
+        message.readBytes(bytes);
+        ZNRecord record = (ZNRecord) serializer.deserialize(bytes);
+        if (record == null) {
+          // not acknowledged, so the sender falls back to zk
+          LOG.error("Could not deserialize message " + messageId + " from "
+              + scope.getSourceInstance());
+          return;
+        }
+        receiver.onMessage(new Message(record));
+        HelixAddress source = resolve(scope.getSourceInstance());
+        if (source != null) {
+          messageManager.sendAck(source, ackMessageType, messageId);
+        }
+      }
+    });
+
+    messageManager.registerCallback(ackMessageType, new HelixIPCCallback() {
+      @Override
+      public void onMessage(HelixMessageScope scope, UUID messageId, ByteBuf message) {
+        unacknowledged.remove(messageId);
+      }
+    });
+
+    messageManager.registerTimeoutCallback(messageType, new HelixIPCCallback() {
+      @Override
+      public void onMessage(HelixMessageScope scope, UUID messageId, ByteBuf message) {
+        Message undelivered = unacknowledged.remove(messageId);
+        if (undelivered != null) {
+          receiver.onUndelivered(undelivered);
+        }
+      }
+    });
+  }
+
+  @Override
+  public boolean send(Message message) {
+    String tgtName = message.getTgtName();
+    if (tgtName == null || message.isControlerMsg()) {
+      return false;
+    }
+    HelixAddress local = resolve(instanceName);
+    HelixAddress destination = local != null ? resolve(tgtName) : null;
+    if (destination == null) {
+      return false;
+    }
+    byte[] bytes = serializer.serialize(message.getRecord());
+    UUID messageId = UUID.randomUUID();
+    unacknowledged.put(messageId, message);
+    try {
+      messageManager.send(destination, messageType, messageId, Unpooled.wrappedBuffer(bytes));
+    } catch (RuntimeException e) {
+      unacknowledged.remove(messageId);
+      throw e;
+    }
+    return true;
+  }
+
+  private HelixAddress resolve(String name) {
+    if (name == null) {
+      return null;
+    }
+    HelixMessageScope scope =
+        new HelixMessageScope.Builder().cluster(clusterName).sourceInstance(name).build();
+    try {
+      return resolver.getSource(scope);
+    } catch (IllegalStateException e) {
+      // no endpoint advertised
+      return null;
+    }
+  }
+}
@@ -0,0 +1,43 @@
+package org.apache.helix.ipc;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import io.netty.buffer.ByteBuf;
+import org.apache.helix.resolver.HelixMessageScope;
+
+import java.util.UUID;
+
+/**
+ * Handler registered per request type with a {@link HelixIPCRequestService}.
+ * <p>
+ * Handlers are invoked on the IPC service's I/O threads, so they should not block.
+ * </p>
+ */
+public interface HelixIPCRequestHandler {
+  /**
+   * Handle a request and produce its response.
+   * @param scope the scope the request was sent to, including the source instance
+   * @param requestId the id shared by the request and its response
+   * @param request the request payload (only valid for the duration of this call)
+   * @return the response payload, or null for an empty response. Throwing fails the call on the
+   *         requesting side.
+   */
+  ByteBuf onRequest(HelixMessageScope scope, UUID requestId, ByteBuf request) throws Exception;
+}
@@ -0,0 +1,377 @@
+package org.apache.helix.ipc;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.helix.HelixException;
+import org.apache.helix.resolver.HelixAddress;
+import org.apache.helix.resolver.HelixMessageScope;
+import org.apache.helix.resolver.HelixResolver;
+import org.apache.helix.util.HashedTimerWheel;
+import org.apache.log4j.Logger;
+
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Request/response on top of a {@link HelixIPCService}.
+ * <p>
+ * A request carries a user-defined message type and is answered by the
+ * {@link HelixIPCRequestHandler} registered for that type on the receiving instance. All responses
+ * share a single message type, chosen when the service is created, and are correlated with their
+ * request by message id. Nothing goes through ZooKeeper; only the resolver's cached routing table
+ * is consulted to find destinations and reply addresses.
+ * </p>
+ * <p>
+ * {@link #scatterGather} sends one request to every instance matching a scope and aggregates the
+ * responses. Responses can be streamed to a {@link HelixIPCResponseCallback} as they arrive, and a
+ * call that times out completes with whatever partial results were collected.
+ * </p>
+ * <p>
+ * Timeouts of all outstanding calls are tracked on one hashed timer wheel driven by a single task on
+ * the provided scheduler. Response payloads handed to callers are heap copies, so they need not be
+ * released. The base service's lifecycle is owned by the caller.
+ * </p>
+ */
+public class HelixIPCRequestService {
+
+  private static final Logger LOG = Logger.getLogger(HelixIPCRequestService.class);
+
+  private static final byte STATUS_OK = 0;
+  private static final byte STATUS_ERROR = 1;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final long TICK_MILLIS = 10;
+  private static final int NUM_BUCKETS = 512;
+
+  private final ScheduledExecutorService scheduler;
+  private final HelixIPCService baseIpcService;
+  private final HelixResolver resolver;
+  private final int responseMessageType;
+  private final AtomicBoolean isShutdown;
+  private final ConcurrentMap<UUID, PendingCall> pendingCalls;
+  private final HashedTimerWheel<PendingCall> timeoutWheel;
+
+  private ScheduledFuture<?> tickFuture;
+
+  /**
+   * @param scheduler drives call timeouts
+   * @param baseIpcService the transport, e.g. a {@link org.apache.helix.ipc.netty.NettyHelixIPCService}
+   * @param resolver resolves scopes to destinations, and request sources to reply addresses
+   * @param responseMessageType the message type reserved for responses
+   */
+  public HelixIPCRequestService(ScheduledExecutorService scheduler,
+      HelixIPCService baseIpcService, HelixResolver resolver, int responseMessageType) {
+    this.scheduler = scheduler;
+    this.baseIpcService = baseIpcService;
+    this.resolver = resolver;
+    this.responseMessageType = responseMessageType;
+    this.isShutdown = new AtomicBoolean(true);
+    this.pendingCalls = new ConcurrentHashMap<UUID, PendingCall>();
+    this.timeoutWheel =
+        new HashedTimerWheel<PendingCall>(TICK_MILLIS, NUM_BUCKETS, System.currentTimeMillis());
+  }
+
+  /** Starts handling responses and timeouts (must call before sending requests) */
+  public void start() {
+    if (isShutdown.getAndSet(false)) {
+      baseIpcService.registerCallback(responseMessageType, new HelixIPCCallback() {
+        @Override
+        public void onMessage(HelixMessageScope scope, UUID messageId, ByteBuf message) {
+          onResponse(scope, messageId, message);
+        }
+      });
+      tickFuture = scheduler.scheduleAtFixedRate(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (PendingCall call : timeoutWheel.expire(System.currentTimeMillis())) {
+              finish(call);
+            }
+          } catch (Throwable t) {
+            LOG.error("Failed to process request timeouts", t);
+          }
+        }
+      }, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /** Stops timeout handling and completes every outstanding call with its partial results */
+  public void shutdown() {
+    if (!isShutdown.getAndSet(true)) {
+      tickFuture.cancel(false);
+      for (PendingCall call : pendingCalls.values()) {
+        timeoutWheel.cancel(call);
+        finish(call);
+      }
+    }
+  }
+
+  /**
+   * Registers the handler that answers requests of a given type on this instance
+   * @param requestType the request message type
+   * @param handler produces responses
+   */
+  public void registerHandler(final int requestType, final HelixIPCRequestHandler handler) {
+    baseIpcService.registerCallback(requestType, new HelixIPCCallback() {
+      @Override
+      public void onMessage(HelixMessageScope scope, UUID messageId, ByteBuf message) {
+        ByteBuf header = Unpooled.buffer(1);
+        ByteBuf body;
+        try {
+          body = handler.onRequest(scope, messageId, message);
+          header.writeByte(STATUS_OK);
+        } catch (Exception e) {
+          LOG.warn("Handler for request type " + requestType + " failed on " + messageId, e);
+          String error = e.getMessage() != null ? e.getMessage() : e.getClass().getName();
+          body = Unpooled.wrappedBuffer(error.getBytes(UTF8));
+          header.writeByte(STATUS_ERROR);
+        }
+
+        HelixAddress source = resolver.getSource(scope);
+        if (source == null) {
+          LOG.warn("Cannot respond to " + messageId + ", no source in " + scope);
+          header.release();
+          if (body != null) {
+            body.release();
+          }
+          return;
+        }
+        ByteBuf response = body == null ? header : Unpooled.wrappedBuffer(header, body);
+        try {
+          baseIpcService.send(source, responseMessageType, messageId, response);
+        } catch (RuntimeException e) {
+          response.release();
+          LOG.warn("Could not respond to " + messageId + " at " + source, e);
+        }
+      }
+    });
+  }
+
+  /**
+   * Sends a request to a single destination.
+   * @param destination where to send the request
+   * @param requestType the request message type
+   * @param request the request payload (ownership passes to this service)
+   * @param timeoutMillis how long to wait for the response
+   * @return a future for the response payload. It fails with a {@link TimeoutException} if no
+   *         response arrives in time, or a {@link HelixException} if the remote handler failed.
+   */
+  public ListenableFuture<ByteBuf> request(final HelixAddress destination, int requestType,
+      ByteBuf request, long timeoutMillis) {
+    Set<HelixAddress> destinations = new HashSet<HelixAddress>();
+    destinations.add(destination);
+    ListenableFuture<HelixIPCScatterGatherResult> future =
+        send(destinations, requestType, request, timeoutMillis, null);
+    return Futures.transform(future,
+        new AsyncFunction<HelixIPCScatterGatherResult, ByteBuf>() {
+          @Override
+          public ListenableFuture<ByteBuf> apply(HelixIPCScatterGatherResult result) {
+            String instanceName = destination.getInstanceName();
+            if (result.getResponses().containsKey(instanceName)) {
+              return Futures.immediateFuture(result.getResponses().get(instanceName));
+            } else if (result.getErrors().containsKey(instanceName)) {
+              return Futures.immediateFailedFuture(new HelixException("Request to "
+                  + destination + " failed: " + result.getErrors().get(instanceName)));
+            }
+            return Futures.immediateFailedFuture(new TimeoutException("No response from "
+                + destination));
+          }
+        });
+  }
+
+  /**
+   * Sends a request to every instance that matches a scope and aggregates the responses.
+   * @param scope the instances to send to
+   * @param requestType the request message type
+   * @param request the request payload (ownership passes to this service)
+   * @param timeoutMillis how long to wait for all responses
+   * @param callback notified of each response as it arrives, may be null
+   * @return a future that completes when every instance answered or the timeout expired
+   */
+  public ListenableFuture<HelixIPCScatterGatherResult> scatterGather(HelixMessageScope scope,
+      int requestType, ByteBuf request, long timeoutMillis, HelixIPCResponseCallback callback) {
+    return send(resolver.getDestinations(scope), requestType, request, timeoutMillis, callback);
+  }
+
+  /**
+   * Get the number of calls waiting for responses
+   * @return outstanding call count
+   */
+  public int getNumPendingCalls() {
+    return pendingCalls.size();
+  }
+
+  private ListenableFuture<HelixIPCScatterGatherResult> send(
+      Collection<HelixAddress> destinations, int requestType, ByteBuf request, long timeoutMillis,
+      HelixIPCResponseCallback callback) {
+    UUID requestId = UUID.randomUUID();
+    Set<String> instanceNames = new HashSet<String>();
+    for (HelixAddress destination : destinations) {
+      instanceNames.add(destination.getInstanceName());
+    }
+    PendingCall call = new PendingCall(requestId, instanceNames, callback);
+    if (instanceNames.isEmpty()) {
+      finish(call);
+      if (request != null) {
+        request.release();
+      }
+      return call.future;
+    }
+    pendingCalls.put(requestId, call);
+    timeoutWheel.schedule(call, System.currentTimeMillis() + timeoutMillis);
+
+    // Each send consumes one reference
+    for (HelixAddress destination : destinations) {
+      if (request != null) {
+        request.retain();
+      }
+      try {
+        baseIpcService.send(destination, requestType, requestId, request);
+      } catch (Exception e) {
+        // the base service did not take the reference retained for this send
+        if (request != null) {
+          request.release();
+        }
+        LOG.warn("Could not send request " + requestId + " to " + destination, e);
+        call.addError(destination.getInstanceName(), String.valueOf(e.getMessage()));
+        if (call.isAnswered()) {
+          complete(call);
+        }
+      }
+    }
+    if (request != null) {
+      request.release();
+    }
+    return call.future;
+  }
+
+  private void onResponse(HelixMessageScope scope, UUID messageId, ByteBuf message) {
+    PendingCall call = pendingCalls.get(messageId);
+    String instanceName = scope.getSourceInstance();
+    if (call == null || instanceName == null) {
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Dropping late or unknown response " + messageId + " from " + instanceName);
+      }
+      return;
+    }
+
+    byte status = message.readByte();
+    if (status == STATUS_OK) {
+      ByteBuf response = Unpooled.copiedBuffer(message);
+      if (call.addResponse(instanceName, response) && call.callback != null) {
+        call.callback.onResponse(instanceName, response.duplicate());
+      }
+    } else {
+      String error = message.toString(UTF8);
+      if (call.addError(instanceName, error) && call.callback != null) {
+        call.callback.onError(instanceName, error);
+      }
+    }
+    if (call.isAnswered()) {
+      complete(call);
+    }
+  }
+
+  private void complete(PendingCall call) {
+    timeoutWheel.cancel(call);
+    finish(call);
+  }
+
+  private void finish(PendingCall call) {
+    pendingCalls.remove(call.requestId, call);
+    HelixIPCScatterGatherResult result = call.toResult();
+    if (result != null) {
+      call.future.set(result);
+    }
+  }
+
+  /**
+   * One outstanding call. It doubles as the call's timeout wheel entry.
+   */
+  private static class PendingCall extends HashedTimerWheel.Entry {
+    final UUID requestId;
+    final SettableFuture<HelixIPCScatterGatherResult> future;
+    final HelixIPCResponseCallback callback;
+    private final Set<String> outstanding;
+    private final Map<String, ByteBuf> responses;
+    private final Map<String, String> errors;
+    private boolean isFinished;
+
+    PendingCall(UUID requestId, Set<String> outstanding, HelixIPCResponseCallback callback) {
+      this.requestId = requestId;
+      this.future = SettableFuture.create();
+      this.callback = callback;
+      this.outstanding = outstanding;
+      this.responses = new HashMap<String, ByteBuf>();
+      this.errors = new HashMap<String, String>();
+      this.isFinished = false;
+    }
+
+    /** Records a response, returns false if the instance already answered or the call is over */
+    synchronized boolean addResponse(String instanceName, ByteBuf response) {
+      if (isFinished || !outstanding.remove(instanceName)) {
+        return false;
+      }
+      responses.put(instanceName, response);
+      return true;
+    }
+
+    /** Records an error, returns false if the instance already answered or the call is over */
+    synchronized boolean addError(String instanceName, String error) {
+      if (isFinished || !outstanding.remove(instanceName)) {
+        return false;
+      }
+      errors.put(instanceName, error);
+      return true;
+    }
+
+    synchronized boolean isAnswered() {
+      return outstanding.isEmpty();
+    }
+
+    /** Freezes the call, returns null if it was already frozen */
+    synchronized HelixIPCScatterGatherResult toResult() {
+      if (isFinished) {
+        return null;
+      }
+      isFinished = true;
+      return new HelixIPCScatterGatherResult(responses, errors, outstanding);
+    }
+  }
+}
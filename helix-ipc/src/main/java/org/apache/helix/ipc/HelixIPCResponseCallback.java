@@ -0,0 +1,41 @@
+package org.apache.helix.ipc;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Receives the responses of a scatter-gather call as they arrive, before the call completes.
+ */
+public interface HelixIPCResponseCallback {
+  /**
+   * Invoked once for each instance that responded successfully
+   * @param instanceName the responding instance
+   * @param response a copy of the response payload
+   */
+  void onResponse(String instanceName, ByteBuf response);
+
+  /**
+   * Invoked once for each instance whose handler failed
+   * @param instanceName the responding instance
+   * @param errorMessage the error reported by the instance
+   */
+  void onError(String instanceName, String errorMessage);
+}
@@ -0,0 +1,66 @@
+package org.apache.helix.ipc;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The aggregated outcome of a scatter-gather call made through {@link HelixIPCRequestService}.
+ * <p>
+ * A call that times out still completes with the responses that did arrive; the instances that
+ * never answered are reported by {@link #getMissingInstances()}.
+ * </p>
+ */
+public class HelixIPCScatterGatherResult {
+  private final Map<String, ByteBuf> responses;
+  private final Map<String, String> errors;
+  private final Set<String> missingInstances;
+
+  public HelixIPCScatterGatherResult(Map<String, ByteBuf> responses, Map<String, String> errors,
+      Set<String> missingInstances) {
+    this.responses = Collections.unmodifiableMap(responses);
+    this.errors = Collections.unmodifiableMap(errors);
+    this.missingInstances = Collections.unmodifiableSet(missingInstances);
+  }
+
+  /** Successful responses keyed by instance name */
+  public Map<String, ByteBuf> getResponses() {
+    return responses;
+  }
+
+  /** Errors reported by remote handlers keyed by instance name */
+  public Map<String, String> getErrors() {
+    return errors;
+  }
+
+  /** Instances that did not answer before the call timed out */
+  public Set<String> getMissingInstances() {
+    return missingInstances;
+  }
+
+  /** True if every destination answered successfully */
+  public boolean isComplete() {
+    return errors.isEmpty() && missingInstances.isEmpty();
+  }
+}
@@ -46,8 +46,8 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.apache.helix.ipc.HelixIPCBatchService;
 import org.apache.helix.ipc.HelixIPCCallback;
-import org.apache.helix.ipc.HelixIPCService;
 import org.apache.helix.resolver.HelixAddress;
 import org.apache.log4j.Logger;
 
@@ -89,7 +89,7 @@ import com.codahale.metrics.MetricRegistry;
  *
  * </p>
  */
-public class NettyHelixIPCService implements HelixIPCService {
+public class NettyHelixIPCService implements HelixIPCBatchService {
 
   private static final Logger LOG = Logger.getLogger(NettyHelixIPCService.class);
   private static final int MESSAGE_VERSION = 1;
@@ -203,6 +203,38 @@ public class NettyHelixIPCService implements HelixIPCService {
    */
   @Override
   public void send(HelixAddress destination, int messageType, UUID messageId, ByteBuf message) {
+    write(destination, messageType, messageId, message, true);
+  }
+
+  /**
+   * Queues a message on the channel for its scope; it goes out with the next flush.
+   */
+  @Override
+  public void write(HelixAddress destination, int messageType, UUID messageId, ByteBuf message) {
+    write(destination, messageType, messageId, message, false);
+  }
+
+  /**
+   * Flushes every channel to the destination's endpoint.
+   */
+  @Override
+  public void flush(HelixAddress destination) {
+    List<Channel> channels = channelMap.get(destination.getSocketAddress());
+    if (channels == null) {
+      return;
+    }
+    synchronized (channelMap) {
+      channels = new ArrayList<Channel>(channels);
+    }
+    for (Channel channel : channels) {
+      if (channel != null && channel.isOpen()) {
+        channel.flush();
+      }
+    }
+  }
+
+  private void write(HelixAddress destination, int messageType, UUID messageId, ByteBuf message,
+      boolean flush) {
     if (LOG.isTraceEnabled()) {
       LOG.trace("Sending " + messageId);
     }
@@ -277,8 +309,16 @@ public class NettyHelixIPCService implements HelixIPCService {
       // Send
       NettyHelixIPCBackPressureHandler backPressureHandler
           = channel.pipeline().get(NettyHelixIPCBackPressureHandler.class);
+      if (!flush && !channel.isWritable()) {
+        // queued messages only drain once flushed, so flush them before waiting on them
+        channel.flush();
+      }
       backPressureHandler.waitUntilWritable(channel);
-      channel.writeAndFlush(fullByteBuf);
+      if (flush) {
+        channel.writeAndFlush(fullByteBuf);
+      } else {
+        channel.write(fullByteBuf);
+      }
 
       statTxMsg.mark();
       statTxBytes.mark(fullByteBuf.readableBytes());
@@ -176,6 +176,9 @@ public abstract class AbstractHelixResolver implements HelixResolver {
 
     if (scope.getSourceInstance() != null) {
       InstanceConfig config = routingTable.getInstanceConfig(scope.getSourceInstance());
+      if (config == null) {
+        return null;
+      }
       String ipcHost = config.getRecord().getSimpleField(IPC_HOST);
       String ipcPort = config.getRecord().getSimpleField(IPC_PORT);
       if (ipcPort == null || ipcHost == null) {
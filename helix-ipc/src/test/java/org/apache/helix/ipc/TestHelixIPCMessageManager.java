@@ -0,0 +1,191 @@
+package org.apache.helix.ipc;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.apache.helix.resolver.HelixAddress;
+import org.apache.helix.resolver.HelixMessageScope;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Test {@link HelixIPCMessageManager} against a base service that, like Netty, releases every
+ * buffer it writes, to ensure buffers are retained per send and retries and acks go out in batches.
+ */
+public class TestHelixIPCMessageManager {
+  private static final int MESSAGE_TYPE = 1;
+  private static final int ACK_MESSAGE_TYPE = 2;
+
+  private static class RecordingService implements HelixIPCBatchService {
+    final Map<Integer, HelixIPCCallback> callbacks =
+        new ConcurrentHashMap<Integer, HelixIPCCallback>();
+    final List<Integer> writtenTypes = new ArrayList<Integer>();
+    int numWrites;
+    int numFlushes;
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void shutdown() {
+    }
+
+    @Override
+    public synchronized void send(HelixAddress destination, int messageType, UUID messageId,
+        ByteBuf message) {
+      write(destination, messageType, messageId, message);
+      numFlushes++;
+    }
+
+    @Override
+    public synchronized void write(HelixAddress destination, int messageType, UUID messageId,
+        ByteBuf message) {
+      writtenTypes.add(messageType);
+      numWrites++;
+      if (message != null) {
+        message.release();
+      }
+    }
+
+    @Override
+    public synchronized void flush(HelixAddress destination) {
+      numFlushes++;
+    }
+
+    @Override
+    public void registerCallback(int messageType, HelixIPCCallback callback) {
+      callbacks.put(messageType, callback);
+    }
+  }
+
+  private static HelixAddress address(String instanceName) {
+    HelixMessageScope scope =
+        new HelixMessageScope.Builder().cluster("cluster").resource("resource")
+            .partition("resource_0").state("ONLINE").build();
+    return new HelixAddress(scope, instanceName, InetSocketAddress.createUnresolved("localhost",
+        12918));
+  }
+
+  @Test(expectedExceptions = IllegalStateException.class)
+  public void testSendBeforeStart() {
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    try {
+      new HelixIPCMessageManager(scheduler, new RecordingService(), 1000, 3).send(
+          address("localhost_12918"), MESSAGE_TYPE, UUID.randomUUID(),
+          Unpooled.wrappedBuffer(new byte[1]));
+    } finally {
+      scheduler.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testResendRetainsBuffer() throws Exception {
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    RecordingService service = new RecordingService();
+    HelixIPCMessageManager messageManager =
+        new HelixIPCMessageManager(scheduler, service, 60 * 1000, 3);
+    messageManager.registerCallback(ACK_MESSAGE_TYPE, new HelixIPCCallback() {
+      @Override
+      public void onMessage(HelixMessageScope scope, UUID messageId, ByteBuf message) {
+      }
+    });
+    messageManager.start();
+    try {
+      HelixAddress destination = address("localhost_12918");
+      UUID messageId = UUID.randomUUID();
+      ByteBuf message = Unpooled.wrappedBuffer(new byte[16]);
+      messageManager.send(destination, MESSAGE_TYPE, messageId, message);
+      messageManager.send(destination, MESSAGE_TYPE, messageId, message);
+      // both sends took their own reference, so the one kept for retries is still there
+      Assert.assertEquals(service.numWrites, 2);
+      Assert.assertEquals(message.refCnt(), 1);
+
+      service.callbacks.get(ACK_MESSAGE_TYPE).onMessage(destination.getScope(), messageId, null);
+      Assert.assertEquals(message.refCnt(), 0);
+      Assert.assertEquals(messageManager.getNumInFlight(), 0);
+    } finally {
+      messageManager.shutdown();
+      scheduler.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testBatchedRetriesAndAcks() throws Exception {
+    final int numMessages = 20;
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    RecordingService service = new RecordingService();
+    HelixIPCMessageManager messageManager = new HelixIPCMessageManager(scheduler, service, 80, 2);
+    final Set<UUID> timedOut = Collections.synchronizedSet(new HashSet<UUID>());
+    messageManager.registerTimeoutCallback(MESSAGE_TYPE, new HelixIPCCallback() {
+      @Override
+      public void onMessage(HelixMessageScope scope, UUID messageId, ByteBuf message) {
+        timedOut.add(messageId);
+      }
+    });
+    messageManager.start();
+    try {
+      HelixAddress destination = address("localhost_12918");
+      List<ByteBuf> messages = new ArrayList<ByteBuf>();
+      for (int i = 0; i < numMessages; i++) {
+        ByteBuf message = Unpooled.wrappedBuffer(new byte[16]);
+        messages.add(message);
+        messageManager.send(destination, MESSAGE_TYPE, UUID.randomUUID(), message);
+        messageManager.sendAck(destination, ACK_MESSAGE_TYPE, UUID.randomUUID());
+      }
+      // with no acks coming back, every message is retried once and then times out
+      Thread.sleep(1000);
+      Assert.assertEquals(messageManager.getNumInFlight(), 0);
+      Assert.assertEquals(timedOut.size(), numMessages);
+      for (ByteBuf message : messages) {
+        Assert.assertEquals(message.refCnt(), 0);
+      }
+      synchronized (service) {
+        int numAcks = 0;
+        for (int messageType : service.writtenTypes) {
+          if (messageType == ACK_MESSAGE_TYPE) {
+            numAcks++;
+          }
+        }
+        Assert.assertEquals(numAcks, numMessages);
+        Assert.assertEquals(service.numWrites, 3 * numMessages);
+        // one flush per initial send, and only a few for the batched retries and acks
+        Assert.assertTrue(service.numFlushes - numMessages <= 8, "flushes: " + service.numFlushes);
+      }
+    } finally {
+      messageManager.shutdown();
+      scheduler.shutdownNow();
+    }
+  }
+}
@@ -22,6 +22,7 @@ package org.apache.helix.ipc;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 
+import java.nio.charset.Charset;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Random;
@@ -29,6 +30,7 @@ import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -339,6 +341,113 @@ public class TestNettyHelixIPCService extends ZkTestBase {
     secondIPC.shutdown();
   }
 
+  @Test
+  public void testRequestService() throws Exception {
+    final int requestType = 3;
+    final int responseType = 4;
+    final int failingRequestType = 5;
+
+    // Both nodes answer with their instance name
+    final HelixIPCService firstIPC =
+        new NettyHelixIPCService(new NettyHelixIPCService.Config().setInstanceName(
+            firstNode.getInstanceName()).setPort(firstPort));
+    final HelixIPCService secondIPC =
+        new NettyHelixIPCService(new NettyHelixIPCService.Config().setInstanceName(
+            secondNode.getInstanceName()).setPort(secondPort));
+    HelixIPCRequestService firstRequests =
+        new HelixIPCRequestService(Executors.newSingleThreadScheduledExecutor(), firstIPC,
+            firstResolver, responseType);
+    HelixIPCRequestService secondRequests =
+        new HelixIPCRequestService(Executors.newSingleThreadScheduledExecutor(), secondIPC,
+            secondResolver, responseType);
+    firstRequests.registerHandler(requestType, new EchoInstanceHandler(firstNode.getInstanceName()));
+    secondRequests.registerHandler(requestType,
+        new EchoInstanceHandler(secondNode.getInstanceName()));
+    secondRequests.registerHandler(failingRequestType, new HelixIPCRequestHandler() {
+      @Override
+      public ByteBuf onRequest(HelixMessageScope scope, UUID requestId, ByteBuf request) {
+        throw new IllegalArgumentException("boom");
+      }
+    });
+    firstIPC.start();
+    secondIPC.start();
+    firstRequests.start();
+    secondRequests.start();
+
+    // Allow resolver callbacks to fire
+    Thread.sleep(500);
+
+    // Scatter-gather to every online replica of the resource
+    HelixMessageScope scope =
+        new HelixMessageScope.Builder().cluster(firstNode.getClusterName())
+            .resource(RESOURCE_NAME).state("ONLINE").build();
+    final AtomicInteger numStreamed = new AtomicInteger();
+    HelixIPCScatterGatherResult result =
+        firstRequests.scatterGather(scope, requestType, Unpooled.wrappedBuffer("ping".getBytes()),
+            5000, new HelixIPCResponseCallback() {
+              @Override
+              public void onResponse(String instanceName, ByteBuf response) {
+                numStreamed.incrementAndGet();
+              }
+
+              @Override
+              public void onError(String instanceName, String errorMessage) {
+              }
+            }).get();
+    Assert.assertTrue(result.isComplete());
+    Assert.assertEquals(result.getResponses().size(), 2);
+    Assert.assertEquals(numStreamed.get(), 2);
+    for (Map.Entry<String, ByteBuf> response : result.getResponses().entrySet()) {
+      Assert.assertEquals(response.getValue().toString(Charset.forName("UTF-8")),
+          response.getKey());
+    }
+
+    // Single request
+    HelixMessageScope secondScope =
+        new HelixMessageScope.Builder().cluster(firstNode.getClusterName())
+            .resource(RESOURCE_NAME).build();
+    HelixAddress second = null;
+    for (HelixAddress destination : firstResolver.getDestinations(secondScope)) {
+      if (destination.getInstanceName().equals(secondNode.getInstanceName())) {
+        second = destination;
+      }
+    }
+    Assert.assertNotNull(second);
+    ByteBuf response =
+        firstRequests.request(second, requestType, Unpooled.wrappedBuffer("ping".getBytes()), 5000)
+            .get();
+    Assert.assertEquals(response.toString(Charset.forName("UTF-8")), secondNode.getInstanceName());
+
+    // Remote failures fail the future
+    try {
+      firstRequests.request(second, failingRequestType, Unpooled.wrappedBuffer("ping".getBytes()),
+          5000).get();
+      Assert.fail("Expected the remote handler failure to propagate");
+    } catch (ExecutionException e) {
+      Assert.assertTrue(e.getCause().getMessage().contains("boom"));
+    }
+    Assert.assertEquals(firstRequests.getNumPendingCalls(), 0);
+
+    // Shutdown
+    firstRequests.shutdown();
+    secondRequests.shutdown();
+    firstIPC.shutdown();
+    secondIPC.shutdown();
+  }
+
+  private static class EchoInstanceHandler implements HelixIPCRequestHandler {
+    private final String instanceName;
+
+    EchoInstanceHandler(String instanceName) {
+      this.instanceName = instanceName;
+    }
+
+    @Override
+    public ByteBuf onRequest(HelixMessageScope scope, UUID requestId, ByteBuf request) {
+      return Unpooled.wrappedBuffer(instanceName.getBytes(Charset.forName("UTF-8")));
+    }
+  }
+
   public static class DummyStateModelFactory extends
       StateTransitionHandlerFactory<TransitionHandler> {
     @Override